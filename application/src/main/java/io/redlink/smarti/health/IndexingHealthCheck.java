@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.health;
+
+import io.redlink.smarti.cloudsync.IndexingMetrics;
+import io.redlink.smarti.cloudsync.IndexingMetricsService;
+import io.redlink.smarti.properties.IndexingHealthCheckProperties;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports the state of the indexes based on their {@link IndexingMetrics}. Indexes with a lag
+ * above the configured {@link IndexingHealthCheckProperties#getMaxLag() max lag} (or too many
+ * documents failed within the {@link IndexingHealthCheckProperties#getFailedWindow() failed window})
+ * are reported as {@link #DEGRADED}. As searches are still served this status is not fatal and
+ * mapped to HTTP 200 (see <code>endpoints.health.mapping</code> and <code>management.health.status.order</code>
+ * in the <code>application.properties</code>).
+ */
+@Component
+@EnableConfigurationProperties(IndexingHealthCheckProperties.class)
+public class IndexingHealthCheck extends AbstractHealthIndicator {
+
+    /**
+     * The index is operational but behind or failing to index some documents
+     */
+    public static final Status DEGRADED = new Status("DEGRADED", "indexing is delayed or documents failed to index");
+
+    private final IndexingMetricsService metricsService;
+
+    private final IndexingHealthCheckProperties properties;
+
+    public IndexingHealthCheck(IndexingMetricsService metricsService, IndexingHealthCheckProperties properties) {
+        this.metricsService = metricsService;
+        this.properties = properties;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception {
+        builder.up();
+        for (IndexingMetrics index : metricsService.getIndexes()) {
+            final long lag = index.getLag();
+            final long recentFailed = index.getFailed(properties.getFailedWindow());
+            final Health.Builder sub = new Health.Builder(Status.UP)
+                    .withDetail("lag", lag)
+                    .withDetail("pending", index.getPending())
+                    .withDetail("indexed", index.getIndexed())
+                    .withDetail("failed", index.getFailed())
+                    .withDetail("recentFailed", recentFailed)
+                    .withDetail("docsPerSecond", index.getRate());
+            if ((properties.getMaxLag() > 0 && lag > properties.getMaxLag()) ||
+                    (properties.getMaxFailed() > 0 && recentFailed > properties.getMaxFailed())) {
+                sub.status(DEGRADED);
+                builder.status(DEGRADED);
+            }
+            builder.withDetail(index.getName(), sub.build());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.properties;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix = "smarti.index.health")
+public class IndexingHealthCheckProperties {
+
+    public static final long DEFAULT_MAX_LAG = 5 * 60 * 1000; //5min
+
+    public static final long DEFAULT_FAILED_WINDOW = 15 * 60 * 1000; //15min
+
+    /**
+     * the maximum indexing lag (in ms) before the healthcheck reports DEGRADED (values &lt;= 0 disable the check)
+     */
+    private long maxLag = DEFAULT_MAX_LAG;
+
+    /**
+     * the maximum number of documents failed within the {@link #failedWindow} before the healthcheck
+     * reports DEGRADED (values &lt;= 0 disable the check)
+     */
+    private long maxFailed = 0;
+
+    /**
+     * the time window (in ms) failed documents are counted for the {@link #maxFailed} check (max. 1 hour)
+     */
+    private long failedWindow = DEFAULT_FAILED_WINDOW;
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    public void setMaxLag(long maxLag) {
+        this.maxLag = maxLag;
+    }
+
+    public long getMaxFailed() {
+        return maxFailed;
+    }
+
+    public void setMaxFailed(long maxFailed) {
+        this.maxFailed = maxFailed;
+    }
+
+    public long getFailedWindow() {
+        return failedWindow;
+    }
+
+    public void setFailedWindow(long failedWindow) {
+        this.failedWindow = failedWindow <= 0 ? DEFAULT_FAILED_WINDOW : failedWindow;
+    }
+
+}
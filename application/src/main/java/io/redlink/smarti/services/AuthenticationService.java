@@ -243,7 +243,26 @@ public class AuthenticationService {
      * @throws NotFoundException if the provided {@link AuthContext} does not allow access or the {@link Conversation} with the specified {@code conversationId} does not exist.
      */
     public Conversation assertConversation(AuthContext authContext, ObjectId conversationId) {
-        final Conversation conversation = conversationService.getConversation(conversationId);
+        return assertConversationAccess(authContext, conversationId, conversationService.getConversation(conversationId));
+    }
+
+    /**
+     * Assert that the {@link AuthContext} allows access to the {@link Conversation} with the
+     * provided id. In contrast to {@link #assertConversation(AuthContext, ObjectId)} this only loads the
+     * header (<code>owner</code>, <code>meta</code> and <code>lastModified</code>) of the conversation.
+     * Use this if the request does not need messages, user or context of the conversation.
+     *
+     * @param authContext the auth-context
+     * @param conversationId the conversation-id
+     * @return the header of the {@link Conversation} for the provided {@code conversationId}, if access is granted for the provided {@link AuthContext}
+     * @throws NotFoundException if the provided {@link AuthContext} does not allow access or the {@link Conversation} with the specified {@code conversationId} does not exist.
+     * @see ConversationService#getConversationHeader(ObjectId)
+     */
+    public Conversation assertConversationAccess(AuthContext authContext, ObjectId conversationId) {
+        return assertConversationAccess(authContext, conversationId, conversationService.getConversationHeader(conversationId));
+    }
+
+    private Conversation assertConversationAccess(AuthContext authContext, ObjectId conversationId, Conversation conversation) {
         if (conversation == null) {
             log.debug("NOT_FOUND conversation {}", conversationId);
             throw new NotFoundException(Conversation.class, conversationId);
@@ -284,7 +303,7 @@ public class AuthenticationService {
     }
 
     public boolean hasAccessToConversation(AuthContext authContext, ObjectId conversationId) {
-        final Conversation conversation = conversationService.getConversation(conversationId);
+        final Conversation conversation = conversationService.getConversationHeader(conversationId);
 
         return conversation != null
                 && (hasRole(authContext, ADMIN) || getClientIds(authContext).contains(conversation.getOwner()));
@@ -2,6 +2,7 @@ package io.redlink.smarti.webservice;
 
 
 import io.redlink.smarti.chatpal.index.ChatpalIndexConfiguration;
+import io.redlink.smarti.chatpal.index.ChatpalIndexer;
 import io.redlink.smarti.chatpal.service.ChatpalMessageServcie;
 import io.redlink.smarti.services.*;
 import io.redlink.smarti.utils.ResponseEntities;
@@ -9,6 +10,7 @@ import io.redlink.smarti.webservice.pojo.AuthContext;
 import io.redlink.solrlib.SolrCoreContainer;
 import io.redlink.solrlib.SolrCoreDescriptor;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -21,27 +23,41 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import static io.redlink.smarti.chatpal.index.ChatpalIndexConfiguration.CHATPAL_INDEX;
 import static io.redlink.smarti.chatpal.index.ChatpalIndexConfiguration.FIELD_CLIENT;
 import static io.redlink.smarti.chatpal.index.ChatpalIndexConfiguration.FIELD_ID;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.servlet.http.HttpServletRequest;
+
 /**
  * Server side services required by Chatpal
  * 
@@ -57,8 +73,21 @@ public class ChatpalWebservice {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Newline delimited JSON as used by the {@link #bulkIndex(AuthContext, HttpServletRequest)} endpoint
+     */
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+    public static final int DEFAULT_BULK_BATCH_SIZE = 500;
+
     private final ChatpalMessageServcie chatpalService;
 
+    private final ChatpalIndexer chatpalIndexer;
+
+    private final ObjectMapper jacksonObjectMapper;
+
+    private final int bulkBatchSize;
+
     private final SolrCoreContainer solrServer;
 
     private final SolrCoreDescriptor chatpalCore;
@@ -66,9 +95,13 @@ public class ChatpalWebservice {
     private final AuthenticationService authenticationService;
 
     @Autowired
-    public ChatpalWebservice(ChatpalMessageServcie chatpalService, SolrCoreContainer solrServer,
-            @Qualifier(CHATPAL_INDEX) SolrCoreDescriptor chatpalCore, AuthenticationService authenticationService) {
+    public ChatpalWebservice(ChatpalMessageServcie chatpalService, Optional<ChatpalIndexer> chatpalIndexer, SolrCoreContainer solrServer,
+            @Qualifier(CHATPAL_INDEX) SolrCoreDescriptor chatpalCore, AuthenticationService authenticationService,
+            ObjectMapper jacksonObjectMapper, @Value("${chatpal.bulk.batchSize:" + DEFAULT_BULK_BATCH_SIZE + "}") int bulkBatchSize) {
         this.chatpalService = chatpalService;
+        this.chatpalIndexer = chatpalIndexer.orElse(null);
+        this.jacksonObjectMapper = jacksonObjectMapper;
+        this.bulkBatchSize = bulkBatchSize <= 0 ? DEFAULT_BULK_BATCH_SIZE : bulkBatchSize;
         this.solrServer = solrServer;
         this.chatpalCore = chatpalCore;
         this.authenticationService = authenticationService;
@@ -113,6 +146,139 @@ public class ChatpalWebservice {
         return ResponseEntity.ok().build();
     }
 
+    /**
+     * Bulk ingest of messages. The request body is expected to contain a single message (JSON object
+     * with an <code>id</code>) per line. Messages are stored and indexed in batches. The response
+     * contains a JSON object with the outcome for each (non empty) line of the request. If a batch can
+     * not be stored or the request can not be read any further all affected lines are reported as
+     * <code>error</code>.
+     */
+    @RequestMapping(value = "/bulk", method = RequestMethod.POST, 
+            consumes = { APPLICATION_NDJSON_VALUE, MediaType.TEXT_PLAIN_VALUE }, produces = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<?> bulkIndex(AuthContext authContext, HttpServletRequest request) {
+        Set<ObjectId> clients = authenticationService.getClientIds(authContext);
+        final ObjectId client = clients.size() == 1 ? clients.iterator().next() : null;
+        if (client == null) {
+            return ResponseEntities.badRequest("Unable to determine client based on request");
+        }
+        StreamingResponseBody body = out -> bulkIndex(client, request.getInputStream(), out);
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)).body(body);
+    }
+
+    @SuppressWarnings("unchecked")
+    void bulkIndex(ObjectId client, InputStream in, OutputStream out) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        final List<Map<String, Object>> batch = new ArrayList<>(bulkBatchSize);
+        final List<Integer> batchLines = new ArrayList<>(bulkBatchSize);
+        final Set<Object> batchIds = new HashSet<>();
+        int lineNumber = 0;
+        int stored = 0;
+        String line;
+        try {
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (StringUtils.isBlank(line)) {
+                    continue;
+                }
+                final Object data;
+                try {
+                    data = jacksonObjectMapper.readValue(line, Object.class);
+                } catch (JsonProcessingException e) {
+                    writeOutcome(out, lineNumber, null, "invalid JSON (" + e.getOriginalMessage() + ")");
+                    continue;
+                }
+                if (!(data instanceof Map)) {
+                    writeOutcome(out, lineNumber, null, "Unexpected data format (supported: objects)!");
+                    continue;
+                }
+                final Map<String, Object> message = (Map<String, Object>) data; // this is save as this originates from JSON
+                final Object msgId = message.get("id");
+                if (msgId == null || StringUtils.isBlank(String.valueOf(msgId))) {
+                    writeOutcome(out, lineNumber, null, "missing required field 'id'");
+                    continue;
+                }
+                if (batchIds.contains(msgId)) { // store the earlier version of the message first
+                    stored += storeBatch(client, batch, batchLines, batchIds, out);
+                }
+                batch.add(message);
+                batchLines.add(lineNumber);
+                batchIds.add(msgId);
+                if (batch.size() >= bulkBatchSize) {
+                    stored += storeBatch(client, batch, batchLines, batchIds, out);
+                }
+            }
+        } catch (IOException | RuntimeException e) { // e.g. the client aborted the upload
+            log.warn("bulk ingest for client {} failed after line {} ({} - {})", client, lineNumber, 
+                    e.getClass().getSimpleName(), e.getMessage());
+            final String error = "unable to read request (" + e.getMessage() + ")";
+            // the pending lines are not stored
+            for (int i = 0; i < batch.size(); i++) {
+                writeOutcome(out, batchLines.get(i), batch.get(i).get("id"), error);
+            }
+            writeOutcome(out, lineNumber + 1, null, error);
+            out.flush();
+            log.debug("bulk ingest for client {}: stored {} of {} lines", client, stored, lineNumber);
+            return;
+        }
+        stored += storeBatch(client, batch, batchLines, batchIds, out);
+        log.debug("bulk ingest for client {}: stored {} of {} lines", client, stored, lineNumber);
+    }
+
+    private int storeBatch(ObjectId client, List<Map<String, Object>> batch, List<Integer> batchLines, 
+            Set<Object> batchIds, OutputStream out) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Map<Integer, String> errors;
+        try {
+            errors = chatpalService.store(client, batch);
+        } catch (RuntimeException e) { // e.g. MongoDB not available: none of the messages is stored
+            log.warn("Unable to store batch of {} chatpal messages for client {} ({} - {})", batch.size(), client,
+                    e.getClass().getSimpleName(), e.getMessage());
+            errors = new HashMap<>();
+            for (int i = 0; i < batch.size(); i++) {
+                errors.put(i, "not stored (" + e.getMessage() + ")");
+            }
+        }
+        if (chatpalIndexer != null && errors.size() < batch.size()) {
+            final Set<Object> storedIds = new HashSet<>();
+            for (int i = 0; i < batch.size(); i++) {
+                if (!errors.containsKey(i)) {
+                    storedIds.add(batch.get(i).get("id"));
+                }
+            }
+            try {
+                chatpalIndexer.indexMessages(chatpalService.getIds(client, storedIds));
+            } catch (RuntimeException e) { // stored messages are indexed by the next sync of the indexer
+                log.warn("Unable to index batch of {} stored chatpal messages for client {} ({} - {})", storedIds.size(),
+                        client, e.getClass().getSimpleName(), e.getMessage());
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            writeOutcome(out, batchLines.get(i), batch.get(i).get("id"), errors.get(i));
+        }
+        out.flush();
+        int stored = batch.size() - errors.size();
+        batch.clear();
+        batchLines.clear();
+        batchIds.clear();
+        return stored;
+    }
+
+    private void writeOutcome(OutputStream out, int line, Object msgId, String error) throws IOException {
+        final Map<String, Object> outcome = new LinkedHashMap<>();
+        outcome.put("line", line);
+        if (msgId != null) {
+            outcome.put("id", msgId);
+        }
+        outcome.put("status", error == null ? "stored" : "error");
+        if (error != null) {
+            outcome.put("error", error);
+        }
+        out.write(jacksonObjectMapper.writeValueAsBytes(outcome));
+        out.write('\n');
+    }
+
     @RequestMapping(value = "/search", method = { RequestMethod.POST,
             RequestMethod.GET }, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> search(AuthContext authContext, @RequestParam MultiValueMap<String, String> params)
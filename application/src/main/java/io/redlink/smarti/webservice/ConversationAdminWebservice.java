@@ -16,12 +16,16 @@
  */
 package io.redlink.smarti.webservice;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import io.redlink.smarti.model.Client;
 import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.ConversationImportJob;
 import io.redlink.smarti.model.ConversationMeta;
 import io.redlink.smarti.model.Message;
-import io.redlink.smarti.model.config.Configuration;
 import io.redlink.smarti.query.conversation.ConversationIndexer;
 import io.redlink.smarti.services.AuthenticationService;
 import io.redlink.smarti.services.ConversationService;
@@ -32,21 +36,34 @@ import io.redlink.smarti.webservice.pojo.PagedConversationList;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
+import org.apache.commons.io.IOUtils;
 import org.bson.types.ObjectId;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import static io.redlink.smarti.services.AuthenticationService.ADMIN;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @CrossOrigin
 @RestController
@@ -55,6 +72,14 @@ import java.util.Optional;
 @Api
 public class ConversationAdminWebservice {
 
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    public static final String APPLICATION_GZIP_VALUE = "application/gzip";
+
+    private static final int MAX_IMPORT_BATCH_SIZE = 5000;
+
+    private static final int DEFAULT_EXPORT_BATCH_SIZE = 100;
+    private static final int MAX_EXPORT_BATCH_SIZE = 1000;
+
     private final ObjectMapper jacksonObjectMapper;
     private final ConversationService conversationService;
     private final AuthenticationService authenticationService;
@@ -96,13 +121,28 @@ public class ConversationAdminWebservice {
         }
     }
 
+    @ApiOperation(nickname="adminGetMessage", value = "retrieve a message", response = Message.class)
+    @RequestMapping(value = "{conversationId}/message/{messageId}", method = RequestMethod.GET)
+    public ResponseEntity<?> getMessage(
+            AuthContext authContext,
+            @PathVariable("conversationId") ObjectId conversationId,
+            @PathVariable("messageId") String messageId) {
+        authenticationService.assertConversationAccess(authContext, conversationId);
+        final Message message = conversationService.getMessage(conversationId, messageId);
+        if (Objects.nonNull(message)) {
+            return ResponseEntity.ok(message);
+        } else {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
     @ApiOperation(nickname="adminDeleteMessage", value = "delete a message", response = Conversation.class)
     @RequestMapping(value = "{conversationId}/message/{messageId}", method = RequestMethod.DELETE)
     public ResponseEntity<?> deleteMessage(
             AuthContext authContext,
             @PathVariable("conversationId") ObjectId conversationId,
             @PathVariable("messageId") String messageId) {
-        authenticationService.hasAccessToConversation(authContext, conversationId);
+        authenticationService.assertConversationAccess(authContext, conversationId);
         if (conversationService.deleteMessage(conversationId, messageId)) {
             return getConversation(authContext, conversationId);
         } else {
@@ -117,7 +157,7 @@ public class ConversationAdminWebservice {
             @PathVariable("conversationId") ObjectId conversationId,
             @PathVariable("messageId") String messageId,
             @RequestBody Message updatedMessage) {
-        authenticationService.hasAccessToConversation(authContext, conversationId);
+        authenticationService.assertConversationAccess(authContext, conversationId);
 
         // Make sure the messageId does not change
         updatedMessage.setId(messageId);
@@ -150,53 +190,143 @@ public class ConversationAdminWebservice {
             AuthContext authContext,
             @PathVariable("conversationId") ObjectId conversationId,
             @RequestBody Date expiryDate) {
-        authenticationService.assertConversation(authContext, conversationId);
+        authenticationService.assertConversationAccess(authContext, conversationId);
         // TODO[#59]: implement this
         return ResponseEntities.notImplemented();
     }
 
-    @ApiOperation(value = "export conversations", response = Configuration.class, responseContainer = "List")
-    @RequestMapping(value = "export", method = RequestMethod.GET)
+    @ApiOperation(value = "export conversations", notes = "Conversations are streamed from the database and written " +
+            "as JSON array or newline delimited JSON (NDJSON). Both formats can be imported.", 
+            response = Conversation.class, responseContainer = "List")
+    @RequestMapping(value = "export", method = RequestMethod.GET, produces = {MimeTypeUtils.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE, APPLICATION_GZIP_VALUE})
     public ResponseEntity<?> exportConversations(
             AuthContext authContext,
-            @RequestParam("owner") ObjectId owner) {
-        if (authenticationService.hasAccessToClient(authContext, owner)) {
-            return ResponseEntity.ok(conversationService.getConversations(owner));
-        } else {
+            @RequestParam("owner") ObjectId owner,
+            @ApiParam(value = "the export format", allowableValues = "json,ndjson")
+            @RequestParam(value = "format", defaultValue = "json", required = false) String format,
+            @ApiParam("if the export is gzip compressed")
+            @RequestParam(value = "gzip", defaultValue = "false", required = false) boolean gzip,
+            @ApiParam("only conversations modified since (ISO date time, inclusive)")
+            @RequestParam(value = "since", required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date since,
+            @ApiParam("only conversations modified before (ISO date time, exclusive)")
+            @RequestParam(value = "until", required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date until,
+            @ApiParam("if only completed conversations are exported")
+            @RequestParam(value = "completed", defaultValue = "false", required = false) boolean completedOnly,
+            @ApiParam("the fields to export (e.g. 'meta', 'messages'). All if none")
+            @RequestParam(value = "fields", required = false) String[] fields,
+            @ApiParam("the number of conversations loaded from the database in a single batch")
+            @RequestParam(value = "batchSize", defaultValue = "" + DEFAULT_EXPORT_BATCH_SIZE, required = false) int batchSize) {
+        if (!authenticationService.hasAccessToClient(authContext, owner)) {
             return ResponseEntity.badRequest().build();
         }
+        final boolean ndjson;
+        if ("ndjson".equalsIgnoreCase(format)) {
+            ndjson = true;
+        } else if ("json".equalsIgnoreCase(format)) {
+            ndjson = false;
+        } else {
+            return ResponseEntities.badRequest("Unsupported export format '" + format + "' (supported: json, ndjson)");
+        }
+        final int size = Math.max(1, Math.min(batchSize, MAX_EXPORT_BATCH_SIZE));
+        final StreamingResponseBody body = out -> {
+            final OutputStream os = gzip ? new GZIPOutputStream(out) : out;
+            try (Stream<Conversation> conversations = conversationService.streamConversations(owner, since, until, completedOnly, size, fields)) {
+                if (ndjson) {
+                    writeNdJson(conversations, os);
+                } else {
+                    writeJsonArray(conversations, os);
+                }
+            }
+            if (os instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) os).finish();
+            } else {
+                os.flush();
+            }
+        };
+        final String fileName = "conversations-" + owner + (ndjson ? ".ndjson" : ".json") + (gzip ? ".gz" : "");
+        //NOTE: gzip is used as file format (and not as Content-Encoding) so that the downloaded file stays compressed
+        return ResponseEntity.ok()
+                .contentType(gzip ? MediaType.parseMediaType(APPLICATION_GZIP_VALUE) :
+                        MediaType.parseMediaType(ndjson ? APPLICATION_NDJSON_VALUE : MimeTypeUtils.APPLICATION_JSON_VALUE))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .body(body);
+    }
+
+    /**
+     * Supports importing gzip compressed exports by checking for the gzip magic number
+     */
+    private static InputStream decompress(InputStream data) throws IOException {
+        final PushbackInputStream in = new PushbackInputStream(data, 2);
+        final byte[] magic = new byte[2];
+        final int read = IOUtils.read(in, magic);
+        if (read > 0) {
+            in.unread(magic, 0, read);
+        }
+        if (read == 2 && (magic[0] & 0xff | (magic[1] & 0xff) << 8) == GZIPInputStream.GZIP_MAGIC) {
+            return new GZIPInputStream(in);
+        } else {
+            return in;
+        }
     }
 
-    @ApiOperation(value = "import conversations")
-    @RequestMapping(value = "import", method = RequestMethod.POST, consumes = MimeTypeUtils.APPLICATION_JSON_VALUE)
+    private void writeJsonArray(Stream<Conversation> conversations, OutputStream out) throws IOException {
+        try (JsonGenerator generator = jacksonObjectMapper.getFactory().createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartArray();
+            final Iterator<Conversation> it = conversations.iterator();
+            while (it.hasNext()) {
+                jacksonObjectMapper.writeValue(generator, it.next());
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private void writeNdJson(Stream<Conversation> conversations, OutputStream out) throws IOException {
+        final ObjectWriter writer = jacksonObjectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+        final Iterator<Conversation> it = conversations.iterator();
+        while (it.hasNext()) {
+            out.write(writer.writeValueAsBytes(it.next()));
+            out.write('\n');
+        }
+    }
+
+    @ApiOperation(value = "import conversations", notes = "Imports conversations provided as JSON array or as newline " +
+            "delimited JSON (NDJSON), optionally gzip compressed. Conversations are read incrementally and written in batches. If an import fails " +
+            "it can be resumed by parsing the id of the returned job and the same data.", response = ConversationImportJob.class)
+    @RequestMapping(value = "import", method = RequestMethod.POST, consumes = {MimeTypeUtils.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE, APPLICATION_GZIP_VALUE})
     public ResponseEntity<?> importConversations(
             AuthContext authContext,
             @RequestParam("owner") ObjectId owner,
             @RequestParam(value = "replace", defaultValue = "false", required = false) boolean replace,
-            @RequestBody List<Conversation> conversations
+            @ApiParam("the number of conversations written in a single bulk operation")
+            @RequestParam(value = "batchSize", defaultValue = "" + ConversationService.DEFAULT_IMPORT_BATCH_SIZE, required = false) int batchSize,
+            @ApiParam("if imported conversations are indexed directly (otherwise they are indexed by the next update sync)")
+            @RequestParam(value = "index", defaultValue = "false", required = false) boolean index,
+            @ApiParam("the id of a failed import job to resume")
+            @RequestParam(value = "job", required = false) ObjectId jobId,
+            InputStream data
     ) {
         if (authenticationService.hasAccessToClient(authContext, owner)) {
-            conversationService.importConversations(owner, conversations, replace);
-            return ResponseEntity.noContent().build();
+            return importConversations(owner, replace, batchSize, index, jobId, data);
         } else {
             return ResponseEntity.badRequest().build();
         }
     }
 
-    @ApiOperation(value = "import conversations")
+    @ApiOperation(value = "import conversations", response = ConversationImportJob.class)
     @RequestMapping(value = "import", method = RequestMethod.POST, consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public ResponseEntity<?> importConversations(
             AuthContext authContext,
             @RequestParam("owner") ObjectId owner,
             @RequestParam(value = "replace", defaultValue = "false", required = false) boolean replace,
+            @RequestParam(value = "batchSize", defaultValue = "" + ConversationService.DEFAULT_IMPORT_BATCH_SIZE, required = false) int batchSize,
+            @RequestParam(value = "index", defaultValue = "false", required = false) boolean index,
+            @RequestParam(value = "job", required = false) ObjectId jobId,
             @RequestPart("file") MultipartFile file
     ) {
-
         if (authenticationService.hasAccessToClient(authContext, owner)) {
-            try {
-                final List<Conversation> conversations = jacksonObjectMapper.readValue(file.getInputStream(),
-                        jacksonObjectMapper.getTypeFactory().constructCollectionType(List.class, Conversation.class));
-                return importConversations(authContext, owner, replace, conversations);
+            try (InputStream in = file.getInputStream()) {
+                return importConversations(owner, replace, batchSize, index, jobId, in);
             } catch (IOException e) {
                 return ResponseEntity.unprocessableEntity().build();
             }
@@ -204,7 +334,53 @@ public class ConversationAdminWebservice {
             return ResponseEntity.badRequest().build();
         }
     }
-    
+
+    @ApiOperation(value = "get the status of an import job", response = ConversationImportJob.class)
+    @RequestMapping(value = "import/{jobId}", method = RequestMethod.GET)
+    public ResponseEntity<?> getImportJob(
+            AuthContext authContext,
+            @PathVariable("jobId") ObjectId jobId) {
+        final ConversationImportJob job = conversationService.getImportJob(jobId);
+        if (job == null || !authenticationService.hasAccessToClient(authContext, job.getOwner())) {
+            return ResponseEntity.notFound().build();
+        } else {
+            return ResponseEntity.ok(job);
+        }
+    }
+
+    private ResponseEntity<?> importConversations(ObjectId owner, boolean replace, int batchSize, boolean index,
+            ObjectId jobId, InputStream data) {
+        final ConversationImportJob job;
+        if (jobId == null) {
+            job = new ConversationImportJob(owner, replace);
+        } else {
+            job = conversationService.getImportJob(jobId);
+            if (job == null || !Objects.equals(owner, job.getOwner())) {
+                return ResponseEntities.badRequest("Unknown import job " + jobId + " for client " + owner);
+            } else if (job.getStatus() == ConversationImportJob.Status.Completed) {
+                return ResponseEntity.ok(job);
+            }
+        }
+        final Consumer<List<ObjectId>> indexCallback = index && conversationIndexer != null ? conversationIndexer::indexConversations : null;
+        //NOTE: readValues reads the elements of a root level JSON array as well as a sequence of root level values (NDJSON)
+        try (MappingIterator<Conversation> conversations = jacksonObjectMapper.readerFor(Conversation.class).readValues(decompress(data))) {
+            conversationService.importConversations(owner, conversations, job,
+                    Math.max(1, Math.min(batchSize, MAX_IMPORT_BATCH_SIZE)), indexCallback);
+        } catch (IOException e) {
+            job.setStatus(ConversationImportJob.Status.Failed);
+            job.setError(e.getMessage());
+        } finally {
+            if (indexCallback != null) {
+                conversationIndexer.flush();
+            }
+        }
+        if (job.getStatus() == ConversationImportJob.Status.Completed) {
+            return ResponseEntity.ok(job);
+        } else {
+            return ResponseEntity.unprocessableEntity().body(job);
+        }
+    }
+
     @ApiOperation(value = "re-indexes conversations for all clients. Requires ADMIN permissions")
     @RequestMapping(value = "index", method = RequestMethod.POST)
     public ResponseEntity<?> reindexConversation(
@@ -30,9 +30,11 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -56,6 +58,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import com.google.common.collect.ImmutableMap;
@@ -75,6 +78,7 @@ import io.redlink.smarti.query.conversation.MessageSearchService;
 import io.redlink.smarti.services.AnalysisService;
 import io.redlink.smarti.services.AuthenticationService;
 import io.redlink.smarti.services.ConversationService;
+import io.redlink.smarti.services.QueryExecutionConfiguration;
 import io.redlink.smarti.utils.ResponseEntities;
 import io.redlink.smarti.webservice.pojo.AuthContext;
 import io.redlink.smarti.webservice.pojo.CallbackPayload;
@@ -146,7 +150,7 @@ public class ConversationWebservice {
     private final ConversationSearchService conversationSearchService;
     private final MessageSearchService messageSearchService;
     private final AuthenticationService authenticationService;
-
+    private final long resultTimeout;
 
 
     @Autowired
@@ -154,13 +158,15 @@ public class ConversationWebservice {
                                   ConversationService conversationService, AnalysisService analysisService,
                                   CallbackService callbackExecutor, 
                                   Optional<ConversationSearchService> conversationSearchService,
-                                  Optional<MessageSearchService> messageSearchService) {
+                                  Optional<MessageSearchService> messageSearchService,
+                                  QueryExecutionConfiguration queryExecutionConfig) {
         this.callbackExecutor = callbackExecutor;
         this.conversationService = conversationService;
         this.analysisService = analysisService;
         this.conversationSearchService = conversationSearchService.orElse(null);
         this.messageSearchService = messageSearchService.orElse(null);
         this.authenticationService = authenticationService;
+        this.resultTimeout = queryExecutionConfig.getTimeout();
     }
 
     @ApiOperation(value = "list conversations", code = 200, response = PagedConversationList.class,
@@ -346,7 +352,7 @@ public class ConversationWebservice {
             AuthContext authContext,
             @PathVariable("conversationId") ObjectId conversationId
     ) {
-        authenticationService.assertConversation(authContext, conversationId);
+        authenticationService.assertConversationAccess(authContext, conversationId);
 
         if (conversationService.deleteConversation(conversationId)) {
             return ResponseEntity.noContent().build();
@@ -375,7 +381,7 @@ public class ConversationWebservice {
             @ApiParam(name=PARAM_PROJECTION, required=false, value=DESCRIPTION_PARAM_PROJECTION) @RequestParam(value = PARAM_PROJECTION, required = false) Projection projection
     ) {
         // Check access to the conversation
-        final Conversation conversation = authenticationService.assertConversation(authContext, conversationId);
+        final Conversation conversation = authenticationService.assertConversationAccess(authContext, conversationId);
 
         final Client client = getResponseClient(authContext, clientId, conversation, inclAnalysis);
 
@@ -416,7 +422,7 @@ public class ConversationWebservice {
             @ApiParam(name=PARAM_PROJECTION, required=false, value=DESCRIPTION_PARAM_PROJECTION) @RequestParam(value = PARAM_PROJECTION, required = false) Projection projection
     ) {
         // Check access to the conversation
-        final Conversation conversation = authenticationService.assertConversation(authContext, conversationId);
+        final Conversation conversation = authenticationService.assertConversationAccess(authContext, conversationId);
 
         final Client client = getResponseClient(authContext, clientId, conversation, inclAnalysis);
 
@@ -456,10 +462,15 @@ public class ConversationWebservice {
         if (conversation == null) {
             return ResponseEntity.notFound().build();
         } else {
+            //the conversation only holds the recent messages if bucketed message storage is enabled
+            final List<Message> messages;
+            try (Stream<Message> stream = conversationService.streamMessages(conversationId)) {
+                messages = stream.collect(Collectors.toList());
+            }
             return ResponseEntity.ok()
                     .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"up\"", buildConversationURI(uriBuilder, conversationId)))
                     .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"analyse\"", buildAnalysisURI(uriBuilder, conversationId)))
-                    .body(conversation.getMessages());
+                    .body(messages);
         }
     }
 
@@ -483,7 +494,7 @@ public class ConversationWebservice {
             @ApiParam(name=PARAM_CALLBACK, required=false, value=DESCRIPTION_PARAM_CALLBACK) @RequestParam(value = PARAM_CALLBACK, required = false) URI callback,
             @ApiParam(name=PARAM_PROJECTION, required=false, value=DESCRIPTION_PARAM_PROJECTION) @RequestParam(value = PARAM_PROJECTION, required = false) Projection projection
     ) {
-        final Conversation conversation = authenticationService.assertConversation(authContext, conversationId);
+        final Conversation conversation = authenticationService.assertConversationAccess(authContext, conversationId);
 
         Client client;
         try {
@@ -501,10 +512,11 @@ public class ConversationWebservice {
             message.setTime(new Date());
         }
         Conversation c = conversationService.appendMessage(conversation, message);
-        final Message created = c.getMessages().stream()
-                .filter(m -> Objects.equals(message.getId(), m.getId()))
-                .findAny().orElseThrow(() -> new IllegalStateException(
-                        "Created Message[id: "+message.getId()+"] not present in " + c));
+        //NOTE: appending an archived message replaces the archived one
+        final Message created = getMessage(c, message.getId());
+        if(created == null){ //deleted concurrently
+            return ResponseEntity.notFound().build();
+        }
 
         if(callback != null){
             appendCallbackExecution(callback, c, analysisService.analyze(client, c));
@@ -528,7 +540,7 @@ public class ConversationWebservice {
     ) {
 
         // Check authentication
-        authenticationService.assertConversation(authContext, conversationId);
+        authenticationService.assertConversationAccess(authContext, conversationId);
 
         final Message message = conversationService.getMessage(conversationId, messageId);
         if (message == null) {
@@ -562,7 +574,7 @@ public class ConversationWebservice {
             @ApiParam(name=PARAM_PROJECTION, required=false, value=DESCRIPTION_PARAM_PROJECTION) @RequestParam(value = PARAM_PROJECTION, required = false) Projection projection
     ) {
         // Check authentication
-        Conversation conversation = authenticationService.assertConversation(authContext, conversationId);
+        Conversation conversation = authenticationService.assertConversationAccess(authContext, conversationId);
 
         Client client;
         try {
@@ -577,10 +589,10 @@ public class ConversationWebservice {
         if(c == null){ //fix for #232 (#updateMessage(..) returns null of no message was updated)
             return ResponseEntity.notFound().build();
         }
-        final Message updated = c.getMessages().stream()
-                .filter(m -> Objects.equals(messageId, m.getId()))
-                .findAny().orElseThrow(() -> new IllegalStateException(
-                        "Updated Message[id: "+messageId+"] not present in " + c));
+        final Message updated = getMessage(c, messageId);
+        if(updated == null){ //deleted concurrently
+            return ResponseEntity.notFound().build();
+        }
         if(callback != null){
             appendCallbackExecution(callback, c, analysisService.analyze(client, c));
         }
@@ -608,7 +620,7 @@ public class ConversationWebservice {
             @ApiParam(name=PARAM_CALLBACK, required=false, value=DESCRIPTION_PARAM_CALLBACK) @RequestParam(value = PARAM_CALLBACK, required = false) URI callback
     ) {
         // Check authentication
-        Conversation conversation = authenticationService.assertConversation(authContext, conversationId);
+        Conversation conversation = authenticationService.assertConversationAccess(authContext, conversationId);
 
         Client client;
         try {
@@ -652,7 +664,7 @@ public class ConversationWebservice {
             @ApiParam(name=PARAM_CALLBACK, required=false, value=DESCRIPTION_PARAM_CALLBACK) @RequestParam(value = PARAM_CALLBACK, required = false) URI callback
     ) {
         // Check authentication
-        Conversation conversation = authenticationService.assertConversation(authContext, conversationId);
+        Conversation conversation = authenticationService.assertConversationAccess(authContext, conversationId);
 
         Client client;
         try {
@@ -665,10 +677,10 @@ public class ConversationWebservice {
         if(c == null){//#similar issue as reported by #232
             return ResponseEntity.notFound().build();
         }
-        final Message updated = c.getMessages().stream()
-                .filter(m -> Objects.equals(messageId, m.getId()))
-                .findAny().orElseThrow(() -> new IllegalStateException(
-                        "Updated Message[id: "+messageId+"] not present in " + c));
+        final Message updated = getMessage(c, messageId);
+        if(updated == null){ //deleted concurrently
+            return ResponseEntity.notFound().build();
+        }
         if(callback != null){
             appendCallbackExecution(callback, c, analysisService.analyze(client, c));
         }
@@ -947,14 +959,14 @@ public class ConversationWebservice {
         @ApiResponse(code = 200, message = "The search results", response = InlineSearchResult.class),
     })
     @RequestMapping(value = "{conversationId}/analysis/template/{templateIdx}/result/{creator}", method = RequestMethod.GET)
-    public ResponseEntity<?> getResults(
+    public DeferredResult<ResponseEntity<?>> getResults(
             AuthContext authContext,
             @ApiParam(hidden = true) UriComponentsBuilder uriBuilder,
             @PathVariable("conversationId") ObjectId conversationId,
             @PathVariable("templateIdx") int templateIdx,
             @PathVariable("creator") String creator,
             @ApiParam(name=PARAM_CLIENT_ID, required=false, value=DESCRIPTION_PARAM_CLIENT_ID) @RequestParam(value = PARAM_CLIENT_ID, required = false) ObjectId clientId
-    ) throws IOException {
+    ) {
         //just forward to getResults with analysis == null
         return getResults(authContext, uriBuilder, conversationId, templateIdx, creator, null, clientId, null);
     }
@@ -967,7 +979,7 @@ public class ConversationWebservice {
         @ApiResponse(code = 200, message = "The search results", response = InlineSearchResult.class)
     })
     @RequestMapping(value = "{conversationId}/analysis/template/{templateIdx}/result/{creator}", method = RequestMethod.POST, consumes=MimeTypeUtils.APPLICATION_JSON_VALUE)
-    public ResponseEntity<?> getResults(
+    public DeferredResult<ResponseEntity<?>> getResults(
             AuthContext authContext,
             @ApiParam(hidden = true) UriComponentsBuilder uriBuilder,
             @PathVariable("conversationId") ObjectId conversationId,
@@ -976,7 +988,7 @@ public class ConversationWebservice {
             @RequestBody Analysis updatedAnalysis,
             @ApiParam @RequestParam(value = PARAM_CLIENT_ID, required = false) ObjectId clientId,
             @ApiParam(DESCRIPTION_PARAM_CALLBACK) @RequestParam(value = PARAM_CALLBACK, required = false) URI callback
-    ) throws IOException {
+    ) {
         final Conversation conversation = authenticationService.assertConversation(authContext, conversationId);
         Client c;
         try {
@@ -986,42 +998,56 @@ public class ConversationWebservice {
         }
         final Client client = c;
 
+        final DeferredResult<ResponseEntity<?>> response = new DeferredResult<>(resultTimeout);
         if (templateIdx < 0) {
-            return ResponseEntity.badRequest().build();
+            response.setResult(ResponseEntity.badRequest().build());
+            return response;
         }
-        CompletableFuture<Analysis> analysis = analysisService.analyze(client,conversation, updatedAnalysis);
+        //NOTE: neither the analysis nor the execution of the query will block the request thread
+        final CompletableFuture<SearchResult<? extends Result>> results = analysisService.analyze(client,conversation, updatedAnalysis)
+                .thenCompose(a -> execcuteQuery(client, conversation, a, templateIdx, creator));
+        response.onTimeout(() -> {
+            log.warn("Execution of Query[client: {}, conversation: {}, template: {}, creator: {}] timed out after {}ms",
+                    client!=null?client.getId():null, conversation.getId(), templateIdx, creator, resultTimeout);
+            results.cancel(false); //results are no longer needed
+            response.setResult(ResponseEntities.status(HttpStatus.GATEWAY_TIMEOUT,
+                    String.format(Locale.ROOT, "Inline results not available within %dms", resultTimeout)));
+        });
         if(callback != null){
-            analysis.whenCompleteAsync((a , e) -> {
-                if(a != null){
-                    try {
-                        SearchResult<? extends Result> result = execcuteQuery(client, conversation, a, templateIdx, creator);
-                        log.debug("callback {} with {}", callback, result);
-                        callbackExecutor.execute(callback, CallbackPayload.success(result));
-                    } catch(RuntimeException | IOException e1){
-                        log.warn("Execution of Query[client: {}, conversation: {}, template: {}, creator: {}] failed sending error callback to {} ({} - {})",
-                                client!=null?client.getId():null, conversation.getId(), templateIdx, creator, callback, e, e.getMessage());
-                        log.debug("STACKTRACE: ",e);
-                        callbackExecutor.execute(callback, CallbackPayload.error(e1));
-                    }
+            results.whenComplete((result , e) -> {
+                if(e == null){
+                    log.debug("callback {} with {}", callback, result);
+                    callbackExecutor.execute(callback, CallbackPayload.success(result));
                 } else {
-                    log.warn("Analysis of {} failed sending error callback to {} ({} - {})", conversation.getId(), callback, e, e.getMessage());
+                    log.warn("Execution of Query[client: {}, conversation: {}, template: {}, creator: {}] failed sending error callback to {} ({} - {})",
+                            client!=null?client.getId():null, conversation.getId(), templateIdx, creator, callback, e, e.getMessage());
                     log.debug("STACKTRACE: ",e);
-                    callbackExecutor.execute(callback, CallbackPayload.error(e));
+                    callbackExecutor.execute(callback, CallbackPayload.error(unwrap(e)));
                 }
             });
-            return ResponseEntity.accepted()
+            response.setResult(ResponseEntity.accepted()
                     .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"self\"", buildResultURI(uriBuilder, conversationId, templateIdx, creator)))
                     .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"template\"", buildTemplateURI(uriBuilder, conversationId, templateIdx)))
                     .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"up\"", buildConversationURI(uriBuilder, conversationId)))
                     .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"analyse\"", buildAnalysisURI(uriBuilder, conversationId)))
-                    .build();
+                    .build());
         } else {
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"self\"", buildResultURI(uriBuilder, conversationId, templateIdx, creator)))
-                    .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"template\"", buildTemplateURI(uriBuilder, conversationId, templateIdx)))
-                    .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"up\"", buildConversationURI(uriBuilder, conversationId)))
-                    .body(execcuteQuery(client, conversation, waitFor(analysisService.analyze(client, conversation)), templateIdx, creator));
+            final URI resultUri = buildResultURI(uriBuilder, conversationId, templateIdx, creator);
+            final URI templateUri = buildTemplateURI(uriBuilder, conversationId, templateIdx);
+            final URI conversationUri = buildConversationURI(uriBuilder, conversationId);
+            results.whenComplete((result, e) -> {
+                if(e == null){
+                    response.setResult(ResponseEntity.ok()
+                            .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"self\"", resultUri))
+                            .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"template\"", templateUri))
+                            .header(HttpHeaders.LINK, String.format(Locale.ROOT, "<%s>; rel=\"up\"", conversationUri))
+                            .body(result));
+                } else {
+                    response.setErrorResult(unwrap(e));
+                }
+            });
         }
+        return response;
     }
 
     private Set<ObjectId> getClientIds(AuthContext authContext, Collection<ObjectId> owners) {
@@ -1097,14 +1123,25 @@ public class ConversationWebservice {
         });
     }
 
-    private SearchResult<? extends Result> execcuteQuery(final Client client, final Conversation conversation, final Analysis analysis, int templateIdx, String creator) throws IOException {
+    private CompletableFuture<SearchResult<? extends Result>> execcuteQuery(final Client client, final Conversation conversation, final Analysis analysis, int templateIdx, String creator) {
         if (templateIdx < analysis.getTemplates().size()) {
-            return analysisService.getInlineResults(client, conversation, analysis, analysis.getTemplates().get(templateIdx), creator);
+            return analysisService.getInlineResultsAsync(client, conversation, analysis, analysis.getTemplates().get(templateIdx), creator);
         } else {
             throw new NotFoundException(Template.class, templateIdx);
         }
     }
 
+    /**
+     * Unwraps the cause of {@link CompletionException}s and {@link ExecutionException}s so that
+     * the {@link io.redlink.smarti.webservice.advice.GlobalDefaultExceptionHandler} can map the actual exception to the response status
+     */
+    private static Throwable unwrap(Throwable e) {
+        while((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null){
+            e = e.getCause();
+        }
+        return e;
+    }
+
     private URI buildConversationURI(UriComponentsBuilder builder, ObjectId conversationId) {
         return builder.cloneBuilder()
                 .pathSegment("conversation", "{conversationId}")
@@ -1123,6 +1160,16 @@ public class ConversationWebservice {
                 .toUri();
     }
 
+    /**
+     * Getter for the message with the parsed id. Messages archived in buckets are not part of the
+     * returned conversation and are looked up in the repository.
+     */
+    private Message getMessage(Conversation conversation, String messageId) {
+        return conversation.getMessages().stream()
+                .filter(m -> Objects.equals(messageId, m.getId()))
+                .findAny().orElseGet(() -> conversationService.getMessage(conversation.getId(), messageId));
+    }
+
     private URI buildMessageURI(UriComponentsBuilder builder, ObjectId conversationId, String messageId) {
         return builder.cloneBuilder()
                 .pathSegment("conversation", "{conversationId}", "message", "{messageId}")
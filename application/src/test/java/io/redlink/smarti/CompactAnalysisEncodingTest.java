@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.redlink.smarti;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import io.redlink.smarti.model.Analysis;
+import io.redlink.smarti.model.State;
+import io.redlink.smarti.model.Token;
+import io.redlink.smarti.model.values.DateValue;
+import io.redlink.smarti.repositories.CompactAnalysisEncoding;
+
+/**
+ * Round-trip tests for {@link CompactAnalysisEncoding} using the mongo converter as configured
+ * by {@link io.redlink.smarti.configuration.MongoConfig}
+ */
+public class CompactAnalysisEncodingTest {
+
+    private MappingMongoConverter converter;
+
+    @Before
+    public void initConverter() throws Exception {
+        final MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.afterPropertiesSet();
+        converter = new MappingMongoConverter(new DefaultDbRefResolver(Mockito.mock(MongoDbFactory.class)), mappingContext);
+        converter.setMapKeyDotReplacement("•");
+        converter.afterPropertiesSet();
+    }
+
+    @Test
+    public void testDefaultsOmitted() {
+        final DBObject data = write(createAnalysis());
+        Assert.assertFalse(CompactAnalysisEncoding.isCompact(data));
+        Assert.assertTrue(CompactAnalysisEncoding.compact(data));
+        Assert.assertTrue(CompactAnalysisEncoding.isCompact(data));
+        Assert.assertFalse(CompactAnalysisEncoding.compact(data)); //already compact
+
+        final List<?> tokens = (List<?>)data.get(CompactAnalysisEncoding.FIELD_TOKENS);
+        Assert.assertEquals(3, tokens.size());
+        //default state, origin and confidence as well as empty hints are omitted
+        final DBObject keyword = (DBObject)tokens.get(0);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("m", "o", "t", "v")), keyword.keySet());
+        Assert.assertEquals(Arrays.asList(10, 15), keyword.get("o"));
+        //non default values are kept
+        final DBObject date = (DBObject)tokens.get(1);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("m", "o", "t", "h", "v", "c", "s", "g")), date.keySet());
+        Assert.assertEquals(State.Confirmed.name(), date.get("s"));
+        Assert.assertEquals(Token.Origin.Agent.name(), date.get("g"));
+        //types are dictionary encoded in the order of their first occurrence
+        Assert.assertEquals(0, ((Number)keyword.get("t")).intValue());
+        Assert.assertEquals(1, ((Number)date.get("t")).intValue());
+        Assert.assertEquals(0, ((Number)((DBObject)tokens.get(2)).get("t")).intValue());
+        final DBObject dict = (DBObject)data.get(CompactAnalysisEncoding.FIELD_DICT);
+        Assert.assertEquals(Arrays.asList(Token.Type.Keyword.name(), Token.Type.Date.name()), dict.get("types"));
+    }
+
+    @Test
+    public void testDefaultsRestored() {
+        final DBObject data = write(createAnalysis());
+        CompactAnalysisEncoding.compact(data);
+        Assert.assertTrue(CompactAnalysisEncoding.expand(data));
+        Assert.assertFalse(CompactAnalysisEncoding.isCompact(data));
+        Assert.assertFalse(CompactAnalysisEncoding.expand(data)); //already expanded
+
+        final DBObject keyword = (DBObject)((List<?>)data.get(CompactAnalysisEncoding.FIELD_TOKENS)).get(0);
+        Assert.assertEquals(State.Suggested.name(), keyword.get("state"));
+        Assert.assertEquals(Token.Origin.System.name(), keyword.get("origin"));
+        Assert.assertEquals(0f, ((Number)keyword.get("confidence")).floatValue(), 0f);
+        Assert.assertTrue(((List<?>)keyword.get("hints")).isEmpty());
+        Assert.assertEquals(10, keyword.get("start"));
+        Assert.assertEquals(15, keyword.get("end"));
+    }
+
+    @Test
+    public void testPolymorphicValue() {
+        final DBObject data = write(createAnalysis());
+        CompactAnalysisEncoding.compact(data);
+        //the type information of the value is kept
+        final DBObject value = (DBObject)((DBObject)((List<?>)data.get(CompactAnalysisEncoding.FIELD_TOKENS)).get(1)).get("v");
+        Assert.assertEquals(DateValue.class.getName(), value.get("_class"));
+
+        CompactAnalysisEncoding.expand(data);
+        final Token date = converter.read(Analysis.class, data).getTokens().get(1);
+        Assert.assertTrue(date.getValue() instanceof DateValue);
+        Assert.assertEquals(createAnalysis().getTokens().get(1).getValue(), date.getValue());
+    }
+
+    @Test
+    public void testReadVerboseAndCompact() {
+        final Analysis analysis = createAnalysis();
+        final DBObject verbose = write(analysis);
+        final DBObject compact = write(analysis);
+        CompactAnalysisEncoding.compact(compact);
+
+        //the repository listener expands all documents before they are read
+        Assert.assertFalse(CompactAnalysisEncoding.expand(verbose));
+        Assert.assertTrue(CompactAnalysisEncoding.expand(compact));
+        final Analysis fromVerbose = converter.read(Analysis.class, verbose);
+        final Analysis fromCompact = converter.read(Analysis.class, compact);
+        Assert.assertEquals(analysis.getTokens().size(), fromVerbose.getTokens().size());
+        Assert.assertEquals(analysis.getTokens().size(), fromCompact.getTokens().size());
+        for(int i = 0; i < analysis.getTokens().size(); i++){
+            assertToken(analysis.getTokens().get(i), fromVerbose.getTokens().get(i));
+            assertToken(analysis.getTokens().get(i), fromCompact.getTokens().get(i));
+        }
+    }
+
+    private DBObject write(Analysis analysis) {
+        final BasicDBObject data = new BasicDBObject();
+        converter.write(analysis, data);
+        return data;
+    }
+
+    private static Analysis createAnalysis() {
+        final Analysis analysis = new Analysis(new ObjectId("5a1c0e4a7a8b1f0001a2b3c4"),
+                new ObjectId("5a1c0e4a7a8b1f0001a2b3c5"), new Date(1511800000000L));
+        //all defaults
+        final Token keyword = createToken(0, 10, 15, Token.Type.Keyword, "smarti");
+        //non default values and a polymorphic value
+        final Token date = createToken(1, 0, 8, Token.Type.Date, new DateValue(new Date(1511700000000L), DateValue.Grain.day));
+        date.addHint(Token.Hint.instant);
+        date.setConfidence(0.8f);
+        date.setState(State.Confirmed);
+        date.setOrigin(Token.Origin.Agent);
+        final Token other = createToken(2, 3, 9, Token.Type.Keyword, "mongo");
+        other.setConfidence(0.5f);
+        analysis.setTokens(Arrays.asList(keyword, date, other));
+        return analysis;
+    }
+
+    private static Token createToken(int messageIdx, int start, int end, Token.Type type, Object value) {
+        final Token token = new Token();
+        token.setMessageIdx(messageIdx);
+        token.setStart(start);
+        token.setEnd(end);
+        token.setType(type);
+        token.setValue(value);
+        return token;
+    }
+
+    private static void assertToken(Token expected, Token actual) {
+        Assert.assertEquals(expected.getMessageIdx(), actual.getMessageIdx());
+        Assert.assertEquals(expected.getStart(), actual.getStart());
+        Assert.assertEquals(expected.getEnd(), actual.getEnd());
+        Assert.assertEquals(expected.getType(), actual.getType());
+        Assert.assertEquals(expected.getValue(), actual.getValue());
+        Assert.assertEquals(expected.getHints(), actual.getHints());
+        Assert.assertEquals(expected.getConfidence(), actual.getConfidence(), 0f);
+        Assert.assertEquals(expected.getState(), actual.getState());
+        Assert.assertEquals(expected.getOrigin(), actual.getOrigin());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.health;
+
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+import io.redlink.smarti.cloudsync.IndexingMetrics;
+import io.redlink.smarti.cloudsync.IndexingMetricsService;
+import io.redlink.smarti.properties.IndexingHealthCheckProperties;
+
+public class IndexingHealthCheckTest {
+
+    private IndexingMetricsService metricsService;
+    private IndexingHealthCheckProperties properties;
+    private IndexingHealthCheck healthCheck;
+
+    @Before
+    public void init() {
+        metricsService = new IndexingMetricsService();
+        properties = new IndexingHealthCheckProperties();
+        properties.setMaxFailed(10);
+        healthCheck = new IndexingHealthCheck(metricsService, properties);
+    }
+
+    @Test
+    public void testUp() {
+        metricsService.getMetrics("conversation").batchIndexed(10, new Date(), 1000);
+        metricsService.getMetrics("conversation").failed(10); //not more as max failed
+        Health health = healthCheck.health();
+        Assert.assertEquals(Status.UP, health.getStatus());
+        Assert.assertEquals(Status.UP, getIndexStatus(health, "conversation"));
+    }
+
+    @Test
+    public void testFailedDegraded() {
+        metricsService.getMetrics("conversation").failed(11);
+        metricsService.getMetrics("chatpal").batchIndexed(10, new Date(), 1000);
+        Health health = healthCheck.health();
+        Assert.assertEquals(IndexingHealthCheck.DEGRADED, health.getStatus());
+        Assert.assertEquals(IndexingHealthCheck.DEGRADED, getIndexStatus(health, "conversation"));
+        Assert.assertEquals(Status.UP, getIndexStatus(health, "chatpal"));
+    }
+
+    @Test
+    public void testLagDegraded() {
+        properties.setMaxLag(1000);
+        IndexingMetrics metrics = metricsService.getMetrics("conversation");
+        metrics.batchIndexed(10, new Date(System.currentTimeMillis() - 5000), 1000);
+        Health health = healthCheck.health();
+        Assert.assertEquals(IndexingHealthCheck.DEGRADED, health.getStatus());
+        Assert.assertEquals(6000, ((Number)getIndexDetails(health, "conversation").get("lag")).longValue(), 1000);
+    }
+
+    @Test
+    public void testDisabled() {
+        properties.setMaxFailed(0);
+        properties.setMaxLag(0);
+        IndexingMetrics metrics = metricsService.getMetrics("conversation");
+        metrics.failed(100);
+        metrics.batchIndexed(10, new Date(System.currentTimeMillis() - 600000), 1000);
+        Assert.assertEquals(Status.UP, healthCheck.health().getStatus());
+    }
+
+    private static Status getIndexStatus(Health health, String index) {
+        return ((Health)health.getDetails().get(index)).getStatus();
+    }
+
+    private static Map<String, Object> getIndexDetails(Health health, String index) {
+        return ((Health)health.getDetails().get(index)).getDetails();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.webservice;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.redlink.smarti.chatpal.index.ChatpalIndexer;
+import io.redlink.smarti.chatpal.service.ChatpalMessageServcie;
+import io.redlink.smarti.services.AuthenticationService;
+import io.redlink.solrlib.SolrCoreContainer;
+import io.redlink.solrlib.SolrCoreDescriptor;
+
+public class ChatpalWebserviceTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    
+    private final ObjectId client = new ObjectId();
+
+    private ChatpalMessageServcie chatpalService;
+    private ChatpalIndexer chatpalIndexer;
+    private ChatpalWebservice webservice;
+
+    @Before
+    public void init() {
+        chatpalService = mock(ChatpalMessageServcie.class);
+        when(chatpalService.store(eq(client), anyListOf(Map.class))).thenReturn(Collections.emptyMap());
+        when(chatpalService.getIds(eq(client), any())).thenReturn(Collections.singletonList(new ObjectId()));
+        chatpalIndexer = mock(ChatpalIndexer.class);
+        webservice = new ChatpalWebservice(chatpalService, Optional.of(chatpalIndexer), mock(SolrCoreContainer.class),
+                mock(SolrCoreDescriptor.class), mock(AuthenticationService.class), mapper, 2);
+    }
+
+    @Test
+    public void testBulkIndexMixedLines() throws IOException {
+        //the 1st message of the 2nd batch is rejected by MongoDB
+        when(chatpalService.store(eq(client), anyListOf(Map.class)))
+                .thenReturn(Collections.emptyMap())
+                .thenReturn(Collections.singletonMap(0, "duplicate key"));
+        final List<Map<String, Object>> outcomes = bulkIndex(toStream(
+                "{\"id\":\"m1\",\"msg\":\"first\"}",
+                "{\"id\":\"m2\",",
+                "[\"no object\"]",
+                "",
+                "{\"msg\":\"without id\"}",
+                "{\"id\":\"m3\"}",
+                "{\"id\":\"m4\"}",
+                "{\"id\":\"m5\"}"));
+        
+        assertOutcome(outcomes.get(0), 2, null, "error");
+        assertOutcome(outcomes.get(1), 3, null, "error");
+        assertOutcome(outcomes.get(2), 5, null, "error");
+        assertOutcome(outcomes.get(3), 1, "m1", "stored");
+        assertOutcome(outcomes.get(4), 6, "m3", "stored");
+        assertOutcome(outcomes.get(5), 7, "m4", "error");
+        assertOutcome(outcomes.get(6), 8, "m5", "stored");
+        Assert.assertEquals(7, outcomes.size()); //one per non empty line
+        Assert.assertEquals("duplicate key", outcomes.get(5).get("error"));
+        verify(chatpalService, times(2)).store(eq(client), anyListOf(Map.class));
+    }
+
+    @Test
+    public void testBulkIndexStoreFailure() throws IOException {
+        //the 1st batch fails completely, the 2nd one is stored
+        when(chatpalService.store(eq(client), anyListOf(Map.class)))
+                .thenThrow(new DataAccessResourceFailureException("MongoDB not available"))
+                .thenReturn(Collections.emptyMap());
+        final List<Map<String, Object>> outcomes = bulkIndex(toStream(
+                "{\"id\":\"m1\"}", "{\"id\":\"m2\"}", "{\"id\":\"m3\"}"));
+        
+        Assert.assertEquals(3, outcomes.size());
+        assertOutcome(outcomes.get(0), 1, "m1", "error");
+        assertOutcome(outcomes.get(1), 2, "m2", "error");
+        assertOutcome(outcomes.get(2), 3, "m3", "stored");
+        //only the stored batch is indexed
+        verify(chatpalIndexer, times(1)).indexMessages(any());
+    }
+
+    @Test
+    public void testBulkIndexIndexerFailure() throws IOException {
+        when(chatpalIndexer.indexMessages(any())).thenThrow(new IllegalStateException("Solr not available"));
+        final List<Map<String, Object>> outcomes = bulkIndex(toStream(
+                "{\"id\":\"m1\"}", "{\"id\":\"m2\"}", "{\"id\":\"m3\"}"));
+        
+        //messages are stored and will be indexed by the next sync
+        Assert.assertEquals(3, outcomes.size());
+        for (int i = 0; i < outcomes.size(); i++) {
+            assertOutcome(outcomes.get(i), i + 1, "m" + (i + 1), "stored");
+        }
+    }
+
+    @Test
+    public void testBulkIndexReadFailure() throws IOException {
+        final InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        //the 3rd line is pending in the batch when reading the request fails
+        final List<Map<String, Object>> outcomes = bulkIndex(new SequenceInputStream(
+                toStream("{\"id\":\"m1\"}", "{\"id\":\"m2\"}", "{\"id\":\"m3\"}"), failing));
+        
+        Assert.assertEquals(4, outcomes.size());
+        assertOutcome(outcomes.get(0), 1, "m1", "stored");
+        assertOutcome(outcomes.get(1), 2, "m2", "stored");
+        assertOutcome(outcomes.get(2), 3, "m3", "error");
+        assertOutcome(outcomes.get(3), 4, null, "error");
+        verify(chatpalService, times(1)).store(eq(client), anyListOf(Map.class));
+    }
+
+    @Test
+    public void testBulkIndexWithoutIndexer() throws IOException {
+        webservice = new ChatpalWebservice(chatpalService, Optional.empty(), mock(SolrCoreContainer.class),
+                mock(SolrCoreDescriptor.class), mock(AuthenticationService.class), mapper, 2);
+        final List<Map<String, Object>> outcomes = bulkIndex(toStream("{\"id\":\"m1\"}"));
+        
+        Assert.assertEquals(1, outcomes.size());
+        assertOutcome(outcomes.get(0), 1, "m1", "stored");
+        verify(chatpalService, never()).getIds(any(), any());
+    }
+
+    private List<Map<String, Object>> bulkIndex(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        webservice.bulkIndex(client, in, out);
+        final List<Map<String, Object>> outcomes = new ArrayList<>();
+        for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                outcomes.add(mapper.readValue(line, new TypeReference<Map<String, Object>>() {}));
+            }
+        }
+        return outcomes;
+    }
+
+    private static InputStream toStream(String... lines) {
+        return new ByteArrayInputStream((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertOutcome(Map<String, Object> outcome, int line, String id, String status) {
+        Assert.assertEquals(line, ((Number) outcome.get("line")).intValue());
+        Assert.assertEquals(id, outcome.get("id"));
+        Assert.assertEquals(status, outcome.get("status"));
+        Assert.assertEquals("error".equals(status), outcome.containsKey("error"));
+    }
+}
@@ -70,6 +70,7 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultHandlers;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
@@ -1458,12 +1459,15 @@ public class ConversationWebserviceIT {
         Conversation bestResult = conversations.get(5);
         Message bestMessage = bestResult.getMessages().get(0);
         
-        //Now we can execute the query
-        this.mvc.perform(MockMvcRequestBuilders.get(analyseLink + "/template/" + templateEntry.getKey() + "/result/" + query.getCreator())
+        //Now we can execute the query (results are provided asynchronously)
+        MvcResult asyncResult = this.mvc.perform(MockMvcRequestBuilders.get(analyseLink + "/template/" + templateEntry.getKey() + "/result/" + query.getCreator())
                 .header("X-Auth-Token", authToken.getToken())
                 .contentType(MediaType.APPLICATION_JSON)
                 .accept(MediaType.APPLICATION_JSON_VALUE)
                 .content(conversationJson))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mvc.perform(MockMvcRequestBuilders.asyncDispatch(asyncResult))
                 .andDo(MockMvcResultHandlers.print())
                 .andExpect(MockMvcResultMatchers.status().is(200))
                 .andExpect(jsonPath("numFound").value(5)) //5 of 6 have words in common
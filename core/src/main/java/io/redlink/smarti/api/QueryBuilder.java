@@ -31,11 +31,16 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
 import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * A QueryBuilder is expected to build a {@link Query} for some external (or internal) service based on
@@ -91,10 +96,23 @@ public abstract class QueryBuilder<C extends ComponentConfiguration> implements
 
 
     public final void buildQuery(Conversation conversation, Analysis analysis, C configuration) {
+        buildQuery(conversation, analysis, configuration, Collections.emptySet());
+    }
+
+    /**
+     * Builds queries for all accepted templates of the analysis
+     * @param conversation the conversation
+     * @param analysis the analysis
+     * @param configuration the configuration
+     * @param skip templates of the analysis where no query should be built (e.g. because queries
+     * are reused from a previous analysis)
+     */
+    public final void buildQuery(Conversation conversation, Analysis analysis, C configuration, Set<Template> skip) {
         if(conversation == null || configuration == null){
             throw new NullPointerException();
         }
         analysis.getTemplates().stream()
+                .filter(t -> !skip.contains(t))
                 .filter(t -> t.getState() != State.Rejected)
                 .filter(t -> {
                     final TemplateDefinition def = registry.getTemplate(t);
@@ -159,18 +177,7 @@ public abstract class QueryBuilder<C extends ComponentConfiguration> implements
      * @return the Token or <code>null</code> if not preset or invalid
      */
     protected Token getToken(String role, Template template, Analysis analysis, Token.Type...tokenTypes) {
-        Set<Token.Type> types = toTypeSet(tokenTypes);
-        final Optional<Token> token = template.getSlots().stream()
-                .filter(s -> StringUtils.equals(s.getRole(), role))
-                .filter(s -> s.getTokenIndex() >= 0)
-                .map(s -> analysis.getTokens().get(s.getTokenIndex()))
-                .filter(t -> types == null || types.contains(t.getType()))
-                .findAny();
-        if (token.isPresent()) {
-            return token.get();
-        } else {
-            return null;
-        }
+        return streamTokens(role, template, analysis, tokenTypes).findAny().orElse(null);
     }
 
     /**
@@ -180,16 +187,24 @@ public abstract class QueryBuilder<C extends ComponentConfiguration> implements
      * @param template the query template
      * @param analysis the analysis results of the current conversation
      * @param tokenTypes the allowed types of the tokens
-     * @return the Token or <code>null</code> if not preset or invalid
+     * @return the Tokens or an empty list if none are present or valid
      */
     protected List<Token> getTokens(String role, Template template, Analysis analysis, Token.Type...tokenTypes) {
+        return streamTokens(role, template, analysis, tokenTypes).collect(Collectors.toList());
+    }
+
+    /**
+     * Resolves the tokens referenced by slots with the parsed role. Uses the {@link TokenIndex} of the
+     * analysis to check the types of the tokens
+     */
+    private Stream<Token> streamTokens(String role, Template template, Analysis analysis, Token.Type...tokenTypes) {
+        final TokenIndex tokenIndex = analysis.getTokenIndex();
         final Set<Token.Type> types = toTypeSet(tokenTypes);
+        final BitSet candidates = types == null ? tokenIndex.getAll() : tokenIndex.getByType(types);
         return template.getSlots().stream()
                 .filter(s -> StringUtils.equals(s.getRole(), role))
-                .filter(s -> s.getTokenIndex() >= 0)
-                .map(s -> analysis.getTokens().get(s.getTokenIndex()))
-                .filter(t -> types == null || types.contains(t.getType()))
-                .collect(Collectors.toList());
+                .filter(s -> s.getTokenIndex() >= 0 && candidates.get(s.getTokenIndex()))
+                .map(s -> tokenIndex.getToken(s.getTokenIndex()));
     }
 
     /**
@@ -220,13 +235,7 @@ public abstract class QueryBuilder<C extends ComponentConfiguration> implements
      * @return {@code true} if the template has a token assigned to the provided role
      */
     protected boolean hasToken(String role, Template template, Analysis analysis, Token.Type...tokenTypes) {
-        final Set<Token.Type> types = toTypeSet(tokenTypes);
-        return template.getSlots().stream()
-                .filter(s -> StringUtils.equals(s.getRole(), role))
-                .filter(s -> s.getTokenIndex() >= 0)
-                .map(s -> analysis.getTokens().get(s.getTokenIndex()))
-                .filter(t -> types == null || types.contains(t.getType()))
-                .findFirst().isPresent();
+        return streamTokens(role, template, analysis, tokenTypes).findAny().isPresent();
     }
 
     public final SearchResult<? extends Result> execute(C config, Template template, Conversation conversation, Analysis analysis) throws IOException {
@@ -236,6 +245,31 @@ public abstract class QueryBuilder<C extends ComponentConfiguration> implements
         return new SearchResult<>();
     }
 
+    /**
+     * Asynchronous version of {@link #execute(ComponentConfiguration, Template, Conversation, Analysis, MultiValueMap)}.
+     * The default implementation runs the blocking {@link #execute(ComponentConfiguration, Template, Conversation, Analysis, MultiValueMap)}
+     * on the parsed executor so that the calling thread is not blocked. {@link IOException}s are
+     * reported as the cause of the exceptional completion of the returned future.
+     * Implementations with native async support may override this method.
+     * @param config the configuration
+     * @param template the template
+     * @param conversation the conversation
+     * @param analysis the analysis of the conversation
+     * @param params additional request parameters
+     * @param executor the executor used to run the query
+     * @return the future on the search results
+     */
+    public CompletableFuture<SearchResult<? extends Result>> executeAsync(C config, Template template, Conversation conversation,
+            Analysis analysis, MultiValueMap<String, String> params, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return execute(config, template, conversation, analysis, params);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
     public boolean isResultSupported() {
         return false;
     }
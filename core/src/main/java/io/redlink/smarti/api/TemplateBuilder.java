@@ -17,13 +17,18 @@
 
 package io.redlink.smarti.api;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 import io.redlink.smarti.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  */
@@ -37,6 +42,14 @@ public abstract class TemplateBuilder {
      */
     protected abstract TemplateDefinition getDefinition();
 
+    /**
+     * The type of the {@link Template}s built by this builder
+     * @return the type as defined by the {@link #getDefinition() definition}
+     */
+    public final String getTemplateType() {
+        return getDefinition().getType();
+    }
+
     
 //    protected abstract Set<MessageTopic> getSupportedTopics();
 
@@ -81,6 +94,73 @@ public abstract class TemplateBuilder {
 
     }
 
+    /**
+     * Computes a stable fingerprint over the information used by this builder to build its
+     * {@link Template}. If the fingerprint of the current analysis is the same as the one stored
+     * with a template of a previous analysis, the previous template (and its queries) can be
+     * used instead of building a new one.<p>
+     * The default implementation hashes all {@link #isRelevant(Token) relevant} {@link Token}s
+     * together with their index (as referenced by {@link Slot#getTokenIndex()}). Builders that
+     * (or whose query builders) use additional information of the conversation need to add
+     * it by overriding {@link #addFingerprintData(Hasher, Conversation, Analysis)}.
+     * @param conversation the conversation
+     * @param analysis the analysis results
+     * @return the fingerprint or <code>null</code> if templates of this builder can not be reused
+     */
+    public String getFingerprint(Conversation conversation, Analysis analysis) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(getDefinition().getType(), StandardCharsets.UTF_8);
+        final List<Token> tokens = analysis.getTokens();
+        for(int i=0; i < tokens.size(); i++){
+            final Token token = tokens.get(i);
+            if(isRelevant(token)){
+                hasher.putInt(i);
+                putToken(hasher, token);
+            }
+        }
+        addFingerprintData(hasher, conversation, analysis);
+        return hasher.hash().toString();
+    }
+
+    /**
+     * If the parsed {@link Token} is relevant for {@link Template}s built by this builder. Only
+     * relevant tokens are considered by the {@link #getFingerprint(Conversation, Analysis) fingerprint}.<p>
+     * The default considers all tokens as relevant. This is safe (any change of the tokens causes the
+     * template to be rebuilt) but prevents the reuse of templates whenever tokens not used by the
+     * builder change. Builders SHOULD narrow it to the tokens they may use for slots (as done by
+     * the <code>LatchTemplateBuilder</code> and the <code>RelatedConversationTemplateBuilder</code>).
+     * @param token the token
+     * @return <code>true</code> (default) if the token is relevant
+     */
+    protected boolean isRelevant(Token token) {
+        return true;
+    }
+
+    /**
+     * Allows builders to add additional data used to build templates (or queries for templates)
+     * to the {@link #getFingerprint(Conversation, Analysis) fingerprint}. The default is a no-op.
+     * @param hasher the hasher to add the data
+     * @param conversation the conversation
+     * @param analysis the analysis results
+     */
+    protected void addFingerprintData(Hasher hasher, Conversation conversation, Analysis analysis) {
+        //no op
+    }
+
+    private static void putToken(Hasher hasher, Token token) {
+        hasher.putInt(token.getType() == null ? -1 : token.getType().ordinal());
+        hasher.putString(String.valueOf(token.getValue()), StandardCharsets.UTF_8).putByte((byte)0);
+        hasher.putInt(token.getMessageIdx()).putInt(token.getStart()).putInt(token.getEnd());
+        hasher.putInt(token.getState() == null ? -1 : token.getState().ordinal());
+        hasher.putInt(token.getOrigin() == null ? -1 : token.getOrigin().ordinal());
+        hasher.putFloat(token.getConfidence());
+        if(token.getHints() != null){
+            for(String hint : new TreeSet<>(token.getHints())){ //sorted for a stable fingerprint
+                hasher.putString(hint, StandardCharsets.UTF_8).putByte((byte)0);
+            }
+        }
+    }
+
     /**
      * Logs information about the query template
      * @param queryTemplate
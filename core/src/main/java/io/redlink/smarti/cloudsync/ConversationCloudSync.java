@@ -3,17 +3,35 @@ package io.redlink.smarti.cloudsync;
 import io.redlink.smarti.model.Conversation;
 import io.redlink.smarti.repositories.ConversationRepository;
 import io.redlink.smarti.repositories.UpdatedIds;
+import io.redlink.smarti.repositories.UpdatedIdsIterator;
+
+import io.redlink.smarti.cloudsync.RebuildCheckpoint.Partition;
 
 import org.apache.commons.collections4.ListUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -29,10 +47,13 @@ public class ConversationCloudSync {
     
     private final ConversationRepository conversationRepository;
     private final ConversationCloudSyncConfiguration config;
+    private final MongoTemplate mongoTemplate;
     
-    ConversationCloudSync(ConversationCloudSyncConfiguration config, ConversationRepository conversationRepository){
+    ConversationCloudSync(ConversationCloudSyncConfiguration config, ConversationRepository conversationRepository,
+            MongoTemplate mongoTemplate){
         this.config = config;
         this.conversationRepository = conversationRepository;
+        this.mongoTemplate = mongoTemplate;
     }
     
     public SyncData syncAll(ConversytionSyncCallback callback, IndexingStatus indexingStatus) {
@@ -40,17 +61,44 @@ public class ConversationCloudSync {
     }
 
     public SyncData sync(ConversytionSyncCallback callback, Date date, IndexingStatus status) {
-        log.debug("cloud sync conversation Repository [date: {}, epochSize: {}, batchSize: {}, caller: {}]", 
-                date == null ? null : date.toInstant(),config.getEpochSize(), config.getBatchSize(), callback);
+        return sync(callback, date, null, status);
+    }
+
+    /**
+     * Syncs all conversations updated since the parsed position
+     * @param callback the callback
+     * @param date the date (inclusive) or <code>null</code> for all conversations
+     * @param lastIds the ids of the conversations with the parsed date that were already synced (as
+     * returned by {@link SyncData#getLastIds()}) or <code>null</code> to sync all conversations updated at the parsed date
+     * @param status the indexing status
+     * @return the sync data including the position to resume from
+     */
+    public SyncData sync(ConversytionSyncCallback callback, Date date, Collection<ObjectId> lastIds, IndexingStatus status) {
+        return sync(callback, date, lastIds, null, status);
+    }
+
+    /**
+     * Syncs all conversations updated since the parsed position
+     * @param callback the callback
+     * @param date the date (inclusive) or <code>null</code> for all conversations
+     * @param lastIds the ids of the conversations with the parsed date that were already synced
+     * @param rebuildDate if not <code>null</code> all conversations are parsed with this sync date. Otherwise
+     * the sync date is the modification date of the epoch the conversation is part of
+     * @param status the indexing status
+     * @return the sync data including the position to resume from
+     */
+    private SyncData sync(ConversytionSyncCallback callback, Date date, Collection<ObjectId> lastIds, Date rebuildDate, IndexingStatus status) {
+        log.debug("cloud sync conversation Repository [date: {}, lastIds: {}, rebuildDate: {}, epochSize: {}, batchSize: {}, caller: {}]", 
+                date == null ? null : date.toInstant(), lastIds == null ? 0 : lastIds.size(), rebuildDate == null ? null : rebuildDate.toInstant(),
+                config.getEpochSize(), config.getBatchSize(), callback);
         long start = System.currentTimeMillis();
-        UpdatedIds<ObjectId> updated;
         AtomicLong updatedCount = new AtomicLong();
         AtomicLong deletedCount = new AtomicLong();
         status.setStarted(new Date());
-        Date since = date;
-        do {
-            updated = conversationRepository.updatedSince(since, config.getEpochSize());
-            final Date currentModifiedBatch = updated.getLastModified();
+        final UpdatedIdsIterator updates = conversationRepository.updatedSince(date, lastIds, config.getEpochSize());
+        while(updates.hasNext()) {
+            final UpdatedIds<ObjectId> updated = updates.next();
+            final Date currentModifiedBatch = rebuildDate != null ? rebuildDate : updated.getLastModified();
             status.incrementCount(updated.ids().size());
             status.setUntil(updated.getLastModified());
             //load in batches of 10 from the MongoDB
@@ -76,15 +124,238 @@ public class ConversationCloudSync {
                         }
                     });
             });
-            since = currentModifiedBatch;
-        } while(!updated.ids().isEmpty());
-        return new SyncData(updated.getLastModified(), updatedCount.get(), deletedCount.get(), (int)(System.currentTimeMillis()-start));
+        }
+        return new SyncData(updates.getLastModified(), updates.getLastIds(), rebuildDate, 
+                updatedCount.get(), deletedCount.get(), (int)(System.currentTimeMillis()-start));
 
     }
     
+    /**
+     * Full rebuild that partitions the conversation id space in {@link ConversationCloudSyncConfiguration#getNumPartitions()}
+     * ranges. Each range is loaded and parsed to the {@link ConversytionSyncCallback#forPartition() partition callback}
+     * by its own thread. Progress is stored as {@link RebuildCheckpoint} with the parsed id after the partition
+     * callback was {@link ConversytionSyncCallback#commit() committed}. If a checkpoint for an interrupted
+     * rebuild is present the rebuild is resumed. <p>
+     * The callback MUST BE thread safe. Conversations are parsed with the same sync date: the latest modification
+     * date when the rebuild was started. Changes made during the rebuild are therefore included by a subsequent 
+     * {@link #sync(ConversytionSyncCallback, Date, IndexingStatus)} with the returned sync date.<p>
+     * If only a single partition is configured all conversations are synced without partitioning. Also
+     * in this case all conversations are parsed with the same sync date (see {@link SyncData#getRebuildDate()}).
+     * @param checkpointId the id used to store the progress of the rebuild
+     * @param callback the callback
+     * @param status the indexing status
+     * @return the sync data
+     */
+    public SyncData rebuild(String checkpointId, ConversytionSyncCallback callback, IndexingStatus status) {
+        final int numPartitions = config.getNumPartitions();
+        if(numPartitions <= 1 && !isRebuildPending(checkpointId)){
+            return sync(callback, null, null, getLatestModified(), status);
+        }
+        long start = System.currentTimeMillis();
+        status.setStarted(new Date());
+        RebuildCheckpoint checkpoint = mongoTemplate.findById(checkpointId, RebuildCheckpoint.class);
+        if(checkpoint == null || checkpoint.isCompleted()){
+            checkpoint = createCheckpoint(checkpointId, numPartitions);
+            log.info("start partitioned rebuild {}", checkpoint);
+        } else {
+            log.info("resume partitioned rebuild {}", checkpoint);
+        }
+        final Date syncDate = checkpoint.getSyncDate();
+        status.setUntil(syncDate);
+        status.incrementCount((int)Math.min(Integer.MAX_VALUE, mongoTemplate.count(new Query(), Conversation.class)));
+        AtomicLong updatedCount = new AtomicLong();
+        AtomicLong deletedCount = new AtomicLong();
+        final List<Partition> partitions = checkpoint.getPartitions();
+        final ExecutorService executor = Executors.newFixedThreadPool(partitions.size(), new BasicThreadFactory.Builder()
+                .namingPattern("conversation-rebuild-thread-%d").daemon(true).build());
+        try {
+            final List<Future<?>> futures = new ArrayList<>(partitions.size());
+            for(int i = 0; i < partitions.size(); i++){
+                final int partitionIdx = i;
+                final Partition partition = partitions.get(i);
+                if(!partition.isCompleted()){
+                    futures.add(executor.submit(() -> rebuildPartition(checkpointId, partitionIdx, partition, syncDate, 
+                            callback, status, updatedCount, deletedCount)));
+                }
+            }
+            for(Future<?> future : futures){
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while rebuilding (checkpoint: " + checkpointId + ")", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to rebuild partition (checkpoint: " + checkpointId + ")", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(checkpointId)), RebuildCheckpoint.class);
+        return new SyncData(syncDate, null, syncDate, updatedCount.get(), deletedCount.get(), (int)(System.currentTimeMillis()-start));
+    }
+    
+    /**
+     * If there is an uncompleted rebuild with the parsed checkpoint id
+     */
+    public boolean isRebuildPending(String checkpointId) {
+        RebuildCheckpoint checkpoint = mongoTemplate.findById(checkpointId, RebuildCheckpoint.class);
+        return checkpoint != null && !checkpoint.isCompleted();
+    }
+    
+    /**
+     * Removes the checkpoint of an (uncompleted) rebuild so that the next rebuild starts from the beginning
+     */
+    public void resetRebuild(String checkpointId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(checkpointId)), RebuildCheckpoint.class);
+    }
+    
+    private RebuildCheckpoint createCheckpoint(String checkpointId, int numPartitions) {
+        final RebuildCheckpoint checkpoint = new RebuildCheckpoint(checkpointId, getLatestModified());
+        final Conversation first = findFirst(new Query().with(new Sort(Direction.ASC, "_id")), "_id");
+        final Conversation last = findFirst(new Query().with(new Sort(Direction.DESC, "_id")), "_id");
+        if(first == null || last == null){ //empty repository
+            checkpoint.getPartitions().add(new Partition(null, null));
+        } else {
+            //partition the ids by the timestamp part of the ObjectId
+            long minTime = first.getId().getTimestamp();
+            long maxTime = (long)last.getId().getTimestamp() + 1;
+            long step = Math.max(1, (maxTime - minTime + numPartitions - 1) / numPartitions);
+            ObjectId lower = null; //first partition has no lower bound
+            for(long t = minTime + step; t < maxTime; t += step){
+                ObjectId upper = toObjectId(t);
+                checkpoint.getPartitions().add(new Partition(lower, upper));
+                lower = upper;
+            }
+            checkpoint.getPartitions().add(new Partition(lower, null)); //last has no upper bound
+        }
+        mongoTemplate.save(checkpoint);
+        return checkpoint;
+    }
+    
+    /**
+     * The latest modification date of all conversations (or the current date if none)
+     */
+    private Date getLatestModified() {
+        final Conversation lastModified = findFirst(new Query().with(new Sort(Direction.DESC, "lastModified")), "lastModified");
+        return lastModified == null || lastModified.getLastModified() == null ? new Date() : lastModified.getLastModified();
+    }
+    
+    private Conversation findFirst(Query query, String field) {
+        query.fields().include(field);
+        query.limit(1);
+        return mongoTemplate.findOne(query, Conversation.class);
+    }
+    
+    /**
+     * The smallest ObjectId with the parsed timestamp (in seconds)
+     */
+    private static ObjectId toObjectId(long timestamp) {
+        return new ObjectId(String.format("%08x0000000000000000", timestamp));
+    }
+    
+    private void rebuildPartition(String checkpointId, int partitionIdx, Partition partition, Date syncDate,
+            ConversytionSyncCallback rebuildCallback, IndexingStatus status, AtomicLong updatedCount, AtomicLong deletedCount) {
+        log.debug("rebuild {} of {}", partition, checkpointId);
+        final String partitionField = RebuildCheckpoint.FIELD_PARTITIONS + '.' + partitionIdx + '.';
+        //every partition uses its own callback so that workers do not block each other
+        final ConversytionSyncCallback callback = rebuildCallback.forPartition();
+        ObjectId last = partition.getLast();
+        ObjectId uncommitted = null; //the last id not yet checkpointed
+        int uncommittedCount = 0;
+        int uncommittedPages = 0;
+        List<Conversation> page;
+        do {
+            Criteria criteria = Criteria.where("_id");
+            if(last != null){
+                criteria.gt(last);
+            } else if(partition.getLower() != null){
+                criteria.gte(partition.getLower());
+            }
+            if(partition.getUpper() != null){
+                criteria.lt(partition.getUpper());
+            }
+            Query query = last == null && partition.getLower() == null && partition.getUpper() == null ? 
+                    new Query() : Query.query(criteria);
+            query.with(new Sort(Direction.ASC, "_id")).limit(config.getPageSize());
+            //NOTE: this will also return conversations marked as deleted
+            page = mongoTemplate.find(query, Conversation.class);
+            for(Conversation c : page){
+                if(Thread.currentThread().isInterrupted()){
+                    return;
+                }
+                try {
+                    if(c.getDeleted() != null){
+                        callback.removeConversation(c.getId(), syncDate);
+                        deletedCount.incrementAndGet();
+                        status.incrementDeleted();
+                    } else {
+                        callback.updateConversation(c, syncDate);
+                        updatedCount.incrementAndGet();
+                        status.incrementUpdate();
+                    }
+                } catch (RuntimeException e) {
+                    if(log.isDebugEnabled()){
+                        log.warn("Unable to update {}", c, e);
+                    } else {
+                        log.warn("Unable to update {} ({} - {})", c, e.getClass().getSimpleName(), e.getMessage());
+                    }
+                }
+            }
+            if(!page.isEmpty()){
+                last = page.get(page.size() - 1).getId();
+                uncommitted = last;
+                uncommittedCount += page.size();
+                uncommittedPages++;
+            }
+            if(uncommitted != null && (uncommittedPages >= config.getCheckpointInterval() || page.size() < config.getPageSize())){
+                storeCheckpoint(checkpointId, partitionField, callback, uncommitted, uncommittedCount);
+                uncommitted = null;
+                uncommittedCount = 0;
+                uncommittedPages = 0;
+            }
+        } while(page.size() >= config.getPageSize());
+        if(!callback.commit()){
+            throw new IllegalStateException("Unable to commit partition " + partitionIdx + " of " + checkpointId);
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(checkpointId)), 
+                new Update().set(partitionField + RebuildCheckpoint.FIELD_COMPLETED, true), RebuildCheckpoint.class);
+        log.debug("completed partition {} of {}", partitionIdx, checkpointId);
+    }
+    
+    /**
+     * Stores the progress of a partition. The callback is committed first, as the checkpoint MUST NOT
+     * refer to conversations that are not yet durably indexed. Otherwise those would be missing
+     * after resuming an interrupted rebuild.
+     */
+    private void storeCheckpoint(String checkpointId, String partitionField, ConversytionSyncCallback callback, 
+            ObjectId last, int count) {
+        if(!callback.commit()){
+            throw new IllegalStateException("Unable to commit rebuilt conversations before storing the checkpoint " 
+                    + checkpointId + " (last: " + last + ")");
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(checkpointId)), 
+                new Update().set(partitionField + RebuildCheckpoint.FIELD_LAST, last)
+                    .inc(partitionField + RebuildCheckpoint.FIELD_COUNT, count), 
+                RebuildCheckpoint.class);
+    }
+    
     public static interface ConversytionSyncCallback {
         void removeConversation(ObjectId conversationId, Date syncDate);
         void updateConversation(Conversation conversation, Date syncDate);
+        /**
+         * Sends all updates parsed to this callback and persists them (e.g. by a hard commit). Called
+         * before the progress of a rebuild is checkpointed.
+         * @return <code>true</code> if all updates are persisted
+         */
+        boolean commit();
+        /**
+         * A callback used by a single worker of a partitioned rebuild. Implementations should return
+         * an instance that does not share (synchronized) state with other workers. Updates are
+         * persisted by calling {@link #commit()} on the returned instance.
+         * @return the callback for a partition. The default returns this instance
+         */
+        default ConversytionSyncCallback forPartition() {
+            return this;
+        }
     }
     
     public static class SyncData {
@@ -92,8 +363,12 @@ public class ConversationCloudSync {
         final long deleted;
         final int duration;
         final Date syncDate;
-        SyncData(Date syncDate, long updated, long deleted, int duration){
+        final Set<ObjectId> lastIds;
+        final Date rebuildDate;
+        SyncData(Date syncDate, Set<ObjectId> lastIds, Date rebuildDate, long updated, long deleted, int duration){
             this.syncDate = syncDate;
+            this.lastIds = lastIds;
+            this.rebuildDate = rebuildDate;
             this.updated = updated;
             this.deleted = deleted;
             this.duration = duration;
@@ -102,6 +377,23 @@ public class ConversationCloudSync {
         public Date getSyncDate() {
             return syncDate;
         }
+
+        /**
+         * The ids of the synced conversations with the {@link #getSyncDate() sync date}. <code>null</code>
+         * if not known (e.g. for a rebuild)
+         */
+        public Set<ObjectId> getLastIds() {
+            return lastIds;
+        }
+        
+        /**
+         * The sync date all conversations were parsed with by a full rebuild. Documents with an older
+         * sync date were not updated by the rebuild. <code>null</code> if conversations were parsed with
+         * different sync dates (e.g. by a {@link ConversationCloudSync#sync(ConversytionSyncCallback, Date, IndexingStatus) sync})
+         */
+        public Date getRebuildDate() {
+            return rebuildDate;
+        }
         
         public long getCount() {
             return updated + deleted;
@@ -121,7 +413,8 @@ public class ConversationCloudSync {
 
         @Override
         public String toString() {
-            return "SyncData [syncDate=" + (syncDate == null ? null : syncDate.toInstant()) + ", updated=" + updated + ", deleted=" + deleted + ", duration=" + duration + "ms]";
+            return "SyncData [syncDate=" + (syncDate == null ? null : syncDate.toInstant()) + ", lastIds=" + (lastIds == null ? null : lastIds.size()) 
+                    + (rebuildDate == null ? "" : ", rebuildDate=" + rebuildDate.toInstant()) + ", updated=" + updated + ", deleted=" + deleted + ", duration=" + duration + "ms]";
         }
         
     }
@@ -136,7 +429,7 @@ public class ConversationCloudSync {
         public Date getStarted() {
             return started;
         }
-        public void incrementCount(int num) {
+        public synchronized void incrementCount(int num) {
             count = count + num;
         }
         public void setUntil(Date until) {
@@ -145,10 +438,10 @@ public class ConversationCloudSync {
         public Date getUntil() {
             return until;
         }
-        public void incrementUpdate() {
+        public synchronized void incrementUpdate() {
             updated++;
         }
-        public void incrementDeleted() {
+        public synchronized void incrementDeleted() {
             deleted++;
         }
         public void setStarted(Date started) {
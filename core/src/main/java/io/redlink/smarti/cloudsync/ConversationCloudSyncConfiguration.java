@@ -8,9 +8,15 @@ public class ConversationCloudSyncConfiguration {
     public static final int DEFAULT_EPOCH_SIZE = 10000;
     public static final int MIN_EPOCH_SIZE = 100;
     public static final int DEFALUT_BATCH_SIZE = 1;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10;
     
     private int epochSize = DEFAULT_EPOCH_SIZE;
     private int batchSize = DEFALUT_BATCH_SIZE;
+    private int partitions = 0;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private ChangeStream changeStream = new ChangeStream();
     
     public int getEpochSize() {
         return epochSize;
@@ -27,10 +33,133 @@ public class ConversationCloudSyncConfiguration {
         this.batchSize = batchSize <= 0 ? DEFALUT_BATCH_SIZE : batchSize;
     }
     
+    /**
+     * The number of partitions used for full rebuilds. Each partition is processed by its own
+     * thread. <code>0</code> (default) uses the number of available processors. <code>1</code>
+     * uses the (non partitioned) sync also for full rebuilds.
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+    
+    public void setPartitions(int partitions) {
+        this.partitions = partitions < 0 ? 0 : partitions;
+    }
+    
+    /**
+     * The number of partitions actually used for full rebuilds
+     */
+    public int getNumPartitions() {
+        return partitions > 0 ? partitions : Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * The number of conversations loaded per request during partitioned rebuilds.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+    
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize <= 0 ? DEFAULT_PAGE_SIZE : pageSize;
+    }
+    
+    /**
+     * The number of pages after that the progress of a partitioned rebuild is checkpointed. As
+     * checkpoints require a hard commit of the index this should not be too low.
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+    
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval <= 0 ? DEFAULT_CHECKPOINT_INTERVAL : checkpointInterval;
+    }
+    
+    public ChangeStream getChangeStream() {
+        return changeStream;
+    }
+    
+    public void setChangeStream(ChangeStream changeStream) {
+        this.changeStream = changeStream == null ? new ChangeStream() : changeStream;
+    }
+    
     @Override
     public String toString() {
         return "ConversationCloudSyncConfiguration [smarti.index.sync.epochSize=" + epochSize 
-                + ", smarti.index.sync.batchSize=" + batchSize + "]";
+                + ", smarti.index.sync.batchSize=" + batchSize + ", smarti.index.sync.partitions=" + partitions
+                + ", smarti.index.sync.pageSize=" + pageSize + ", smarti.index.sync.checkpointInterval=" + checkpointInterval
+                + ", smarti.index.sync.changeStream=" + changeStream + "]";
+    }
+    
+    /**
+     * Configuration for change stream based syncs (see {@link MongoChangeStreamService})
+     */
+    public static class ChangeStream {
+        
+        public static final int DEFAULT_BATCH_SIZE = 100;
+        public static final int DEFAULT_MAX_AWAIT = 1000; //1sec
+        public static final int MIN_MAX_AWAIT = 100;
+        public static final int DEFAULT_RETRY_DELAY = 10 * 1000; //10sec
+        public static final int MIN_RETRY_DELAY = 1000; //1sec
+        
+        private boolean enabled = false;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private int maxAwait = DEFAULT_MAX_AWAIT;
+        private int retryDelay = DEFAULT_RETRY_DELAY;
+        
+        /**
+         * If change streams are used to sync indexes. If not supported by the MongoDB
+         * deployment the indexes fall back to polling
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        /**
+         * The maximum number of changed entities parsed to listeners at once
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+        
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize <= 0 ? DEFAULT_BATCH_SIZE : batchSize;
+        }
+        
+        /**
+         * The maximum time (in ms) to wait for further changes before pending changes
+         * are parsed to listeners
+         */
+        public int getMaxAwait() {
+            return maxAwait;
+        }
+        
+        public void setMaxAwait(int maxAwait) {
+            this.maxAwait = maxAwait <= 0 ? DEFAULT_MAX_AWAIT : Math.max(MIN_MAX_AWAIT, maxAwait);
+        }
+        
+        /**
+         * The delay (in ms) before a failed change stream is re-opened. Indexes fall
+         * back to polling while the change stream is not active.
+         */
+        public int getRetryDelay() {
+            return retryDelay;
+        }
+        
+        public void setRetryDelay(int retryDelay) {
+            this.retryDelay = retryDelay <= 0 ? DEFAULT_RETRY_DELAY : Math.max(MIN_RETRY_DELAY, retryDelay);
+        }
+        
+        @Override
+        public String toString() {
+            return "ChangeStream [enabled=" + enabled + ", batchSize=" + batchSize + ", maxAwait=" + maxAwait
+                    + ", retryDelay=" + retryDelay + "]";
+        }
     }
     
 }
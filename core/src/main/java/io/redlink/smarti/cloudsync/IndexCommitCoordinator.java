@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.cloudsync;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates the commits of a single index (Solr core) so that indexing components do no
+ * longer issue individual commits (or use <code>commitWithin</code>) that each open a new searcher.<p>
+ * Indexers report sent updates via {@link #updated()}. Pending updates are made visible by soft
+ * commits scheduled every {@link #getMaxLatency() max latency}. Hard commits (without opening a new
+ * searcher) are performed every {@link #getHardCommitInterval() hard commit interval} if there are
+ * updates not yet persisted. Callers that require read-after-write semantics can use
+ * {@link #awaitVisible(long)}. Concurrent requests are merged into a single soft commit.<p>
+ * All commits are executed by a single thread so commits of the index never overlap. After
+ * {@link #close()} requested commits are executed by the calling thread.
+ */
+public class IndexCommitCoordinator implements Closeable {
+
+    public static final long DEFAULT_AWAIT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Performs the commits on the index
+     */
+    @FunctionalInterface
+    public interface Committer {
+        /**
+         * @param softCommit if a soft commit (visibility only) or a hard commit (durability) is requested
+         * @param openSearcher if a new searcher needs to be opened by a hard commit
+         */
+        void commit(boolean softCommit, boolean openSearcher) throws Exception;
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final String name;
+    private final Committer committer;
+    private final long maxLatency;
+    private final long hardCommitInterval;
+    private final IndexingMetrics metrics;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * incremented for every reported update
+     */
+    private final AtomicLong updates = new AtomicLong();
+    /**
+     * the updates made visible by the last (soft) commit
+     */
+    private volatile long visible = 0;
+    /**
+     * the updates persisted by the last hard commit
+     */
+    private volatile long durable = 0;
+    /**
+     * <code>true</code> if a soft commit was requested and is not yet started
+     */
+    private final AtomicBoolean commitRequested = new AtomicBoolean();
+    private final Object visibleMonitor = new Object();
+
+    /**
+     * @param name the name of the index (used for logging and the thread name)
+     * @param committer performs the commits
+     * @param maxLatency the maximum time (in ms) until updates are visible
+     * @param hardCommitInterval the interval (in ms) of hard commits
+     * @param metrics the metrics used to record commits or <code>null</code> if none
+     */
+    public IndexCommitCoordinator(String name, Committer committer, long maxLatency, long hardCommitInterval, 
+            IndexingMetrics metrics) {
+        this.name = name;
+        this.committer = committer;
+        this.maxLatency = maxLatency;
+        this.hardCommitInterval = hardCommitInterval;
+        this.metrics = metrics;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new BasicThreadFactory.Builder()
+                .namingPattern(name + "-commit-thread-%d").daemon(true).build());
+        executor.scheduleWithFixedDelay(this::softCommit, maxLatency, maxLatency, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::hardCommit, hardCommitInterval, hardCommitInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The maximum time (in ms) until reported updates become visible
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public long getHardCommitInterval() {
+        return hardCommitInterval;
+    }
+
+    /**
+     * Reports that updates were sent to the index. They will become visible with the next
+     * scheduled soft commit.
+     */
+    public void updated() {
+        updates.incrementAndGet();
+    }
+
+    /**
+     * Requests a soft commit as soon as possible. Multiple requests are merged.
+     */
+    public void requestCommit() {
+        if(updates.get() > visible && commitRequested.compareAndSet(false, true)){
+            if(executor.isShutdown()){
+                softCommit();
+            } else {
+                try {
+                    executor.execute(this::softCommit);
+                } catch (RejectedExecutionException e) { //closed concurrently
+                    softCommit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until all updates reported before this call are visible. Requests a soft commit if necessary.
+     * @param timeout the maximum time to wait in ms
+     * @return <code>true</code> if the updates are visible or <code>false</code> on a timeout
+     */
+    public boolean awaitVisible(long timeout) throws InterruptedException {
+        final long seq = updates.get();
+        if(visible >= seq){
+            return true;
+        }
+        requestCommit();
+        final long deadline = System.currentTimeMillis() + timeout;
+        synchronized (visibleMonitor) {
+            while(visible < seq){
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0){
+                    return false;
+                }
+                visibleMonitor.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Performs a hard commit opening a new searcher and waits for its completion. Intended for
+     * administrative operations (e.g. after clearing or rebuilding the index).
+     * @return <code>true</code> if the commit succeeded
+     */
+    public boolean commit() {
+        return execute(() -> doCommit(false, true), "commit");
+    }
+
+    /**
+     * Ensures that all updates reported before this call are persisted by a hard commit (without opening
+     * a new searcher). Intended for callers that store progress information (e.g. checkpoints) that
+     * MUST NOT refer to updates that might get lost. Concurrent requests are merged.
+     * @return <code>true</code> if all updates reported before this call are persisted
+     */
+    public boolean awaitDurable() {
+        final long seq = updates.get();
+        if(durable >= seq){
+            return true;
+        }
+        return execute(() -> durable >= seq || doCommit(false, false), "hard commit");
+    }
+
+    /**
+     * Executes the parsed commit on the commit thread and waits for its completion. If this
+     * coordinator is already closed the commit is executed by the calling thread.
+     * @return the result of the commit or <code>false</code> if it failed or timed out
+     */
+    private boolean execute(BooleanSupplier commit, String type) {
+        if(!executor.isShutdown()){
+            try {
+                return executor.submit(commit::getAsBoolean).get(DEFAULT_AWAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                log.debug("{} closed concurrently - {} by the calling thread", name, type);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("Unable to {} {} ({} - {})", type, name, e.getClass().getSimpleName(), e.getMessage());
+                log.debug("STACKTRACE", e);
+                return false;
+            }
+        }
+        return commit.getAsBoolean();
+    }
+
+    private void softCommit() {
+        commitRequested.set(false);
+        if(updates.get() > visible){
+            doCommit(true, true);
+        }
+    }
+
+    private void hardCommit() {
+        if(updates.get() > durable){
+            doCommit(false, false);
+        }
+    }
+
+    /**
+     * Synchronized as commits requested after {@link #close()} are executed by the calling threads
+     */
+    private synchronized boolean doCommit(boolean soft, boolean openSearcher) {
+        final long seq = updates.get();
+        final long start = System.currentTimeMillis();
+        try {
+            committer.commit(soft, openSearcher);
+        } catch (Exception e) {
+            log.warn("Unable to {} commit {} ({} - {})", soft ? "soft" : "hard", name, 
+                    e.getClass().getSimpleName(), e.getMessage());
+            log.debug("STACKTRACE", e);
+            return false;
+        }
+        final long duration = System.currentTimeMillis() - start;
+        log.trace("{} commit of {} in {}ms", soft ? "soft" : "hard", name, duration);
+        if(metrics != null){
+            metrics.committed(duration);
+        }
+        if(!soft){
+            durable = Math.max(durable, seq);
+        }
+        if(soft || openSearcher){
+            synchronized (visibleMonitor) {
+                visible = Math.max(visible, seq);
+                visibleMonitor.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops scheduled commits and performs a final hard commit for pending updates
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(DEFAULT_AWAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(updates.get() > durable){
+            doCommit(false, true);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IndexCommitCoordinator [name=" + name + ", maxLatency=" + maxLatency + "ms, hardCommitInterval="
+                + hardCommitInterval + "ms]";
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.cloudsync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.springframework.boot.actuate.metrics.Metric;
+
+/**
+ * Thread safe metrics of a single index (Solr core). Indexers report sent batches, failures,
+ * commits and optimizes. The <em>lag</em> is the time between the modification of an entity
+ * in the MongoDB and the time its document is expected to be searchable (the time the batch
+ * was sent plus the <code>commitWithin</code> of the request).
+ */
+public class IndexingMetrics {
+
+    /**
+     * The lag of a sent batch is considered as current lag for this time. After that only
+     * the age of pending documents does count.
+     */
+    public static final long LAG_WINDOW = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The minimum interval used to calculate the documents per second
+     */
+    private static final long RATE_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Failures are recorded in buckets of this size to allow queries for recent failures
+     */
+    private static final long FAILURE_BUCKET_SIZE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The maximum window supported by {@link #getFailed(long)}
+     */
+    public static final long MAX_FAILURE_WINDOW = TimeUnit.HOURS.toMillis(1);
+
+    private final String name;
+
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong commitTime = new AtomicLong();
+    private final AtomicLong optimizes = new AtomicLong();
+    private final AtomicLong optimizeTime = new AtomicLong();
+
+    private volatile int lastBatchSize = 0;
+    private volatile long lastBatchTime = -1;
+    private volatile long lastLag = 0;
+    private final AtomicLong maxLag = new AtomicLong();
+    private volatile long lastCommitDuration = 0;
+    private volatile long lastOptimizeDuration = 0;
+
+    private volatile LongSupplier pending = () -> 0;
+    private volatile LongSupplier oldestPending = () -> -1;
+
+    private long rateTime = System.currentTimeMillis();
+    private long rateIndexed = 0;
+    private double rate = 0d;
+
+    private final long[] failureBuckets = new long[(int)(MAX_FAILURE_WINDOW / FAILURE_BUCKET_SIZE)];
+    private final long[] failureBucketStart = new long[failureBuckets.length];
+
+    public IndexingMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Registers the source for the number of pending documents and the modification time of
+     * the oldest pending document (<code>-1</code> if none)
+     */
+    public void setPending(LongSupplier pending, LongSupplier oldestPending) {
+        this.pending = pending == null ? () -> 0 : pending;
+        this.oldestPending = oldestPending == null ? () -> -1 : oldestPending;
+    }
+
+    /**
+     * Records a successfully sent batch
+     * @param docs the number of documents added by the batch
+     * @param oldestModified the modification date of the oldest entity in the batch or <code>null</code> if not known
+     * @param commitWithin the commitWithin of the update request
+     */
+    public void batchIndexed(int docs, Date oldestModified, int commitWithin) {
+        final long now = System.currentTimeMillis();
+        indexed.addAndGet(docs);
+        batches.incrementAndGet();
+        lastBatchSize = docs;
+        if(oldestModified != null){
+            long lag = Math.max(0, now + Math.max(0, commitWithin) - oldestModified.getTime());
+            lastLag = lag;
+            maxLag.accumulateAndGet(lag, Math::max);
+        }
+        lastBatchTime = now;
+    }
+
+    public void deleted(int docs) {
+        deleted.addAndGet(docs);
+    }
+
+    public void failed(int docs) {
+        failed(docs, System.currentTimeMillis());
+    }
+
+    /**
+     * Records failed documents at the parsed time
+     */
+    void failed(int docs, long time) {
+        failed.addAndGet(docs);
+        final long start = time - time % FAILURE_BUCKET_SIZE;
+        final int idx = (int)((start / FAILURE_BUCKET_SIZE) % failureBuckets.length);
+        synchronized (failureBuckets) {
+            if(failureBucketStart[idx] != start){ //reuse an outdated bucket
+                failureBucketStart[idx] = start;
+                failureBuckets[idx] = 0;
+            }
+            failureBuckets[idx] += docs;
+        }
+    }
+
+    public void committed(long duration) {
+        commits.incrementAndGet();
+        commitTime.addAndGet(duration);
+        lastCommitDuration = duration;
+    }
+
+    public void optimized(long duration) {
+        optimizes.incrementAndGet();
+        optimizeTime.addAndGet(duration);
+        lastOptimizeDuration = duration;
+    }
+
+    public long getIndexed() {
+        return indexed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * The number of documents failed within the parsed time window (with a resolution of a minute)
+     * @param window the window in milliseconds. Values greater as {@link #MAX_FAILURE_WINDOW} are 
+     * truncated
+     */
+    public long getFailed(long window) {
+        return getFailed(window, System.currentTimeMillis());
+    }
+
+    long getFailed(long window, long now) {
+        final long since = now - Math.min(window, MAX_FAILURE_WINDOW);
+        long sum = 0;
+        synchronized (failureBuckets) {
+            for(int i = 0; i < failureBuckets.length; i++){
+                if(failureBucketStart[i] + FAILURE_BUCKET_SIZE > since && failureBucketStart[i] <= now){
+                    sum += failureBuckets[i];
+                }
+            }
+        }
+        return sum;
+    }
+
+    public long getPending() {
+        return pending.getAsLong();
+    }
+
+    /**
+     * The current lag in milliseconds. This is the maximum of the lag of batches sent within the
+     * {@link #LAG_WINDOW} and the age of the oldest pending document.
+     */
+    public long getLag() {
+        final long now = System.currentTimeMillis();
+        long lag = lastBatchTime >= 0 && now - lastBatchTime <= LAG_WINDOW ? lastLag : 0;
+        long oldest = oldestPending.getAsLong();
+        if(oldest >= 0){
+            lag = Math.max(lag, now - oldest);
+        }
+        return lag;
+    }
+
+    /**
+     * The number of indexed documents per second since the last calculation (at least every 10sec)
+     */
+    public synchronized double getRate() {
+        final long now = System.currentTimeMillis();
+        if(now - rateTime >= RATE_INTERVAL){
+            final long current = indexed.get();
+            rate = (current - rateIndexed) * 1000d / (now - rateTime);
+            rateIndexed = current;
+            rateTime = now;
+        }
+        return rate;
+    }
+
+    public Collection<Metric<?>> metrics(String prefix) {
+        final String p = prefix + name + '.';
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>(p + "indexed", indexed.get()));
+        metrics.add(new Metric<>(p + "deleted", deleted.get()));
+        metrics.add(new Metric<>(p + "failed", failed.get()));
+        metrics.add(new Metric<>(p + "pending", getPending()));
+        metrics.add(new Metric<>(p + "batches", batches.get()));
+        metrics.add(new Metric<>(p + "batchSize", lastBatchSize));
+        metrics.add(new Metric<>(p + "docsPerSecond", getRate()));
+        metrics.add(new Metric<>(p + "lag", getLag()));
+        metrics.add(new Metric<>(p + "lagMax", maxLag.get()));
+        metrics.add(new Metric<>(p + "commits", commits.get()));
+        metrics.add(new Metric<>(p + "commitTime", commitTime.get()));
+        metrics.add(new Metric<>(p + "commitTimeLast", lastCommitDuration));
+        metrics.add(new Metric<>(p + "optimizes", optimizes.get()));
+        metrics.add(new Metric<>(p + "optimizeTime", optimizeTime.get()));
+        metrics.add(new Metric<>(p + "optimizeTimeLast", lastOptimizeDuration));
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexingMetrics [name=" + name + ", indexed=" + indexed + ", failed=" + failed + ", lag=" + getLag() + "ms]";
+    }
+}
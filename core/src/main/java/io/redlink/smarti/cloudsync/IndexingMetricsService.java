@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.cloudsync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry for the {@link IndexingMetrics} of the different indexes. All metrics are exposed
+ * as {@link PublicMetrics} with the prefix <code>smarti.index.{name}.</code>
+ */
+@Component
+public class IndexingMetricsService implements PublicMetrics {
+
+    private static final String METRIC_PREFIX = "smarti.index.";
+
+    private final ConcurrentMap<String, IndexingMetrics> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Getter for the metrics of the index with the parsed name. Creates the metrics if not yet present
+     */
+    public IndexingMetrics getMetrics(String name) {
+        return indexes.computeIfAbsent(name, IndexingMetrics::new);
+    }
+
+    public Collection<IndexingMetrics> getIndexes() {
+        return Collections.unmodifiableCollection(indexes.values());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        indexes.values().forEach(index -> metrics.addAll(index.metrics(METRIC_PREFIX)));
+        return metrics;
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.cloudsync;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CursorType;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Allows to get notified about inserts, updates and deletes of entities stored in a MongoDB collection.
+ * <p>
+ * The used driver version does not yet support the change stream API so changes are read by tailing the
+ * oplog of the replica set (the same source MongoDB uses for change streams). The position of processed
+ * changes is persisted in the {@link #COLLECTION} so that streams can be resumed after a restart.
+ * <p>
+ * For MongoDB deployments without an oplog (e.g. standalone servers) or missing permissions to read the
+ * oplog {@link #watch(String, Class, ChangeListener)} returns <code>null</code>. Components are expected
+ * to fall back to polling in such cases (and while a {@link ChangeStream} is not {@link ChangeStream#isActive() active}).
+ */
+@Component
+@EnableConfigurationProperties(ConversationCloudSyncConfiguration.class)
+public class MongoChangeStreamService {
+
+    /**
+     * The collection used to store the resume positions of change streams
+     */
+    public static final String COLLECTION = "changeStreamToken";
+    
+    private static final String FIELD_TIME = "time";
+    private static final String FIELD_INC = "inc";
+    private static final String FIELD_UPDATED = "updated";
+    
+    private static final String OPLOG_DB = "local";
+    private static final String OPLOG_COLLECTION = "oplog.rs";
+    /**
+     * The oplog operations of inserts, updates and deletes
+     */
+    private static final Set<String> CHANGE_OPS = new HashSet<>(Arrays.asList("i","u","d"));
+    
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    
+    private final ConversationCloudSyncConfiguration.ChangeStream config;
+    private final MongoTemplate mongoTemplate;
+    
+    private final ExecutorService executor;
+    
+    private final Map<String, ChangeStream> streams = new ConcurrentHashMap<>();
+    
+    public MongoChangeStreamService(ConversationCloudSyncConfiguration config, MongoTemplate mongoTemplate) {
+        this.config = config.getChangeStream();
+        this.mongoTemplate = mongoTemplate;
+        this.executor = Executors.newCachedThreadPool(
+                new BasicThreadFactory.Builder().namingPattern("change-stream-thread-%d").daemon(true).build());
+    }
+    
+    /**
+     * Starts a change stream for the collection of the parsed entity type.
+     * @param name the name of the stream. Used to persist the resume position
+     * @param entityType the type of the entities. Used to determine the collection
+     * @param listener the listener notified about changes
+     * @return the change stream or <code>null</code> if change streams are disabled or not
+     * supported by the MongoDB deployment
+     */
+    public ChangeStream watch(String name, Class<?> entityType, ChangeListener listener) {
+        return watch(name, entityType, listener, true);
+    }
+    
+    /**
+     * Starts a change stream for the collection of the parsed entity type.
+     * @param name the name of the stream. Used to persist the resume position (if resumable)
+     * @param entityType the type of the entities. Used to determine the collection
+     * @param listener the listener notified about changes
+     * @param resumable if the resume position is persisted. Streams that are not resumable start with
+     * the current end of the oplog (e.g. for components that only need changes while running, such as
+     * in-memory caches)
+     * @return the change stream or <code>null</code> if change streams are disabled or not
+     * supported by the MongoDB deployment
+     */
+    public ChangeStream watch(String name, Class<?> entityType, ChangeListener listener, boolean resumable) {
+        Objects.requireNonNull(name);
+        Objects.requireNonNull(listener);
+        if(!config.isEnabled()){
+            log.debug("change streams are disabled by configuration");
+            return null;
+        }
+        MongoCollection<Document> oplog = getOplog();
+        if(oplog == null){
+            return null;
+        }
+        String ns = mongoTemplate.getDb().getName() + '.' + mongoTemplate.getCollectionName(entityType);
+        ChangeStream stream = new ChangeStream(name, ns, oplog, listener, resumable);
+        ChangeStream old = streams.put(name, stream);
+        if(old != null){
+            old.close();
+        }
+        log.info("start change stream '{}' for {}", name, ns);
+        executor.execute(stream);
+        return stream;
+    }
+    
+    private MongoCollection<Document> getOplog() {
+        Mongo mongo = mongoTemplate.getDb().getMongo();
+        if(!(mongo instanceof MongoClient)){
+            log.info("change streams not supported by {} (fall back to polling)", mongo.getClass().getSimpleName());
+            return null;
+        }
+        try {
+            MongoCollection<Document> oplog = ((MongoClient)mongo).getDatabase(OPLOG_DB).getCollection(OPLOG_COLLECTION);
+            if(oplog.find().sort(Sorts.descending("$natural")).limit(1).first() == null){
+                log.info("MongoDB does not provide an oplog - change streams are only supported by replica sets (fall back to polling)");
+                return null;
+            }
+            return oplog;
+        } catch (MongoException e) {
+            log.info("Unable to read the MongoDB oplog - change streams not supported (fall back to polling) ({} - {})", 
+                    e.getClass().getSimpleName(), e.getMessage());
+            log.debug("STACKTRACE", e);
+            return null;
+        }
+    }
+    
+    private BsonTimestamp readResumeToken(String name) {
+        DBObject token = mongoTemplate.getCollection(COLLECTION).findOne(new BasicDBObject("_id", name));
+        if(token != null && token.get(FIELD_TIME) instanceof Number && token.get(FIELD_INC) instanceof Number){
+            return new BsonTimestamp(((Number)token.get(FIELD_TIME)).intValue(), ((Number)token.get(FIELD_INC)).intValue());
+        } else {
+            return null;
+        }
+    }
+    
+    private void writeResumeToken(String name, BsonTimestamp ts) {
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(name)), 
+                Update.update(FIELD_TIME, ts.getTime()).set(FIELD_INC, ts.getInc()).set(FIELD_UPDATED, new Date()),
+                COLLECTION);
+    }
+    
+    @PreDestroy
+    protected void shutdown() {
+        streams.values().forEach(ChangeStream::close);
+        streams.clear();
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Listener for changes reported by a {@link ChangeStream}
+     */
+    @FunctionalInterface
+    public interface ChangeListener {
+        /**
+         * Called with the ids of inserted, updated and deleted entities. Implementations need to
+         * load the entities to check their current state. The resume position is only updated
+         * if this method completes normally.
+         * @param ids the ids of the changed entities in the order of their first change
+         */
+        void onChanges(Collection<ObjectId> ids);
+        
+        /**
+         * Called if the resume position of the stream is no longer available in the oplog (e.g. after a
+         * longer downtime). Changes after the parsed date might have been missed so implementations need
+         * to catch up (e.g. by syncing all entities updated since the parsed date). The stream continues
+         * with the current end of the oplog and the resume position is only updated if this method
+         * completes normally.
+         * @param since the time of the lost resume position
+         */
+        default void onHistoryLost(Date since) {
+            //changes are missed by default
+        }
+    }
+    
+    /**
+     * A change stream started by {@link MongoChangeStreamService#watch(String, Class, ChangeListener)}
+     */
+    public class ChangeStream implements Runnable, Closeable {
+        
+        private final String name;
+        private final String ns;
+        private final MongoCollection<Document> oplog;
+        private final ChangeListener listener;
+        private final boolean resumable;
+        
+        private volatile boolean closed = false;
+        private volatile boolean active = false;
+        private volatile Date lastChange;
+        
+        private BsonTimestamp resumeToken;
+        
+        private ChangeStream(String name, String ns, MongoCollection<Document> oplog, ChangeListener listener, 
+                boolean resumable) {
+            this.name = name;
+            this.ns = ns;
+            this.oplog = oplog;
+            this.listener = listener;
+            this.resumable = resumable;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * If the change stream is currently connected and processing changes. Callers need
+         * to poll for changes if not active.
+         */
+        public boolean isActive() {
+            return active && !closed;
+        }
+        
+        /**
+         * The time of the last change processed by this stream
+         */
+        public Date getLastChange() {
+            return lastChange;
+        }
+        
+        @Override
+        public void run() {
+            while(!closed){
+                try {
+                    if(resumeToken == null && resumable){
+                        resumeToken = readResumeToken(name);
+                    }
+                    if(resumeToken == null){ //start with the current position
+                        resumeToken = getOplogEnd();
+                        persistResumeToken();
+                    } else if(isHistoryLost()){
+                        //catch up with the current end (changes after it are tailed)
+                        final BsonTimestamp end = getOplogEnd();
+                        final Date since = new Date(resumeToken.getTime() * 1000L);
+                        log.warn("resume position {} of change stream '{}' is no longer present in the oplog - catch up with changes since {}",
+                                resumeToken, name, since.toInstant());
+                        listener.onHistoryLost(since);
+                        resumeToken = end;
+                        persistResumeToken();
+                    }
+                    tail();
+                } catch (MongoException | RuntimeException e) {
+                    active = false;
+                    if(!closed){
+                        log.warn("Change stream '{}' failed - retry in {}ms ({} - {})", name, config.getRetryDelay(), 
+                                e.getClass().getSimpleName(), e.getMessage());
+                        log.debug("STACKTRACE", e);
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(config.getRetryDelay());
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            closed = true;
+                        }
+                    }
+                }
+            }
+            active = false;
+            log.debug("closed change stream '{}'", name);
+        }
+        
+        /**
+         * Checks if the {@link #resumeToken} is older as the first entry of the oplog. As the oplog is a
+         * capped collection, changes after the resume position might be no longer available.
+         */
+        private boolean isHistoryLost() {
+            Document first = oplog.find().sort(Sorts.ascending("$natural")).limit(1).first();
+            if(first == null){
+                return false;
+            }
+            final BsonTimestamp start = (BsonTimestamp)first.get("ts");
+            return resumeToken.getTime() < start.getTime() || 
+                    (resumeToken.getTime() == start.getTime() && resumeToken.getInc() < start.getInc());
+        }
+        
+        private BsonTimestamp getOplogEnd() {
+            Document last = oplog.find().sort(Sorts.descending("$natural")).limit(1).first();
+            return last == null ? new BsonTimestamp((int)(System.currentTimeMillis()/1000), 0) : 
+                (BsonTimestamp)last.get("ts");
+        }
+        
+        /**
+         * Tails all entries of the oplog. Entries of other collections (and no-ops periodically written by
+         * replica sets) are not parsed to the listener but still advance the resume position. Otherwise the
+         * position would fall behind while the watched collection is not modified and could get lost from
+         * the oplog, causing an unnecessary catch up. Writes of resume positions do not advance the
+         * position, as persisting it would otherwise cause a further write.
+         */
+        private void tail() {
+            final String tokenNs = mongoTemplate.getDb().getName() + '.' + COLLECTION;
+            try (MongoCursor<Document> cursor = oplog.find(Filters.gt("ts", resumeToken))
+                    .cursorType(CursorType.TailableAwait).oplogReplay(true).noCursorTimeout(true)
+                    .maxAwaitTime(config.getMaxAwait(), TimeUnit.MILLISECONDS).iterator()){
+                if(!active){
+                    log.info("change stream '{}' active (resume position: {})", name, 
+                            new Date(resumeToken.getTime() * 1000L).toInstant());
+                    active = true;
+                }
+                final Set<ObjectId> changed = new LinkedHashSet<>();
+                BsonTimestamp position = resumeToken;
+                BsonTimestamp changePosition = null;
+                long lastWrite = System.currentTimeMillis();
+                while(!closed){
+                    Document entry = cursor.tryNext();
+                    if(entry != null && !tokenNs.equals(entry.getString("ns"))){
+                        position = (BsonTimestamp)entry.get("ts");
+                        if(ns.equals(entry.getString("ns")) && CHANGE_OPS.contains(entry.getString("op"))){
+                            Document doc = (Document)("u".equals(entry.getString("op")) ? entry.get("o2") : entry.get("o"));
+                            if(doc != null && doc.get("_id") instanceof ObjectId){
+                                changed.add((ObjectId)doc.get("_id"));
+                                changePosition = position;
+                            }
+                        }
+                    }
+                    if(!changed.isEmpty() && (entry == null || changed.size() >= config.getBatchSize())){
+                        if(log.isTraceEnabled()){
+                            log.trace("change stream '{}' - parse {} changes to {}", name, changed.size(), listener);
+                        }
+                        listener.onChanges(changed);
+                        changed.clear();
+                        resumeToken = position;
+                        lastChange = new Date(changePosition.getTime() * 1000L);
+                        persistResumeToken();
+                        lastWrite = System.currentTimeMillis();
+                    } else if(changed.isEmpty() && !position.equals(resumeToken) && 
+                            (entry == null || System.currentTimeMillis() - lastWrite >= config.getMaxAwait())){
+                        //no pending changes: persist the position if idle (or periodically if busy)
+                        resumeToken = position;
+                        persistResumeToken();
+                        lastWrite = System.currentTimeMillis();
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Persists the current {@link #resumeToken} if the stream is resumable. Otherwise it is only
+         * kept in memory (to resume after a failure of the tailing cursor)
+         */
+        private void persistResumeToken() {
+            if(resumable){
+                writeResumeToken(name, resumeToken);
+            }
+        }
+        
+        @Override
+        public void close() {
+            closed = true;
+            active = false;
+            streams.remove(name, this);
+        }
+        
+        @Override
+        public String toString() {
+            return "ChangeStream [name=" + name + ", ns=" + ns + ", active=" + isActive() + "]";
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.cloudsync;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Progress of a partitioned rebuild (see {@link ConversationCloudSync#rebuild(String, ConversationCloudSync.ConversytionSyncCallback, ConversationCloudSync.IndexingStatus)}).
+ * Persisted so that an interrupted rebuild can be resumed.
+ */
+@Document(collection = RebuildCheckpoint.COLLECTION)
+public class RebuildCheckpoint {
+
+    public static final String COLLECTION = "rebuildCheckpoint";
+
+    public static final String FIELD_PARTITIONS = "partitions";
+    public static final String FIELD_LAST = "last";
+    public static final String FIELD_COUNT = "count";
+    public static final String FIELD_COMPLETED = "completed";
+
+    @Id
+    private String id;
+
+    /**
+     * The time the rebuild was started
+     */
+    private Date started;
+
+    /**
+     * The sync date of the rebuild (the latest modification date when the rebuild was started)
+     */
+    private Date syncDate;
+
+    private List<Partition> partitions = new ArrayList<>();
+
+    public RebuildCheckpoint() {
+    }
+
+    public RebuildCheckpoint(String id, Date syncDate) {
+        this.id = id;
+        this.started = new Date();
+        this.syncDate = syncDate;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Date getStarted() {
+        return started;
+    }
+
+    public void setStarted(Date started) {
+        this.started = started;
+    }
+
+    public Date getSyncDate() {
+        return syncDate;
+    }
+
+    public void setSyncDate(Date syncDate) {
+        this.syncDate = syncDate;
+    }
+
+    public List<Partition> getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(List<Partition> partitions) {
+        this.partitions = partitions;
+    }
+
+    public boolean isCompleted() {
+        return partitions.stream().allMatch(Partition::isCompleted);
+    }
+
+    @Override
+    public String toString() {
+        return "RebuildCheckpoint [id=" + id + ", started=" + (started == null ? null : started.toInstant()) 
+                + ", syncDate=" + (syncDate == null ? null : syncDate.toInstant()) + ", partitions=" + partitions + "]";
+    }
+
+    /**
+     * A range of conversation ids. The lower bound is inclusive, the upper exclusive
+     */
+    public static class Partition {
+
+        private ObjectId lower;
+        private ObjectId upper;
+        /**
+         * The id of the last conversation processed in this partition
+         */
+        private ObjectId last;
+        private long count;
+        private boolean completed;
+
+        public Partition() {
+        }
+
+        public Partition(ObjectId lower, ObjectId upper) {
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        public ObjectId getLower() {
+            return lower;
+        }
+
+        public void setLower(ObjectId lower) {
+            this.lower = lower;
+        }
+
+        public ObjectId getUpper() {
+            return upper;
+        }
+
+        public void setUpper(ObjectId upper) {
+            this.upper = upper;
+        }
+
+        public ObjectId getLast() {
+            return last;
+        }
+
+        public void setLast(ObjectId last) {
+            this.last = last;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public void setCount(long count) {
+            this.count = count;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        public void setCompleted(boolean completed) {
+            this.completed = completed;
+        }
+
+        @Override
+        public String toString() {
+            return "Partition [" + lower + ".." + upper + ", last=" + last + ", count=" + count 
+                    + (completed ? ", completed" : "") + "]";
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.util.List;
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.index.Indexed;
@@ -42,7 +43,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 @CompoundIndexes(value={
         @CompoundIndex(def= "{'conversation': 1, 'client': 1, 'date': 1}"),
         @CompoundIndex(def= "{'conversation': 1, 'client': 1}"),
-        @CompoundIndex(def= "{'conversation': 1, 'date': 1}")
+        @CompoundIndex(def= "{'conversation': 1, 'date': 1}"),
+        @CompoundIndex(def= "{'date': 1}")
 })
 public class Analysis {
 
@@ -79,6 +81,11 @@ public class Analysis {
     @ApiModelProperty(value = "Templates for possible queries", required=true)
     private List<Template> templates = new ArrayList<>();
 
+    @Transient
+    @JsonIgnore
+    @ApiModelProperty(hidden=true)
+    private transient TokenIndex tokenIndex;
+
     
     public Analysis(ObjectId client, ObjectId conversation, Date date) {
         this(null, client, conversation, date);
@@ -127,6 +134,24 @@ public class Analysis {
 
     public void setTokens(List<Token> tokens) {
         this.tokens = tokens;
+        this.tokenIndex = null;
+    }
+
+    /**
+     * Getter for the {@link TokenIndex} over the {@link #getTokens() tokens} of this analysis.
+     * The index is built lazily and rebuilt if tokens are added, removed or replaced. Changes to the
+     * state of already indexed tokens (e.g. their type) are not detected, so this is intended
+     * to be used after the analysis was completed (e.g. by template and query builders).
+     * @return the token index
+     */
+    @JsonIgnore
+    public TokenIndex getTokenIndex() {
+        TokenIndex index = tokenIndex;
+        if(index == null || !index.isIndexOf(tokens)){
+            index = new TokenIndex(tokens);
+            tokenIndex = index;
+        }
+        return index;
     }
 
     public List<Template> getTemplates() {
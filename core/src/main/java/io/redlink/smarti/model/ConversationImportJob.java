@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.model;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * The status of a (streaming) conversation import. Stored after every processed batch so that
+ * an interrupted import can be resumed by re-sending the same data (already {@link #getProcessed() processed}
+ * conversations are skipped).
+ */
+@ApiModel(description="The status of a conversation import")
+@Document(collection = ConversationImportJob.COLLECTION)
+public class ConversationImportJob {
+
+    public static final String COLLECTION = "conversationImports";
+
+    public enum Status {
+        Running,
+        Completed,
+        Failed
+    }
+
+    @Id
+    private ObjectId id;
+
+    @ApiModelProperty(notes="The client the conversations are imported for")
+    private final ObjectId owner;
+
+    @ApiModelProperty(notes="If existing conversations are replaced")
+    private final boolean replace;
+
+    private Status status = Status.Running;
+
+    private final Date started;
+
+    private Date lastModified;
+
+    @ApiModelProperty(notes="The number of conversations read from the import data")
+    private long processed;
+
+    private long inserted;
+
+    private long replaced;
+
+    @ApiModelProperty(notes="Existing conversations not replaced")
+    private long skipped;
+
+    @ApiModelProperty(notes="Conversations that could not be imported (e.g. an ID used by an other client)")
+    private long failed;
+
+    @JsonInclude(Include.NON_NULL)
+    private String error;
+
+    public ConversationImportJob(ObjectId owner, boolean replace) {
+        this(owner, replace, new Date());
+    }
+
+    @PersistenceConstructor
+    protected ConversationImportJob(ObjectId owner, boolean replace, Date started) {
+        this.owner = owner;
+        this.replace = replace;
+        this.started = started;
+        this.lastModified = started;
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public void setId(ObjectId id) {
+        this.id = id;
+    }
+
+    public ObjectId getOwner() {
+        return owner;
+    }
+
+    public boolean isReplace() {
+        return replace;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Date getStarted() {
+        return started;
+    }
+
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(Date lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public void setProcessed(long processed) {
+        this.processed = processed;
+    }
+
+    public long getInserted() {
+        return inserted;
+    }
+
+    public void setInserted(long inserted) {
+        this.inserted = inserted;
+    }
+
+    public long getReplaced() {
+        return replaced;
+    }
+
+    public void setReplaced(long replaced) {
+        this.replaced = replaced;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(long skipped) {
+        this.skipped = skipped;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public void setFailed(long failed) {
+        this.failed = failed;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return "ConversationImportJob [id=" + id + ", owner=" + owner + ", status=" + status + ", processed=" + processed
+                + ", inserted=" + inserted + ", replaced=" + replaced + ", skipped=" + skipped + ", failed=" + failed + "]";
+    }
+}
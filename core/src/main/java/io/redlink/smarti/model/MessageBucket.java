@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A fixed-size bucket of older {@link Message}s of a {@link Conversation}. Only used if 
+ * bucketed message storage is enabled. The {@link Conversation#getMessages()} do only contain
+ * the most recent messages in this case. Buckets are ordered by their {@link #getSeq() sequence number}.
+ */
+@Document(collection = MessageBucket.COLLECTION)
+public class MessageBucket {
+
+    public static final String COLLECTION = "conversationMessages";
+
+    @Id
+    private ObjectId id;
+
+    private final ObjectId conversation;
+
+    private final int seq;
+
+    private final List<Message> messages = new ArrayList<>();
+
+    @PersistenceConstructor
+    public MessageBucket(ObjectId conversation, int seq) {
+        this.conversation = conversation;
+        this.seq = seq;
+    }
+
+    public MessageBucket(ObjectId conversation, int seq, List<Message> messages) {
+        this(conversation, seq);
+        if(messages != null){
+            this.messages.addAll(messages);
+        }
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public ObjectId getConversation() {
+        return conversation;
+    }
+
+    /**
+     * The sequence number of this bucket within the conversation (starting with <code>0</code>
+     * for the oldest messages)
+     */
+    public int getSeq() {
+        return seq;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageBucket [conversation=" + conversation + ", seq=" + seq + ", messages=" + messages.size() + "]";
+    }
+}
@@ -18,6 +18,7 @@
 package io.redlink.smarti.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
@@ -51,6 +52,10 @@ public class Template implements Comparable<Template> {
     @ApiModelProperty(notes = "Queries build based on the information provided by this template.")
     private List<Query> queries = new ArrayList<>();
 
+    @ApiModelProperty(hidden=true)
+    @JsonIgnore
+    private String fingerprint;
+
     @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
     public Template(@JsonProperty("type") String type, @JsonProperty("slots") Collection<Slot> slots) {
         this.type = type;
@@ -103,6 +108,19 @@ public class Template implements Comparable<Template> {
         this.queries = queries;
     }
 
+    /**
+     * The fingerprint over the information used to build this template (see
+     * {@link io.redlink.smarti.api.TemplateBuilder#getFingerprint(Conversation, Analysis)})
+     * @return the fingerprint or <code>null</code> if not available
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
     @Override
     public int compareTo(Template o) {
         return Float.compare(o.probability, probability);
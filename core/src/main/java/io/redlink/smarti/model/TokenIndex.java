@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.model;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * An indexed (read-only) view over the {@link Token}s of an {@link Analysis}. Tokens are referenced by their
+ * index in {@link Analysis#getTokens()} (the same index as used by {@link Slot#getTokenIndex()}).<p>
+ * The index holds {@link BitSet}s for the {@link Token.Type types}, hints, messages and {@link State states}
+ * of the tokens. It is built once (see {@link Analysis#getTokenIndex()}) so that components can select
+ * candidate tokens by set operations instead of iterating over all tokens of the analysis.<p>
+ * All methods returning {@link BitSet}s return copies that can be modified by the caller.
+ */
+public final class TokenIndex {
+
+    private final List<Token> tokens;
+    /**
+     * The indexed tokens (used to detect added, removed or replaced tokens)
+     */
+    private final Token[] indexed;
+    private final int size;
+
+    private final Map<Token.Type, BitSet> types = new EnumMap<>(Token.Type.class);
+    private final Map<State, BitSet> states = new EnumMap<>(State.class);
+    private final Map<String, BitSet> hints = new HashMap<>();
+    /**
+     * Tokens by message. As message indexes are dense we can use an array
+     */
+    private final BitSet[] messages;
+
+    public TokenIndex(List<Token> tokens) {
+        this.tokens = tokens == null ? Collections.emptyList() : tokens;
+        this.indexed = this.tokens.toArray(new Token[0]);
+        this.size = indexed.length;
+        int maxMsgIdx = -1;
+        for(Token token : indexed){
+            if(token != null){
+                maxMsgIdx = Math.max(maxMsgIdx, token.getMessageIdx());
+            }
+        }
+        this.messages = new BitSet[maxMsgIdx + 1];
+        for(int i = 0; i < size; i++){
+            final Token token = indexed[i];
+            if(token == null){
+                continue;
+            }
+            if(token.getType() != null){
+                types.computeIfAbsent(token.getType(), t -> new BitSet(size)).set(i);
+            }
+            if(token.getState() != null){
+                states.computeIfAbsent(token.getState(), s -> new BitSet(size)).set(i);
+            }
+            if(token.getHints() != null){
+                for(String hint : token.getHints()){
+                    hints.computeIfAbsent(hint, h -> new BitSet(size)).set(i);
+                }
+            }
+            if(token.getMessageIdx() >= 0){
+                BitSet msgTokens = messages[token.getMessageIdx()];
+                if(msgTokens == null){
+                    msgTokens = new BitSet(size);
+                    messages[token.getMessageIdx()] = msgTokens;
+                }
+                msgTokens.set(i);
+            }
+        }
+    }
+
+    /**
+     * If this index was built for the parsed token list (same instance with the same tokens)
+     */
+    boolean isIndexOf(List<Token> tokens) {
+        if(this.tokens != tokens || tokens.size() != size){
+            return false;
+        }
+        for(int i = 0; i < size; i++){
+            if(tokens.get(i) != indexed[i]){ //a token was replaced (or removed and an other one added)
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of indexed tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Getter for the token with the parsed index
+     * @param idx the index
+     * @return the token or <code>null</code> if the index is out of range
+     */
+    public Token getToken(int idx) {
+        return idx >= 0 && idx < size ? indexed[idx] : null;
+    }
+
+    /**
+     * All indexed tokens
+     */
+    public BitSet getAll() {
+        BitSet all = new BitSet(size);
+        all.set(0, size);
+        return all;
+    }
+
+    /**
+     * Tokens with any of the parsed types
+     * @param types the types. If <code>null</code> or empty all tokens are returned
+     */
+    public BitSet getByType(Collection<Token.Type> types) {
+        if(types == null || types.isEmpty()){
+            return getAll();
+        }
+        final BitSet result = new BitSet(size);
+        for(Token.Type type : types){
+            BitSet typeTokens = type == null ? null : this.types.get(type);
+            if(typeTokens != null){
+                result.or(typeTokens);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tokens with any of the parsed types
+     * @param types the types. If <code>null</code> or empty all tokens are returned
+     */
+    public BitSet getByType(Token.Type...types) {
+        return getByType(types == null ? null : Arrays.asList(types));
+    }
+
+    /**
+     * Tokens with the parsed hint
+     */
+    public BitSet getByHint(String hint) {
+        BitSet hintTokens = hints.get(hint);
+        return hintTokens == null ? new BitSet(size) : (BitSet)hintTokens.clone();
+    }
+
+    /**
+     * Tokens with the parsed hint
+     */
+    public BitSet getByHint(Token.Hint hint) {
+        return getByHint(hint == null ? null : hint.name());
+    }
+
+    /**
+     * Tokens with the parsed state
+     */
+    public BitSet getByState(State state) {
+        BitSet stateTokens = states.get(state);
+        return stateTokens == null ? new BitSet(size) : (BitSet)stateTokens.clone();
+    }
+
+    /**
+     * Tokens extracted from the message with the parsed index
+     */
+    public BitSet getByMessage(int messageIdx) {
+        BitSet msgTokens = messageIdx >= 0 && messageIdx < messages.length ? messages[messageIdx] : null;
+        return msgTokens == null ? new BitSet(size) : (BitSet)msgTokens.clone();
+    }
+
+    /**
+     * Tokens extracted from messages with an index <code>&gt;= startMessageIdx</code>
+     */
+    public BitSet getFromMessage(int startMessageIdx) {
+        final BitSet result = new BitSet(size);
+        for(int i = Math.max(0, startMessageIdx); i < messages.length; i++){
+            if(messages[i] != null){
+                result.or(messages[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The tokens selected by the parsed {@link BitSet} (in index order)
+     */
+    public Stream<Token> stream(BitSet selected) {
+        return selected.stream()
+                .filter(i -> i < size)
+                .mapToObj(i -> indexed[i]);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenIndex [" + size + " tokens, " + types.size() + " types, " + hints.size() + " hints, " 
+                + messages.length + " messages]";
+    }
+}
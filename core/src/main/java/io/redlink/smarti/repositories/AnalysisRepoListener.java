@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.repositories;
+
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+import org.springframework.stereotype.Component;
+
+import io.redlink.smarti.model.Analysis;
+
+/**
+ * Mongo application event listener for {@link Analysis} documents that expands
+ * documents stored in the compact form (see {@link CompactAnalysisEncoding}) before
+ * they are mapped.
+ */
+@Component
+public class AnalysisRepoListener extends AbstractMongoEventListener<Analysis> {
+
+    @Override
+    public void onAfterLoad(AfterLoadEvent<Analysis> event) {
+        CompactAnalysisEncoding.expand(event.getDBObject());
+    }
+}
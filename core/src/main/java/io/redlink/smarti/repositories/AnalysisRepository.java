@@ -30,6 +30,8 @@ public interface AnalysisRepository extends CrudRepository<Analysis, ObjectId>,
 
     List<Analysis> findByClientAndConversation(ObjectId client, ObjectId conversation);
 
+    Analysis findFirstByClientAndConversationOrderByDateDesc(ObjectId client, ObjectId conversation);
+
     void deleteByConversation(ObjectId id);
 
     
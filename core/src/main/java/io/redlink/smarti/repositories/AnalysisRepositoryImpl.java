@@ -20,6 +20,7 @@ package io.redlink.smarti.repositories;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -35,14 +36,17 @@ import io.redlink.smarti.model.Analysis;
  *
  * @author RUpert Westenthaler
  */
+@EnableConfigurationProperties(MongoAnalysisStorageConfig.class)
 public class AnalysisRepositoryImpl implements AnalysisRepositoryCustom {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     
     private final MongoTemplate mongoTemplate;
+    private final MongoAnalysisStorageConfig config;
 
-    public AnalysisRepositoryImpl(MongoTemplate mongoTemplate) {
+    public AnalysisRepositoryImpl(MongoTemplate mongoTemplate, MongoAnalysisStorageConfig config) {
         this.mongoTemplate = mongoTemplate;
+        this.config = config;
     }
 
     @Override
@@ -61,6 +65,11 @@ public class AnalysisRepositoryImpl implements AnalysisRepositoryCustom {
             log.warn("updateAnalysis call with Analysis having an ID. ID is expected to be NULL and will be ignored!");
         }
         final Update update = new Update();
+        if(config.isCompact()){
+            CompactAnalysisEncoding.compact(data);
+        } else { //the stored version might be compact
+            update.unset(CompactAnalysisEncoding.FIELD_DICT);
+        }
         data.entrySet().stream().forEach(e -> update.set(e.getKey(), e.getValue()));
 
         final WriteResult writeResult = mongoTemplate.upsert(query, update, Analysis.class);
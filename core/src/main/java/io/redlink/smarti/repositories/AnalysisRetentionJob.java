@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.repositories;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import io.redlink.smarti.model.Analysis;
+
+/**
+ * Applies the retention policy configured by {@link MongoAnalysisStorageConfig} to
+ * the stored {@link Analysis} documents:<ul>
+ * <li> removes analysis older as {@link MongoAnalysisStorageConfig#getExpire() expire} days
+ * <li> converts documents in the verbose form to the compact form if
+ * {@link MongoAnalysisStorageConfig#isCompact() compact} storage is enabled
+ * </ul>
+ * Older versions of an analysis do not need to be removed as
+ * {@link AnalysisRepositoryCustom#updateAnalysis(Analysis)} replaces the stored analysis
+ * of a conversation and client.
+ */
+@Component
+@EnableConfigurationProperties(MongoAnalysisStorageConfig.class)
+public class AnalysisRetentionJob {
+
+    private static final int BATCH_SIZE = 100;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final MongoTemplate mongoTemplate;
+    private final MongoAnalysisStorageConfig config;
+    private final TaskScheduler taskScheduler;
+
+    public AnalysisRetentionJob(MongoTemplate mongoTemplate, MongoAnalysisStorageConfig config, TaskScheduler taskScheduler) {
+        this.mongoTemplate = mongoTemplate;
+        this.config = config;
+        this.taskScheduler = taskScheduler;
+    }
+
+    @PostConstruct
+    protected void scheduleRetention() {
+        if(config.getRetentionCron() != null){
+            log.info("Analysis Retention Cron: {} (expire: {}days, compact: {})",
+                    config.getRetentionCron().getExpression(), config.getExpire(), config.isCompact());
+            taskScheduler.schedule(this::applyRetention, config.getRetentionCron());
+        } else {
+            log.info("Analysis Retention is deactivated");
+        }
+    }
+
+    /**
+     * Applies the configured retention policy
+     */
+    public void applyRetention() {
+        final long start = System.currentTimeMillis();
+        try {
+            final int expired = removeExpired();
+            final int compacted = compactVerbose();
+            log.info("applied Analysis retention in {}ms (expired: {}, compacted: {})",
+                    System.currentTimeMillis() - start, expired, compacted);
+        } catch (RuntimeException e) {
+            log.warn("Unable to apply Analysis retention ({} - {})", e.getClass().getSimpleName(), e.getMessage());
+            log.debug("STACKTRACE: ", e);
+        }
+    }
+
+    /**
+     * Removes analysis older as {@link MongoAnalysisStorageConfig#getExpire()} days
+     * @return the number of removed analysis
+     */
+    protected int removeExpired() {
+        if(config.getExpire() <= 0){
+            return 0;
+        }
+        final Date expired = Date.from(Instant.now().minus(Duration.ofDays(config.getExpire())));
+        return mongoTemplate.remove(new Query(where("date").lt(expired)), Analysis.class).getN();
+    }
+
+    /**
+     * Converts analysis stored in the verbose form to the compact form
+     * @return the number of converted analysis
+     */
+    protected int compactVerbose() {
+        if(!config.isCompact()){
+            return 0;
+        }
+        final DBCollection collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Analysis.class));
+        int compacted = 0;
+        try (DBCursor cursor = collection.find(new BasicDBObject(CompactAnalysisEncoding.FIELD_DICT, new BasicDBObject("$exists", false)))
+                .batchSize(BATCH_SIZE)) {
+            while (cursor.hasNext()) {
+                final DBObject analysis = cursor.next();
+                if(CompactAnalysisEncoding.compact(analysis)){
+                    //only update if the analysis was not updated in the meantime
+                    final Query query = new Query(where("_id").is(analysis.get("_id")).and("date").is(analysis.get("date"))
+                            .and(CompactAnalysisEncoding.FIELD_DICT).exists(false));
+                    final Update update = new Update()
+                            .set(CompactAnalysisEncoding.FIELD_TOKENS, analysis.get(CompactAnalysisEncoding.FIELD_TOKENS))
+                            .set(CompactAnalysisEncoding.FIELD_DICT, analysis.get(CompactAnalysisEncoding.FIELD_DICT));
+                    compacted += mongoTemplate.updateFirst(query, update, Analysis.class).getN();
+                }
+            }
+        }
+        return compacted;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.repositories;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.redlink.smarti.model.Analysis;
+import io.redlink.smarti.model.State;
+import io.redlink.smarti.model.Token;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact representation of the {@link Token}s of {@link Analysis} documents as written by the
+ * mongo converter. Changes are applied in-place on the {@link DBObject}:<ul>
+ * <li> token types and hints are dictionary encoded. The dictionary is stored in the {@link #FIELD_DICT} field
+ * of the analysis document
+ * <li> the <code>start</code> and <code>end</code> offsets are packed into a single array
+ * <li> other fields use short keys and values equals to the defaults are omitted
+ * </ul>
+ * Documents are expanded to the default form (see {@link #expand(DBObject)}) before they are mapped to
+ * {@link Analysis} instances so documents in both forms can be read.
+ */
+public final class CompactAnalysisEncoding {
+
+    /**
+     * The field holding the dictionary. Also marks analysis documents in the compact form
+     */
+    public static final String FIELD_DICT = "tokenDict";
+    public static final String FIELD_TOKENS = "tokens";
+
+    private static final String DICT_TYPES = "types";
+    private static final String DICT_HINTS = "hints";
+
+    private static final String MESSAGE_IDX = "messageIdx";
+    private static final String START = "start";
+    private static final String END = "end";
+    private static final String TYPE = "type";
+    private static final String HINTS = "hints";
+    private static final String VALUE = "value";
+    private static final String CONFIDENCE = "confidence";
+    private static final String STATE = "state";
+    private static final String ORIGIN = "origin";
+
+    private static final String C_MESSAGE_IDX = "m";
+    private static final String C_OFFSETS = "o";
+    private static final String C_TYPE = "t";
+    private static final String C_HINTS = "h";
+    private static final String C_VALUE = "v";
+    private static final String C_CONFIDENCE = "c";
+    private static final String C_STATE = "s";
+    private static final String C_ORIGIN = "g";
+
+    private static final String DEFAULT_STATE = State.Suggested.name();
+    private static final String DEFAULT_ORIGIN = Token.Origin.System.name();
+
+    private CompactAnalysisEncoding() {
+        throw new IllegalStateException("Do not use reflection to create instances of Utility classes");
+    }
+
+    /**
+     * @return if the parsed analysis document uses the compact form
+     */
+    public static boolean isCompact(DBObject analysis) {
+        return analysis != null && analysis.containsField(FIELD_DICT);
+    }
+
+    /**
+     * Converts the tokens of the parsed analysis document to the compact form
+     * @param analysis the analysis document as written by the mongo converter
+     * @return <code>true</code> if the document was converted, <code>false</code> if
+     * it was already in the compact form
+     */
+    public static boolean compact(DBObject analysis) {
+        if(analysis == null || isCompact(analysis)){
+            return false;
+        }
+        final Dictionary types = new Dictionary();
+        final Dictionary hints = new Dictionary();
+        final BasicDBList compacted = new BasicDBList();
+        final Object tokens = analysis.get(FIELD_TOKENS);
+        if(tokens instanceof List){
+            for(Object token : (List<?>)tokens){
+                compacted.add(token instanceof DBObject ? compactToken((DBObject)token, types, hints) : token);
+            }
+        }
+        analysis.put(FIELD_TOKENS, compacted);
+        analysis.put(FIELD_DICT, new BasicDBObject(DICT_TYPES, types.values).append(DICT_HINTS, hints.values));
+        return true;
+    }
+
+    /**
+     * Converts the tokens of the parsed analysis document from the compact to the default form.
+     * @param analysis the analysis document
+     * @return <code>true</code> if the document was converted, <code>false</code> if
+     * it was not in the compact form
+     */
+    public static boolean expand(DBObject analysis) {
+        if(!isCompact(analysis)){
+            return false;
+        }
+        final DBObject dict = (DBObject)analysis.removeField(FIELD_DICT);
+        final List<?> types = (List<?>)dict.get(DICT_TYPES);
+        final List<?> hints = (List<?>)dict.get(DICT_HINTS);
+        final BasicDBList expanded = new BasicDBList();
+        final Object tokens = analysis.get(FIELD_TOKENS);
+        if(tokens instanceof List){
+            for(Object token : (List<?>)tokens){
+                expanded.add(token instanceof DBObject ? expandToken((DBObject)token, types, hints) : token);
+            }
+        }
+        analysis.put(FIELD_TOKENS, expanded);
+        return true;
+    }
+
+    private static DBObject compactToken(DBObject token, Dictionary types, Dictionary hints) {
+        final BasicDBObject compact = new BasicDBObject();
+        for(String key : token.keySet()){
+            final Object value = token.get(key);
+            switch (key) {
+                case MESSAGE_IDX:
+                    compact.put(C_MESSAGE_IDX, value);
+                    break;
+                case START:
+                case END:
+                    if(!compact.containsField(C_OFFSETS)){
+                        final BasicDBList offsets = new BasicDBList();
+                        offsets.add(token.get(START));
+                        offsets.add(token.get(END));
+                        compact.put(C_OFFSETS, offsets);
+                    }
+                    break;
+                case TYPE:
+                    compact.put(C_TYPE, types.encode(value));
+                    break;
+                case HINTS:
+                    if(value instanceof List && !((List<?>)value).isEmpty()){
+                        final BasicDBList encoded = new BasicDBList();
+                        ((List<?>)value).forEach(h -> encoded.add(hints.encode(h)));
+                        compact.put(C_HINTS, encoded);
+                    } //else omit empty hints
+                    break;
+                case VALUE:
+                    compact.put(C_VALUE, value);
+                    break;
+                case CONFIDENCE:
+                    if(!(value instanceof Number) || ((Number)value).floatValue() != 0f){
+                        compact.put(C_CONFIDENCE, value);
+                    }
+                    break;
+                case STATE:
+                    if(!DEFAULT_STATE.equals(value)){
+                        compact.put(C_STATE, value);
+                    }
+                    break;
+                case ORIGIN:
+                    if(!DEFAULT_ORIGIN.equals(value)){
+                        compact.put(C_ORIGIN, value);
+                    }
+                    break;
+                default: //keep unknown fields
+                    compact.put(key, value);
+            }
+        }
+        return compact;
+    }
+
+    private static DBObject expandToken(DBObject compact, List<?> types, List<?> hints) {
+        final BasicDBObject token = new BasicDBObject();
+        token.put(STATE, DEFAULT_STATE);
+        token.put(ORIGIN, DEFAULT_ORIGIN);
+        token.put(CONFIDENCE, 0f);
+        token.put(HINTS, new BasicDBList());
+        for(String key : compact.keySet()){
+            final Object value = compact.get(key);
+            switch (key) {
+                case C_MESSAGE_IDX:
+                    token.put(MESSAGE_IDX, value);
+                    break;
+                case C_OFFSETS:
+                    final List<?> offsets = (List<?>)value;
+                    token.put(START, offsets.get(0));
+                    token.put(END, offsets.get(1));
+                    break;
+                case C_TYPE:
+                    token.put(TYPE, decode(types, value));
+                    break;
+                case C_HINTS:
+                    final BasicDBList decoded = new BasicDBList();
+                    ((List<?>)value).forEach(h -> decoded.add(decode(hints, h)));
+                    token.put(HINTS, decoded);
+                    break;
+                case C_VALUE:
+                    token.put(VALUE, value);
+                    break;
+                case C_CONFIDENCE:
+                    token.put(CONFIDENCE, value);
+                    break;
+                case C_STATE:
+                    token.put(STATE, value);
+                    break;
+                case C_ORIGIN:
+                    token.put(ORIGIN, value);
+                    break;
+                default:
+                    token.put(key, value);
+            }
+        }
+        return token;
+    }
+
+    private static Object decode(List<?> dict, Object idx) {
+        return idx instanceof Number ? dict.get(((Number)idx).intValue()) : idx;
+    }
+
+    /**
+     * Assigns an index to distinct values in the order of their first occurrence
+     */
+    private static class Dictionary {
+
+        private final Map<Object, Integer> index = new HashMap<>();
+        private final List<Object> values = new ArrayList<>();
+
+        Integer encode(Object value) {
+            return index.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+        }
+    }
+}
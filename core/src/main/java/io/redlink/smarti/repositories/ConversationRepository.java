@@ -39,6 +39,8 @@ public interface ConversationRepository extends PagingAndSortingRepository<Conve
     boolean existsByDeletedIsNull(ObjectId id);
     
     Conversation findOneByIdAndDeletedIsNull(ObjectId id);
+
+    List<Conversation> findByIdInAndDeletedIsNull(Collection<ObjectId> ids);
     
     Page<Conversation> findByDeletedIsNull(Pageable paging);
     
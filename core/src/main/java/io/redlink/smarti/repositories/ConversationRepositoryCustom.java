@@ -18,15 +18,19 @@
 package io.redlink.smarti.repositories;
 
 import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.ConversationImportJob;
 import io.redlink.smarti.model.ConversationMeta;
 import io.redlink.smarti.model.Message;
 import org.apache.commons.lang3.tuple.Pair;
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Transient;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * Custom repository for Conversations
@@ -47,10 +51,48 @@ public interface ConversationRepositoryCustom {
 
     ObjectId findCurrentConversationIDByChannelID(String channelId);
 
+    /**
+     * Loads the header of the conversation - the <code>owner</code>, <code>meta</code> and
+     * <code>lastModified</code> fields - without loading messages, user and context.
+     * Intended for authorization and precondition checks that do not need the full conversation.
+     * @param conversationId the id of the conversation
+     * @return the conversation with only the header fields set or <code>null</code> if the
+     * conversation does not exist or is marked as deleted
+     */
+    Conversation findConversationHeader(ObjectId conversationId);
+
+    /**
+     * Loads the conversations with the parsed ids excluding their messages.
+     * Intended for components that read messages from other sources (e.g. the conversation index).
+     * @param conversationIds the ids of the conversations
+     * @return the conversations without messages. Unknown or deleted conversations are not included
+     */
+    List<Conversation> findConversationsWithoutMessages(Collection<ObjectId> conversationIds);
+
     Conversation appendMessage(Conversation conversation, Message message);
 
+    /**
+     * Appends the message to the conversation by using a single <code>findAndModify</code>. If the
+     * conversation already contains a message with the same id that message is replaced.
+     * @param conversationId the id of the conversation
+     * @param message the message
+     * @param fields the fields of the returned conversation (all if none)
+     * @return the updated conversation
+     * @throws io.redlink.smarti.exception.NotFoundException if the conversation does not exist
+     */
+    Conversation appendMessage(ObjectId conversationId, Message message, String...fields);
+
     Conversation updateMessage(ObjectId conversationId, Message updatedMessage);
 
+    /**
+     * Replaces the message with the same id or appends the message if not present
+     * @param conversationId the id of the conversation
+     * @param message the message
+     * @param fields the fields of the returned conversation (all if none)
+     * @return the updated conversation or <code>null</code> if the conversation does not exist
+     */
+    Conversation upsertMessage(ObjectId conversationId, Message message, String...fields);
+
     Conversation saveIfNotLastModifiedAfter(Conversation finalConversation, Date lastModified);
 
     Conversation adjustMessageVotes(ObjectId conversationId, String messageId, int delta);
@@ -71,6 +113,38 @@ public interface ConversationRepositoryCustom {
 
     Conversation findLegacyConversation(ObjectId ownerId, String contextType, String channelId);
 
+    /**
+     * Moves older messages of the conversation to {@link io.redlink.smarti.model.MessageBucket}s if
+     * bucketed message storage is enabled and the conversation exceeds the configured number of messages
+     * @param conversation the conversation as stored
+     * @return the updated conversation or the parsed one if no messages where archived
+     */
+    Conversation archiveMessages(Conversation conversation);
+
+    /**
+     * Adds the archived messages in front of the messages of the parsed conversation
+     * @param conversation the conversation
+     * @return the parsed conversation with all messages
+     */
+    Conversation loadArchivedMessages(Conversation conversation);
+
+    /**
+     * Filters the parsed message ids for messages archived in {@link io.redlink.smarti.model.MessageBucket}s
+     * without loading the buckets
+     * @param conversationId the id of the conversation
+     * @param messageIds the ids of the messages
+     * @return the archived messages of the parsed ids (empty if bucketed message storage is disabled)
+     */
+    Set<String> findArchivedMessageIds(ObjectId conversationId, Collection<String> messageIds);
+
+    /**
+     * Lazily streams all messages (archived and recent) of the conversation. Buckets are loaded one after
+     * the other. The returned stream MUST BE closed.
+     * @param conversationId the id of the conversation
+     * @return the messages in the order of the conversation (empty if the conversation does not exist)
+     */
+    Stream<Message> streamMessages(ObjectId conversationId);
+
     /**
      * Marks a conversation as deleted by setting the deleted date and removing
      * most of its information. 
@@ -79,13 +153,42 @@ public interface ConversationRepositoryCustom {
     boolean markAsDeleted(ObjectId id);
     
     /**
-     * Provides the ids of entities that where updated
-     * since the parsed date. In addition it provides the
-     * date of the latest update (to be used by further calls)
-     * @param date the date since updates should be returned
-     * @return the updated entities and the date of the last update
+     * Provides the ids of conversations updated since the parsed date in batches ordered by
+     * the <code>lastModified</code> date and id (including conversations marked as deleted).
+     * @param date the date since updates should be returned (inclusive) or <code>null</code> for all
+     * @param lastIds the ids of the already processed conversations updated at the parsed date
+     * (as returned by {@link UpdatedIdsIterator#getLastIds()}) or <code>null</code>
+     * @param batchSize the maximum number of ids per batch
+     * @return the iterator over the updated ids. It provides the position to resume from
+     */
+    @Transient
+    UpdatedIdsIterator updatedSince(Date date, Collection<ObjectId> lastIds, int batchSize);
+
+    /**
+     * Writes the parsed conversations by using a single unordered bulk operation. Conversations are
+     * matched by <code>id</code> and <code>owner</code>, so conversations with an ID already used by an
+     * other client can not be imported. The <code>lastModified</code> date of written conversations is
+     * set to the current time. If bucketed message storage is enabled, older messages are written to
+     * buckets (replacing the buckets of replaced conversations) instead of being truncated.
+     * @param conversations the conversations. All MUST HAVE an <code>id</code> and <code>owner</code>
+     * @param replace if existing conversations are replaced. If <code>false</code> existing conversations are skipped
+     * @param job the import job. Counters are updated based on the results of the bulk operation
+     * @return the IDs of the inserted or replaced conversations
+     */
+    List<ObjectId> importConversations(List<Conversation> conversations, boolean replace, ConversationImportJob job);
+
+    /**
+     * Streams the (not deleted) conversations of the parsed client by using a cursor. Archived messages
+     * are loaded if messages are included.
+     * @param owner the client
+     * @param since optional lower bound (inclusive) for the <code>lastModified</code> date
+     * @param until optional upper bound (exclusive) for the <code>lastModified</code> date
+     * @param completedOnly if only conversations with the status {@link ConversationMeta.Status#Complete} are included
+     * @param batchSize the batch size of the cursor
+     * @param fields the fields to load (all if none)
+     * @return the stream over the conversations. The returned stream MUST BE closed
      */
     @Transient
-    UpdatedIds updatedSince(Date date, long limit);
+    Stream<Conversation> streamConversations(ObjectId owner, Date since, Date until, boolean completedOnly, int batchSize, String...fields);
 
 }
@@ -19,14 +19,20 @@ package io.redlink.smarti.repositories;
 
 import com.google.common.collect.Lists;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
 
 import io.redlink.smarti.exception.NotFoundException;
 import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.ConversationImportJob;
 import io.redlink.smarti.model.ConversationMeta;
 import io.redlink.smarti.model.ConversationMeta.Status;
 import io.redlink.smarti.model.Message;
+import io.redlink.smarti.model.MessageBucket;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.bson.types.ObjectId;
@@ -35,20 +41,26 @@ import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.domain.Sort.Direction;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.aggregation.Aggregation;
-import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
 import org.springframework.data.mongodb.core.aggregation.AggregationResults;
-import org.springframework.data.mongodb.core.aggregation.GroupOperation;
-import org.springframework.data.mongodb.core.aggregation.ProjectionOperation;
 import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
@@ -81,6 +93,24 @@ public class ConversationRepositoryImpl implements ConversationRepositoryCustom
                         .on("context.contextType", Direction.ASC)
                         .sparse()
                 );
+        /* see #updatedSince */
+        UpdatedIdsIterator.ensureIndex(mongoTemplate, Conversation.class, "lastModified");
+        if (config.getBuckets().isEnabled()) {
+            mongoTemplate.indexOps(MessageBucket.class)
+                    .ensureIndex(new Index()
+                            .named("conversationSeq")
+                            .on("conversation", Direction.ASC)
+                            .on("seq", Direction.ASC)
+                            .unique()
+                    );
+            /* see #findMessage */
+            mongoTemplate.indexOps(MessageBucket.class)
+                    .ensureIndex(new Index()
+                            .named("conversationMessage")
+                            .on("conversation", Direction.ASC)
+                            .on("messages._id", Direction.ASC)
+                    );
+        }
     }
 
     @Override
@@ -97,59 +127,278 @@ public class ConversationRepositoryImpl implements ConversationRepositoryCustom
 
     @Override
     public Conversation appendMessage(Conversation conversation, Message message) {
-        final Query isMessageEdit = new Query(Criteria.where("_id").is(conversation.getId()))
-                .addCriteria(getNotDeletedCriteria())
-                .addCriteria(Criteria.where("messages._id").is(message.getId()));
+        return appendMessage(conversation.getId(), message);
+    }
 
-        final Query query;
-        final Update update;
-        if (mongoTemplate.exists(isMessageEdit, Conversation.class)) {
-            return updateMessage(conversation.getId(), message);
-        } else if(mongoTemplate.exists(new Query(Criteria.where("_id").is(conversation.getId()))
-                .addCriteria(getNotDeletedCriteria()), Conversation.class)){
-            query = new Query();
-            query.addCriteria(Criteria.where("_id").is(conversation.getId()));
-            query.addCriteria(Criteria.where("messages").size(conversation.getMessages().size()));
-
-            update = new Update();
-            //NOTE: we need to enforce MAM MESSAGES PER CONVERSATION (#281)
-            update.push("messages")
-                .slice(config.getMaxConvMsg()*-1)
-                .each(message)
-                .currentDate("lastModified");
+    @Override
+    public Conversation appendMessage(ObjectId conversationId, Message message, String...fields) {
+        //the common case (a new message) requires a single round trip
+        Conversation conversation = pushMessage(conversationId, message, fields);
+        if (conversation != null) {
+            //NOTE: messages can only be archived if the messages are included in the result
+            return fields == null || fields.length == 0 ? archiveMessages(conversation) : conversation;
+        }
+        //the message is already present (or the conversation does not exist)
+        conversation = replaceMessage(conversationId, message, fields);
+        if (conversation != null) {
+            return conversation;
+        } else if (config.getBuckets().isEnabled() && replaceArchivedMessage(conversationId, message)) {
+            return touch(conversationId, fields);
+        } else if (mongoTemplate.exists(new Query(Criteria.where("_id").is(conversationId))
+                .addCriteria(getNotDeletedCriteria()), Conversation.class)) {
+            throw new ConcurrentModificationException("Conversation changed while appending Message");
         } else { //conversation not present or already marked as deleted
-            throw new NotFoundException(Conversation.class, conversation.getId());
+            throw new NotFoundException(Conversation.class, conversationId);
         }
+    }
 
-        final WriteResult writeResult = mongoTemplate.updateFirst(query, update, Conversation.class);
-        if (writeResult.getN() == 1) {
-            return mongoTemplate.findById(conversation.getId(), Conversation.class);
+    @Override
+    public Conversation updateMessage(ObjectId conversationId, Message message) {
+        final Conversation conversation = replaceMessage(conversationId, message);
+        if (conversation != null) {
+            return conversation;
+        } else if (config.getBuckets().isEnabled() && replaceArchivedMessage(conversationId, message)) {
+            return touch(conversationId);
+        } else if(mongoTemplate.exists(new Query(Criteria.where("_id").is(conversationId))
+                .addCriteria(getNotDeletedCriteria()), Conversation.class)){
+            throw new NotFoundException(Conversation.class, conversationId);
         } else {
-            throw new ConcurrentModificationException("Conversation changed while appending Message");
+            return null;
         }
     }
 
     @Override
-    public Conversation updateMessage(ObjectId conversationId, Message message) {
+    public Conversation upsertMessage(ObjectId conversationId, Message message, String...fields) {
+        Conversation conversation = replaceMessage(conversationId, message, fields);
+        if (conversation == null) {
+            conversation = pushMessage(conversationId, message, fields);
+            if (conversation != null) {
+                //NOTE: messages can only be archived if the messages are included in the result
+                return fields == null || fields.length == 0 ? archiveMessages(conversation) : conversation;
+            }
+        }
+        if (conversation == null) { //appended concurrently or archived
+            conversation = replaceMessage(conversationId, message, fields);
+        }
+        if (conversation == null && config.getBuckets().isEnabled() && replaceArchivedMessage(conversationId, message)) {
+            conversation = touch(conversationId, fields);
+        }
+        return conversation;
+    }
+
+    /**
+     * Appends the message if the conversation exists and does not yet contain a message with the same id.
+     * Enforces the {@link MongoConversationStorageConfig#getMaxConvMsg() max messages} per conversation (#281)
+     * @return the updated conversation or <code>null</code> if the conversation was not found or 
+     * already contains the message (including archived messages)
+     */
+    private Conversation pushMessage(ObjectId conversationId, Message message, String...fields) {
+        //the $ne check below only covers the recent messages
+        if (config.getBuckets().isEnabled() && message.getId() != null 
+                && !findArchivedMessageIds(conversationId, Collections.singleton(message.getId())).isEmpty()) {
+            return null;
+        }
+        final Query query = new Query(Criteria.where("_id").is(conversationId))
+                .addCriteria(getNotDeletedCriteria())
+                .addCriteria(Criteria.where("messages._id").ne(message.getId()));
+        includeFields(query, fields);
+
+        final Update update = new Update();
+        //NOTE: we need to enforce MAM MESSAGES PER CONVERSATION (#281)
+        update.push("messages")
+            .slice(config.getMaxConvMsg()*-1)
+            .each(message)
+            .currentDate("lastModified");
+
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Conversation.class);
+    }
+
+    /**
+     * Replaces the message with the same id
+     * @return the updated conversation or <code>null</code> if the conversation or the message was not found
+     */
+    private Conversation replaceMessage(ObjectId conversationId, Message message, String...fields) {
         final Query query = new Query(Criteria.where("_id").is(conversationId))
                 .addCriteria(getNotDeletedCriteria())
                 .addCriteria(Criteria.where("messages._id").is(message.getId()));
+        includeFields(query, fields);
 
         final Update update = new Update()
                 .set("messages.$", message)
                 .currentDate("lastModified");
 
-        final WriteResult writeResult = mongoTemplate.updateFirst(query, update, Conversation.class);
-        if (writeResult.getN() == 1) {
-            return mongoTemplate.findById(conversationId, Conversation.class);
-        } else if(mongoTemplate.exists(new Query(Criteria.where("_id").is(conversationId))
-                .addCriteria(getNotDeletedCriteria()), Conversation.class)){
-            throw new NotFoundException(Conversation.class, conversationId);
-        } else {
-            return null;
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Conversation.class);
+    }
+
+    private static void includeFields(Query query, String...fields) {
+        if (fields != null) {
+            for (String field : fields) {
+                query.fields().include(field);
+            }
         }
     }
 
+    /**
+     * Replaces an archived message
+     * @return <code>true</code> if the message was found and replaced
+     */
+    private boolean replaceArchivedMessage(ObjectId conversationId, Message message) {
+        return updateArchivedMessage(conversationId, message.getId(), new Update().set("messages.$", message));
+    }
+
+    /**
+     * Applies the parsed update to an archived message. The update can use the positional operator
+     * (<code>messages.$</code>) to refer to the message.
+     * @return <code>true</code> if the message was found and updated
+     */
+    private boolean updateArchivedMessage(ObjectId conversationId, String messageId, Update update) {
+        final Query query = Query.query(where("conversation").is(conversationId))
+                .addCriteria(where("messages._id").is(messageId));
+        return mongoTemplate.updateFirst(query, update, MessageBucket.class).getN() > 0;
+    }
+
+    /**
+     * Updates the lastModified date of the conversation
+     * @return the conversation or <code>null</code> if not present
+     */
+    private Conversation touch(ObjectId conversationId, String...fields) {
+        final Query query = new Query(Criteria.where("_id").is(conversationId))
+                .addCriteria(getNotDeletedCriteria());
+        includeFields(query, fields);
+        return mongoTemplate.findAndModify(query, new Update().currentDate("lastModified"), 
+                FindAndModifyOptions.options().returnNew(true), Conversation.class);
+    }
+
+    /**
+     * Archiving is not atomic as it moves messages between two collections. Messages are first inserted
+     * in buckets and only than removed from the conversation so they can never get lost. If the second
+     * step fails (or is interrupted) messages are present twice. This is recovered as<ul>
+     * <li> all readers prefer the copy in the conversation and ignore archived duplicates
+     * <li> the next call of this method does not archive messages again but removes all archived 
+     * messages from the conversation
+     * </ul>
+     */
+    @Override
+    public Conversation archiveMessages(Conversation conversation) {
+        final MongoConversationStorageConfig.Buckets buckets = config.getBuckets();
+        if (!buckets.isEnabled() || conversation == null || conversation.getId() == null) {
+            return conversation;
+        }
+        final List<Message> messages = conversation.getMessages();
+        final int excess = messages.size() - buckets.getRecentMessages();
+        if (excess < buckets.getSize()) {
+            return conversation;
+        }
+        final List<Message> archive = new ArrayList<>(messages.subList(0, excess - excess % buckets.getSize()));
+        final List<String> archiveIds = archive.stream().map(Message::getId).collect(Collectors.toList());
+        //NOTE: the sequence number needs to be read before the already archived messages. This ensures that
+        //      concurrent archiving either fails because of the unique index or sees the archived messages
+        final int seq = getNextBucketSeq(conversation.getId());
+        //saved conversations might include already archived messages
+        final Set<Object> archived = new HashSet<>(mongoTemplate.getCollection(MessageBucket.COLLECTION).distinct("messages._id",
+                new BasicDBObject("conversation", conversation.getId())
+                    .append("messages._id", new BasicDBObject("$in", archiveIds))));
+        archive.removeIf(m -> archived.contains(m.getId()));
+        final List<MessageBucket> inserted = new LinkedList<>();
+        try {
+            for (List<Message> chunk : Lists.partition(archive, buckets.getSize())) {
+                MessageBucket bucket = new MessageBucket(conversation.getId(), seq + inserted.size(), chunk);
+                mongoTemplate.insert(bucket);
+                inserted.add(bucket);
+            }
+        } catch (DuplicateKeyException e) {
+            log.debug("concurrent archiving of messages for conversation {} - rollback", conversation.getId());
+            inserted.forEach(mongoTemplate::remove);
+            return conversation;
+        }
+        log.debug("archived {} messages of conversation {} in {} buckets", archive.size(), conversation.getId(), inserted.size());
+        //NOTE: this also modifies the conversation as the message indexes change
+        final Conversation updated;
+        try {
+            updated = mongoTemplate.findAndModify(
+                new Query(Criteria.where("_id").is(conversation.getId())),
+                new Update()
+                    .pull("messages", new BasicDBObject("_id", new BasicDBObject("$in", archiveIds)))
+                    .currentDate("lastModified"),
+                FindAndModifyOptions.options().returnNew(true), Conversation.class);
+        } catch (DataAccessException e) {
+            //messages are now present in the conversation and a bucket. Readers ignore the archived copy
+            //and the next call to this method removes them from the conversation
+            log.warn("Unable to remove {} archived messages from conversation {} - retried with the next archiving ({} - {})", 
+                    archiveIds.size(), conversation.getId(), e.getClass().getSimpleName(), e.getMessage());
+            return conversation;
+        }
+        return updated == null ? conversation : updated;
+    }
+
+    private int getNextBucketSeq(ObjectId conversationId) {
+        final Query query = Query.query(where("conversation").is(conversationId))
+                .with(new Sort(Direction.DESC, "seq"))
+                .limit(1);
+        query.fields().include("seq");
+        final MessageBucket last = mongoTemplate.findOne(query, MessageBucket.class);
+        return last == null ? 0 : last.getSeq() + 1;
+    }
+
+    @Override
+    public Conversation loadArchivedMessages(Conversation conversation) {
+        if (!config.getBuckets().isEnabled() || conversation == null || conversation.getId() == null) {
+            return conversation;
+        }
+        final Set<String> present = conversation.getMessages().stream().map(Message::getId).collect(Collectors.toSet());
+        final List<Message> archived = new ArrayList<>();
+        try (CloseableIterator<MessageBucket> buckets = streamBuckets(conversation.getId(), Direction.ASC)) {
+            buckets.forEachRemaining(bucket -> bucket.getMessages().stream()
+                    .filter(m -> !present.contains(m.getId()))
+                    .forEach(archived::add));
+        }
+        conversation.getMessages().addAll(0, archived);
+        return conversation;
+    }
+
+    @Override
+    public Set<String> findArchivedMessageIds(ObjectId conversationId, Collection<String> messageIds) {
+        if (!config.getBuckets().isEnabled() || conversationId == null || messageIds == null || messageIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        //NOTE: distinct returns all message ids of matching buckets
+        final Set<String> archived = new HashSet<>();
+        for (Object id : mongoTemplate.getCollection(MessageBucket.COLLECTION).distinct("messages._id",
+                new BasicDBObject("conversation", conversationId)
+                    .append("messages._id", new BasicDBObject("$in", messageIds)))) {
+            if (id != null && messageIds.contains(id.toString())) {
+                archived.add(id.toString());
+            }
+        }
+        return archived;
+    }
+
+    @Override
+    public Stream<Message> streamMessages(ObjectId conversationId) {
+        final Query query = new Query(Criteria.where("_id").is(conversationId)).addCriteria(getNotDeletedCriteria());
+        query.fields().include("messages");
+        final Conversation conversation = mongoTemplate.findOne(query, Conversation.class);
+        if (conversation == null) {
+            return Stream.empty();
+        }
+        final List<Message> recent = conversation.getMessages();
+        if (!config.getBuckets().isEnabled()) {
+            return recent.stream();
+        }
+        //ignore archived copies of messages still present in the conversation (see #archiveMessages)
+        final Set<String> present = recent.stream().map(Message::getId).collect(Collectors.toSet());
+        final CloseableIterator<MessageBucket> buckets = streamBuckets(conversationId, Direction.ASC);
+        final Stream<Message> archived = StreamSupport.stream(Spliterators.spliteratorUnknownSize(buckets, Spliterator.ORDERED), false)
+                .flatMap(bucket -> bucket.getMessages().stream())
+                .filter(m -> !present.contains(m.getId()));
+        return Stream.concat(archived, recent.stream()).onClose(buckets::close);
+    }
+
+    private CloseableIterator<MessageBucket> streamBuckets(ObjectId conversationId, Direction order) {
+        return mongoTemplate.stream(Query.query(where("conversation").is(conversationId))
+                .with(new Sort(order, "seq")), MessageBucket.class);
+    }
+
     @Override
     public Conversation saveIfNotLastModifiedAfter(Conversation conversation, Date lastModified) {
         
@@ -215,7 +464,10 @@ public class ConversationRepositoryImpl implements ConversationRepositoryCustom
                 .currentDate("lastModified");
 
         WriteResult result = mongoTemplate.updateFirst(query, update, Conversation.class);
-        if(result.getN() < 1) return null;
+        if(result.getN() < 1){
+            return config.getBuckets().isEnabled() && updateArchivedMessage(conversationId, messageId, 
+                    new Update().inc("messages.$.votes", delta)) ? touch(conversationId) : null;
+        }
         return mongoTemplate.findById(conversationId, Conversation.class);
     }
 
@@ -262,6 +514,11 @@ public class ConversationRepositoryImpl implements ConversationRepositoryCustom
                 .currentDate("lastModified");
 
         final WriteResult result = mongoTemplate.updateFirst(query, update, Conversation.class);
+        if (result.getN() == 1 && config.getBuckets().isEnabled()) {
+            mongoTemplate.updateFirst(Query.query(where("conversation").is(conversationId))
+                    .addCriteria(where("messages._id").is(messageId)), 
+                    new Update().pull("messages", new BasicDBObject("_id", messageId)), MessageBucket.class);
+        }
         return result.getN() == 1;
     }
 
@@ -275,33 +532,53 @@ public class ConversationRepositoryImpl implements ConversationRepositoryCustom
                 .currentDate("lastModified");
 
         final WriteResult writeResult = mongoTemplate.updateFirst(query, update, Conversation.class);
-        if (writeResult.getN() < 1) return null;
+        if (writeResult.getN() < 1) {
+            return config.getBuckets().isEnabled() && updateArchivedMessage(conversationId, messageId, 
+                    new Update().set("messages.$." + field, data)) ? touch(conversationId) : null;
+        }
 
         return mongoTemplate.findById(conversationId, Conversation.class);
     }
 
     @Override
-    public Message findMessage(ObjectId conversationId, String messageId) {
-        // TODO: with mongo 3.4 you could do this with aggregation
-        /*
-        final TypedAggregation aggregation = newAggregation(Conversation.class,
-                Aggregation.match(Criteria.where("_id").is(conversationId)),
-                Aggregation.project("messages"),
-                Aggregation.unwind("messages"),
-                Aggregation.replaceRoot("messages"),
-                Aggregation.match(Criteria.where("_id").is(messageId))
-        );
-        return mongoTemplate.aggregate(aggregation, Message.class).getUniqueMappedResult();
-        */
+    public Conversation findConversationHeader(ObjectId conversationId) {
+        final Query query = Query.query(where("_id").is(conversationId))
+                .addCriteria(getNotDeletedCriteria());
+        //NOTE: the projection avoids transferring (and mapping) messages, user and context
+        query.fields().include("owner").include("meta").include("lastModified");
+        return mongoTemplate.findOne(query, Conversation.class);
+    }
 
-        final Conversation conversation = mongoTemplate.findOne(Query.query(where("_id").is(conversationId))
-                .addCriteria(getNotDeletedCriteria()), Conversation.class);
-        if (conversation == null) {
-            return null;
-        } else {
+    @Override
+    public List<Conversation> findConversationsWithoutMessages(Collection<ObjectId> conversationIds) {
+        final Query query = Query.query(where("_id").in(conversationIds))
+                .addCriteria(getNotDeletedCriteria());
+        query.fields().exclude("messages");
+        return mongoTemplate.find(query, Conversation.class);
+    }
+
+    @Override
+    public Message findMessage(ObjectId conversationId, String messageId) {
+        //use an $elemMatch projection so that only the requested message is returned
+        final Query query = Query.query(where("_id").is(conversationId))
+                .addCriteria(getNotDeletedCriteria())
+                .addCriteria(where("messages._id").is(messageId));
+        query.fields().elemMatch("messages", where("_id").is(messageId));
+        final Conversation conversation = mongoTemplate.findOne(query, Conversation.class);
+        if (conversation != null) {
             return conversation.getMessages().stream()
                     .filter(m -> messageId.equals(m.getId()))
                     .findFirst().orElse(null);
+        } else if (config.getBuckets().isEnabled()) { //NOTE: buckets of deleted conversations are removed
+            final Query bucketQuery = Query.query(where("conversation").is(conversationId))
+                    .addCriteria(where("messages._id").is(messageId));
+            bucketQuery.fields().elemMatch("messages", where("_id").is(messageId));
+            final MessageBucket bucket = mongoTemplate.findOne(bucketQuery, MessageBucket.class);
+            return bucket == null ? null : bucket.getMessages().stream()
+                    .filter(m -> messageId.equals(m.getId()))
+                    .findFirst().orElse(null);
+        } else {
+            return null;
         }
     }
 
@@ -310,7 +587,14 @@ public class ConversationRepositoryImpl implements ConversationRepositoryCustom
         final Query query = Query.query(where("_id").is(conversationId))
                 .addCriteria(getNotDeletedCriteria())
                 .addCriteria(where("messages._id").is(messageId));
-        return mongoTemplate.exists(query, Conversation.class);
+        if (mongoTemplate.exists(query, Conversation.class)) {
+            return true;
+        } else if (config.getBuckets().isEnabled()) { //NOTE: buckets of deleted conversations are removed
+            return mongoTemplate.exists(Query.query(where("conversation").is(conversationId))
+                    .addCriteria(where("messages._id").is(messageId)), MessageBucket.class);
+        } else {
+            return false;
+        }
     }
 
     @Override
@@ -368,6 +652,9 @@ public class ConversationRepositoryImpl implements ConversationRepositoryCustom
                     .currentDate("lastModified") //update the lastModified (to notify about the deletion)
                     .currentDate("deleted"), //mark as deleted (use date to allow physical deletions after period)
                 Conversation.class);
+        if(result.getN() > 0){ //also remove archived messages
+            mongoTemplate.remove(Query.query(where("conversation").is(id)), MessageBucket.class);
+        }
         if(log.isTraceEnabled()){
             if(result.getN() > 0){
                 log.trace("marked conversation {} as deleted", id);
@@ -390,56 +677,124 @@ public class ConversationRepositoryImpl implements ConversationRepositoryCustom
     }
 
     
-    private static final ProjectionOperation ID_MODIFIED_PROJECTION = Aggregation.project("id","lastModified");
-    private static final GroupOperation GROUP_MODIFIED = Aggregation.group()
-            .addToSet("id").as("ids")
-            .max("lastModified").as("lastModified");
-    
     @Override
-    public UpdatedIds<ObjectId> updatedSince(Date date, long limit) {
-        //IMPLEMENTATION NOTES (Rupert Westenthaler, 2017-07-19):
-        // * we need to use $gte as we might get additional updates in the same ms ...
-        // * Instead of $max: modified we would like to use the current Server time of the
-        //   aggregation, but this is not possible ATM (see https://jira.mongodb.org/browse/SERVER-23656)
-        // * The use of $gte together with lastModified menas that we will repeat reporting the
-        //   Entities updated at lastModified on every call. To avoid this a Workaround is used
-        //   that increases the reported lastModified time by 1ms in cases no update was done
-        //   since the last call (meaning the parsed date equals the lastModified)
-        AggregationResults<UpdatedIds> aggResult = mongoTemplate.aggregate(getUpdatedSinceAggregation(date, limit),Conversation.class, 
-                UpdatedIds.class);
-        if(log.isTraceEnabled()){
-            log.trace("updated Conversations : {}", aggResult.getMappedResults());
+    public UpdatedIdsIterator updatedSince(Date date, Collection<ObjectId> lastIds, int batchSize) {
+        //NOTE: also returns the ids of conversations marked as deleted
+        return new UpdatedIdsIterator(mongoTemplate, Conversation.class, "lastModified", date, lastIds, batchSize);
+    }
+
+    @Override
+    public List<ObjectId> importConversations(List<Conversation> conversations, boolean replace, ConversationImportJob job) {
+        if(conversations.isEmpty()){
+            return Collections.emptyList();
+        }
+        final MongoConversationStorageConfig.Buckets buckets = config.getBuckets();
+        final BulkOperations bulk = mongoTemplate.bulkOps(BulkMode.UNORDERED, Conversation.class);
+        //messages to archive by conversation (only written if the conversation is written)
+        final Map<ObjectId, List<Message>> overflow = new HashMap<>();
+        for(Conversation conversation : conversations){
+            final List<Message> messages = conversation.getMessages();
+            final int excess = messages.size() - buckets.getRecentMessages();
+            if(buckets.isEnabled() && excess >= buckets.getSize()){
+                //same split as #archiveMessages but before the conversation is written
+                final List<Message> archive = messages.subList(0, excess - excess % buckets.getSize());
+                overflow.put(conversation.getId(), new ArrayList<>(archive));
+                archive.clear();
+            }
+            //same as the ConversationRepoListener does for save operations
+            if(messages.size() > config.getMaxConvMsg()){
+                messages.subList(0, messages.size() - config.getMaxConvMsg()).clear();
+            }
+            final BasicDBObject data = new BasicDBObject();
+            mongoTemplate.getConverter().write(conversation, data);
+            data.remove("_id");
+            data.remove("lastModified");
+            final Update update = new Update();
+            if(replace){
+                data.entrySet().forEach(e -> update.set(e.getKey(), e.getValue()));
+                update.unset("deleted");
+                update.currentDate("lastModified");
+            } else { //only write new conversations
+                data.entrySet().forEach(e -> update.setOnInsert(e.getKey(), e.getValue()));
+                update.setOnInsert("lastModified", new Date());
+            }
+            //NOTE: the owner criteria makes upserts fail if the ID is used by an other client
+            bulk.upsert(new Query(where("_id").is(conversation.getId()).and("owner").is(conversation.getOwner())), update);
         }
-        if(aggResult.getUniqueMappedResult() == null){
-            return new UpdatedIds<ObjectId>(date, Collections.emptyList());
+        BulkWriteResult result;
+        List<BulkWriteError> errors;
+        try {
+            result = bulk.execute();
+            errors = Collections.emptyList();
+        } catch (BulkOperationException e) {
+            result = e.getResult();
+            errors = e.getErrors();
+            log.debug("{} of {} conversations failed to import (first error: {})", errors.size(), conversations.size(), errors.get(0));
+        }
+        final Set<Integer> failed = errors.stream().map(BulkWriteError::getIndex).collect(Collectors.toSet());
+        final List<BulkWriteUpsert> upserts = result.getUpserts();
+        job.setInserted(job.getInserted() + upserts.size());
+        job.setFailed(job.getFailed() + failed.size());
+        final List<Conversation> written;
+        if(replace){
+            job.setReplaced(job.getReplaced() + result.getMatchedCount());
+            written = new ArrayList<>(conversations.size() - failed.size());
+            for(int i = 0; i < conversations.size(); i++){
+                if(!failed.contains(i)){
+                    written.add(conversations.get(i));
+                }
+            }
         } else {
-            UpdatedIds<ObjectId> updates = aggResult.getUniqueMappedResult();
-            //NOTE: workaround for SERVER-23656 (see above impl. notes)
-            if(date != null && date.equals(updates.getLastModified())) { //no update since the last request
-                //increase the time by 1 ms to avoid re-indexing the last update
-                return new UpdatedIds<ObjectId>(new Date(date.getTime()+1), updates.ids());
-            } else {
-                return updates;
-            }    
+            job.setSkipped(job.getSkipped() + result.getMatchedCount());
+            written = upserts.stream().map(u -> conversations.get(u.getIndex())).collect(Collectors.toList());
         }
+        if(buckets.isEnabled()){
+            for(Conversation conversation : written){
+                final List<Message> archive = overflow.get(conversation.getId());
+                if(replace){ //buckets of the replaced conversation are outdated
+                    mongoTemplate.remove(Query.query(where("conversation").is(conversation.getId())), MessageBucket.class);
+                }
+                if(archive != null){
+                    int seq = 0;
+                    for(List<Message> chunk : Lists.partition(archive, buckets.getSize())){
+                        mongoTemplate.insert(new MessageBucket(conversation.getId(), seq++, chunk));
+                    }
+                    log.debug("archived {} imported messages of conversation {}", archive.size(), conversation.getId());
+                }
+            }
+        }
+        return written.stream().map(Conversation::getId).collect(Collectors.toList());
     }
-    
-    private Aggregation getUpdatedSinceAggregation(Date since, long limit) {
-        List<AggregationOperation> ops = new LinkedList<>();
-        if(since != null){
-            ops.add(Aggregation.match(Criteria.where("lastModified").gte(since)));
+
+    @Override
+    public Stream<Conversation> streamConversations(ObjectId owner, Date since, Date until, boolean completedOnly, int batchSize, String...fields) {
+        final Query query = new Query(where("owner").is(owner)).addCriteria(getNotDeletedCriteria());
+        if (since != null || until != null) {
+            final Criteria modified = where("lastModified");
+            if (since != null) {
+                modified.gte(since);
+            }
+            if (until != null) {
+                modified.lt(until);
+            }
+            query.addCriteria(modified);
         }
-        ops.add(Aggregation.sort(Direction.ASC,"lastModified"));
-        if(limit > 0){
-            ops.add(Aggregation.limit(limit));
+        if (completedOnly) {
+            query.addCriteria(where("meta.status").is(Status.Complete.name()));
         }
-        ops.add(ID_MODIFIED_PROJECTION);
-        ops.add(GROUP_MODIFIED);
-        Aggregation agg = Aggregation.newAggregation(ops);
-        log.trace("UpdatedSince Aggregation: {}", agg);
-        return agg;
+        includeFields(query, fields);
+        final boolean loadArchived = config.getBuckets().isEnabled() &&
+                (fields == null || fields.length == 0 || Arrays.asList(fields).contains("messages"));
+        //NOTE: we use the DBCursor directly as it allows to control the batch size
+        final DBCursor cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Conversation.class))
+                .find(query.getQueryObject(), query.getFieldsObject())
+                .batchSize(batchSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+                .map(o -> mongoTemplate.getConverter().read(Conversation.class, o))
+                .map(c -> loadArchived ? loadArchivedMessages(c) : c)
+                .onClose(cursor::close);
     }
-    
+
     private Criteria getNotDeletedCriteria() {
         return Criteria.where("deleted").is(null);
     }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.repositories;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.scheduling.support.CronTrigger;
+
+/**
+ * Configuration for the storage of {@link io.redlink.smarti.model.Analysis} documents
+ */
+@ConfigurationProperties(prefix="smarti.storage.mongodb.analysis")
+public class MongoAnalysisStorageConfig {
+
+    public static final String DEFAULT_RETENTION_CRON = "0 45 3 * * *"; //once per day at 03:45:00 AM
+
+    private boolean compact = false;
+
+    private int expire = 0;
+
+    private CronTrigger retentionCron = new CronTrigger(DEFAULT_RETENTION_CRON);
+
+    /**
+     * If enabled tokens are stored in a compact form (see {@link CompactAnalysisEncoding})
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * The time in days after that stored analysis are removed by the retention job. The age is
+     * based on the modification date of the analyzed conversation. Values <code>&lt;= 0</code>
+     * deactivate expiration
+     */
+    public int getExpire() {
+        return expire;
+    }
+
+    public void setExpire(int expire) {
+        this.expire = expire;
+    }
+
+    /**
+     * The schedule of the retention job. If <code>null</code> the retention job is deactivated
+     */
+    public CronTrigger getRetentionCron() {
+        return retentionCron;
+    }
+
+    public void setRetentionCron(CronTrigger retentionCron) {
+        this.retentionCron = retentionCron;
+    }
+
+}
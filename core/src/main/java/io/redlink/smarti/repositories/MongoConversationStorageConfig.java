@@ -16,6 +16,7 @@ public class MongoConversationStorageConfig {
  
     int maxConvMsg = DEFAULT_MAX_MESSAGES_PER_CONVERSATION;
     
+    private Buckets buckets = new Buckets();
     
     public int getMaxConvMsg() {
         return maxConvMsg;
@@ -24,4 +25,62 @@ public class MongoConversationStorageConfig {
     public void setMaxConvMsg(int maxConvMsg) {
         this.maxConvMsg = maxConvMsg;
     }
+    
+    /**
+     * Configuration of the bucketed message storage
+     */
+    public Buckets getBuckets() {
+        return buckets;
+    }
+    
+    public void setBuckets(Buckets buckets) {
+        this.buckets = buckets == null ? new Buckets() : buckets;
+    }
+    
+    /**
+     * If enabled the conversation document only keeps the most recent messages. Older messages
+     * are moved to {@link io.redlink.smarti.model.MessageBucket}s of a fixed size.
+     */
+    public static class Buckets {
+        
+        public static final int DEFAULT_RECENT_MESSAGES = 500;
+        public static final int DEFAULT_SIZE = 500;
+        public static final int MIN_SIZE = 10;
+        
+        private boolean enabled = false;
+        private int recentMessages = DEFAULT_RECENT_MESSAGES;
+        private int size = DEFAULT_SIZE;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        /**
+         * The number of recent messages kept in the conversation document. Should be greater
+         * as the number of messages used as context for the analysis
+         */
+        public int getRecentMessages() {
+            return recentMessages;
+        }
+        
+        public void setRecentMessages(int recentMessages) {
+            this.recentMessages = recentMessages <= 0 ? DEFAULT_RECENT_MESSAGES : recentMessages;
+        }
+        
+        /**
+         * The number of messages per bucket. Messages are moved to a bucket as soon as the 
+         * conversation document contains <code>recentMessages + size</code> messages
+         */
+        public int getSize() {
+            return size;
+        }
+        
+        public void setSize(int size) {
+            this.size = size <= 0 ? DEFAULT_SIZE : size < MIN_SIZE ? MIN_SIZE : size;
+        }
+    }
 }
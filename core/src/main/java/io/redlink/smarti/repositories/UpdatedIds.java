@@ -9,24 +9,39 @@ import org.bson.types.ObjectId;
 public class UpdatedIds<I extends Serializable> {
 
     private final Date lastModified;
+    private final I lastId;
     final private List<I> ids;
 
     public UpdatedIds(Date lastModified, List<I> ids){
+        this(lastModified, null, ids);
+    }
+
+    public UpdatedIds(Date lastModified, I lastId, List<I> ids){
         this.ids = ids;
         this.lastModified = lastModified;
+        this.lastId = lastId;
     }
 
     public Date getLastModified() {
         return lastModified;
     }
 
+    /**
+     * The id of the last entity. To resume use {@link UpdatedIdsIterator#getLastIds()} as ids with the
+     * same modification date are not written in id order
+     * @return the id or <code>null</code> if not known
+     */
+    public I getLastId() {
+        return lastId;
+    }
+
     public List<I> ids(){
         return ids;
     }
 
     @Override
     public String toString() {
-        return "UpdatedConversationIds [lastModified=" + lastModified + ", ids=" + ids + "]";
+        return "UpdatedConversationIds [lastModified=" + lastModified + ", lastId=" + lastId + ", ids=" + ids + "]";
     }
 
 
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.repositories;
+
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Iterates over the ids of updated entities in batches ordered by the modification date and id.<p>
+ * Every batch is loaded by an indexed <code>find</code> that continues at the
+ * {@link #getLastModified() lastModified} date of the previous batch (inclusive) and excludes the
+ * {@link #getLastIds() lastIds} already returned for that date. Those two values are the resume position:
+ * parse them to a new iterator to continue without reporting any id twice.<p>
+ * Resuming inclusive of the date (rather than after the last id) is required because modification
+ * dates only have millisecond precision and are not assigned in id order: an entity written later
+ * within the same millisecond may have a lower id than the last one returned and would be skipped
+ * by a plain <code>(modified, _id)</code> keyset. If only a date is parsed, all entities modified
+ * at exactly that date are included.<p>
+ * The returned batches are loaded lazily so callers can process them before the next one is requested.
+ * Use {@link #ensureIndex(MongoTemplate, Class, String)} to create the required index.
+ */
+public class UpdatedIdsIterator implements Iterator<UpdatedIds<ObjectId>> {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final MongoTemplate mongoTemplate;
+    private final String collectionName;
+    private final String modifiedField;
+    private final int batchSize;
+
+    private Date lastModified;
+    /**
+     * The ids returned (or parsed) with the {@link #lastModified} date (sorted)
+     */
+    private TreeSet<ObjectId> lastIds;
+
+    private UpdatedIds<ObjectId> next;
+    private boolean completed = false;
+
+    /**
+     * @param mongoTemplate the mongo template
+     * @param entityClass the entity class used to lookup the collection
+     * @param modifiedField the (mongo) name of the field with the modification date
+     * @param since the date to start (inclusive) or <code>null</code> to start at the beginning
+     * @param sinceIds the ids of the already processed entities with the <code>since</code> date (as
+     * returned by {@link #getLastIds()}) or <code>null</code> to include all entities modified at <code>since</code>
+     * @param batchSize the maximum number of ids returned with a single batch
+     */
+    public UpdatedIdsIterator(MongoTemplate mongoTemplate, Class<?> entityClass, String modifiedField, 
+            Date since, Collection<ObjectId> sinceIds, int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.collectionName = mongoTemplate.getCollectionName(entityClass);
+        this.modifiedField = modifiedField;
+        this.batchSize = batchSize <= 0 ? 1000 : batchSize;
+        this.lastModified = since;
+        this.lastIds = sinceIds == null ? new TreeSet<>() : new TreeSet<>(sinceIds);
+    }
+
+    /**
+     * Ensures the compound index on the modified field and the id used by this iterator
+     */
+    public static void ensureIndex(MongoTemplate mongoTemplate, Class<?> entityClass, String modifiedField) {
+        mongoTemplate.indexOps(entityClass)
+                .ensureIndex(new Index()
+                        .named("updatedSince")
+                        .on(modifiedField, Direction.ASC)
+                        .on("_id", Direction.ASC));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(next == null && !completed){
+            next = loadNext();
+            completed = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public UpdatedIds<ObjectId> next() {
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+        final UpdatedIds<ObjectId> batch = next;
+        next = null;
+        return batch;
+    }
+
+    /**
+     * The modification date of the last returned entity (or the parsed date if no entity was returned)
+     */
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * The ids of all returned (or parsed) entities with the {@link #getLastModified() last modification date}.
+     * Parse those together with the date to resume the iteration.
+     */
+    public Set<ObjectId> getLastIds() {
+        return Collections.unmodifiableSet(lastIds);
+    }
+
+    /**
+     * The id of the last returned entity (or the highest parsed id if no entity was returned)
+     */
+    public ObjectId getLastId() {
+        return lastIds.isEmpty() ? null : lastIds.last();
+    }
+
+    private UpdatedIds<ObjectId> loadNext() {
+        final Criteria criteria = getCriteria();
+        final Query query = (criteria == null ? new Query() : new Query(criteria))
+                .with(new Sort(Direction.ASC, modifiedField, "_id"))
+                .limit(batchSize);
+        query.fields().include("_id").include(modifiedField);
+        final List<DBObject> page = mongoTemplate.find(query, DBObject.class, collectionName);
+        if(page.isEmpty()){
+            return null;
+        }
+        final List<ObjectId> ids = new ArrayList<>(page.size());
+        for(DBObject dbo : page){
+            final ObjectId id = (ObjectId)dbo.get("_id");
+            final Date modified = (Date)dbo.get(modifiedField);
+            ids.add(id);
+            if(!Objects.equals(modified, lastModified)){
+                lastModified = modified;
+                lastIds = new TreeSet<>();
+            }
+            lastIds.add(id);
+        }
+        final ObjectId lastId = ids.get(ids.size() - 1);
+        log.trace("loaded {} updated ids from {} (last: {}|{}, {} ids at last date)", ids.size(), collectionName,
+                lastModified == null ? null : lastModified.toInstant(), lastId, lastIds.size());
+        return new UpdatedIds<>(lastModified, lastId, ids);
+    }
+
+    private Criteria getCriteria() {
+        if(lastModified == null){
+            if(lastIds.isEmpty()){
+                return null; //all
+            } else { //documents without modified date sort first
+                //NOTE: entities never lose their modified date so no late writes can appear in
+                //      this group and the (cheaper) keyset on the id is sufficient
+                return new Criteria().orOperator(
+                        Criteria.where(modifiedField).is(null).and("_id").gt(lastIds.last()),
+                        Criteria.where(modifiedField).ne(null));
+            }
+        } else if(lastIds.isEmpty()){
+            return Criteria.where(modifiedField).gte(lastModified);
+        } else { //inclusive the last date but without the ids already returned for it
+            return new Criteria().orOperator(
+                    Criteria.where(modifiedField).gt(lastModified),
+                    Criteria.where(modifiedField).is(lastModified).and("_id").nin(lastIds));
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -55,6 +56,7 @@ public class AnalysisService {
     protected final QueryBuilderService queryBuilderService;
     private final ConfigurationService confService;
     private final ClientService clientService;
+    private final QueryPrefetchService prefetchService;
 
     
     private final Map<AnalysisKey, CompletableFuture<Analysis>> processing = new HashMap<>();
@@ -76,7 +78,7 @@ public class AnalysisService {
     public AnalysisService(AnalysisRepository analysisRepo, 
             Optional<ExecutorService> processingExecutor, Optional<ApplicationEventPublisher> eventPublisher,
             PrepareService prepareService, TemplateService templateService, QueryBuilderService queryBuilderService,
-            ConfigurationService confService, ClientService clientService) {
+            ConfigurationService confService, ClientService clientService, Optional<QueryPrefetchService> prefetchService) {
         this.analysisRepo = analysisRepo;
         this.processingExecutor = processingExecutor.orElseGet(() -> Executors.newFixedThreadPool(2));
         this.eventPublisher = eventPublisher.orElse(null);
@@ -85,6 +87,7 @@ public class AnalysisService {
         this.queryBuilderService = queryBuilderService;
         this.confService = confService;
         this.clientService = clientService;
+        this.prefetchService = prefetchService.orElse(null);
     }
     /**
      * Analyzes the parsed conversation and returns a Future on the results.
@@ -181,9 +184,6 @@ public class AnalysisService {
         return getAnalysisIfPresent(new AnalysisKey(con, getConfig(client, con)));
     }
     
-    /*
-     * TODO: provide async version of the inline result methods
-     */
     public SearchResult<? extends Result> getInlineResults(Client client, Conversation conversation, Template template, String creator) throws IOException {
         return getInlineResults(client, conversation, null, template, creator, new LinkedMultiValueMap<>());
     }
@@ -192,33 +192,71 @@ public class AnalysisService {
         return getInlineResults(client, conversation, null, template, creator, params);
     } 
     
-    /*
-     * TODO: provide async version of the inline result methods
-     */
     public SearchResult<? extends Result> getInlineResults(Client client, Conversation conversation, Analysis analysis, Template template, String creator) throws IOException {
-        return getInlineResults(client, conversation, template, creator, new LinkedMultiValueMap<>());
+        return getInlineResults(client, conversation, analysis, template, creator, new LinkedMultiValueMap<>());
     }
 
+    /**
+     * Synchronous version of {@link #getInlineResultsAsync(Client, Conversation, Analysis, Template, String, MultiValueMap)}.
+     * Prefer the async version in request processing as this method blocks the calling thread until
+     * the analysis and the query execution are completed.
+     */
     public SearchResult<? extends Result> getInlineResults(Client client, Conversation conversation, Analysis analysis, Template template, String creator, MultiValueMap<String, String> params) throws IOException {
-        if(analysis == null){
-            try {
-                analysis = analyze(client, conversation).get();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return null;
-            } catch (ExecutionException e) {
-                if(e.getCause() instanceof RuntimeException){
-                    throw (RuntimeException) e.getCause();
-                } else {
-                    throw new RuntimeException(e.getCause());
-                }
+        try {
+            return getInlineResultsAsync(client, conversation, analysis, template, creator, params).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            } else if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
             }
         }
-        return queryBuilderService.execute(client, creator, template, conversation, analysis, params);
     }
 
+    public CompletableFuture<SearchResult<? extends Result>> getInlineResultsAsync(Client client, Conversation conversation, Template template, String creator) {
+        return getInlineResultsAsync(client, conversation, null, template, creator, new LinkedMultiValueMap<>());
+    }
+
+    public CompletableFuture<SearchResult<? extends Result>> getInlineResultsAsync(Client client, Conversation conversation, Analysis analysis, Template template, String creator) {
+        return getInlineResultsAsync(client, conversation, analysis, template, creator, new LinkedMultiValueMap<>());
+    }
+
+    /**
+     * Executes the query of the parsed creator for the template without blocking the calling thread. If no
+     * analysis is parsed the conversation is analyzed first.
+     * @param client the client
+     * @param conversation the conversation
+     * @param analysis the analysis or <code>null</code> to use the (possible still processing) analysis of the conversation
+     * @param template the template
+     * @param creator the creator string of the query builder
+     * @param params additional request parameters
+     * @return the future on the search results. Failures are reported by exceptional completion
+     */
+    public CompletableFuture<SearchResult<? extends Result>> getInlineResultsAsync(Client client, Conversation conversation, Analysis analysis, Template template, String creator, MultiValueMap<String, String> params) {
+        final CompletableFuture<Analysis> analysisFuture;
+        if(analysis == null){
+            analysisFuture = analyze(client, conversation);
+        } else {
+            analysisFuture = CompletableFuture.completedFuture(analysis);
+        }
+        return analysisFuture.thenCompose(a -> {
+            if(prefetchService != null && (params == null || params.isEmpty())){
+                //results for the default parameters might be already prefetched
+                CompletableFuture<SearchResult<? extends Result>> prefetched = prefetchService.getPrefetched(client, conversation, a, template, creator);
+                if(prefetched != null){
+                    log.trace("use prefetched results of {} for {}", creator, conversation.getId());
+                    return prefetched;
+                }
+            }
+            return queryBuilderService.executeAsync(client, creator, template, conversation, a, params);
+        });
+    }
 
-    
     protected final Analysis getAnalysisIfPresent(AnalysisKey key){
         //first look in the cache
         lock.readLock().lock();
@@ -234,6 +272,31 @@ public class AnalysisService {
         return analysisRepo.findByClientAndConversationAndDate(key.getClient(), key.getConversation(), key.getDate());
     }
 
+    /**
+     * Getter for the latest {@link Analysis} of an earlier version of the conversation that was
+     * created with the current configuration of the client
+     * @param key the key of the current analysis
+     * @return the previous analysis or <code>null</code> if none
+     */
+    private Analysis getPreviousAnalysis(AnalysisKey key){
+        Analysis previous;
+        lock.readLock().lock();
+        try {
+            previous = analysisCache.getIfPresent(key.getEntry());
+        } finally {
+            lock.readLock().unlock();
+        }
+        if(previous == null){
+            previous = analysisRepo.findFirstByClientAndConversationOrderByDateDesc(key.getClient(), key.getConversation());
+        }
+        if(previous == null || previous.getDate() == null || previous.getDate().after(key.getDate()) || 
+                key.getConfigModified().after(previous.getDate())){
+            return null; //no analysis for an earlier version of the conversation with the current configuration
+        } else {
+            return previous;
+        }
+    }
+
     private CompletableFuture<Analysis> process(final AnalysisKey key, Client client, Conversation conversation, Analysis parsedAnalysis) {
         CompletableFuture<Analysis> future;
         if(parsedAnalysis == null){
@@ -266,10 +329,12 @@ public class AnalysisService {
                     }
                     final long processed = System.currentTimeMillis();
                     log.trace("build templates for {}", key);
-                    templateService.updateTemplates(client, conversation, analysis);
+                    //templates of an unchanged fingerprint are reused from the previous analysis
+                    final Analysis previous = parsedAnalysis == null ? getPreviousAnalysis(key) : null;
+                    final Set<Template> reused = templateService.updateTemplates(client, conversation, analysis, previous);
                     long tempatesBuilt = System.currentTimeMillis(); 
                     log.trace("build queries for {}", key);
-                    queryBuilderService.buildQueries(client, conversation, analysis);
+                    queryBuilderService.buildQueries(client, conversation, analysis, reused);
                     long queryBuilt = System.currentTimeMillis();
                     if(log.isDebugEnabled()){
                         log.debug("analysed {} in {}ms ({}, templates: {}ms, queries: {}ms)",
@@ -388,6 +453,7 @@ public class AnalysisService {
         
         private final Entry<ObjectId, ObjectId> entry;
         private final Date date;
+        private final Date configModified;
         
         public AnalysisKey(Conversation c, Configuration conf) {
             assert c != null;
@@ -399,6 +465,7 @@ public class AnalysisService {
             assert conf.getModified() != null;
             entry = new ImmutablePair<>(conf.getClient(), c.getId());
             date = c.getLastModified().after(conf.getModified()) ? c.getLastModified() : conf.getModified();
+            configModified = conf.getModified();
         }
         
         public Entry<ObjectId, ObjectId> getEntry() {
@@ -408,6 +475,10 @@ public class AnalysisService {
             return date;
         }
 
+        public Date getConfigModified() {
+            return configModified;
+        }
+
         public ObjectId getClient() {
             return entry.getKey();
         }
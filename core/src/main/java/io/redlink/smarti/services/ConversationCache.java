@@ -0,0 +1,290 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.redlink.smarti.api.event.StoreServiceEvent;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService.ChangeListener;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService.ChangeStream;
+import io.redlink.smarti.model.Conversation;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived in-memory cache for {@link Conversation}s used by the {@link ConversationService}.<p>
+ * Entries are keyed by the conversation id and carry the <code>lastModified</code> date as version.
+ * The {@link ConversationService} writes updated conversations through to the cache. Other
+ * {@link StoreServiceEvent}s invalidate the cached entry.<p>
+ * Changes performed by other nodes are detected by a (not resumable) {@link MongoChangeStreamService change stream}
+ * if enabled and supported by the MongoDB deployment: cached entries of changed conversations are evicted if their
+ * version differs from the stored one. Without a change stream such changes are only visible after the configured
+ * expire time (or for consistent reads).<p>
+ * Conversations are cached in their mapped (Mongo) form so that every read returns a new instance.
+ * Callers can therefore modify returned conversations without affecting the cache.<p>
+ * The size of the cache is bound by the number of cached messages (see
+ * {@link ConversationCacheConfiguration}). Caching is opt-in.
+ */
+@Component
+@EnableConfigurationProperties(ConversationCacheConfiguration.class)
+public class ConversationCache implements PublicMetrics {
+
+    private static final String METRIC_PREFIX = "smarti.conversation.cache.";
+    
+    /**
+     * The name of the change stream used to detect changes of other nodes
+     */
+    public static final String CHANGE_STREAM = "conversationCache";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final MongoTemplate mongoTemplate;
+    private final MongoConverter converter;
+
+    private final Cache<ObjectId, Entry> cache;
+    private final int expire;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outdated = new AtomicLong();
+
+    @Autowired(required=false)
+    private MongoChangeStreamService changeStreamService;
+    
+    private ChangeStream changeStream;
+
+    public ConversationCache(ConversationCacheConfiguration config, MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+        this.converter = mongoTemplate.getConverter();
+        this.expire = config.getExpire();
+        if(config.isEnabled()){
+            log.info("Conversation cache enabled (maxMessages: {}, expire: {}sec)", 
+                    config.getMaxMessages(), config.getExpire());
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(config.getMaxMessages())
+                    .<ObjectId, Entry>weigher((id, entry) -> entry.weight)
+                    .expireAfterWrite(config.getExpire(), TimeUnit.SECONDS)
+                    .build();
+        } else {
+            log.debug("Conversation cache disabled");
+            this.cache = null;
+        }
+    }
+
+    @PostConstruct
+    protected void startChangeStream() {
+        if(cache != null && changeStreamService != null){
+            //only changes after the start are of interest as the cache is empty
+            changeStream = changeStreamService.watch(CHANGE_STREAM, Conversation.class, new ChangeListener() {
+                @Override
+                public void onChanges(Collection<ObjectId> ids) {
+                    onConversationChanges(ids);
+                }
+                @Override
+                public void onHistoryLost(Date since) {
+                    log.debug("changes since {} are lost - invalidate all cached conversations", since.toInstant());
+                    cache.invalidateAll();
+                }
+            }, false);
+        }
+        if(cache != null && changeStream == null){
+            log.info("No change stream for the conversation cache: changes of other nodes are visible after {}sec "
+                    + "(or for consistent reads)", expire);
+        }
+    }
+
+    @PreDestroy
+    protected void stopChangeStream() {
+        if(changeStream != null){
+            changeStream.close();
+            changeStream = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Getter for the cached conversation
+     * @param conversationId the id
+     * @return a copy of the cached conversation or <code>null</code> if not cached
+     */
+    public Conversation get(ObjectId conversationId) {
+        return get(conversationId, null);
+    }
+
+    /**
+     * Getter for the cached conversation with the parsed version
+     * @param conversationId the id
+     * @param lastModified the expected version or <code>null</code> to accept any cached version
+     * @return a copy of the cached conversation or <code>null</code> if not cached or the
+     * cached conversation has a different version
+     */
+    public Conversation get(ObjectId conversationId, Date lastModified) {
+        if(cache == null || conversationId == null){
+            return null;
+        }
+        final Entry entry = cache.getIfPresent(conversationId);
+        if(entry == null){
+            misses.incrementAndGet();
+            return null;
+        }
+        if(lastModified != null && !Objects.equals(lastModified, entry.lastModified)){
+            outdated.incrementAndGet();
+            cache.asMap().remove(conversationId, entry);
+            return null;
+        }
+        hits.incrementAndGet();
+        return converter.read(Conversation.class, entry.dbo);
+    }
+
+    /**
+     * Writes the parsed conversation to the cache. Conversations marked as deleted are evicted and
+     * a cached entry is never replaced with an older version.
+     * @param conversation the conversation as stored
+     */
+    public void put(Conversation conversation) {
+        if(cache == null || conversation == null || conversation.getId() == null){
+            return;
+        }
+        if(conversation.getDeleted() != null){
+            invalidate(conversation.getId());
+            return;
+        }
+        final DBObject dbo = new BasicDBObject();
+        converter.write(conversation, dbo);
+        final Entry entry = new Entry(conversation.getLastModified(), dbo, conversation.getMessages().size() + 1);
+        cache.asMap().merge(conversation.getId(), entry, (cached, updated) -> 
+                cached.lastModified != null && (updated.lastModified == null || cached.lastModified.after(updated.lastModified)) ?
+                        cached : updated);
+    }
+
+    public void invalidate(ObjectId conversationId) {
+        if(cache != null && conversationId != null){
+            cache.invalidate(conversationId);
+        }
+    }
+
+    /**
+     * Evicts the cached entries of the parsed (changed) conversations if their version differs from
+     * the stored one. This ensures that changes of other nodes are visible while the cached version
+     * of changes written through by this node is kept.
+     * @param conversationIds the ids of changed conversations as reported by the change stream
+     */
+    void onConversationChanges(Collection<ObjectId> conversationIds) {
+        if(cache == null){
+            return;
+        }
+        final Map<ObjectId, Entry> cached = new HashMap<>();
+        for(ObjectId id : conversationIds){
+            final Entry entry = cache.getIfPresent(id);
+            if(entry != null){
+                cached.put(id, entry);
+            }
+        }
+        if(cached.isEmpty()){
+            return;
+        }
+        final Map<ObjectId, Date> versions = new HashMap<>();
+        try {
+            final Query query = Query.query(Criteria.where("_id").in(cached.keySet()));
+            query.fields().include("lastModified").include("deleted");
+            for(DBObject dbo : mongoTemplate.find(query, DBObject.class, mongoTemplate.getCollectionName(Conversation.class))){
+                if(dbo.get("deleted") == null){
+                    versions.put((ObjectId)dbo.get("_id"), (Date)dbo.get("lastModified"));
+                }
+            }
+        } catch (RuntimeException e) { //unable to validate: evict all changed
+            log.debug("Unable to load the versions of {} changed conversations ({} - {})", cached.size(),
+                    e.getClass().getSimpleName(), e.getMessage());
+        }
+        cached.forEach((id, entry) -> {
+            if(entry.lastModified == null || !entry.lastModified.equals(versions.get(id))){
+                log.trace("evict conversation {} changed by an other node", id);
+                cache.asMap().remove(id, entry);
+            }
+        });
+    }
+
+    /**
+     * Changes performed by the {@link ConversationService} are written through. All other
+     * {@link StoreServiceEvent}s (e.g. changes detected by a different node) invalidate the
+     * cached entry.
+     */
+    @EventListener
+    protected void onStoreEvent(StoreServiceEvent event) {
+        if(cache != null && !(event.getSource() instanceof ConversationService)){
+            invalidate(event.getConversationId());
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        if(cache == null){
+            return Collections.emptyList();
+        }
+        final long numHits = hits.get();
+        final long numLookups = numHits + misses.get() + outdated.get();
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "hits", numHits),
+                new Metric<>(METRIC_PREFIX + "misses", misses.get()),
+                new Metric<>(METRIC_PREFIX + "outdated", outdated.get()),
+                new Metric<>(METRIC_PREFIX + "hitRate", numLookups > 0 ? numHits / (double)numLookups : 0d),
+                new Metric<>(METRIC_PREFIX + "cached", cache.size()));
+    }
+
+    private static class Entry {
+
+        private final Date lastModified;
+        private final DBObject dbo;
+        private final int weight;
+
+        Entry(Date lastModified, DBObject dbo, int weight) {
+            this.lastModified = lastModified;
+            this.dbo = dbo;
+            this.weight = weight;
+        }
+    }
+}
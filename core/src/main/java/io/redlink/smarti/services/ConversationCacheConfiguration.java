@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.services;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Configuration of the {@link ConversationCache}. The cache is deactivated by default
+ */
+@ConfigurationProperties(prefix="smarti.conversation.cache")
+public class ConversationCacheConfiguration {
+
+    public static final long DEFAULT_MAX_MESSAGES = 50000;
+    public static final int DEFAULT_EXPIRE = 60; //1min
+
+    private boolean enabled = false;
+
+    private long maxMessages = DEFAULT_MAX_MESSAGES;
+
+    private int expire = DEFAULT_EXPIRE;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The size of the cache expressed as the sum of the messages of all cached conversations
+     */
+    public long getMaxMessages() {
+        return maxMessages;
+    }
+
+    public void setMaxMessages(long maxMessages) {
+        this.maxMessages = maxMessages <= 0 ? DEFAULT_MAX_MESSAGES : maxMessages;
+    }
+
+    /**
+     * The time (in seconds) conversations are cached. Without a change stream (see
+     * <code>smarti.index.sync.change-stream.enabled</code>) this is also the maximum time a
+     * non consistent read may return a conversation that was changed by an other node
+     */
+    public int getExpire() {
+        return expire;
+    }
+
+    public void setExpire(int expire) {
+        this.expire = expire <= 0 ? DEFAULT_EXPIRE : expire;
+    }
+
+}
@@ -18,17 +18,20 @@
 package io.redlink.smarti.services;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
 import io.redlink.smarti.api.event.StoreServiceEvent;
 import io.redlink.smarti.exception.BadArgumentException;
 import io.redlink.smarti.exception.ConflictException;
 import io.redlink.smarti.exception.NotFoundException;
 import io.redlink.smarti.model.Client;
 import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.ConversationImportJob;
 import io.redlink.smarti.model.ConversationMeta;
 import io.redlink.smarti.model.ConversationMeta.Status;
 import io.redlink.smarti.model.Message;
 import io.redlink.smarti.model.Message.Origin;
 import io.redlink.smarti.repositories.AnalysisRepository;
+import io.redlink.smarti.repositories.ConversationImportJobRepository;
 import io.redlink.smarti.repositories.ConversationRepository;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -44,6 +47,8 @@ import org.springframework.stereotype.Service;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Conversation-related services
@@ -51,15 +56,23 @@ import java.util.*;
 @Service
 public class ConversationService {
 
+    public static final int DEFAULT_IMPORT_BATCH_SIZE = 500;
+
     private final Logger log = LoggerFactory.getLogger(ConversationService.class);
 
     private final ApplicationEventPublisher eventPublisher;
     private final ConversationRepository conversationRepository;
     private final AnalysisRepository analysisRepository;
+    private final ConversationCache conversationCache;
+    private final ConversationImportJobRepository importJobRepository;
 
-    public ConversationService(ConversationRepository conversationRepository, Optional<AnalysisRepository> analysisRepository, ApplicationEventPublisher eventPublisher) {
+    public ConversationService(ConversationRepository conversationRepository, Optional<AnalysisRepository> analysisRepository, 
+            Optional<ConversationImportJobRepository> importJobRepository,
+            ConversationCache conversationCache, ApplicationEventPublisher eventPublisher) {
         this.conversationRepository = conversationRepository;
         this.analysisRepository = analysisRepository.orElse(null);
+        this.importJobRepository = importJobRepository.orElse(null);
+        this.conversationCache = conversationCache;
         this.eventPublisher = eventPublisher;
     }
     
@@ -110,16 +123,105 @@ public class ConversationService {
         return publishSaveEvent(conversationRepository.adjustMessageVotes(conversation.getId(), messageId, delta));
     }
 
+    /**
+     * Getter for the conversation. If the {@link ConversationCache} is enabled the returned conversation
+     * might not include changes performed by other nodes within the configured expire time (unless
+     * changes are detected by a change stream).
+     * Use {@link #getConversation(ObjectId, boolean)} if this is not acceptable.
+     */
     public Conversation getConversation(ObjectId convId){
         return getConversation(null,convId);
     }
 
+    /**
+     * Getter for the conversation
+     * @param convId the id of the conversation
+     * @param consistent if <code>true</code> the version (<code>lastModified</code>) of a cached
+     * conversation is validated against the stored one (read-your-writes also across nodes)
+     * @return the conversation or <code>null</code> if not present
+     */
+    public Conversation getConversation(ObjectId convId, boolean consistent){
+        Preconditions.checkNotNull(convId);
+        final Conversation cached;
+        if(!conversationCache.isEnabled()){
+            cached = null;
+        } else if(consistent){
+            final Conversation header = conversationRepository.findConversationHeader(convId);
+            if(header == null){
+                conversationCache.invalidate(convId);
+                return null;
+            }
+            cached = conversationCache.get(convId, header.getLastModified());
+        } else {
+            cached = conversationCache.get(convId);
+        }
+        if(cached != null){
+            return cached;
+        }
+        final Conversation conversation = conversationRepository.findOneByIdAndDeletedIsNull(convId);
+        conversationCache.put(conversation);
+        return conversation;
+    }
+
+    /**
+     * Loads the conversations with the parsed ids. Conversations not present in the
+     * {@link ConversationCache} are loaded by a single query.
+     * @param convIds the ids of the conversations
+     * @return the conversations by id. Ids of unknown (or deleted) conversations are not contained
+     */
+    public Map<ObjectId, Conversation> getConversations(Collection<ObjectId> convIds){
+        Preconditions.checkNotNull(convIds);
+        final Map<ObjectId, Conversation> conversations = new HashMap<>();
+        final Set<ObjectId> missing = new HashSet<>();
+        for(ObjectId convId : convIds){
+            final Conversation cached = conversationCache.get(convId);
+            if(cached != null){
+                conversations.put(convId, cached);
+            } else if(convId != null){
+                missing.add(convId);
+            }
+        }
+        if(!missing.isEmpty()){
+            conversationRepository.findByIdInAndDeletedIsNull(missing).forEach(c -> {
+                conversationCache.put(c);
+                conversations.put(c.getId(), c);
+            });
+        }
+        return conversations;
+    }
+
+    /**
+     * Loads the conversations with the parsed ids without their messages by a single query. Conversations
+     * present in the {@link ConversationCache} are served from the cache (and do include messages).
+     * Loaded conversations are NOT cached as they are incomplete.
+     * @param convIds the ids of the conversations
+     * @return the conversations by id. Ids of unknown (or deleted) conversations are not contained
+     */
+    public Map<ObjectId, Conversation> getConversationsWithoutMessages(Collection<ObjectId> convIds){
+        Preconditions.checkNotNull(convIds);
+        final Map<ObjectId, Conversation> conversations = new HashMap<>();
+        final Set<ObjectId> missing = new HashSet<>();
+        for(ObjectId convId : convIds){
+            final Conversation cached = conversationCache.get(convId);
+            if(cached != null){
+                conversations.put(convId, cached);
+            } else if(convId != null){
+                missing.add(convId);
+            }
+        }
+        if(!missing.isEmpty()){
+            conversationRepository.findConversationsWithoutMessages(missing).forEach(c -> conversations.put(c.getId(), c));
+        }
+        return conversations;
+    }
+
     public Conversation getConversation(Client client, ObjectId convId){
         Preconditions.checkNotNull(convId);
         if(client != null){
-            return conversationRepository.findByOwnerAndIdAndDeletedIsNull(client.getId(), convId);
+            final Conversation conversation = getConversation(convId, false);
+            return conversation != null && Objects.equals(client.getId(), conversation.getOwner()) ? conversation : null;
         } else {
-            return conversationRepository.findOneByIdAndDeletedIsNull(convId);
+            return getConversation(convId, false);
         }
     }
 
@@ -176,13 +278,127 @@ public class ConversationService {
         return conversationRepository.findByOwnerAndDeletedIsNull(owner);
     }
 
+    /**
+     * Streams the conversations of the parsed client. Other than {@link #getConversations(ObjectId)} this
+     * does not load all conversations in memory.
+     * @param owner the client
+     * @param since optional lower bound (inclusive) for the modification date
+     * @param until optional upper bound (exclusive) for the modification date
+     * @param completedOnly if only completed conversations are included
+     * @param batchSize the number of conversations loaded in a single batch
+     * @param fields the fields to include (all if none)
+     * @return the stream over the conversations. The returned stream MUST BE closed.
+     */
+    public Stream<Conversation> streamConversations(ObjectId owner, Date since, Date until, boolean completedOnly,
+            int batchSize, String...fields) {
+        Preconditions.checkNotNull(owner);
+        Preconditions.checkArgument(batchSize > 0, "The batch size MUST BE > 0");
+        return conversationRepository.streamConversations(owner, since, until, completedOnly, batchSize, fields);
+    }
+
     public void importConversations(ObjectId owner, List<Conversation> conversations) {
         importConversations(owner, conversations, false);
     }
 
     public void importConversations(ObjectId owner, List<Conversation> conversations, boolean replace) {
-        // TODO(westei): implement this method
-        throw new UnsupportedOperationException("Not yet implemented");
+        final ConversationImportJob job = importConversations(owner, conversations.iterator(),
+                new ConversationImportJob(owner, replace), DEFAULT_IMPORT_BATCH_SIZE, null);
+        if(job.getStatus() == ConversationImportJob.Status.Failed){
+            throw new IllegalStateException("Import of Conversations for Client " + owner + " failed: " + job.getError());
+        }
+    }
+
+    /**
+     * Imports the conversations provided by the parsed iterator in batches of the parsed size. This allows
+     * to import data read from a stream without holding all conversations in memory.<p>
+     * The owner of all conversations is set to the parsed client and conversations without an id get a
+     * new id assigned. Conversations are written by bulk upserts (see 
+     * {@link ConversationRepository#importConversations(List, boolean, ConversationImportJob)}). No
+     * {@link StoreServiceEvent}s are sent for imported conversations. Components do get changes with their
+     * next update sync as imported conversations have a current <code>lastModified</code> date.<p>
+     * The status of the import is stored after every batch. To resume a failed import parse the stored
+     * job and the same data. Already {@link ConversationImportJob#getProcessed() processed} conversations
+     * are skipped.
+     * @param owner the client to import the conversations for
+     * @param conversations the conversations to import
+     * @param job the import job
+     * @param batchSize the size of the batches
+     * @param batchCallback optional callback called with the ids of the written conversations of every batch
+     * (e.g. to index imported conversations)
+     * @return the import job after the import completed or failed
+     */
+    public ConversationImportJob importConversations(ObjectId owner, Iterator<Conversation> conversations,
+            ConversationImportJob job, int batchSize, Consumer<List<ObjectId>> batchCallback) {
+        Preconditions.checkNotNull(owner);
+        Preconditions.checkNotNull(conversations);
+        Preconditions.checkNotNull(job);
+        Preconditions.checkArgument(Objects.equals(owner, job.getOwner()), "The owner of the import job MUST BE the parsed client");
+        Preconditions.checkArgument(batchSize > 0, "The batch size MUST BE > 0");
+        job.setStatus(ConversationImportJob.Status.Running);
+        job.setError(null);
+        final long start = System.currentTimeMillis();
+        try {
+            //skip conversations processed by a previous run
+            final long skip = job.getProcessed();
+            for(long i = 0; i < skip && conversations.hasNext(); i++){
+                conversations.next();
+            }
+            storeImportJob(job);
+            final Iterator<List<Conversation>> batches = Iterators.partition(conversations, batchSize);
+            while(batches.hasNext()){
+                final List<Conversation> batch = batches.next();
+                batch.forEach(c -> {
+                    c.setOwner(owner);
+                    if(c.getId() == null){
+                        c.setId(new ObjectId());
+                    }
+                });
+                final List<ObjectId> written = conversationRepository.importConversations(batch, job.isReplace(), job);
+                written.forEach(conversationCache::invalidate);
+                job.setProcessed(job.getProcessed() + batch.size());
+                storeImportJob(job);
+                if(batchCallback != null && !written.isEmpty()){
+                    batchCallback.accept(written);
+                }
+            }
+            job.setStatus(ConversationImportJob.Status.Completed);
+        } catch (RuntimeException e) {
+            log.warn("Import of Conversations for Client {} failed after {} conversations ({} - {})",
+                    owner, job.getProcessed(), e.getClass().getSimpleName(), e.getMessage());
+            log.debug("STACKTRACE: ", e);
+            job.setStatus(ConversationImportJob.Status.Failed);
+            job.setError(e.getMessage());
+        }
+        storeImportJob(job);
+        log.info("{} in {}ms", job, System.currentTimeMillis() - start);
+        return job;
+    }
+
+    private void storeImportJob(ConversationImportJob job) {
+        job.setLastModified(new Date());
+        if(importJobRepository != null){
+            importJobRepository.save(job);
+        }
+    }
+
+    /**
+     * Getter for a stored import job
+     * @param jobId the id of the job
+     * @return the import job or <code>null</code> if not present
+     */
+    public ConversationImportJob getImportJob(ObjectId jobId) {
+        return importJobRepository == null ? null : importJobRepository.findOne(jobId);
+    }
+
+    /**
+     * Loads the header (<code>owner</code>, <code>meta</code> and <code>lastModified</code>) of the
+     * conversation. Messages, user and context are NOT loaded.
+     * @param convId the id of the conversation
+     * @return the conversation header or <code>null</code> if not present
+     */
+    public Conversation getConversationHeader(ObjectId convId){
+        Preconditions.checkNotNull(convId);
+        return conversationRepository.findConversationHeader(convId);
     }
 
     public boolean exists(ObjectId conversationId) {
@@ -206,7 +422,19 @@ public class ConversationService {
         return publishSaveEvent(conversationRepository.updateMessage(conversationId, updatedMessage));
     }
 
+    /**
+     * Replaces the message with the same id or appends it if not yet present
+     * @return the updated conversation or <code>null</code> if the conversation does not exist
+     */
+    public Conversation upsertMessage(ObjectId conversationId, Message message) {
+        Preconditions.checkNotNull(conversationId);
+        Preconditions.checkNotNull(message);
+        final Conversation conversation = conversationRepository.upsertMessage(conversationId, message);
+        return conversation == null ? null : publishSaveEvent(conversation);
+    }
+
     private Conversation publishSaveEvent(Conversation conversation) {
+        conversationCache.put(conversation);
         eventPublisher.publishEvent(StoreServiceEvent.save(conversation.getId(), conversation.getMeta().getStatus(), this));
         return conversation;
     }
@@ -214,6 +442,7 @@ public class ConversationService {
     public boolean deleteConversation(ObjectId conversationId) {
         Preconditions.checkNotNull(conversationId);
         boolean deleted = conversationRepository.markAsDeleted(conversationId);
+        conversationCache.invalidate(conversationId);
         if(deleted){
             eventPublisher.publishEvent(StoreServiceEvent.delete(conversationId, this));
             if(analysisRepository != null){
@@ -341,6 +570,32 @@ public class ConversationService {
     public boolean exists(ObjectId conversationId, String messageId) {
         return conversationRepository.exists(conversationId, messageId);
     }
+
+    /**
+     * Lazily streams all messages of the conversation including messages archived in buckets.
+     * The returned stream MUST BE closed.
+     */
+    public Stream<Message> streamMessages(ObjectId conversationId) {
+        return conversationRepository.streamMessages(conversationId);
+    }
+
+    /**
+     * Adds messages archived in buckets to the parsed conversation. Only required by components
+     * that need the whole history of a conversation (e.g. indexing) as conversations only contain the
+     * most recent messages if bucketed message storage is enabled.
+     * @return the parsed conversation
+     */
+    public Conversation loadArchivedMessages(Conversation conversation) {
+        return conversationRepository.loadArchivedMessages(conversation);
+    }
+
+    /**
+     * Filters the parsed message ids for messages archived in buckets (see {@link #loadArchivedMessages(Conversation)})
+     * @return the archived messages of the parsed ids
+     */
+    public Set<String> getArchivedMessageIds(ObjectId conversationId, Collection<String> messageIds) {
+        return conversationRepository.findArchivedMessageIds(conversationId, messageIds);
+    }
     /**
      * Updates a field of a message within the conversation
      * @param conversationId
@@ -415,7 +670,7 @@ public class ConversationService {
         Preconditions.checkArgument(conversation.getDeleted() == null, "Unable to store %s as it is marked as deleted", conversation);
         conversation.setLastModified(new Date());
         if(conversation.getId() != null){ //if we update an existing we need to validate the clientId value
-            Conversation persisted = getConversation(conversation.getId());
+            Conversation persisted = getConversationHeader(conversation.getId());
             if(persisted == null){
                 throw new NotFoundException(Conversation.class, conversation.getId());
             } else {
@@ -432,7 +687,7 @@ public class ConversationService {
             }
             
         }
-        return publishSaveEvent(conversationRepository.save(conversation));
+        return publishSaveEvent(conversationRepository.archiveMessages(conversationRepository.save(conversation)));
     }
 
     public final Collection<ObjectId> listConversationIDsByUser(String userId) {
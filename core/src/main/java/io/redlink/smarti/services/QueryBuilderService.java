@@ -28,18 +28,25 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import javax.annotation.PreDestroy;
+
 import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  */
 @Service
+@EnableConfigurationProperties(QueryExecutionConfiguration.class)
 public class QueryBuilderService {
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
@@ -47,10 +54,14 @@ public class QueryBuilderService {
     private final ConfigurationService confService;
     
     private final Map<String, QueryBuilder<?>> builders;
+
+    private final ExecutorService queryExecutor;
     
     @Autowired
-    public QueryBuilderService(ConfigurationService confService, Optional<List<QueryBuilder<?>>> builders) {
+    public QueryBuilderService(ConfigurationService confService, Optional<List<QueryBuilder<?>>> builders,
+            QueryExecutionConfiguration executionConfig) {
         this.confService = confService;
+        this.queryExecutor = executionConfig.createExecuterService();
         log.debug("QueryBuilders: {}", builders);
         this.builders = new HashMap<>();
 
@@ -65,6 +76,19 @@ public class QueryBuilderService {
     }
 
     public void buildQueries(Client client, Conversation conversation, Analysis analysis) {
+        buildQueries(client, conversation, analysis, Collections.emptySet());
+    }
+
+    /**
+     * Builds the queries for the templates of the parsed analysis
+     * @param client the client
+     * @param conversation the conversation
+     * @param analysis the analysis
+     * @param reused templates reused from a previous analysis (see 
+     * {@link TemplateService#updateTemplates(Client, Conversation, Analysis, Analysis)}). Queries of those
+     * templates are kept as is.
+     */
+    public void buildQueries(Client client, Conversation conversation, Analysis analysis, Set<Template> reused) {
         if(conversation == null){
             return;
         }
@@ -73,19 +97,31 @@ public class QueryBuilderService {
 
         Configuration clientConfig = confService.getClientConfiguration(client.getId());
 
-        buildQueries(clientConfig, conversation, analysis);
+        buildQueries(clientConfig, conversation, analysis, reused);
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
     public void buildQueries(Configuration config, Conversation conversation, Analysis analysis) {
+        buildQueries(config, conversation, analysis, Collections.emptySet());
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void buildQueries(Configuration config, Conversation conversation, Analysis analysis, Set<Template> reused) {
         if(config == null){
             throw new NullPointerException("parsed config MUST NOT be NULL!");
         }
+        if(!reused.isEmpty() && analysis.getTemplates().stream().allMatch(reused::contains)){
+            log.debug("No need to build queries for {} (all templates reused from previous analysis)", conversation);
+            return;
+        }
         log.debug("Building queries for {}", conversation);
         //retrieve the states for the queries
         final Map<Integer,Map<String,State>> queryStates = new HashMap<>();
         final AtomicInteger idx = new AtomicInteger();
         analysis.getTemplates().forEach(t -> {
+            if(reused.contains(t)){
+                idx.getAndIncrement(); //keep the queries of reused templates
+                return;
+            }
             final Map<String,State> templateQueryStates = new HashMap<>();
             t.getQueries().stream()
                 .filter(q -> q.getCreator() != null)
@@ -104,7 +140,7 @@ public class QueryBuilderService {
             for(ComponentConfiguration cc : builderConfigs){
                 log.trace("build queries [{} | {} | {}]", queryBuilder, cc, conversation);
                 try {
-                    queryBuilder.buildQuery(conversation, analysis, cc);
+                    queryBuilder.buildQuery(conversation, analysis, cc, reused);
                 } catch (RuntimeException e) {
                     log.warn("Failed to build Queries using {} with {} for {} ({} - {})",
                             queryBuilder, cc, conversation, e.getClass().getSimpleName(), e.getMessage());
@@ -117,6 +153,9 @@ public class QueryBuilderService {
         idx.set(0); //rest the template index
         analysis.getTemplates().forEach(t -> {
             final Map<String,State> templateQueryStates = queryStates.get(Integer.valueOf(idx.getAndIncrement()));
+            if(templateQueryStates == null){
+                return; //reused template
+            }
             t.getQueries().stream().forEach(q -> {
                 State state = templateQueryStates.get(q.getCreator());
                 if(state != null){
@@ -131,19 +170,55 @@ public class QueryBuilderService {
     }
 
     public SearchResult<? extends Result> execute(Client client, String creatorString, Template template, Conversation conversation, Analysis analysis, MultiValueMap<String, String> params) throws IOException {
+        final Entry<QueryBuilder<ComponentConfiguration>, ComponentConfiguration> creator = getExecutingQueryBuilder(client, creatorString, conversation);
+        return creator.getKey().execute(creator.getValue(), template, conversation, analysis, params);
+    }
+
+    /**
+     * Asynchronously executes the query of the parsed creator for the template. The query is executed
+     * by the query execution thread pool (see {@link QueryExecutionConfiguration}) so that the calling
+     * thread is not blocked while waiting for the results.
+     * @param client the client
+     * @param creatorString the creator string of the query builder
+     * @param template the template
+     * @param conversation the conversation
+     * @param analysis the analysis of the conversation
+     * @param params additional request parameters
+     * @return the future on the search results
+     * @throws NotFoundException if no {@link QueryBuilder} for the parsed creator is present
+     */
+    public CompletableFuture<SearchResult<? extends Result>> executeAsync(Client client, String creatorString, Template template, Conversation conversation, Analysis analysis, MultiValueMap<String, String> params) {
+        return executeAsync(client, creatorString, template, conversation, analysis, params, queryExecutor);
+    }
+
+    /**
+     * Asynchronously executes the query of the parsed creator for the template by using the parsed executor
+     * @param executor the executor used to execute the query
+     * @see #executeAsync(Client, String, Template, Conversation, Analysis, MultiValueMap)
+     * @throws java.util.concurrent.RejectedExecutionException if the parsed executor does not accept the task
+     */
+    public CompletableFuture<SearchResult<? extends Result>> executeAsync(Client client, String creatorString, Template template, Conversation conversation, Analysis analysis, MultiValueMap<String, String> params, Executor executor) {
+        final Entry<QueryBuilder<ComponentConfiguration>, ComponentConfiguration> creator = getExecutingQueryBuilder(client, creatorString, conversation);
+        return creator.getKey().executeAsync(creator.getValue(), template, conversation, analysis, params, executor);
+    }
+
+    private Entry<QueryBuilder<ComponentConfiguration>, ComponentConfiguration> getExecutingQueryBuilder(Client client, String creatorString, Conversation conversation) {
         Configuration conf = confService.getClientConfiguration(client);
         if(conf == null){
             throw new IllegalStateException("The client '" + conversation.getOwner() + "' of the parsed conversation does not have a Configuration!");
         }
         final Entry<QueryBuilder<ComponentConfiguration>, ComponentConfiguration> creator = getQueryBuilder(creatorString, conf);
         if (creator != null) {
-            return creator.getKey().execute(creator.getValue(), template, conversation, analysis, params);
+            return creator;
         } else {
             throw new NotFoundException(QueryBuilder.class, creatorString, "QueryBuilder for creator '"+ creatorString +"' not present");
         }
     }
 
-
+    @PreDestroy
+    protected void shutdown() {
+        queryExecutor.shutdown();
+    }
 
     /**
      * Getter for the QueryBuilder for the parsed creator string
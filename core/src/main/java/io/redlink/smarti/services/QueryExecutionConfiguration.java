@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.services;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Configuration of the thread pool used to execute queries for inline results
+ * (see {@link QueryBuilderService#executeAsync(io.redlink.smarti.model.Client, String, io.redlink.smarti.model.Template, io.redlink.smarti.model.Conversation, io.redlink.smarti.model.Analysis, org.springframework.util.MultiValueMap)})
+ */
+@ConfigurationProperties(prefix="smarti.query.execution")
+public class QueryExecutionConfiguration {
+
+    public static final int DEFAULT_NUM_THREADS = 8;
+    /**
+     * The default timeout (in milliseconds) for requests waiting for inline results
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private static final String THREAD_NAME = "smarti-query-execution-thread-%d";
+
+    private int numThreads = DEFAULT_NUM_THREADS;
+
+    private long timeout = DEFAULT_TIMEOUT;
+
+    public final int getNumThreads() {
+        return numThreads;
+    }
+
+    public final void setNumThreads(Integer numThreads) {
+        this.numThreads = numThreads == null ? DEFAULT_NUM_THREADS : numThreads;
+    }
+
+    /**
+     * The maximum time (in milliseconds) a request waits for inline results before
+     * a timeout response is sent to the client
+     * @return the timeout in milliseconds
+     */
+    public final long getTimeout() {
+        return timeout;
+    }
+
+    public final void setTimeout(Long timeout) {
+        this.timeout = timeout == null || timeout <= 0 ? DEFAULT_TIMEOUT : timeout;
+    }
+
+    public ExecutorService createExecuterService(){
+        return Executors.newFixedThreadPool(numThreads <= 0 ? DEFAULT_NUM_THREADS : numThreads,
+                new BasicThreadFactory.Builder()
+                .daemon(true)
+                .namingPattern(THREAD_NAME)
+                .build());
+    }
+
+}
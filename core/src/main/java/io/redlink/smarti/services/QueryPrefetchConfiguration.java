@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.services;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Configuration of the {@link QueryPrefetchService}. Prefetching is deactivated by default
+ */
+@ConfigurationProperties(prefix="smarti.query.prefetch")
+public class QueryPrefetchConfiguration {
+
+    public static final int DEFAULT_MAX_TEMPLATES = 2;
+    public static final int DEFAULT_MAX_QUERIES = 4;
+    public static final int DEFAULT_NUM_THREADS = 2;
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_CACHE_EXPIRE = 120; //2min
+
+    private static final String THREAD_NAME = "smarti-query-prefetch-thread-%d";
+
+    private boolean enabled = false;
+
+    private Set<String> clients = new HashSet<>();
+
+    private int maxTemplates = DEFAULT_MAX_TEMPLATES;
+
+    private int maxQueries = DEFAULT_MAX_QUERIES;
+
+    private int numThreads = DEFAULT_NUM_THREADS;
+
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    private int cacheExpire = DEFAULT_CACHE_EXPIRE;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The names or ids of the clients that opted in for prefetching. If empty prefetching is
+     * done for all clients
+     */
+    public Set<String> getClients() {
+        return clients;
+    }
+
+    public void setClients(Set<String> clients) {
+        this.clients = clients == null ? new HashSet<>() : clients;
+    }
+
+    /**
+     * The maximum number of templates (first N of the analysis) queries are prefetched for
+     */
+    public int getMaxTemplates() {
+        return maxTemplates;
+    }
+
+    public void setMaxTemplates(int maxTemplates) {
+        this.maxTemplates = maxTemplates < 0 ? DEFAULT_MAX_TEMPLATES : maxTemplates;
+    }
+
+    /**
+     * The maximum number of queries prefetched for a single analysis
+     */
+    public int getMaxQueries() {
+        return maxQueries;
+    }
+
+    public void setMaxQueries(int maxQueries) {
+        this.maxQueries = maxQueries < 0 ? DEFAULT_MAX_QUERIES : maxQueries;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads <= 0 ? DEFAULT_NUM_THREADS : numThreads;
+    }
+
+    /**
+     * The maximum number of queued prefetch tasks. If the queue is full additional
+     * prefetch tasks are dropped
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize <= 0 ? DEFAULT_QUEUE_SIZE : queueSize;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize <= 0 ? DEFAULT_CACHE_SIZE : cacheSize;
+    }
+
+    /**
+     * The time (in seconds) prefetched results are kept
+     */
+    public int getCacheExpire() {
+        return cacheExpire;
+    }
+
+    public void setCacheExpire(int cacheExpire) {
+        this.cacheExpire = cacheExpire <= 0 ? DEFAULT_CACHE_EXPIRE : cacheExpire;
+    }
+
+    /**
+     * @return if prefetching is enabled for the client with the parsed name or id
+     */
+    public boolean isEnabled(String clientName, String clientId) {
+        return enabled && (clients.isEmpty() || clients.contains(clientName) || clients.contains(clientId));
+    }
+
+    /**
+     * Creates the bounded executor used for prefetching. Tasks exceeding the {@link #getQueueSize() queue size}
+     * are rejected
+     */
+    public ExecutorService createExecuterService(){
+        return new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new BasicThreadFactory.Builder()
+                .daemon(true)
+                .namingPattern(THREAD_NAME)
+                .build(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import io.redlink.smarti.events.AnalysisCompleteEvent;
+import io.redlink.smarti.model.*;
+import io.redlink.smarti.model.result.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.LinkedMultiValueMap;
+
+import javax.annotation.PreDestroy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetches inline results for the queries of the latest {@link Analysis} of a conversation.<p>
+ * Listens to {@link AnalysisCompleteEvent}s and executes queries supporting inline results of the
+ * first {@link QueryPrefetchConfiguration#getMaxTemplates() N templates} on a bounded thread pool. 
+ * The futures of the results are kept in a short-lived cache so that 
+ * {@link AnalysisService#getInlineResultsAsync(Client, Conversation, Analysis, Template, String, org.springframework.util.MultiValueMap)}
+ * can use them instead of executing the query.<p>
+ * Prefetching is opt-in (see {@link QueryPrefetchConfiguration}). Hit rates are exposed as {@link PublicMetrics}.
+ */
+@Service
+@EnableConfigurationProperties(QueryPrefetchConfiguration.class)
+public class QueryPrefetchService implements PublicMetrics {
+
+    private static final String METRIC_PREFIX = "smarti.query.prefetch.";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final QueryPrefetchConfiguration config;
+
+    private final QueryBuilderService queryBuilderService;
+
+    private final ExecutorService prefetchExecutor;
+
+    private final Cache<String, CompletableFuture<SearchResult<? extends Result>>> prefetched;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public QueryPrefetchService(QueryPrefetchConfiguration config, QueryBuilderService queryBuilderService) {
+        this.config = config;
+        this.queryBuilderService = queryBuilderService;
+        if(config.isEnabled()){
+            log.info("Query prefetching enabled for {} (maxTemplates: {}, maxQueries: {}, threads: {})",
+                    config.getClients().isEmpty() ? "all clients" : config.getClients(), 
+                    config.getMaxTemplates(), config.getMaxQueries(), config.getNumThreads());
+            this.prefetchExecutor = config.createExecuterService();
+            this.prefetched = CacheBuilder.newBuilder()
+                    .maximumSize(config.getCacheSize())
+                    .expireAfterWrite(config.getCacheExpire(), TimeUnit.SECONDS)
+                    .build();
+        } else {
+            log.debug("Query prefetching disabled");
+            this.prefetchExecutor = null;
+            this.prefetched = null;
+        }
+    }
+
+    private boolean isEnabled(Client client) {
+        return prefetched != null && client != null && 
+                config.isEnabled(client.getName(), client.getId() == null ? null : client.getId().toHexString());
+    }
+
+    @EventListener
+    protected void onAnalysisComplete(AnalysisCompleteEvent event) {
+        final Client client = event.getClient();
+        final Conversation conversation = event.getConversation();
+        final Analysis analysis = event.getAnalysis();
+        if(!isEnabled(client) || conversation == null || analysis == null){
+            return;
+        }
+        int numQueries = 0;
+        final List<Template> templates = analysis.getTemplates();
+        for(int i = 0; i < templates.size() && i < config.getMaxTemplates(); i++){
+            final Template template = templates.get(i);
+            if(template.getState() == State.Rejected){
+                continue;
+            }
+            for(Query query : template.getQueries()){
+                if(numQueries >= config.getMaxQueries()){
+                    return;
+                }
+                if(query.isInlineResultSupport() && query.getCreator() != null && query.getState() != State.Rejected){
+                    if(prefetch(client, conversation, analysis, template, query.getCreator())){
+                        numQueries++;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean prefetch(Client client, Conversation conversation, Analysis analysis, Template template, String creator) {
+        final String key = getKey(client, conversation, analysis, template, creator);
+        if(prefetched.getIfPresent(key) != null){
+            return false; //already prefetched
+        }
+        final CompletableFuture<SearchResult<? extends Result>> future;
+        try {
+            future = queryBuilderService.executeAsync(client, creator, template, conversation, analysis, 
+                    new LinkedMultiValueMap<>(), prefetchExecutor);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            log.debug("Unable to prefetch results of {} for {} (queue full)", creator, conversation.getId());
+            return false;
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.warn("Unable to prefetch results of {} for {} ({} - {})", creator, conversation.getId(),
+                    e.getClass().getSimpleName(), e.getMessage());
+            log.debug("STACKTRACE: ", e);
+            return false;
+        }
+        submitted.incrementAndGet();
+        prefetched.put(key, future);
+        future.whenComplete((r, e) -> {
+            if(e != null){ //do not keep failed results
+                failed.incrementAndGet();
+                prefetched.asMap().remove(key, future);
+                log.debug("prefetching results of {} for {} failed ({} - {})", creator, conversation.getId(),
+                        e.getClass().getSimpleName(), e.getMessage());
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Getter for the prefetched results of the query with the parsed creator for the parsed template
+     * @return the future on the prefetched results or <code>null</code> if not available
+     */
+    public CompletableFuture<SearchResult<? extends Result>> getPrefetched(Client client, Conversation conversation, Analysis analysis, Template template, String creator) {
+        if(!isEnabled(client) || conversation == null || analysis == null || template == null){
+            return null;
+        }
+        final CompletableFuture<SearchResult<? extends Result>> future = 
+                prefetched.getIfPresent(getKey(client, conversation, analysis, template, creator));
+        if(future == null || future.isCompletedExceptionally()){
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return future;
+        }
+    }
+
+    /**
+     * The key includes the analysis date and a hash over the slots and tokens of the template so that
+     * prefetched results are only used for the exact same template.
+     */
+    private static String getKey(Client client, Conversation conversation, Analysis analysis, Template template, String creator) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(String.valueOf(template.getType()), StandardCharsets.UTF_8).putByte((byte)0);
+        final List<Token> tokens = analysis.getTokens();
+        final SortedSet<String> slots = new TreeSet<>(); //sorted as slots are a Set
+        for(Slot slot : template.getSlots()){
+            final int idx = slot.getTokenIndex();
+            final Token token = idx >= 0 && idx < tokens.size() ? tokens.get(idx) : null;
+            slots.add(slot.getRole() + '|' + idx + '|' + (token == null ? "" : (token.getType() + "|" + token.getValue())));
+        }
+        slots.forEach(s -> hasher.putString(s, StandardCharsets.UTF_8).putByte((byte)0));
+        return new StringBuilder()
+                .append(client.getId()).append('|')
+                .append(conversation.getId()).append('|')
+                .append(analysis.getDate() == null ? -1 : analysis.getDate().getTime()).append('|')
+                .append(creator).append('|')
+                .append(hasher.hash())
+                .toString();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        if(prefetched == null){
+            return Collections.emptyList();
+        }
+        final long numHits = hits.get();
+        final long numLookups = numHits + misses.get();
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "submitted", submitted.get()),
+                new Metric<>(METRIC_PREFIX + "rejected", rejected.get()),
+                new Metric<>(METRIC_PREFIX + "failed", failed.get()),
+                new Metric<>(METRIC_PREFIX + "hits", numHits),
+                new Metric<>(METRIC_PREFIX + "misses", misses.get()),
+                new Metric<>(METRIC_PREFIX + "hitRate", numLookups > 0 ? numHits / (double)numLookups : 0d),
+                new Metric<>(METRIC_PREFIX + "cached", prefetched.size()));
+    }
+
+    @PreDestroy
+    protected void shutdown() {
+        if(prefetchExecutor != null){
+            prefetchExecutor.shutdownNow();
+        }
+    }
+}
@@ -21,14 +21,23 @@ import io.redlink.smarti.model.Analysis;
 import io.redlink.smarti.model.Client;
 import io.redlink.smarti.model.Conversation;
 import io.redlink.smarti.model.Template;
+
+import com.mongodb.BasicDBObject;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.stereotype.Component;
 
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  */
@@ -39,14 +48,25 @@ public class TemplateService {
 
     private final List<TemplateBuilder> templateBuilders;
 
+    /**
+     * Used to copy {@link Template}s reused from a previous analysis
+     */
+    private final MongoConverter converter;
+
+    /**
+     * Creates a service without any {@link TemplateBuilder}s. As no templates are built, there are also
+     * no templates that could be reused from a previous analysis.
+     */
     public TemplateService() {
         this.templateBuilders = Collections.emptyList();
+        this.converter = null;
     }
 
     @Autowired(required = false)
-    public TemplateService(Optional<List<TemplateBuilder>> templateBuilders) {
+    public TemplateService(Optional<List<TemplateBuilder>> templateBuilders, MongoTemplate mongoTemplate) {
         log.debug("Start TempalteService (TemplateBuilders: {})", templateBuilders);
         this.templateBuilders = templateBuilders.orElse(Collections.emptyList());
+        this.converter = Objects.requireNonNull(mongoTemplate, "the MongoTemplate MUST NOT be NULL").getConverter();
     }
 
     /**
@@ -59,11 +79,61 @@ public class TemplateService {
      * @param analysis the analysis results for the conversation
      */
     public void updateTemplates(Client client, Conversation con, Analysis analysis) {
+        updateTemplates(client, con, analysis, null);
+    }
+
+    /**
+     * Builds and updates {@link Template}s for the parsed conversation. If a previous {@link Analysis}
+     * is parsed {@link Template}s (including their {@link Template#getQueries() queries}) of builders
+     * where the {@link TemplateBuilder#getFingerprint(Conversation, Analysis) fingerprint} has not 
+     * changed are taken from the previous analysis instead of building them again.
+     * @param client the client to build the templates for 
+     * @param con the conversation
+     * @param analysis the analysis results for the conversation
+     * @param previous the previous analysis of the conversation for the same client and configuration
+     * or <code>null</code> if none
+     * @return the {@link Template}s taken from the previous analysis. Queries for those do not need to be rebuilt 
+     */
+    public Set<Template> updateTemplates(Client client, Conversation con, Analysis analysis, Analysis previous) {
         //TODO: get template configuration for parsed client
         log.debug("Update QueryTemplates for {}", con);
         final long templStart = System.currentTimeMillis();
-        templateBuilders.forEach(builder -> builder.updateTemplate(con, analysis));
-        log.debug("Created QueryTemplates for {} in {}ms", con, System.currentTimeMillis() - templStart);
+        final Set<Template> reused = new HashSet<>();
+        templateBuilders.forEach(builder -> {
+            final String fingerprint = builder.getFingerprint(con, analysis);
+            final List<Template> previousTemplates = previous == null || fingerprint == null ? Collections.emptyList() :
+                previous.getTemplates().stream()
+                    .filter(t -> Objects.equals(builder.getTemplateType(), t.getType()))
+                    .collect(Collectors.toList());
+            if(!previousTemplates.isEmpty() && previousTemplates.stream()
+                    .allMatch(t -> Objects.equals(fingerprint, t.getFingerprint()))){
+                log.trace("reuse {} templates of type {} from previous analysis", previousTemplates.size(), builder.getTemplateType());
+                previousTemplates.stream()
+                    .map(this::copyTemplate)
+                    .forEach(t -> {
+                        analysis.getTemplates().add(t);
+                        reused.add(t);
+                    });
+            } else {
+                final int numTemplates = analysis.getTemplates().size();
+                builder.updateTemplate(con, analysis);
+                analysis.getTemplates().subList(numTemplates, analysis.getTemplates().size())
+                    .forEach(t -> t.setFingerprint(fingerprint));
+            }
+        });
+        log.debug("Created QueryTemplates for {} in {}ms (reused: {})", con, System.currentTimeMillis() - templStart, reused.size());
+        return reused;
+    }
+
+    /**
+     * Creates a deep copy of the parsed template (incl. its slots and {@link io.redlink.smarti.model.Query queries})
+     * as the previous analysis might be cached and returned to other callers. The copy is created
+     * by the mongo converter as it supports all {@link io.redlink.smarti.model.Query} implementations.
+     */
+    private Template copyTemplate(Template template) {
+        final BasicDBObject dbo = new BasicDBObject();
+        converter.write(template, dbo);
+        return converter.read(Template.class, dbo);
     }
 
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.redlink.smarti.cloudsync;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.test.context.ContextConfiguration;
+
+import io.redlink.smarti.cloudsync.ConversationCloudSync.ConversytionSyncCallback;
+import io.redlink.smarti.cloudsync.ConversationCloudSync.IndexingStatus;
+import io.redlink.smarti.cloudsync.ConversationCloudSync.SyncData;
+import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.Message;
+import io.redlink.smarti.repositories.ConversationRepoListener;
+import io.redlink.smarti.repositories.ConversationRepository;
+import io.redlink.smarti.test.SpringServiceTest;
+
+@ContextConfiguration(classes={ConversationRepoListener.class})
+@EnableMongoRepositories(basePackageClasses={ConversationRepository.class})
+@EnableAutoConfiguration
+public class ConversationCloudSyncTest extends SpringServiceTest {
+
+    private static final int NUM_CONVERSATIONS = 2 * ConversationCloudSyncConfiguration.MIN_EPOCH_SIZE + 10;
+
+    @Autowired
+    private ConversationRepository conversationRepo;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private ConversationCloudSync cloudSync;
+
+    private final List<ObjectId> conversations = new ArrayList<>();
+
+    @Before
+    public void createConversations() {
+        final ConversationCloudSyncConfiguration config = new ConversationCloudSyncConfiguration();
+        config.setPartitions(1);
+        config.setEpochSize(ConversationCloudSyncConfiguration.MIN_EPOCH_SIZE);
+        cloudSync = new ConversationCloudSync(config, conversationRepo, mongoTemplate);
+        //distinct modification dates so that every epoch ends with an other date
+        final long modified = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(2);
+        for(int i = 0; i < NUM_CONVERSATIONS; i++){
+            final Conversation conv = new Conversation();
+            conv.setOwner(new ObjectId());
+            conv.getMessages().add(new Message("msg-0"));
+            conv.getMessages().add(new Message("msg-1"));
+            final ObjectId id = conversationRepo.save(conv).getId();
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(id)), 
+                    Update.update("lastModified", new Date(modified + i)), Conversation.class);
+            conversations.add(id);
+        }
+    }
+
+    @After
+    public void removeConversations() {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").in(conversations)), Conversation.class);
+    }
+
+    /**
+     * A non partitioned rebuild over several epochs needs to parse all conversations with the same
+     * sync date as otherwise documents indexed by earlier epochs are considered as orphaned
+     */
+    @Test
+    public void testRebuildWithSinglePartition() {
+        final RecordingCallback callback = new RecordingCallback();
+        final SyncData rebuild = cloudSync.rebuild("test-rebuild", callback, new IndexingStatus());
+        Assert.assertNotNull(rebuild.getRebuildDate());
+        Assert.assertTrue(callback.syncDates.keySet().containsAll(conversations));
+        for(ObjectId id : conversations){
+            //documents with a sync date before the rebuild date would be removed as orphans
+            Assert.assertEquals(rebuild.getRebuildDate(), callback.syncDates.get(id));
+        }
+        Assert.assertFalse(cloudSync.isRebuildPending("test-rebuild"));
+    }
+
+    @Test
+    public void testSyncHasNoRebuildDate() {
+        final RecordingCallback callback = new RecordingCallback();
+        final SyncData sync = cloudSync.syncAll(callback, new IndexingStatus());
+        Assert.assertNull(sync.getRebuildDate());
+        //conversations are parsed with the modification date of their epoch
+        Assert.assertTrue(new HashSet<>(callback.syncDates.values()).size() > 1);
+        Assert.assertEquals(sync.getSyncDate(), callback.syncDates.get(conversations.get(conversations.size() - 1)));
+    }
+
+    private static class RecordingCallback implements ConversytionSyncCallback {
+
+        final Map<ObjectId, Date> syncDates = new HashMap<>();
+
+        @Override
+        public void removeConversation(ObjectId conversationId, Date syncDate) {
+            syncDates.put(conversationId, syncDate);
+        }
+
+        @Override
+        public void updateConversation(Conversation conversation, Date syncDate) {
+            syncDates.put(conversation.getId(), syncDate);
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+    }
+}
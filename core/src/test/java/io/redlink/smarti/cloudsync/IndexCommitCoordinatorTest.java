@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.cloudsync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexCommitCoordinatorTest {
+
+    private static final long MAX_LATENCY = 200;
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final RecordingCommitter committer = new RecordingCommitter();
+
+    private IndexCommitCoordinator coordinator;
+
+    @After
+    public void close() {
+        if(coordinator != null){
+            coordinator.close();
+        }
+    }
+
+    @Test
+    public void testScheduledSoftCommit() throws InterruptedException {
+        coordinator = new IndexCommitCoordinator("test", committer, MAX_LATENCY, NEVER, null);
+        for(int i = 0; i < 100; i++){
+            coordinator.updated();
+        }
+        //updates become visible within the max latency by a single soft commit
+        final long start = System.currentTimeMillis();
+        while(committer.getCommits(true, true).isEmpty() && System.currentTimeMillis() - start < 10 * MAX_LATENCY){
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(coordinator.awaitVisible(0)); //visible without requesting a commit
+        Thread.sleep(2 * MAX_LATENCY); //no further commits without updates
+        Assert.assertEquals(1, committer.getCommits(true, true).size());
+        Assert.assertTrue(committer.getCommits(false, false).isEmpty());
+    }
+
+    @Test
+    public void testRequestedSoftCommitsCoalesced() throws Exception {
+        coordinator = new IndexCommitCoordinator("test", committer, NEVER, NEVER, null);
+        for(int i = 0; i < 100; i++){
+            coordinator.updated();
+        }
+        final ExecutorService callers = Executors.newFixedThreadPool(10);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for(int i = 0; i < 50; i++){
+                results.add(callers.submit(() -> {
+                    coordinator.requestCommit();
+                    return coordinator.awaitVisible(IndexCommitCoordinator.DEFAULT_AWAIT_TIMEOUT);
+                }));
+            }
+            for(Future<Boolean> result : results){
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            callers.shutdown();
+        }
+        //all requests are served by a single soft commit on the commit thread
+        final List<Commit> commits = committer.getCommits(true, true);
+        Assert.assertEquals(1, commits.size());
+        Assert.assertTrue(commits.get(0).thread.startsWith("test-commit-thread"));
+        //already visible updates do not cause a commit
+        coordinator.requestCommit();
+        Assert.assertTrue(coordinator.awaitVisible(0));
+        Assert.assertEquals(1, committer.commits.size());
+    }
+
+    @Test
+    public void testHardCommitsCoalesced() throws Exception {
+        coordinator = new IndexCommitCoordinator("test", committer, NEVER, MAX_LATENCY, null);
+        for(int i = 0; i < 100; i++){
+            coordinator.updated();
+        }
+        final ExecutorService callers = Executors.newFixedThreadPool(10);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for(int i = 0; i < 10; i++){
+                results.add(callers.submit(coordinator::awaitDurable));
+            }
+            for(Future<Boolean> result : results){
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            callers.shutdown();
+        }
+        Thread.sleep(2 * MAX_LATENCY); //scheduled hard commits only if there are new updates
+        Assert.assertEquals(1, committer.getCommits(false, false).size());
+        
+        //new updates are persisted by the scheduled hard commit
+        coordinator.updated();
+        coordinator.updated();
+        Thread.sleep(3 * MAX_LATENCY);
+        Assert.assertEquals(2, committer.getCommits(false, false).size());
+        Assert.assertTrue(coordinator.awaitDurable());
+        Assert.assertEquals(2, committer.commits.size());
+    }
+
+    @Test
+    public void testCommitAfterClose() throws InterruptedException {
+        coordinator = new IndexCommitCoordinator("test", committer, NEVER, NEVER, null);
+        coordinator.updated();
+        coordinator.close();
+        //pending updates are committed by close
+        Assert.assertEquals(1, committer.commits.size());
+        Assert.assertFalse(committer.commits.get(0).soft);
+        Assert.assertTrue(committer.commits.get(0).openSearcher);
+        
+        //after close commits are executed by the calling thread
+        coordinator.updated();
+        coordinator.requestCommit();
+        Assert.assertTrue(coordinator.awaitVisible(0));
+        coordinator.updated();
+        Assert.assertTrue(coordinator.awaitDurable());
+        Assert.assertTrue(coordinator.commit());
+        Assert.assertEquals(4, committer.commits.size());
+        final String caller = Thread.currentThread().getName();
+        for(Commit commit : committer.commits){
+            Assert.assertEquals(caller, commit.thread);
+        }
+        Assert.assertTrue(committer.commits.get(1).soft);
+        Assert.assertFalse(committer.commits.get(2).soft);
+        Assert.assertFalse(committer.commits.get(2).openSearcher);
+        Assert.assertTrue(committer.commits.get(3).openSearcher);
+    }
+
+    @Test
+    public void testFailedCommit() throws InterruptedException {
+        coordinator = new IndexCommitCoordinator("test", (soft, openSearcher) -> {
+            throw new IllegalStateException("Solr not available");
+        }, NEVER, NEVER, null);
+        coordinator.updated();
+        Assert.assertFalse(coordinator.awaitDurable());
+        Assert.assertFalse(coordinator.commit());
+        Assert.assertFalse(coordinator.awaitVisible(MAX_LATENCY));
+    }
+
+    private static class Commit {
+        final boolean soft;
+        final boolean openSearcher;
+        final String thread;
+
+        Commit(boolean soft, boolean openSearcher) {
+            this.soft = soft;
+            this.openSearcher = openSearcher;
+            this.thread = Thread.currentThread().getName();
+        }
+    }
+
+    private static class RecordingCommitter implements IndexCommitCoordinator.Committer {
+
+        final List<Commit> commits = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void commit(boolean softCommit, boolean openSearcher) {
+            commits.add(new Commit(softCommit, openSearcher));
+        }
+
+        List<Commit> getCommits(boolean soft, boolean openSearcher) {
+            return commits.stream()
+                    .filter(c -> c.soft == soft && c.openSearcher == openSearcher)
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.cloudsync;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexingMetricsTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    public void testRecentFailed() {
+        final long now = System.currentTimeMillis();
+        IndexingMetrics metrics = new IndexingMetrics("test");
+        metrics.failed(5, now - 30 * MINUTE);
+        metrics.failed(3, now - 5 * MINUTE);
+        metrics.failed(2, now);
+        Assert.assertEquals(10, metrics.getFailed());
+        Assert.assertEquals(2, metrics.getFailed(MINUTE / 2, now));
+        Assert.assertEquals(5, metrics.getFailed(15 * MINUTE, now));
+        Assert.assertEquals(10, metrics.getFailed(IndexingMetrics.MAX_FAILURE_WINDOW, now));
+        //failures older as the max window are no longer counted
+        Assert.assertEquals(5, metrics.getFailed(IndexingMetrics.MAX_FAILURE_WINDOW, now + 40 * MINUTE));
+        //buckets are reused after the max window
+        metrics.failed(1, now + IndexingMetrics.MAX_FAILURE_WINDOW);
+        Assert.assertEquals(1, metrics.getFailed(MINUTE / 2, now + IndexingMetrics.MAX_FAILURE_WINDOW));
+        Assert.assertEquals(11, metrics.getFailed());
+    }
+}
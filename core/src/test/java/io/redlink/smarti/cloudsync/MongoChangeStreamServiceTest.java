@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.redlink.smarti.cloudsync;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+import io.redlink.smarti.cloudsync.MongoChangeStreamService.ChangeListener;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService.ChangeStream;
+import io.redlink.smarti.model.Conversation;
+
+/**
+ * Tests the resume position handling of {@link MongoChangeStreamService} against a simulated oplog
+ */
+public class MongoChangeStreamServiceTest {
+
+    private static final String DB_NAME = "smarti";
+    private static final String NS = DB_NAME + ".conversation";
+
+    /**
+     * The entries of the simulated oplog (ordered by <code>ts</code>)
+     */
+    private final List<Document> oplogEntries = new CopyOnWriteArrayList<>();
+    /**
+     * The stored resume position
+     */
+    private final AtomicReference<BsonTimestamp> storedToken = new AtomicReference<>();
+
+    private final List<ObjectId> changes = new CopyOnWriteArrayList<>();
+    private final List<Date> historyLost = new CopyOnWriteArrayList<>();
+
+    private MongoChangeStreamService service;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void init() {
+        final MongoCollection<Document> oplog = mock(MongoCollection.class);
+        when(oplog.find()).thenAnswer(i -> createFindIterable(null));
+        when(oplog.find(any(Bson.class))).thenAnswer(i -> createFindIterable((Bson)i.getArguments()[0]));
+        final MongoDatabase local = mock(MongoDatabase.class);
+        when(local.getCollection("oplog.rs")).thenReturn(oplog);
+        final MongoClient client = mock(MongoClient.class);
+        when(client.getDatabase("local")).thenReturn(local);
+        final DB db = mock(DB.class);
+        when(db.getName()).thenReturn(DB_NAME);
+        when(db.getMongo()).thenReturn(client);
+
+        final DBCollection tokens = mock(DBCollection.class);
+        when(tokens.findOne(any(DBObject.class))).thenAnswer(i -> {
+            final BsonTimestamp ts = storedToken.get();
+            return ts == null ? null : new BasicDBObject("time", ts.getTime()).append("inc", ts.getInc());
+        });
+        final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.getDb()).thenReturn(db);
+        when(mongoTemplate.getCollectionName(Conversation.class)).thenReturn("conversation");
+        when(mongoTemplate.getCollection(MongoChangeStreamService.COLLECTION)).thenReturn(tokens);
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(MongoChangeStreamService.COLLECTION))).thenAnswer(i -> {
+            final DBObject set = (DBObject)((Update)i.getArguments()[1]).getUpdateObject().get("$set");
+            storedToken.set(new BsonTimestamp(((Number)set.get("time")).intValue(), ((Number)set.get("inc")).intValue()));
+            return null;
+        });
+
+        final ConversationCloudSyncConfiguration config = new ConversationCloudSyncConfiguration();
+        config.getChangeStream().setEnabled(true);
+        config.getChangeStream().setMaxAwait(100);
+        service = new MongoChangeStreamService(config, mongoTemplate);
+    }
+
+    @After
+    public void shutdown() {
+        service.shutdown();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        final ObjectId inserted = new ObjectId();
+        final ObjectId updated = new ObjectId();
+        storedToken.set(new BsonTimestamp(10, 1));
+        oplogEntries.addAll(Arrays.asList(
+                createEntry(10, 0, NS, "i", new ObjectId()),
+                createEntry(10, 1, NS, "i", new ObjectId()), //the resume position
+                createEntry(11, 0, NS, "i", inserted),
+                createEntry(12, 0, NS, "u", updated),
+                createEntry(13, 0, DB_NAME + ".other", "i", new ObjectId())));
+
+        final ChangeStream stream = service.watch("test", Conversation.class, createListener());
+        Assert.assertNotNull(stream);
+        //changes after the resume position are parsed and the position is advanced to the last entry
+        await(() -> new BsonTimestamp(13, 0).equals(storedToken.get()));
+        Assert.assertEquals(Arrays.asList(inserted, updated), changes);
+        Assert.assertTrue(historyLost.isEmpty());
+        Assert.assertEquals(new Date(12 * 1000L), stream.getLastChange());
+        stream.close();
+    }
+
+    @Test
+    public void testAdvanceWithoutChanges() throws Exception {
+        storedToken.set(new BsonTimestamp(10, 0));
+        oplogEntries.addAll(Arrays.asList(
+                createEntry(10, 0, NS, "i", new ObjectId()), //the resume position
+                createEntry(11, 0, DB_NAME + ".other", "i", new ObjectId()),
+                createEntry(12, 0, "", "n", null), //periodic no-op
+                createEntry(13, 0, DB_NAME + '.' + MongoChangeStreamService.COLLECTION, "u", null)));
+
+        final ChangeStream stream = service.watch("test", Conversation.class, createListener());
+        //entries of other collections and no-ops advance the position ...
+        await(() -> new BsonTimestamp(12, 0).equals(storedToken.get()));
+        //... but not writes of resume positions
+        TimeUnit.MILLISECONDS.sleep(300);
+        Assert.assertEquals(new BsonTimestamp(12, 0), storedToken.get());
+        Assert.assertTrue(changes.isEmpty());
+        Assert.assertTrue(historyLost.isEmpty());
+        stream.close();
+    }
+
+    @Test
+    public void testHistoryLost() throws Exception {
+        storedToken.set(new BsonTimestamp(5, 0)); //older as the first entry of the oplog
+        oplogEntries.addAll(Arrays.asList(
+                createEntry(10, 0, NS, "i", new ObjectId()),
+                createEntry(11, 0, NS, "d", new ObjectId())));
+
+        final ChangeStream stream = service.watch("test", Conversation.class, createListener());
+        //listeners need to catch up since the lost position and the stream continues at the end of the oplog
+        await(() -> !historyLost.isEmpty() && new BsonTimestamp(11, 0).equals(storedToken.get()));
+        Assert.assertEquals(Collections.singletonList(new Date(5 * 1000L)), historyLost);
+        
+        //changes after the end are parsed
+        final ObjectId inserted = new ObjectId();
+        oplogEntries.add(createEntry(12, 0, NS, "i", inserted));
+        stream.close();
+        final ChangeStream resumed = service.watch("test", Conversation.class, createListener());
+        await(() -> new BsonTimestamp(12, 0).equals(storedToken.get()));
+        Assert.assertEquals(Collections.singletonList(inserted), changes);
+        Assert.assertEquals(1, historyLost.size());
+        resumed.close();
+    }
+
+    private ChangeListener createListener() {
+        return new ChangeListener() {
+            
+            @Override
+            public void onChanges(Collection<ObjectId> ids) {
+                changes.addAll(ids);
+            }
+            
+            @Override
+            public void onHistoryLost(Date since) {
+                historyLost.add(since);
+            }
+        };
+    }
+
+    private static Document createEntry(int time, int inc, String ns, String op, ObjectId id) {
+        final Document entry = new Document("ts", new BsonTimestamp(time, inc)).append("ns", ns).append("op", op);
+        if(id != null){
+            entry.append("u".equals(op) ? "o2" : "o", new Document("_id", id));
+        }
+        return entry;
+    }
+
+    /**
+     * Creates a {@link FindIterable} over the simulated oplog. Supports sorting by <code>$natural</code>
+     * (for the first and last entry) and the <code>ts</code> filter used for tailing
+     */
+    @SuppressWarnings("unchecked")
+    private FindIterable<Document> createFindIterable(Bson filter) {
+        final BsonTimestamp after = filter == null ? null : toBsonDocument(filter).getDocument("ts").getTimestamp("$gt");
+        final AtomicInteger order = new AtomicInteger(1);
+        return mock(FindIterable.class, i -> {
+            switch(i.getMethod().getName()){
+                case "sort":
+                    order.set(toBsonDocument((Bson)i.getArguments()[0]).getInt32("$natural").getValue());
+                    return i.getMock();
+                case "first":
+                    return oplogEntries.isEmpty() ? null : oplogEntries.get(order.get() > 0 ? 0 : oplogEntries.size() - 1);
+                case "iterator":
+                    return createCursor(after);
+                default:
+                    return FindIterable.class.equals(i.getMethod().getReturnType()) ? i.getMock() : null;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private MongoCursor<Document> createCursor(BsonTimestamp after) {
+        final Iterator<Document> entries = oplogEntries.stream()
+                .filter(e -> compare((BsonTimestamp)e.get("ts"), after) > 0)
+                .collect(Collectors.toList()).iterator();
+        final MongoCursor<Document> cursor = mock(MongoCursor.class);
+        when(cursor.tryNext()).thenAnswer(i -> {
+            if(entries.hasNext()){
+                return entries.next();
+            }
+            TimeUnit.MILLISECONDS.sleep(10); //simulate the await time of tailable cursors
+            return null;
+        });
+        return cursor;
+    }
+
+    private static int compare(BsonTimestamp ts1, BsonTimestamp ts2) {
+        return ts1.getTime() != ts2.getTime() ? Integer.compare(ts1.getTime(), ts2.getTime()) : 
+            Integer.compare(ts1.getInc(), ts2.getInc());
+    }
+
+    private static org.bson.BsonDocument toBsonDocument(Bson bson) {
+        return bson.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while(!condition.getAsBoolean()){
+            Assert.assertTrue("condition not met within 5sec", System.currentTimeMillis() < timeout);
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+}
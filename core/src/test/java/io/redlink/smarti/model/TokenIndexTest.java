@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.stream.Collectors;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.redlink.smarti.model.Token.Hint;
+import io.redlink.smarti.model.Token.Type;
+
+public class TokenIndexTest {
+
+    @Test
+    public void testLookup() {
+        final Token berlin = token(0, 0, 6, Type.Place, "Berlin", Hint.from);
+        final Token munich = token(0, 10, 17, Type.Place, "München", Hint.to);
+        final Token date = token(1, 0, 6, Type.Date, "morgen", Hint.depart);
+        final Token keyword = token(3, 5, 12, Type.Keyword, "Ticket");
+        keyword.setState(State.Confirmed);
+        final TokenIndex index = new TokenIndex(Arrays.asList(berlin, munich, date, keyword));
+        
+        Assert.assertEquals(4, index.size());
+        Assert.assertSame(munich, index.getToken(1));
+        Assert.assertNull(index.getToken(-1));
+        Assert.assertNull(index.getToken(4));
+        Assert.assertEquals(bits(0, 1, 2, 3), index.getAll());
+        
+        Assert.assertEquals(bits(0, 1), index.getByType(Type.Place));
+        Assert.assertEquals(bits(0, 1, 2), index.getByType(Type.Place, Type.Date));
+        Assert.assertEquals(bits(), index.getByType(Type.Person));
+        Assert.assertEquals(index.getAll(), index.getByType()); //no type: all tokens
+        
+        Assert.assertEquals(bits(0), index.getByHint(Hint.from));
+        Assert.assertEquals(bits(1), index.getByHint(Hint.to.name()));
+        Assert.assertEquals(bits(), index.getByHint("unknown"));
+        
+        Assert.assertEquals(bits(3), index.getByState(State.Confirmed));
+        Assert.assertEquals(bits(0, 1, 2), index.getByState(State.Suggested));
+        
+        Assert.assertEquals(bits(0, 1), index.getByMessage(0));
+        Assert.assertEquals(bits(), index.getByMessage(2)); //message without tokens
+        Assert.assertEquals(bits(), index.getByMessage(10));
+        Assert.assertEquals(bits(2, 3), index.getFromMessage(1));
+        Assert.assertEquals(index.getAll(), index.getFromMessage(-1));
+        
+        final BitSet selected = index.getByType(Type.Place);
+        selected.and(index.getFromMessage(0));
+        Assert.assertEquals(Arrays.asList(berlin, munich), index.stream(selected).collect(Collectors.toList()));
+        
+        //returned sets are copies
+        index.getByHint(Hint.from).set(3);
+        index.getByMessage(0).clear();
+        Assert.assertEquals(bits(0), index.getByHint(Hint.from));
+        Assert.assertEquals(bits(0, 1), index.getByMessage(0));
+    }
+
+    @Test
+    public void testOverlappingTokens() {
+        //"München Hauptbahnhof" as place and "München" as entity and place (from an other extractor)
+        final Token station = token(0, 0, 20, Type.Place, "München Hauptbahnhof", Hint.from);
+        final Token city = token(0, 0, 7, Type.Place, "München", Hint.from, Hint.at);
+        final Token entity = token(0, 0, 7, Type.Entity, "München");
+        final Token other = token(1, 0, 4, Type.Place, "Wien", Hint.to);
+        final TokenIndex index = new TokenIndex(Arrays.asList(station, city, null, entity, other));
+        
+        //all overlapping tokens are indexed by their own index (null tokens are skipped)
+        Assert.assertEquals(5, index.size());
+        Assert.assertEquals(bits(0, 1, 3), index.getByMessage(0));
+        Assert.assertEquals(bits(0, 1, 4), index.getByType(Type.Place));
+        Assert.assertEquals(bits(0, 1, 3, 4), index.getByType(Type.Place, Type.Entity));
+        Assert.assertEquals(bits(0, 1), index.getByHint(Hint.from));
+        Assert.assertEquals(bits(1), index.getByHint(Hint.at));
+        Assert.assertNull(index.getToken(2));
+        
+        final BitSet from = index.getByHint(Hint.from);
+        from.and(index.getByMessage(0));
+        Assert.assertEquals(Arrays.asList(station, city), index.stream(from).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testRemoval() {
+        final Analysis analysis = new Analysis(new ObjectId(), new Date());
+        final Token berlin = token(0, 0, 6, Type.Place, "Berlin", Hint.from);
+        final Token munich = token(1, 0, 7, Type.Place, "München", Hint.to);
+        final Token keyword = token(1, 8, 14, Type.Keyword, "Ticket");
+        analysis.getTokens().addAll(Arrays.asList(berlin, munich, keyword));
+        
+        final TokenIndex index = analysis.getTokenIndex();
+        Assert.assertSame(index, analysis.getTokenIndex()); //not rebuilt if unchanged
+        Assert.assertEquals(bits(1), index.getByHint(Hint.to));
+        
+        //removed tokens: indexes of following tokens are shifted
+        analysis.getTokens().remove(berlin);
+        TokenIndex updated = analysis.getTokenIndex();
+        Assert.assertNotSame(index, updated);
+        Assert.assertEquals(2, updated.size());
+        Assert.assertEquals(bits(0), updated.getByHint(Hint.to));
+        Assert.assertEquals(bits(), updated.getByHint(Hint.from));
+        Assert.assertEquals(bits(), updated.getByMessage(0));
+        Assert.assertEquals(bits(0, 1), updated.getByMessage(1));
+        
+        //removed and added token (same size)
+        analysis.getTokens().remove(keyword);
+        final Token person = token(1, 8, 12, Type.Person, "Anna");
+        analysis.getTokens().add(person);
+        updated = analysis.getTokenIndex();
+        Assert.assertEquals(2, updated.size());
+        Assert.assertEquals(bits(), updated.getByType(Type.Keyword));
+        Assert.assertEquals(bits(1), updated.getByType(Type.Person));
+        
+        //replaced token
+        analysis.getTokens().set(1, keyword);
+        updated = analysis.getTokenIndex();
+        Assert.assertEquals(bits(1), updated.getByType(Type.Keyword));
+        Assert.assertEquals(bits(), updated.getByType(Type.Person));
+        
+        //all tokens removed
+        analysis.getTokens().clear();
+        updated = analysis.getTokenIndex();
+        Assert.assertEquals(0, updated.size());
+        Assert.assertEquals(bits(), updated.getAll());
+        Assert.assertEquals(bits(), updated.getFromMessage(0));
+    }
+
+    private static Token token(int msgIdx, int start, int end, Type type, String value, Hint...hints) {
+        final Token token = new Token();
+        token.setMessageIdx(msgIdx);
+        token.setStart(start);
+        token.setEnd(end);
+        token.setType(type);
+        token.setValue(value);
+        token.setState(State.Suggested);
+        for(Hint hint : hints){
+            token.addHint(hint);
+        }
+        return token;
+    }
+
+    private static BitSet bits(int...idxs) {
+        final BitSet bits = new BitSet();
+        for(int idx : idxs){
+            bits.set(idx);
+        }
+        return bits;
+    }
+}
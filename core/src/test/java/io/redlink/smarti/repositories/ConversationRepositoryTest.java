@@ -1,19 +1,34 @@
 package io.redlink.smarti.repositories;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.bson.types.ObjectId;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 import org.springframework.test.context.ContextConfiguration;
 
+import io.redlink.smarti.exception.NotFoundException;
 import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.ConversationImportJob;
 import io.redlink.smarti.model.ConversationMeta.Status;
 import io.redlink.smarti.model.Message;
+import io.redlink.smarti.model.MessageBucket;
 import io.redlink.smarti.model.Message.Origin;
 import io.redlink.smarti.model.User;
 import io.redlink.smarti.test.SpringServiceTest;
@@ -27,6 +42,17 @@ public class ConversationRepositoryTest extends SpringServiceTest {
     @Autowired
     private ConversationRepository conversationRepo;
     
+    @Autowired
+    private MongoConversationStorageConfig storageConfig;
+    
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    
+    @After
+    public void disableBuckets() {
+        storageConfig.getBuckets().setEnabled(false);
+    }
+    
     
     @Test
     public void testMessageLimit() throws Exception {
@@ -94,4 +120,366 @@ public class ConversationRepositoryTest extends SpringServiceTest {
         
     }
     
+    @Test
+    public void testAppendDuplicateMessage() throws Exception {
+        Conversation conv = conversationRepo.save(createConversation(5));
+        
+        //appending a message with an existing id replaces the message
+        Message duplicate = createMessage("msg-2");
+        duplicate.setContent("updated content");
+        Conversation updated = conversationRepo.appendMessage(conv.getId(), duplicate);
+        Assert.assertEquals(5, updated.getMessages().size());
+        Assert.assertEquals("msg-2", updated.getMessages().get(2).getId());
+        Assert.assertEquals("updated content", updated.getMessages().get(2).getContent());
+        Assert.assertNotNull(updated.getLastModified());
+        
+        //appending with a projection only returns the requested fields
+        updated = conversationRepo.appendMessage(conv.getId(), createMessage("msg-5"), "lastModified");
+        Assert.assertNotNull(updated.getLastModified());
+        Assert.assertTrue(updated.getMessages().isEmpty());
+        Assert.assertEquals(6, conversationRepo.findOne(conv.getId()).getMessages().size());
+        
+        try {
+            conversationRepo.appendMessage(new ObjectId(), createMessage("msg-0"));
+            Assert.fail("NotFoundException expected for an unknown conversation");
+        } catch (NotFoundException e) {/* expected */}
+    }
+    
+    @Test
+    public void testUpdateAndUpsertMessage() throws Exception {
+        Conversation conv = conversationRepo.save(createConversation(5));
+        
+        Message edited = createMessage("msg-4");
+        edited.setContent("edited content");
+        Conversation updated = conversationRepo.updateMessage(conv.getId(), edited);
+        Assert.assertEquals(5, updated.getMessages().size());
+        Assert.assertEquals("edited content", updated.getMessages().get(4).getContent());
+        
+        try { //updates do not append messages
+            conversationRepo.updateMessage(conv.getId(), createMessage("unknown"));
+            Assert.fail("NotFoundException expected for an unknown message");
+        } catch (NotFoundException e) {/* expected */}
+        Assert.assertNull(conversationRepo.updateMessage(new ObjectId(), edited));
+        
+        //upserts replace existing and append new messages
+        edited.setContent("upserted content");
+        updated = conversationRepo.upsertMessage(conv.getId(), edited);
+        Assert.assertEquals(5, updated.getMessages().size());
+        Assert.assertEquals("upserted content", updated.getMessages().get(4).getContent());
+        updated = conversationRepo.upsertMessage(conv.getId(), createMessage("msg-5"));
+        Assert.assertEquals(6, updated.getMessages().size());
+        Assert.assertEquals("msg-5", updated.getMessages().get(5).getId());
+        Assert.assertNull(conversationRepo.upsertMessage(new ObjectId(), createMessage("msg-0")));
+    }
+    
+    @Test
+    public void testAppendArchivedMessage() throws Exception {
+        Conversation conv = createArchivedConversation(25);
+        Assert.assertEquals(15, conv.getMessages().size()); //10 messages are archived
+        Assert.assertEquals("msg-10", conv.getMessages().get(0).getId());
+        
+        //re-sending an archived message MUST NOT append a duplicate
+        Message resent = createMessage("msg-3");
+        resent.setContent("updated content");
+        Conversation updated = conversationRepo.appendMessage(conv.getId(), resent);
+        Assert.assertEquals(15, updated.getMessages().size());
+        Assert.assertTrue(updated.getMessages().stream().noneMatch(m -> "msg-3".equals(m.getId())));
+        Assert.assertEquals("updated content", conversationRepo.findMessage(conv.getId(), "msg-3").getContent());
+        assertMessages(conv.getId(), 25);
+        
+        //same for upserts of archived messages
+        resent.setContent("upserted content");
+        updated = conversationRepo.upsertMessage(conv.getId(), resent);
+        Assert.assertNotNull(updated);
+        Assert.assertEquals(15, updated.getMessages().size());
+        Assert.assertEquals("upserted content", conversationRepo.findMessage(conv.getId(), "msg-3").getContent());
+        assertMessages(conv.getId(), 25);
+
+        //upserts of new messages archive like appends
+        for(int i = 25; i < 30; i++){
+            updated = conversationRepo.upsertMessage(conv.getId(), createMessage("msg-" + i));
+        }
+        Assert.assertEquals(10, updated.getMessages().size());
+        Assert.assertEquals("msg-20", updated.getMessages().get(0).getId());
+        assertMessages(conv.getId(), 30);
+    }
+    
+    @Test
+    public void testInterruptedArchiving() throws Exception {
+        storageConfig.getBuckets().setEnabled(true);
+        storageConfig.getBuckets().setRecentMessages(10);
+        storageConfig.getBuckets().setSize(10);
+        Conversation conv = conversationRepo.save(createConversation(25));
+        Assert.assertEquals(25, conv.getMessages().size());
+        //simulate archiving interrupted after the bucket was written
+        mongoTemplate.insert(new MessageBucket(conv.getId(), 0, conv.getMessages().subList(0, 10)));
+        
+        //readers MUST ignore the archived copies
+        assertMessages(conv.getId(), 25);
+        Assert.assertEquals(25, conversationRepo.loadArchivedMessages(conversationRepo.findOne(conv.getId())).getMessages().size());
+        
+        //the next archiving completes the interrupted one without writing the messages again
+        Conversation archived = conversationRepo.archiveMessages(conversationRepo.findOne(conv.getId()));
+        Assert.assertEquals(15, archived.getMessages().size());
+        Assert.assertEquals("msg-10", archived.getMessages().get(0).getId());
+        Assert.assertEquals(1, mongoTemplate.count(Query.query(Criteria.where("conversation").is(conv.getId())), MessageBucket.class));
+        assertMessages(conv.getId(), 25);
+    }
+    
+    @Test
+    public void testFindMessage() throws Exception {
+        Conversation conv = conversationRepo.save(createConversation(5));
+        Message message = conversationRepo.findMessage(conv.getId(), "msg-3");
+        Assert.assertNotNull(message);
+        Assert.assertEquals("msg-3", message.getId());
+        Assert.assertEquals("This is the message msg-3", message.getContent());
+        Assert.assertNull(conversationRepo.findMessage(conv.getId(), "unknown"));
+        Assert.assertNull(conversationRepo.findMessage(new ObjectId(), "msg-3"));
+        
+        //messages of deleted conversations are not found
+        Assert.assertTrue(conversationRepo.markAsDeleted(conv.getId()));
+        Assert.assertNull(conversationRepo.findMessage(conv.getId(), "msg-3"));
+    }
+    
+    @Test
+    public void testFindArchivedMessage() throws Exception {
+        Conversation conv = createArchivedConversation(25);
+        //recent message found by the $elemMatch projection
+        Assert.assertEquals("msg-12", conversationRepo.findMessage(conv.getId(), "msg-12").getId());
+        //archived message found by the bucket fallback
+        Message archived = conversationRepo.findMessage(conv.getId(), "msg-7");
+        Assert.assertNotNull(archived);
+        Assert.assertEquals("msg-7", archived.getId());
+        Assert.assertEquals("This is the message msg-7", archived.getContent());
+        Assert.assertNull(conversationRepo.findMessage(conv.getId(), "unknown"));
+    }
+
+    @Test
+    public void testUpdateArchivedMessageFields() throws Exception {
+        Conversation conv = createArchivedConversation(25);
+        Assert.assertTrue(conversationRepo.exists(conv.getId(), "msg-12"));
+        Assert.assertTrue(conversationRepo.exists(conv.getId(), "msg-7"));
+        Assert.assertFalse(conversationRepo.exists(conv.getId(), "unknown"));
+
+        Conversation updated = conversationRepo.updateMessageField(conv.getId(), "msg-7", "content", "updated content");
+        Assert.assertNotNull(updated);
+        Assert.assertEquals(15, updated.getMessages().size());
+        Assert.assertEquals("updated content", conversationRepo.findMessage(conv.getId(), "msg-7").getContent());
+
+        updated = conversationRepo.adjustMessageVotes(conv.getId(), "msg-7", 2);
+        Assert.assertNotNull(updated);
+        Assert.assertEquals(2, conversationRepo.findMessage(conv.getId(), "msg-7").getVotes());
+
+        Assert.assertNull(conversationRepo.updateMessageField(conv.getId(), "unknown", "content", "updated content"));
+        Assert.assertNull(conversationRepo.adjustMessageVotes(conv.getId(), "unknown", 1));
+        assertMessages(conv.getId(), 25);
+    }
+
+    @Test
+    public void testUpdatedSincePagination() throws Exception {
+        //use a date in the future so that conversations of other tests are not included
+        final Date modified = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+        final List<ObjectId> ids = new ArrayList<>();
+        for(int i = 0; i < 5; i++){
+            ids.add(conversationRepo.save(createConversation(1)).getId());
+        }
+        final ObjectId later = conversationRepo.save(createConversation(1)).getId();
+        //all conversations with the same lastModified value
+        mongoTemplate.updateMulti(Query.query(Criteria.where("_id").in(ids)), 
+                Update.update("lastModified", modified), Conversation.class);
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(later)), 
+                Update.update("lastModified", new Date(modified.getTime() + 1)), Conversation.class);
+        
+        //pages of 2 are ordered by (lastModified, _id) without duplicates or gaps
+        UpdatedIdsIterator it = conversationRepo.updatedSince(modified, null, 2);
+        final List<ObjectId> updated = new ArrayList<>();
+        final List<Integer> pageSizes = new ArrayList<>();
+        while(it.hasNext()){
+            UpdatedIds<ObjectId> page = it.next();
+            pageSizes.add(page.ids().size());
+            updated.addAll(page.ids());
+        }
+        Assert.assertEquals(Arrays.asList(2, 2, 2), pageSizes);
+        final List<ObjectId> expected = new ArrayList<>(ids);
+        Collections.sort(expected);
+        expected.add(later);
+        Assert.assertEquals(expected, updated);
+        Assert.assertEquals(later, it.getLastId());
+        Assert.assertEquals(Collections.singleton(later), it.getLastIds());
+        
+        //resume after the first page within the same lastModified value
+        it = conversationRepo.updatedSince(modified, expected.subList(0, 2), 10);
+        Assert.assertTrue(it.hasNext());
+        UpdatedIds<ObjectId> page = it.next();
+        Assert.assertEquals(expected.subList(2, expected.size()), page.ids());
+        Assert.assertEquals(later, page.getLastId());
+        Assert.assertFalse(it.hasNext());
+        
+        //resume at the end
+        Assert.assertFalse(conversationRepo.updatedSince(it.getLastModified(), it.getLastIds(), 10).hasNext());
+    }
+    
+    @Test
+    public void testUpdatedSinceLateWrite() {
+        final Date modified = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+        final ObjectId lowerId = conversationRepo.save(createConversation(1)).getId();
+        final List<ObjectId> ids = new ArrayList<>();
+        for(int i = 0; i < 3; i++){
+            ids.add(conversationRepo.save(createConversation(1)).getId());
+        }
+        mongoTemplate.updateMulti(Query.query(Criteria.where("_id").in(ids)), 
+                Update.update("lastModified", modified), Conversation.class);
+        
+        //sync all conversations modified at that date
+        UpdatedIdsIterator it = conversationRepo.updatedSince(modified, null, 2);
+        final List<ObjectId> updated = new ArrayList<>();
+        while(it.hasNext()){
+            updated.addAll(it.next().ids());
+        }
+        Assert.assertEquals(ids, updated);
+        Assert.assertEquals(modified, it.getLastModified());
+        Assert.assertEquals(new HashSet<>(ids), it.getLastIds());
+        
+        //a conversation with a lower id is written later within the same millisecond
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(lowerId)), 
+                Update.update("lastModified", modified), Conversation.class);
+        
+        //resuming must report the late write (and only the late write)
+        it = conversationRepo.updatedSince(it.getLastModified(), it.getLastIds(), 2);
+        Assert.assertTrue(it.hasNext());
+        Assert.assertEquals(Collections.singletonList(lowerId), it.next().ids());
+        Assert.assertFalse(it.hasNext());
+        Assert.assertEquals(modified, it.getLastModified());
+        Assert.assertEquals(ids.size() + 1, it.getLastIds().size());
+        
+        //nothing more to sync
+        Assert.assertFalse(conversationRepo.updatedSince(it.getLastModified(), it.getLastIds(), 2).hasNext());
+    }
+    
+    @Test
+    public void testImportConversations() throws Exception {
+        final ObjectId owner = new ObjectId();
+        final List<Conversation> conversations = new ArrayList<>();
+        for(int i = 0; i < 3; i++){
+            Conversation conv = createConversation(i == 0 ? 60 : 5);
+            conv.setId(new ObjectId());
+            conv.setOwner(owner);
+            conversations.add(conv);
+        }
+        ConversationImportJob job = new ConversationImportJob(owner, false);
+        List<ObjectId> written = conversationRepo.importConversations(conversations, false, job);
+        Assert.assertEquals(3, written.size());
+        Assert.assertEquals(3, job.getInserted());
+        //the message limit is enforced on import
+        Assert.assertEquals(50, conversationRepo.findOne(conversations.get(0).getId()).getMessages().size());
+        
+        //existing conversations are skipped ...
+        conversations.get(1).getMessages().add(createMessage("msg-5"));
+        written = conversationRepo.importConversations(conversations, false, job);
+        Assert.assertTrue(written.isEmpty());
+        Assert.assertEquals(3, job.getSkipped());
+        Assert.assertEquals(5, conversationRepo.findOne(conversations.get(1).getId()).getMessages().size());
+        
+        //... or replaced
+        job = new ConversationImportJob(owner, true);
+        written = conversationRepo.importConversations(conversations, true, job);
+        Assert.assertEquals(3, written.size());
+        Assert.assertEquals(3, job.getReplaced());
+        Assert.assertEquals(6, conversationRepo.findOne(conversations.get(1).getId()).getMessages().size());
+    }
+    
+    @Test
+    public void testImportArchivedConversation() throws Exception {
+        storageConfig.getBuckets().setEnabled(true);
+        storageConfig.getBuckets().setRecentMessages(10);
+        storageConfig.getBuckets().setSize(10);
+        final Conversation conv = createConversation(60);
+        conv.setId(new ObjectId());
+        ConversationImportJob job = new ConversationImportJob(conv.getOwner(), false);
+        Assert.assertEquals(Collections.singletonList(conv.getId()), 
+                conversationRepo.importConversations(Collections.singletonList(conv), false, job));
+        //messages exceeding the recent messages are archived instead of truncated
+        Assert.assertEquals(10, conversationRepo.findOne(conv.getId()).getMessages().size());
+        Assert.assertEquals(5, mongoTemplate.count(Query.query(Criteria.where("conversation").is(conv.getId())), MessageBucket.class));
+        assertMessages(conv.getId(), 60);
+        
+        //replaced conversations replace the archived messages
+        final Conversation replacement = createConversation(35);
+        replacement.setId(conv.getId());
+        replacement.setOwner(conv.getOwner());
+        job = new ConversationImportJob(conv.getOwner(), true);
+        Assert.assertEquals(Collections.singletonList(conv.getId()), 
+                conversationRepo.importConversations(Collections.singletonList(replacement), true, job));
+        Assert.assertEquals(15, conversationRepo.findOne(conv.getId()).getMessages().size());
+        Assert.assertEquals(2, mongoTemplate.count(Query.query(Criteria.where("conversation").is(conv.getId())), MessageBucket.class));
+        assertMessages(conv.getId(), 35);
+    }
+    
+    @Test
+    public void testImportOwnerClash() throws Exception {
+        final Conversation existing = conversationRepo.save(createConversation(5));
+        final ObjectId owner = new ObjectId();
+        //a conversation using the id of a conversation of an other owner
+        Conversation clash = createConversation(3);
+        clash.setId(existing.getId());
+        clash.setOwner(owner);
+        Conversation other = createConversation(3);
+        other.setId(new ObjectId());
+        other.setOwner(owner);
+        
+        for(boolean replace : new boolean[]{false, true}){
+            ConversationImportJob job = new ConversationImportJob(owner, replace);
+            List<ObjectId> written = conversationRepo.importConversations(Arrays.asList(clash, other), replace, job);
+            Assert.assertEquals(Collections.singletonList(other.getId()), written);
+            Assert.assertEquals(1, job.getFailed());
+            //the conversation of the other owner is not modified
+            Conversation stored = conversationRepo.findOne(existing.getId());
+            Assert.assertEquals(existing.getOwner(), stored.getOwner());
+            Assert.assertEquals(5, stored.getMessages().size());
+        }
+    }
+    
+    /**
+     * Creates a conversation with buckets of 10 messages and 10 recent messages enabled
+     */
+    private Conversation createArchivedConversation(int numMessages) {
+        storageConfig.getBuckets().setEnabled(true);
+        storageConfig.getBuckets().setRecentMessages(10);
+        storageConfig.getBuckets().setSize(10);
+        return conversationRepo.archiveMessages(conversationRepo.save(createConversation(numMessages)));
+    }
+    
+    private static Conversation createConversation(int numMessages) {
+        Conversation conv = new Conversation();
+        conv.setOwner(new ObjectId());
+        conv.getContext().setDomain("test");
+        conv.getContext().setContextType("test");
+        conv.getMeta().setStatus(Status.New);
+        for(int i=0; i < numMessages ; i++){
+            conv.getMessages().add(createMessage("msg-" + i));
+        }
+        return conv;
+    }
+    
+    private static Message createMessage(String id) {
+        Message message = new Message(id);
+        message.setOrigin(Origin.User);
+        message.setTime(new Date());
+        message.setContent("This is the message " + id);
+        return message;
+    }
+    
+    /**
+     * Asserts that the archived and recent messages of the conversation are in order and without duplicates
+     */
+    private void assertMessages(ObjectId conversationId, int numMessages) {
+        try (Stream<Message> messages = conversationRepo.streamMessages(conversationId)) {
+            List<String> ids = messages.map(Message::getId).collect(Collectors.toList());
+            Assert.assertEquals(numMessages, ids.size());
+            for(int i = 0; i < numMessages; i++){
+                Assert.assertEquals("msg-" + i, ids.get(i));
+            }
+        }
+    }
+    
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.test.context.ContextConfiguration;
+
+import io.redlink.smarti.api.event.StoreServiceEvent;
+import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.Message;
+import io.redlink.smarti.repositories.ConversationRepoListener;
+import io.redlink.smarti.repositories.ConversationRepository;
+import io.redlink.smarti.test.SpringServiceTest;
+
+@ContextConfiguration(classes={ConversationRepoListener.class})
+@EnableMongoRepositories(basePackageClasses={ConversationRepository.class})
+@EnableAutoConfiguration
+public class ConversationCacheTest extends SpringServiceTest {
+
+    @Autowired
+    private ConversationRepository conversationRepo;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private ConversationCache cache;
+    private ConversationService conversationService;
+
+    private final List<ObjectId> conversations = new ArrayList<>();
+
+    @Before
+    public void init() {
+        final ConversationCacheConfiguration config = new ConversationCacheConfiguration();
+        config.setEnabled(true);
+        cache = new ConversationCache(config, mongoTemplate);
+        conversationService = new ConversationService(conversationRepo, Optional.empty(), Optional.empty(), 
+                cache, Mockito.mock(ApplicationEventPublisher.class));
+    }
+
+    @After
+    public void removeConversations() {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").in(conversations)), Conversation.class);
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        final ObjectId id = createConversation();
+        Assert.assertNull(cache.get(id));
+        Assert.assertEquals(1, getMetric("misses"));
+        
+        //loaded conversations are cached
+        final Conversation loaded = conversationService.getConversation(id);
+        Assert.assertEquals(2, getMetric("misses"));
+        final Conversation cached = conversationService.getConversation(id);
+        Assert.assertEquals(1, getMetric("hits"));
+        Assert.assertEquals(id, cached.getId());
+        Assert.assertEquals(2, cached.getMessages().size());
+        
+        //every read returns a copy
+        Assert.assertNotSame(loaded, cached);
+        cached.getMessages().clear();
+        Assert.assertEquals(2, conversationService.getConversation(id).getMessages().size());
+        Assert.assertEquals(2, getMetric("hits"));
+        
+        //reads with an other version are a miss
+        Assert.assertNull(cache.get(id, new Date(0)));
+        Assert.assertEquals(1, getMetric("outdated"));
+        Assert.assertNull(cache.get(id));
+    }
+
+    @Test
+    public void testWriteThroughOnSave() {
+        final ObjectId id = createConversation();
+        conversationService.getConversation(id);
+        
+        //updates of the conversation service are written through
+        final Conversation updated = conversationService.upsertMessage(id, new Message("msg-2"));
+        final Conversation cached = cache.get(id, updated.getLastModified());
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(3, cached.getMessages().size());
+        
+        //StoreServiceEvents of the conversation service do not evict the written entry
+        cache.onStoreEvent(StoreServiceEvent.save(id, conversationService));
+        Assert.assertNotNull(cache.get(id));
+        
+        //an older version does not replace the cached one
+        final Conversation outdated = conversationRepo.findOne(id);
+        outdated.setLastModified(new Date(updated.getLastModified().getTime() - 1000));
+        cache.put(outdated);
+        Assert.assertEquals(updated.getLastModified(), cache.get(id).getLastModified());
+        
+        //deleted conversations are evicted
+        Assert.assertTrue(conversationService.deleteConversation(id));
+        Assert.assertNull(cache.get(id));
+        Assert.assertNull(conversationService.getConversation(id));
+    }
+
+    @Test
+    public void testInvalidateOnStoreEvent() {
+        final ObjectId id = createConversation();
+        conversationService.getConversation(id);
+        Assert.assertNotNull(cache.get(id));
+        
+        //changes reported by other components invalidate the entry
+        cache.onStoreEvent(StoreServiceEvent.save(id, this));
+        Assert.assertNull(cache.get(id));
+    }
+
+    @Test
+    public void testConsistentRead() {
+        final ObjectId id = createConversation();
+        conversationService.getConversation(id);
+        
+        //change performed by an other node
+        setLastModified(id, new Date(System.currentTimeMillis() + 1000), new Message("msg-2"));
+        Assert.assertEquals(2, conversationService.getConversation(id).getMessages().size());
+        Assert.assertEquals(3, conversationService.getConversation(id, true).getMessages().size());
+    }
+
+    @Test
+    public void testChangesOfOtherNodes() {
+        final ObjectId id = createConversation();
+        final ObjectId other = createConversation();
+        conversationService.getConversation(id);
+        conversationService.getConversation(other);
+        
+        //changes written through by this node do not evict the cached entry
+        cache.onConversationChanges(Collections.singleton(id));
+        Assert.assertNotNull(cache.get(id));
+        
+        //changes of other nodes evict the cached entry
+        setLastModified(id, new Date(System.currentTimeMillis() + 1000), new Message("msg-2"));
+        cache.onConversationChanges(Collections.singleton(id));
+        Assert.assertNull(cache.get(id));
+        Assert.assertEquals(3, conversationService.getConversation(id).getMessages().size());
+        
+        //conversations deleted by other nodes are evicted
+        conversationRepo.markAsDeleted(other);
+        cache.onConversationChanges(Collections.singleton(other));
+        Assert.assertNull(cache.get(other));
+        Assert.assertNull(conversationService.getConversation(other));
+    }
+
+    private ObjectId createConversation() {
+        final Conversation conversation = new Conversation();
+        conversation.setOwner(new ObjectId());
+        conversation.getMessages().add(new Message("msg-0"));
+        conversation.getMessages().add(new Message("msg-1"));
+        final ObjectId id = conversationRepo.save(conversation).getId();
+        conversations.add(id);
+        setLastModified(id, new Date(), null);
+        return id;
+    }
+
+    private void setLastModified(ObjectId id, Date lastModified, Message message) {
+        final Update update = Update.update("lastModified", lastModified);
+        if(message != null){
+            update.push("messages", mongoTemplate.getConverter().convertToMongoType(message));
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(id)), update, Conversation.class);
+    }
+
+    private long getMetric(String name) {
+        for(Metric<?> metric : cache.metrics()){
+            if(metric.getName().equals("smarti.conversation.cache." + name)){
+                return metric.getValue().longValue();
+            }
+        }
+        throw new IllegalArgumentException("unknown metric " + name);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.services;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.util.MultiValueMap;
+
+import io.redlink.smarti.events.AnalysisCompleteEvent;
+import io.redlink.smarti.model.Analysis;
+import io.redlink.smarti.model.Client;
+import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.Query;
+import io.redlink.smarti.model.SearchResult;
+import io.redlink.smarti.model.Slot;
+import io.redlink.smarti.model.Template;
+import io.redlink.smarti.model.Token;
+import io.redlink.smarti.model.result.Result;
+
+public class QueryPrefetchServiceTest {
+
+    private static final String CREATOR = "queryBuilder:test:default";
+
+    private QueryPrefetchConfiguration config;
+    private QueryBuilderService queryBuilderService;
+    private QueryPrefetchService prefetchService;
+
+    private Client client;
+    private Conversation conversation;
+    private Analysis analysis;
+    private Template template;
+
+    @Before
+    public void init() {
+        config = new QueryPrefetchConfiguration();
+        config.setEnabled(true);
+        queryBuilderService = mock(QueryBuilderService.class);
+        
+        client = new Client();
+        client.setId(new ObjectId());
+        client.setName("test-client");
+        conversation = new Conversation(new ObjectId(), client.getId());
+        analysis = new Analysis(conversation.getId(), new Date());
+        final Token token = new Token();
+        token.setType(Token.Type.Keyword);
+        token.setValue("prefetch");
+        analysis.getTokens().add(token);
+        final Slot slot = new Slot("keyword", Token.Type.Keyword);
+        slot.setTokenIndex(0);
+        template = new Template("test", new ArrayList<>(Collections.singleton(slot)));
+        template.getQueries().add(new Query(CREATOR).setInlineResultSupport(true));
+        analysis.getTemplates().add(template);
+    }
+
+    @After
+    public void shutdown() {
+        if(prefetchService != null){
+            prefetchService.shutdown();
+        }
+    }
+
+    @Test
+    public void testUsePrefetched() {
+        final CompletableFuture<SearchResult<? extends Result>> result = CompletableFuture.completedFuture(new SearchResult<>());
+        mockExecution(result);
+        prefetchService = new QueryPrefetchService(config, queryBuilderService);
+        
+        prefetchService.onAnalysisComplete(event());
+        verifyExecutions(1);
+        Assert.assertSame(result, prefetchService.getPrefetched(client, conversation, analysis, template, CREATOR));
+        Assert.assertEquals(1, getMetric("hits"));
+        
+        //already prefetched results are not executed again
+        prefetchService.onAnalysisComplete(event());
+        verifyExecutions(1);
+        
+        //prefetched results are only used for the same template
+        final Token other = new Token();
+        other.setType(Token.Type.Keyword);
+        other.setValue("other");
+        analysis.getTokens().set(0, other);
+        Assert.assertNull(prefetchService.getPrefetched(client, conversation, analysis, template, CREATOR));
+        Assert.assertEquals(1, getMetric("misses"));
+    }
+
+    @Test
+    public void testExpire() throws InterruptedException {
+        config.setCacheExpire(1);
+        mockExecution(CompletableFuture.completedFuture(new SearchResult<>()));
+        prefetchService = new QueryPrefetchService(config, queryBuilderService);
+        
+        prefetchService.onAnalysisComplete(event());
+        Assert.assertNotNull(prefetchService.getPrefetched(client, conversation, analysis, template, CREATOR));
+        Thread.sleep(1100);
+        Assert.assertNull(prefetchService.getPrefetched(client, conversation, analysis, template, CREATOR));
+        
+        //expired results are prefetched again
+        prefetchService.onAnalysisComplete(event());
+        verifyExecutions(2);
+    }
+
+    @Test
+    public void testSkipFailed() {
+        final CompletableFuture<SearchResult<? extends Result>> failing = new CompletableFuture<>();
+        mockExecution(failing);
+        prefetchService = new QueryPrefetchService(config, queryBuilderService);
+        
+        //failed results are not used and removed from the cache
+        prefetchService.onAnalysisComplete(event());
+        failing.completeExceptionally(new IllegalStateException("query failed"));
+        Assert.assertNull(prefetchService.getPrefetched(client, conversation, analysis, template, CREATOR));
+        Assert.assertEquals(1, getMetric("failed"));
+        Assert.assertEquals(0, getMetric("cached"));
+        
+        //failed executions are skipped
+        when(queryBuilderService.executeAsync(any(Client.class), eq(CREATOR), any(Template.class), any(Conversation.class), 
+                any(Analysis.class), any(MultiValueMap.class), any(Executor.class)))
+                .thenThrow(new IllegalStateException("query builder not available"))
+                .thenThrow(new RejectedExecutionException("queue full"));
+        prefetchService.onAnalysisComplete(event());
+        prefetchService.onAnalysisComplete(event());
+        verifyExecutions(3);
+        Assert.assertEquals(2, getMetric("failed"));
+        Assert.assertEquals(1, getMetric("rejected"));
+        Assert.assertNull(prefetchService.getPrefetched(client, conversation, analysis, template, CREATOR));
+    }
+
+    @Test
+    public void testNotEnabled() {
+        config.setClients(Collections.singleton("other-client"));
+        mockExecution(CompletableFuture.completedFuture(new SearchResult<>()));
+        prefetchService = new QueryPrefetchService(config, queryBuilderService);
+        
+        prefetchService.onAnalysisComplete(event());
+        verify(queryBuilderService, never()).executeAsync(any(Client.class), any(String.class), any(Template.class), 
+                any(Conversation.class), any(Analysis.class), any(MultiValueMap.class), any(Executor.class));
+        Assert.assertNull(prefetchService.getPrefetched(client, conversation, analysis, template, CREATOR));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mockExecution(CompletableFuture<SearchResult<? extends Result>> result) {
+        when(queryBuilderService.executeAsync(any(Client.class), eq(CREATOR), any(Template.class), any(Conversation.class), 
+                any(Analysis.class), any(MultiValueMap.class), any(Executor.class))).thenReturn(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void verifyExecutions(int num) {
+        verify(queryBuilderService, times(num)).executeAsync(any(Client.class), eq(CREATOR), any(Template.class), 
+                any(Conversation.class), any(Analysis.class), any(MultiValueMap.class), any(Executor.class));
+    }
+
+    private AnalysisCompleteEvent event() {
+        final AnalysisCompleteEvent event = mock(AnalysisCompleteEvent.class);
+        when(event.getClient()).thenReturn(client);
+        when(event.getConversation()).thenReturn(conversation);
+        when(event.getAnalysis()).thenReturn(analysis);
+        when(event.getDate()).thenReturn(analysis.getDate());
+        return event;
+    }
+
+    private long getMetric(String name) {
+        for(Metric<?> metric : prefetchService.metrics()){
+            if(metric.getName().equals("smarti.query.prefetch." + name)){
+                return metric.getValue().longValue();
+            }
+        }
+        throw new IllegalArgumentException("unknown metric " + name);
+    }
+}
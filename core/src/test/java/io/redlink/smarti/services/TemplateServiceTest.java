@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.redlink.smarti.services;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import io.redlink.smarti.api.TemplateBuilder;
+import io.redlink.smarti.model.Analysis;
+import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.Slot;
+import io.redlink.smarti.model.Template;
+import io.redlink.smarti.model.TemplateDefinition;
+import io.redlink.smarti.model.Token;
+
+/**
+ * Tests the reuse of {@link Template}s of a previous {@link Analysis} by the {@link TemplateService}
+ */
+public class TemplateServiceTest {
+
+    private static final String TEMPLATE_TYPE = "test";
+
+    private CountingTemplateBuilder builder;
+    private TemplateService templateService;
+    private Conversation conversation;
+
+    @Before
+    public void init() throws Exception {
+        final MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.afterPropertiesSet();
+        final MappingMongoConverter converter = new MappingMongoConverter(
+                new DefaultDbRefResolver(Mockito.mock(MongoDbFactory.class)), mappingContext);
+        converter.afterPropertiesSet();
+        final MongoTemplate mongoTemplate = Mockito.mock(MongoTemplate.class);
+        Mockito.when(mongoTemplate.getConverter()).thenReturn(converter);
+
+        builder = new CountingTemplateBuilder();
+        templateService = new TemplateService(Optional.of(Collections.singletonList(builder)), mongoTemplate);
+        conversation = new Conversation();
+        conversation.setId(new ObjectId());
+    }
+
+    @Test
+    public void testReuseUnchanged() {
+        final Analysis previous = createAnalysis("keyword", "topic");
+        Assert.assertTrue(templateService.updateTemplates(null, conversation, previous, null).isEmpty());
+        Assert.assertEquals(1, builder.builds);
+        final Template built = previous.getTemplates().get(0);
+        Assert.assertNotNull(built.getFingerprint());
+
+        //changes of tokens not relevant for the builder do not require to build the template again
+        final Analysis analysis = createAnalysis("keyword", "other topic");
+        final Set<Template> reused = templateService.updateTemplates(null, conversation, analysis, previous);
+        Assert.assertEquals(1, builder.builds);
+        Assert.assertEquals(1, reused.size());
+        Assert.assertEquals(1, analysis.getTemplates().size());
+        final Template template = analysis.getTemplates().get(0);
+        Assert.assertTrue(reused.contains(template));
+        //reused templates are copies
+        Assert.assertNotSame(built, template);
+        Assert.assertEquals(built.getFingerprint(), template.getFingerprint());
+        Assert.assertEquals(built.getSlots().size(), template.getSlots().size());
+        Assert.assertEquals(0, template.getSlots().iterator().next().getTokenIndex());
+    }
+
+    @Test
+    public void testRebuildChanged() {
+        final Analysis previous = createAnalysis("keyword", "topic");
+        templateService.updateTemplates(null, conversation, previous, null);
+        Assert.assertEquals(1, builder.builds);
+
+        //a changed relevant token requires to build the template again
+        final Analysis analysis = createAnalysis("other keyword", "topic");
+        final Set<Template> reused = templateService.updateTemplates(null, conversation, analysis, previous);
+        Assert.assertEquals(2, builder.builds);
+        Assert.assertTrue(reused.isEmpty());
+        Assert.assertEquals(1, analysis.getTemplates().size());
+        Assert.assertNotEquals(previous.getTemplates().get(0).getFingerprint(), analysis.getTemplates().get(0).getFingerprint());
+
+        //without a previous analysis templates are always built
+        templateService.updateTemplates(null, conversation, createAnalysis("other keyword", "topic"), null);
+        Assert.assertEquals(3, builder.builds);
+    }
+
+    private Analysis createAnalysis(String keyword, String topic) {
+        final Analysis analysis = new Analysis(new ObjectId(), conversation.getId(), new Date());
+        analysis.getTokens().add(createToken(Token.Type.Keyword, keyword));
+        analysis.getTokens().add(createToken(Token.Type.Topic, topic));
+        return analysis;
+    }
+
+    private static Token createToken(Token.Type type, String value) {
+        final Token token = new Token();
+        token.setType(type);
+        token.setValue(value);
+        return token;
+    }
+
+    /**
+     * Builds a template with a slot for every keyword and counts the templates built
+     */
+    private static class CountingTemplateBuilder extends TemplateBuilder {
+
+        private final TemplateDefinition definition = new TemplateDefinition(TEMPLATE_TYPE) {
+
+            @Override
+            protected Slot createSlotForName(String name) {
+                return new Slot(name, Token.Type.Keyword);
+            }
+
+            @Override
+            protected boolean validate(Collection<Slot> slots, List<Token> tokens) {
+                return true;
+            }
+        };
+
+        private int builds;
+
+        @Override
+        protected TemplateDefinition getDefinition() {
+            return definition;
+        }
+
+        @Override
+        protected boolean isRelevant(Token token) {
+            return token.getType() == Token.Type.Keyword;
+        }
+
+        @Override
+        protected Set<Integer> updateTemplate(Template template, Conversation conversation, Analysis analysis) {
+            builds++;
+            final List<Token> tokens = analysis.getTokens();
+            for(int i = 0; i < tokens.size(); i++){
+                if(isRelevant(tokens.get(i))){
+                    final Slot slot = new Slot("keyword", Token.Type.Keyword);
+                    slot.setTokenIndex(i);
+                    template.getSlots().add(slot);
+                }
+            }
+            return Collections.emptySet();
+        }
+
+        @Override
+        protected void initializeTemplate(Template template) {
+            //no op
+        }
+    }
+}
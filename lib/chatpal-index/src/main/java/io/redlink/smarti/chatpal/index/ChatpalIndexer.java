@@ -26,8 +26,12 @@ import static io.redlink.smarti.chatpal.index.ChatpalIndexConfiguration.INDEX_VE
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -37,6 +41,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
@@ -44,8 +49,11 @@ import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest.ACTION;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.UpdateParams;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,7 +69,13 @@ import org.springframework.stereotype.Component;
 
 import io.redlink.smarti.chatpal.model.ChatpalMessage;
 import io.redlink.smarti.chatpal.service.ChatpalMessageServcie;
+import io.redlink.smarti.cloudsync.IndexCommitCoordinator;
+import io.redlink.smarti.cloudsync.IndexingMetrics;
+import io.redlink.smarti.cloudsync.IndexingMetricsService;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService.ChangeStream;
 import io.redlink.smarti.repositories.UpdatedIds;
+import io.redlink.smarti.repositories.UpdatedIdsIterator;
 import io.redlink.solrlib.SolrCoreContainer;
 import io.redlink.solrlib.SolrCoreDescriptor;
 
@@ -77,8 +91,18 @@ public class ChatpalIndexer {
 
     public static final int MIN_COMMIT_WITHIN = 1000; //1sec
     
+    public static final int DEFAULT_HARD_COMMIT_INTERVAL = 60*1000; //60sec
+
+    public static final int MIN_HARD_COMMIT_INTERVAL = 5*1000; //5sec
+    
+    /**
+     * The maximum time until updates are visible (interval of the soft commits)
+     */
     @Value("${smarti.index.chatpal.commitWithin:0}") //<0 ... use default
     private int commitWithin = DEFAULT_COMMIT_WITHIN; 
+    
+    @Value("${smarti.index.chatpal.hardCommitInterval:0}") //<0 ... use default
+    private int hardCommitInterval = DEFAULT_HARD_COMMIT_INTERVAL;
 
     @Autowired
     @Qualifier(CHATPAL_INDEX)
@@ -95,6 +119,21 @@ public class ChatpalIndexer {
     private final ExecutorService indexerPool;
 
     private IndexingTask indexingTask;
+    
+    @Autowired(required=false)
+    private MongoChangeStreamService changeStreamService;
+    
+    private ChangeStream changeStream;
+    
+    @Autowired(required=false)
+    private IndexingMetricsService metricsService;
+    
+    private IndexingMetrics metrics;
+    
+    /**
+     * Coordinates all commits of the {@link #chatpalCore}
+     */
+    private IndexCommitCoordinator commits;
 
     @Autowired
     public ChatpalIndexer(SolrCoreContainer solrServer, ChatpalMessageServcie chatpalService){
@@ -111,6 +150,37 @@ public class ChatpalIndexer {
         } else if(commitWithin < MIN_COMMIT_WITHIN){
             commitWithin = MIN_COMMIT_WITHIN;
         }
+        if(hardCommitInterval <= 0){
+            hardCommitInterval = DEFAULT_HARD_COMMIT_INTERVAL;
+        } else if(hardCommitInterval < MIN_HARD_COMMIT_INTERVAL){
+            hardCommitInterval = MIN_HARD_COMMIT_INTERVAL;
+        }
+        if(metricsService != null){
+            metrics = metricsService.getMetrics(chatpalCore.getCoreName());
+        }
+        commits = new IndexCommitCoordinator(chatpalCore.getCoreName(), this::commit, 
+                commitWithin, hardCommitInterval, metrics);
+    }
+    
+    @PreDestroy
+    protected void shutdown() {
+        if(commits != null){
+            commits.close(); //commits pending updates
+        }
+    }
+    
+    /**
+     * Used by the {@link #commits} coordinator to commit the {@link #chatpalCore}
+     */
+    private void commit(boolean softCommit, boolean openSearcher) throws IOException, SolrServerException {
+        try (SolrClient solr = solrServer.getSolrClient(chatpalCore)){
+            final UpdateRequest request = new UpdateRequest();
+            request.setAction(ACTION.COMMIT, true, true, softCommit);
+            if(!softCommit && !openSearcher){
+                request.setParam(UpdateParams.OPEN_SEARCHER, Boolean.FALSE.toString());
+            }
+            request.process(solr);
+        }
     }
     
     @EventListener(ContextRefreshedEvent.class)
@@ -148,38 +218,143 @@ public class ChatpalIndexer {
         }
         indexingTask.setLastSync(syncDate);
         indexerPool.execute(indexingTask);
+        if(changeStreamService != null){
+            changeStream = changeStreamService.watch(CHATPAL_INDEX, ChatpalMessage.class, this::onMessageChanges);
+        }
     }    
     
+    /**
+     * Indexes messages reported as changed by the {@link #changeStream}
+     */
+    protected void onMessageChanges(Collection<ObjectId> ids) {
+        //NOTE: messages are only marked as removed so we will get all changed messages
+        indexMessages(ids);
+    }
+    
     
     public int getCommitWithin() {
         return commitWithin;
     }
     
+    /**
+     * Waits until all updates sent to the index are visible (read-after-write). Prefer the
+     * scheduled soft commits where possible.
+     * @return <code>true</code> if visible or <code>false</code> on a timeout
+     */
+    public boolean awaitVisible() {
+        try {
+            return commits.awaitVisible(IndexCommitCoordinator.DEFAULT_AWAIT_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
     public void removeMessage(ChatpalMessage message) {
         try (SolrClient solr = solrServer.getSolrClient(chatpalCore)){
-            solr.deleteByQuery(getDeleteQuery(message),commitWithin);
+            solr.deleteByQuery(getDeleteQuery(message));
+            commits.updated();
+            if(metrics != null){
+                metrics.deleted(1);
+            }
         } catch (IOException | SolrServerException e) {
+            if(metrics != null){
+                metrics.failed(1);
+            }
             log.warn("Unable to delete {} form index",message, e.getClass().getSimpleName(), e.getMessage());
             log.debug("STACKTRACE",e);
         }        
     }
     public void indexMessage(ChatpalMessage message, Date syncDate){
+        indexMessage(message, syncDate, true);
+    }
+    
+    /**
+     * @param message the message
+     * @param syncDate the sync date
+     * @param trackLag if the indexing lag of the message should be recorded (<code>false</code> on full rebuilds)
+     */
+    private void indexMessage(ChatpalMessage message, Date syncDate, boolean trackLag){
         try (SolrClient solr = solrServer.getSolrClient(chatpalCore)){
             SolrInputDocument doc = toSolrInputDocument(message);
             if(doc == null){ //filter this document
-                solr.deleteByQuery(getDeleteQuery(message),commitWithin);
+                solr.deleteByQuery(getDeleteQuery(message));
+                commits.updated();
+                if(metrics != null){
+                    metrics.deleted(1);
+                }
             } else {
                 if(syncDate != null){
                     doc.setField(FIELD_SYNC_DATE, syncDate);
                 }
-                solr.add(doc,commitWithin);
+                solr.add(doc);
+                commits.updated();
+                if(metrics != null){
+                    metrics.batchIndexed(1, trackLag ? message.getModified() : null, commitWithin);
+                }
             }
         } catch (IOException | SolrServerException e) {
+            if(metrics != null){
+                metrics.failed(1);
+            }
             log.warn("Unable to delete {} form index",message, e.getClass().getSimpleName(), e.getMessage());
             log.debug("STACKTRACE",e);
         }        
     }
 
+    /**
+     * Indexes the messages with the parsed ids by using a single update request. The
+     * modification date of the messages is used as sync date.
+     * @param ids the ids of the messages
+     * @return the number of indexed (or removed) messages
+     */
+    public int indexMessages(Collection<ObjectId> ids){
+        if(ids.isEmpty()){
+            return 0;
+        }
+        final List<SolrInputDocument> docs = new ArrayList<>(ids.size());
+        final List<String> removed = new ArrayList<>();
+        final Date[] oldest = new Date[1]; //used to calculate the indexing lag
+        chatpalService.get(ids).forEach(message -> {
+            SolrInputDocument doc = toSolrInputDocument(message);
+            if(doc == null){ //filter this document
+                removed.add(message.getId().toHexString());
+            } else {
+                if(message.getModified() != null){
+                    doc.setField(FIELD_SYNC_DATE, message.getModified());
+                    if(oldest[0] == null || message.getModified().before(oldest[0])){
+                        oldest[0] = message.getModified();
+                    }
+                }
+                docs.add(doc);
+            }
+        });
+        try (SolrClient solr = solrServer.getSolrClient(chatpalCore)){
+            if(!removed.isEmpty()){
+                solr.deleteById(removed);
+                commits.updated();
+                if(metrics != null){
+                    metrics.deleted(removed.size());
+                }
+            }
+            if(!docs.isEmpty()){
+                solr.add(docs);
+                commits.updated();
+                if(metrics != null){
+                    metrics.batchIndexed(docs.size(), oldest[0], commitWithin);
+                }
+            }
+        } catch (IOException | SolrServerException e) {
+            if(metrics != null){
+                metrics.failed(ids.size());
+            }
+            log.warn("Unable to index {} messages ({} - {})", ids.size(), e.getClass().getSimpleName(), e.getMessage());
+            log.debug("STACKTRACE",e);
+            return 0;
+        }
+        return docs.size() + removed.size();
+    }
+
     private String getDeleteQuery(ChatpalMessage message) {
         return String.format("%s:%s", FIELD_ID, message.getId().toHexString());
     }
@@ -205,7 +380,9 @@ public class ChatpalIndexer {
             fixedDelayString="${chatpal.cloudSync.delay:30000}")
     public void syncIndex() {
         Instant now = Instant.now();
-        if(indexingTask.isCompleted()) {
+        if(changeStream != null && changeStream.isActive()){
+            log.trace("skipping Chatpal index sync at {} as {} is active", now, changeStream);
+        } else if(indexingTask.isCompleted()) {
             log.debug("execute sync of Chatpal index with repository");
             indexerPool.execute(indexingTask);
         } else if(indexingTask.isActive()){
@@ -234,6 +411,10 @@ public class ChatpalIndexer {
         AtomicBoolean completed = new AtomicBoolean(false);;
         
         Date lastSync;
+        /**
+         * The ids of the synced messages with the {@link #lastSync} date (if known)
+         */
+        Set<ObjectId> lastSyncIds;
         
         boolean fullRebuild = false;
         
@@ -278,6 +459,7 @@ public class ChatpalIndexer {
                     return false;
                 } else {
                     this.lastSync = lastSync;
+                    this.lastSyncIds = null;
                     return true;
                 }
             } finally {
@@ -294,6 +476,7 @@ public class ChatpalIndexer {
                     try {
                         if(fullRebuild){
                             lastSync = null;
+                            lastSyncIds = null;
                             fullRebuild = false;
                         }
                     } finally {
@@ -307,7 +490,7 @@ public class ChatpalIndexer {
                         if(log.isTraceEnabled()){
                             log.trace("update Index with changes after {}", lastSync == null ? null : lastSync.toInstant());
                         }
-                        syncData = sync(lastSync);
+                        syncData = sync(lastSync, lastSyncIds);
                     }
                     if(syncData.getCount() > 0){
                         log.debug("updated Chatpal Index - {}", syncData);
@@ -317,6 +500,7 @@ public class ChatpalIndexer {
                     lock.lock();
                     try {
                         lastSync = syncData.getSyncDate();
+                        lastSyncIds = syncData.getLastIds();
                         completed.set(true);
                     } finally {
                         lock.unlock();
@@ -328,22 +512,20 @@ public class ChatpalIndexer {
         }
         
         private SyncData syncAll() {
-            return sync(null);
+            return sync(null, null);
         }
-        private SyncData sync(Date date) {
+        private SyncData sync(Date date, Collection<ObjectId> lastIds) {
             long start = System.currentTimeMillis();
-            UpdatedIds<ObjectId> updated;
             AtomicLong count = new AtomicLong();
-            Date since = date;
-            do {
-                updated = chatpalService.updatedSince(since, 10000);
+            final UpdatedIdsIterator updates = chatpalService.updatedSince(date, lastIds, 10000);
+            while(updates.hasNext()) {
+                final UpdatedIds<ObjectId> updated = updates.next();
                 final Date currentModifiedBatch = updated.getLastModified();
-                since  = currentModifiedBatch;
                 //load in batches of 10 from the MongoDB
                 ListUtils.partition(updated.ids(), 10).forEach(batch -> {
                     chatpalService.get(batch).forEach(c -> {
                             try {
-                                indexMessage(c, currentModifiedBatch);
+                                indexMessage(c, currentModifiedBatch, date != null);
                                 count.incrementAndGet();
                             } catch (RuntimeException e){
                                 if(log.isDebugEnabled()){
@@ -354,8 +536,8 @@ public class ChatpalIndexer {
                             }
                         });
                 });
-            } while(!updated.ids().isEmpty());
-            return new SyncData(updated.getLastModified(), count.get(), (int)(System.currentTimeMillis()-start));
+            }
+            return new SyncData(updates.getLastModified(), updates.getLastIds(), count.get(), (int)(System.currentTimeMillis()-start));
 
         }
     }
@@ -364,8 +546,10 @@ public class ChatpalIndexer {
         final long count;
         final int duration;
         final Date syncDate;
-        SyncData(Date syncDate, long count, int duration){
+        final Set<ObjectId> lastIds;
+        SyncData(Date syncDate, Set<ObjectId> lastIds, long count, int duration){
             this.syncDate = syncDate;
+            this.lastIds = lastIds;
             this.count = count;
             this.duration = duration;
         }
@@ -373,6 +557,13 @@ public class ChatpalIndexer {
         public Date getSyncDate() {
             return syncDate;
         }
+
+        /**
+         * The ids of the synced messages with the {@link #getSyncDate() sync date} (if known)
+         */
+        public Set<ObjectId> getLastIds() {
+            return lastIds;
+        }
         
         public long getCount() {
             return count;
@@ -384,7 +575,7 @@ public class ChatpalIndexer {
 
         @Override
         public String toString() {
-            return "SyncData [syncDate=" + (syncDate == null ? null : syncDate.toInstant()) + ", count=" + count + ", duration=" + duration + "ms]";
+            return "SyncData [syncDate=" + (syncDate == null ? null : syncDate.toInstant()) + ", lastIds=" + (lastIds == null ? null : lastIds.size()) + ", count=" + count + ", duration=" + duration + "ms]";
         }
         
     }
@@ -1,19 +1,43 @@
 package io.redlink.smarti.chatpal.repo;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.bson.types.ObjectId;
 
-import io.redlink.smarti.repositories.UpdatedIds;
+import io.redlink.smarti.repositories.UpdatedIdsIterator;
 
 public interface ChatpalRepositoryCustom {
 
     void store(ObjectId client, Map<String, Object> chatpalMessage);
 
+    /**
+     * Stores the parsed messages by using a single unordered bulk write
+     * @param client the client
+     * @param chatpalMessages the messages (each MUST HAVE an <code>id</code>)
+     * @return the errors for messages that could not be stored (index of the message to the error message).
+     * An empty map if all messages where stored
+     */
+    Map<Integer, String> store(ObjectId client, List<Map<String, Object>> chatpalMessages);
+    
+    /**
+     * Getter for the ids of the messages with the parsed message ids
+     */
+    List<ObjectId> findIds(ObjectId client, Collection<?> msgIds);
+
     void markAsDeleted(ObjectId client, String messageIdx);
     void markAsDeleted(ObjectId client);
     
-    UpdatedIds<ObjectId> updatedSince(Date date, int limit);
+    /**
+     * Iterates over the ids of messages updated since the parsed date in batches ordered by the
+     * <code>modified</code> date and id (including messages marked as removed)
+     * @param date the date (inclusive) or <code>null</code> for all messages
+     * @param lastIds the ids of the already processed messages modified at the parsed date
+     * (as returned by {@link UpdatedIdsIterator#getLastIds()}) or <code>null</code>
+     * @param batchSize the maximum number of ids per batch
+     */
+    UpdatedIdsIterator updatedSince(Date date, Collection<ObjectId> lastIds, int batchSize);
 
 }
\ No newline at end of file
@@ -1,44 +1,42 @@
 package io.redlink.smarti.chatpal.repo;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.aggregation.Aggregation;
-import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
-import org.springframework.data.mongodb.core.aggregation.AggregationResults;
-import org.springframework.data.mongodb.core.aggregation.GroupOperation;
-import org.springframework.data.mongodb.core.aggregation.ProjectionOperation;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.WriteResult;
 
 import io.redlink.smarti.chatpal.model.ChatpalMessage;
-import io.redlink.smarti.repositories.UpdatedIds;
+import io.redlink.smarti.repositories.UpdatedIdsIterator;
 
 public class ChatpalRepositoryImpl implements ChatpalRepositoryCustom {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     
-    private static final ProjectionOperation ID_MODIFIED_PROJECTION = Aggregation.project("id","modified");
-    private static final GroupOperation GROUP_MODIFIED = Aggregation.group()
-            .addToSet("id").as("ids")
-            .max("modified").as("lastModified");
-
     
     private final MongoTemplate mongoTemplate;
     
     public ChatpalRepositoryImpl(MongoTemplate mongoTemplate){
         this.mongoTemplate = mongoTemplate;
+        /* see #updatedSince */
+        UpdatedIdsIterator.ensureIndex(mongoTemplate, ChatpalMessage.class, "modified");
     }
     
     /* (non-Javadoc)
@@ -63,6 +61,48 @@ public class ChatpalRepositoryImpl implements ChatpalRepositoryCustom {
         }
     }
     
+    @Override
+    public Map<Integer, String> store(ObjectId client, List<Map<String, Object>> chatpalMessages) {
+        if(chatpalMessages.isEmpty()){
+            return Collections.emptyMap();
+        }
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkMode.UNORDERED, ChatpalMessage.class);
+        for(Map<String,Object> chatpalMessage : chatpalMessages){
+            assert chatpalMessage.get("id") != null;
+            bulk.upsert(Query.query(Criteria.where("msgId").is(chatpalMessage.get("id")).and("client").is(client)),
+                    Update.update("data", chatpalMessage)
+                        .set("removed", false) //
+                        .currentDate("modified"));
+        }
+        try {
+            BulkWriteResult result = bulk.execute();
+            if(log.isTraceEnabled()){
+                log.trace("stored {} chatpal messages for client {} (inserted: {}, updated: {})", chatpalMessages.size(), 
+                        client, result.getUpserts().size(), result.getMatchedCount());
+            }
+            return Collections.emptyMap();
+        } catch (BulkOperationException e) { //unordered: all other messages are stored
+            log.debug("Unable to store {} of {} chatpal messages for client {}", e.getErrors().size(), chatpalMessages.size(), client);
+            Map<Integer,String> errors = new LinkedHashMap<>();
+            for(BulkWriteError error : e.getErrors()){
+                errors.put(error.getIndex(), error.getMessage());
+            }
+            return errors;
+        }
+    }
+    
+    @Override
+    public List<ObjectId> findIds(ObjectId client, Collection<?> msgIds) {
+        if(msgIds.isEmpty()){
+            return Collections.emptyList();
+        }
+        Query query = Query.query(Criteria.where("msgId").in(msgIds).and("client").is(client));
+        query.fields().include("id");
+        return mongoTemplate.find(query, ChatpalMessage.class).stream()
+                .map(ChatpalMessage::getId)
+                .collect(Collectors.toList());
+    }
+    
     @Override
     public void markAsDeleted(ObjectId client, String msgId) {
         WriteResult result = mongoTemplate.updateMulti(
@@ -94,52 +134,10 @@ public class ChatpalRepositoryImpl implements ChatpalRepositoryCustom {
     }
     
     /* (non-Javadoc)
-     * @see io.redlink.smarti.chatpal.repo.ChatpalRepositoryCustom#updatedSince(java.util.Date)
+     * @see io.redlink.smarti.chatpal.repo.ChatpalRepositoryCustom#updatedSince(java.util.Date, java.util.Collection, int)
      */
     @Override
-    public UpdatedIds<ObjectId> updatedSince(Date date, int limit) {
-        //IMPLEMENTATION NOTES (Rupert Westenthaler, 2017-07-19):
-        // * we need to use $gte as we might get additional updates in the same ms ...
-        // * Instead of $max: modified we would like to use the current Server time of the
-        //   aggregation, but this is not possible ATM (see https://jira.mongodb.org/browse/SERVER-23656)
-        // * The use of $gte together with lastModified menas that we will repeat reporting the
-        //   Entities updated at lastModified on every call. To avoid this a Workaround is used
-        //   that increases the reported lastModified time by 1ms in cases no update was done
-        //   since the last call (meaning the parsed date equals the lastModified)
-        @SuppressWarnings("rawtypes")
-        AggregationResults<UpdatedIds> aggResult = mongoTemplate.aggregate(
-                getUpdatedSinceAggregation(date, limit), ChatpalMessage.class, UpdatedIds.class);
-        if(log.isTraceEnabled()){
-            log.trace("{} : {} updated since {}", ChatpalMessage.class, aggResult.getMappedResults(), 
-                    date == null ? null : date.toInstant());
-        }
-        if(aggResult.getUniqueMappedResult() == null){
-            return new UpdatedIds<>(date, Collections.emptyList());
-        } else {
-            UpdatedIds<ObjectId> updates = aggResult.getUniqueMappedResult();
-            //NOTE: workaround for SERVER-23656 (see above impl. notes)
-            if(date != null && date.equals(updates.getLastModified())) { //no update since the last request
-                //increase the time by 1 ms to avoid re-indexing the last update
-                return new UpdatedIds<>(new Date(date.getTime()+1), updates.ids());
-            } else {
-                return updates;
-            }    
-        }
-    }
-
-    private Aggregation getUpdatedSinceAggregation(Date since, long limit) {
-        List<AggregationOperation> ops = new LinkedList<>();
-        if(since != null){
-            ops.add(Aggregation.match(Criteria.where("modified").gte(since)));
-        }
-        ops.add(Aggregation.sort(Direction.ASC,"modified"));
-        if(limit > 0){
-            ops.add(Aggregation.limit(limit));
-        }
-        ops.add(ID_MODIFIED_PROJECTION);
-        ops.add(GROUP_MODIFIED);
-        Aggregation agg = Aggregation.newAggregation(ops);
-        log.trace("UpdatedSince Aggregation: {}", agg);
-        return agg;
+    public UpdatedIdsIterator updatedSince(Date date, Collection<ObjectId> lastIds, int batchSize) {
+        return new UpdatedIdsIterator(mongoTemplate, ChatpalMessage.class, "modified", date, lastIds, batchSize);
     }
 }
@@ -1,6 +1,8 @@
 package io.redlink.smarti.chatpal.service;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.bson.types.ObjectId;
@@ -8,7 +10,7 @@ import org.springframework.stereotype.Component;
 
 import io.redlink.smarti.chatpal.model.ChatpalMessage;
 import io.redlink.smarti.chatpal.repo.ChatpalRepository;
-import io.redlink.smarti.repositories.UpdatedIds;
+import io.redlink.smarti.repositories.UpdatedIdsIterator;
 
 @Component
 public class ChatpalMessageServcie {
@@ -23,8 +25,24 @@ public class ChatpalMessageServcie {
         repo.store(clientId, data);
     }
     
-    public UpdatedIds<ObjectId> updatedSince(Date date, int limit){
-        return repo.updatedSince(date, limit);
+    /**
+     * Stores the parsed messages with a single bulk write
+     * @return the errors for messages that could not be stored (index of the message to the error message)
+     */
+    public Map<Integer,String> store(ObjectId clientId, List<Map<String,Object>> data){
+        return repo.store(clientId, data);
+    }
+    
+    public List<ObjectId> getIds(ObjectId clientId, Collection<?> msgIds){
+        return repo.findIds(clientId, msgIds);
+    }
+    
+    /**
+     * Iterates over the ids of messages updated since the parsed position in batches
+     * @see io.redlink.smarti.chatpal.repo.ChatpalRepositoryCustom#updatedSince(Date, Collection, int)
+     */
+    public UpdatedIdsIterator updatedSince(Date date, Collection<ObjectId> lastIds, int batchSize){
+        return repo.updatedSince(date, lastIds, batchSize);
     }
     
     public ChatpalMessage get(ObjectId id){
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.chatpal.repo;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteResult;
+
+import io.redlink.smarti.chatpal.model.ChatpalMessage;
+
+public class ChatpalRepositoryImplTest {
+
+    private final ObjectId client = new ObjectId();
+
+    private MongoTemplate mongoTemplate;
+    private BulkOperations bulk;
+    private ChatpalRepositoryImpl repository;
+
+    @Before
+    public void init() {
+        mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.indexOps(ChatpalMessage.class)).thenReturn(mock(IndexOperations.class));
+        bulk = mock(BulkOperations.class);
+        when(mongoTemplate.bulkOps(BulkMode.UNORDERED, ChatpalMessage.class)).thenReturn(bulk);
+        repository = new ChatpalRepositoryImpl(mongoTemplate);
+    }
+
+    @Test
+    public void testStoreAll() {
+        when(bulk.execute()).thenReturn(mock(BulkWriteResult.class));
+        final Map<Integer, String> errors = repository.store(client, Arrays.asList(message("m1"), message("m2")));
+        
+        Assert.assertTrue(errors.isEmpty());
+        verify(bulk, times(2)).upsert(any(Query.class), any(Update.class));
+        verify(bulk, times(1)).execute();
+    }
+
+    @Test
+    public void testStoreMixed() {
+        //unordered bulk: the 2nd and 4th message are rejected, all others are stored
+        final List<BulkWriteError> bulkErrors = Arrays.asList(
+                new BulkWriteError(11000, "duplicate key", new BasicDBObject(), 1),
+                new BulkWriteError(52, "field names must not start with '$'", new BasicDBObject(), 3));
+        final BulkOperationException bulkException = mock(BulkOperationException.class);
+        when(bulkException.getErrors()).thenReturn(bulkErrors);
+        when(bulk.execute()).thenThrow(bulkException);
+        
+        final Map<Integer, String> errors = repository.store(client, 
+                Arrays.asList(message("m1"), message("m2"), message("m3"), message("m4")));
+        
+        final Map<Integer, String> expected = new HashMap<>();
+        expected.put(1, "duplicate key");
+        expected.put(3, "field names must not start with '$'");
+        Assert.assertEquals(expected, errors);
+        verify(bulk, times(4)).upsert(any(Query.class), any(Update.class));
+    }
+
+    @Test
+    public void testStoreEmpty() {
+        Assert.assertTrue(repository.store(client, Collections.emptyList()).isEmpty());
+        verify(mongoTemplate, never()).bulkOps(eq(BulkMode.UNORDERED), eq(ChatpalMessage.class));
+    }
+
+    private static Map<String, Object> message(String id) {
+        final Map<String, Object> message = new HashMap<>();
+        message.put("id", id);
+        message.put("msg", "message " + id);
+        return message;
+    }
+}
@@ -3,8 +3,6 @@ package io.redlink.smarti.query.conversation;
 import java.util.Date;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.NavigableSet;
-import java.util.TreeSet;
 
 import org.apache.commons.collections4.MapUtils;
 
@@ -81,53 +79,123 @@ public final class ConversationContextUtils {
             return new int[]{getContextStart(messages, minContextLength, contextLength, minInclMsgs, maxInclMsgs, minAge, maxAge), messages.size()};
         }
         //general case
-        Message context = messages.get(contextIdx);
-        Date contextDate = context.getTime();
-        int contextSize = 0;
-        ListIterator<Message> pIt = messages.listIterator(contextIdx);
-        ListIterator<Message> fIt = messages.listIterator(contextIdx);
-        Message following = null;
-        Message previouse = null;
-        NavigableSet<Integer> inclIdxs = new TreeSet<>();
-        while(pIt.hasPrevious() || fIt.hasNext()){
-            if(following == null){
-                following = fIt.hasNext() ? fIt.next() : null;
-            }
-            if(previouse == null){
-                previouse = pIt.hasPrevious() ? pIt.previous() : null;
+        return new MessageWindow(messages).getContext(contextIdx, minContextLength, contextLength, 
+                minInclMsgs, maxInclMsgs, minInclBefore, minInclAfter, minAge, maxAge);
+    }
+    
+    /**
+     * Getter for the contexts of all messages. Equivalent to calling {@link #getMessageContext(List, int, int, int, int, int, int, int, long, long)}
+     * for every message, but the message times and content lengths are only read once and windows are computed
+     * on those arrays (without creating intermediate collections).
+     * @param messages the messages
+     * @param minContextLength the minimum desired length of the context (in chars)
+     * @param contextLength the desired length of the context
+     * @param minInclMsgs the minimum number of included messages
+     * @param minInclBefore the minimum number of messages to be included before the current message
+     * @param minInclAfter the minimum number of messages to be included after the current message
+     * @param minAge the minimum age of messages to be included (in ms)
+     * @param maxAge the maximum age of message to be included (in ms)
+     * @return the contexts of the messages (same index as the message). See {@link #getMessageContext(List, int, int, int, int, int, int, int, long, long)}
+     * for the semantics of the returned values
+     */
+    public static int[][] getMessageContexts(List<Message> messages, int minContextLength, int contextLength, 
+            int minInclMsgs, int maxInclMsgs, int minInclBefore, int minInclAfter, long minAge, long maxAge){
+        if(messages == null){
+            return null;
+        }
+        final int size = messages.size();
+        final int[][] contexts = new int[size][];
+        if(size == 0){
+            return contexts;
+        }
+        //special case - very short message list
+        if(size <= minInclMsgs){
+            for(int i = 0; i < size; i++){
+                contexts[i] = new int[]{0,size};
             }
-            long fAge = following == null ? Long.MAX_VALUE : following.getTime().getTime() - contextDate.getTime();
-            long pAge = previouse == null ? Long.MAX_VALUE : contextDate.getTime() - previouse.getTime().getTime();
-            boolean forward = fAge <= pAge;
-            long delta = Math.min(fAge, pAge);
-            int idx;
-            Message msg = null;
-            if(forward){
-                msg = following;
-                following = null;
-                idx = fIt.nextIndex() - 1;
-            } else {
-                msg = previouse;
-                previouse = null;
-                idx = pIt.previousIndex() + 1;
+            return contexts;
+        }
+        final MessageWindow window = new MessageWindow(messages);
+        for(int i = 0; i < size - 1; i++){
+            contexts[i] = window.getContext(i, minContextLength, contextLength, minInclMsgs, maxInclMsgs, 
+                    minInclBefore, minInclAfter, minAge, maxAge);
+        }
+        //special case - the last message
+        contexts[size - 1] = new int[]{getContextStart(messages, minContextLength, contextLength, minInclMsgs, maxInclMsgs, minAge, maxAge), size};
+        return contexts;
+    }
+    
+    /**
+     * Holds the times and content lengths of messages so that context windows can be calculated by
+     * moving two pointers (one backward and one forward) starting from the context message.
+     */
+    private static class MessageWindow {
+        
+        private final long[] times;
+        private final int[] lengths;
+        
+        MessageWindow(List<Message> messages){
+            times = new long[messages.size()];
+            lengths = new int[messages.size()];
+            int i = 0;
+            for(Message msg : messages){
+                times[i] = msg.getTime().getTime();
+                lengths[i] = msg.getContent() == null ? 0 : msg.getContent().length();
+                i++;
             }
-            if(contextSize < minContextLength || //force inclusion
-                    inclIdxs.size() < minInclMsgs || 
-                    delta <= minAge){
-                contextSize = contextSize + msg.getContent().length();
-                inclIdxs.add(idx);
-            } else if(contextSize < contextLength && //allow include if more context is allowed
-                    inclIdxs.size() < maxInclMsgs && 
-                    delta <= maxAge){
-                inclIdxs.add(idx);
-            } else { //we are done!
-                break;
+        }
+        
+        int[] getContext(int contextIdx, int minContextLength, int contextLength, 
+                int minInclMsgs, int maxInclMsgs, int minInclBefore, int minInclAfter, long minAge, long maxAge){
+            final int size = times.length;
+            final long contextDate = times[contextIdx];
+            int contextSize = 0;
+            int next = contextIdx; //the next message in forward direction
+            int prev = contextIdx - 1; //the next message in backward direction
+            int following = -1;
+            int previouse = -1;
+            int first = Integer.MAX_VALUE;
+            int last = Integer.MIN_VALUE;
+            int numIncl = 0;
+            while(prev >= 0 || next < size){
+                if(following < 0 && next < size){
+                    following = next++;
+                }
+                if(previouse < 0 && prev >= 0){
+                    previouse = prev--;
+                }
+                long fAge = following < 0 ? Long.MAX_VALUE : times[following] - contextDate;
+                long pAge = previouse < 0 ? Long.MAX_VALUE : contextDate - times[previouse];
+                boolean forward = fAge <= pAge;
+                long delta = Math.min(fAge, pAge);
+                int idx;
+                if(forward){
+                    idx = following;
+                    following = -1;
+                } else {
+                    idx = previouse;
+                    previouse = -1;
+                }
+                if(contextSize < minContextLength || //force inclusion
+                        numIncl < minInclMsgs || 
+                        delta <= minAge){
+                    contextSize = contextSize + lengths[idx];
+                } else if(contextSize < contextLength && //allow include if more context is allowed
+                        numIncl < maxInclMsgs && 
+                        delta <= maxAge){
+                    //include
+                } else { //we are done!
+                    break;
+                }
+                numIncl++;
+                first = Math.min(first, idx);
+                last = Math.max(last, idx);
             }
+            int start = Math.max(0, contextIdx - minInclBefore);
+            int end = Math.min(size - 1, contextIdx + minInclAfter);
+            return numIncl == 0 ? new int[]{start, end} : new int[]{Math.min(first, start), Math.max(last, end)};
         }
-        return new int[]{
-                Math.min(inclIdxs.first(), Math.max(0, contextIdx - minInclBefore)),
-                Math.max(inclIdxs.last(), Math.min(messages.size() - 1, contextIdx + minInclAfter))};
-    };
+    }
     
     
 }
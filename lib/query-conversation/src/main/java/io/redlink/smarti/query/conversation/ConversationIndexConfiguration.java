@@ -19,6 +19,7 @@ package io.redlink.smarti.query.conversation;
 
 import io.redlink.solrlib.SimpleCoreDescriptor;
 import io.redlink.solrlib.SolrCoreDescriptor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -28,12 +29,17 @@ import java.io.IOException;
 public class ConversationIndexConfiguration {
     
     public final static String CONVERSATION_INDEX = "conversation";
+    /**
+     * Core used for shadow rebuilds of the {@link #CONVERSATION_INDEX} (only available if enabled). After
+     * a shadow rebuild this core holds the previous index.
+     */
+    public final static String CONVERSATION_INDEX_SHADOW = "conversation_shadow";
     
     /**
      * The current conversation index version. Needs to be increased on schema.xml
      * or software updates that do require a full re-index
      */
-    public static final int CONVERSATION_INDEX_VERSION = 7; //v7 for reduced stored fields
+    public static final int CONVERSATION_INDEX_VERSION = 9; //v9 for the compact MLT context
     
     public static final String FIELD_ID = "id";
     /**
@@ -59,6 +65,11 @@ public class ConversationIndexConfiguration {
     public static final String FIELD_MESSAGE_IDXS = "message_idxs";
     public static final String FIELD_MESSAGE_CONTEXT_START = "message_mlt_context_start_idx";
     public static final String FIELD_MESSAGE_CONTEXT_END = "message_mlt_context_end_idx";
+    /**
+     * Stored with the conversation. Holds '<code>{message-doc-id} {hash}</code>' values for all message
+     * documents of the conversation. Used for incremental updates.
+     */
+    public static final String FIELD_MESSAGE_HASHES = "message_hashes";
     
     public static final String FIELD_SYNC_DATE = "sync_date";
     /**
@@ -92,11 +103,21 @@ public class ConversationIndexConfiguration {
     }
     
     public static final String FIELD_MLT_CONTEXT = "mlt_context";
+    /**
+     * MLT context indexed with term vectors (only used for messages if configured)
+     */
+    public static final String FIELD_MLT_CONTEXT_TV = "mlt_context_tv";
     
     @Bean(name=CONVERSATION_INDEX)
     protected SolrCoreDescriptor getConversationCoreDescriptor() throws IOException {
         return SimpleCoreDescriptor.createFromResource(CONVERSATION_INDEX, "/solr/core/" + CONVERSATION_INDEX, ConversationIndexConfiguration.class);
     }
     
+    @Bean(name=CONVERSATION_INDEX_SHADOW)
+    @ConditionalOnProperty(name="smarti.index.conversation.shadow-rebuild", havingValue="true")
+    protected SolrCoreDescriptor getConversationShadowCoreDescriptor() throws IOException {
+        return SimpleCoreDescriptor.createFromResource(CONVERSATION_INDEX_SHADOW, "/solr/core/" + CONVERSATION_INDEX, ConversationIndexConfiguration.class);
+    }
+    
     
 }
@@ -21,20 +21,29 @@ import static io.redlink.smarti.model.Message.Metadata.SKIP_ANALYSIS;
 import static io.redlink.smarti.query.conversation.ConversationIndexConfiguration.*;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 
 import org.apache.commons.collections4.MapUtils;
@@ -45,8 +54,16 @@ import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest.ACTION;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CoreAdminParams.CoreAdminAction;
+import org.apache.solr.common.params.UpdateParams;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,7 +76,14 @@ import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterators;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import io.redlink.smarti.api.event.StoreServiceEvent;
 import io.redlink.smarti.api.event.StoreServiceEvent.Operation;
@@ -67,6 +91,12 @@ import io.redlink.smarti.cloudsync.ConversationCloudSync;
 import io.redlink.smarti.cloudsync.ConversationCloudSync.ConversytionSyncCallback;
 import io.redlink.smarti.cloudsync.ConversationCloudSync.SyncData;
 import io.redlink.smarti.cloudsync.ConversationCloudSync.IndexingStatus;
+import io.redlink.smarti.cloudsync.IndexCommitCoordinator;
+import io.redlink.smarti.cloudsync.IndexingMetrics;
+import io.redlink.smarti.cloudsync.IndexingMetricsService;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService.ChangeListener;
+import io.redlink.smarti.cloudsync.MongoChangeStreamService.ChangeStream;
 import io.redlink.smarti.model.Context;
 import io.redlink.smarti.model.Conversation;
 import io.redlink.smarti.model.ConversationMeta;
@@ -110,16 +140,52 @@ public class ConversationIndexer implements ConversytionSyncCallback {
     protected static final long MIN_AGE = TimeUnit.MINUTES.toMillis(3);
     //Include no messages older as a day (except for MIN_INCL_BEFORE and MIN_INCL_AFTER)
     protected static final long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+    
+    /**
+     * The id used to store checkpoints of full rebuilds of the conversation index
+     */
+    protected static final String REBUILD_CHECKPOINT_ID = "conversationIndex";
+    /**
+     * The id used to store checkpoints of shadow rebuilds of the conversation index
+     */
+    protected static final String SHADOW_REBUILD_CHECKPOINT_ID = "conversationIndexShadow";
+    
+    /**
+     * Used to calculate the hashes of message documents (see {@link #FIELD_MESSAGE_HASHES})
+     */
+    private static final HashFunction MESSAGE_HASH = Hashing.murmur3_128();
 
 
     @Autowired
     @Qualifier(ConversationIndexConfiguration.CONVERSATION_INDEX)
     private SolrCoreDescriptor conversationCore;
     
+    @Autowired(required=false)
+    @Qualifier(ConversationIndexConfiguration.CONVERSATION_INDEX_SHADOW)
+    private SolrCoreDescriptor shadowCore;
+    
     @Autowired(required=false)
     private ConversationCloudSync cloudSync;
     
+    @Autowired(required=false)
+    private MongoChangeStreamService changeStreamService;
+    
+    @Autowired(required=false)
+    private IndexingMetricsService metricsService;
+    
+    /**
+     * The metrics of the {@link #conversationCore} (<code>null</code> if no {@link IndexingMetricsService}
+     * is available)
+     */
+    private IndexingMetrics metrics;
+    
     private ConversationIndexTask indexTask;
+    
+    /**
+     * The change stream used to sync the index with the repository. <code>null</code> if not
+     * available. Polling is used as long as the stream is not {@link ChangeStream#isActive() active}
+     */
+    private ChangeStream changeStream;
 
     protected final SolrCoreContainer solrServer;
     
@@ -134,6 +200,31 @@ public class ConversationIndexer implements ConversytionSyncCallback {
 
     protected final ConversationIndexerConfig config;
     
+    /**
+     * The {@link SolrClient} for the {@link #conversationCore} shared by all indexing operations
+     */
+    private SolrClient solrClient;
+    
+    private SolrBatchIndexer batchIndexer;
+    
+    /**
+     * Coordinates all commits of the {@link #conversationCore}
+     */
+    private IndexCommitCoordinator commits;
+    
+    /**
+     * Caches the hashes of the message documents indexed for conversations so that
+     * incremental updates do not need to lookup those in the index
+     */
+    private final Cache<ObjectId, Map<String,String>> indexedMessages = CacheBuilder.newBuilder()
+            .maximumSize(10000).expireAfterWrite(10, TimeUnit.MINUTES).build();
+    
+    /**
+     * <code>true</code> while a full rebuild is performed. Incremental updates are
+     * not used for full rebuilds
+     */
+    private volatile boolean rebuildActive = false;
+    
     @Autowired
     public ConversationIndexer(ConversationIndexerConfig config, SolrCoreContainer solrServer, ConversationService storeService, 
             TaskScheduler taskScheduler){
@@ -145,6 +236,54 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                 new BasicThreadFactory.Builder().namingPattern("conversation-indexing-thread-%d").daemon(true).build());
     }
     
+    /**
+     * Getter for the shared {@link SolrClient} for the conversation core. The client is lazily
+     * initialized as the core might not be available on construction
+     */
+    protected final synchronized SolrClient getSolrClient() {
+        if(solrClient == null){
+            solrClient = solrServer.getSolrClient(conversationCore);
+            metrics = metricsService == null ? null : metricsService.getMetrics(conversationCore.getCoreName());
+            final SolrClient client = solrClient;
+            commits = new IndexCommitCoordinator(conversationCore.getCoreName(), 
+                    (softCommit, openSearcher) -> commit(client, softCommit, openSearcher), 
+                    config.getCommitWithin(), config.getHardCommitInterval(), metrics);
+            batchIndexer = new SolrBatchIndexer(solrClient, config.getBatch(), commits, metrics);
+            if(metrics != null){
+                metrics.setPending(batchIndexer::getPending, batchIndexer::getOldestPending);
+            }
+        }
+        return solrClient;
+    }
+    
+    protected final SolrBatchIndexer getBatchIndexer() {
+        getSolrClient(); //ensure initialization
+        return batchIndexer;
+    }
+    
+    /**
+     * Sends the currently batched documents to Solr
+     */
+    public void flush() {
+        getBatchIndexer().flush();
+    }
+    
+    @PreDestroy
+    protected synchronized void shutdown() {
+        if(solrClient != null){
+            try {
+                batchIndexer.flush();
+            } catch (RuntimeException e) {
+                log.warn("Unable to flush pending documents on shutdown ({} - {})", e.getClass().getSimpleName(), e.getMessage());
+            }
+            commits.close(); //commits pending updates
+            try {
+                solrClient.close();
+            } catch (IOException e) {/* ignore */}
+            solrClient = null;
+        }
+    }
+    
     @EventListener(ContextRefreshedEvent.class)
     protected void startup() {
         log.info("sync conversation index on startup");
@@ -152,17 +291,28 @@ public class ConversationIndexer implements ConversytionSyncCallback {
         if(indexTask != null){
             log.info("initialize ConversationIndex after startup ...");
             Date syncDate = null; //null triggers a full rebuild (default)
-            if(!rebuildOnStartup){
-                try (SolrClient solr = solrServer.getSolrClient(conversationCore)){
+            if(cloudSync.isRebuildPending(REBUILD_CHECKPOINT_ID)){
+                log.info("resume interrupted full re-build of the conversation index");
+            } else if(isShadowRebuild() && cloudSync.isRebuildPending(SHADOW_REBUILD_CHECKPOINT_ID)){
+                log.info("resume interrupted shadow re-build of the conversation index");
+                indexTask.enqueueShadowRebuild();
+            } else if(!rebuildOnStartup){
+                try {
+                    final SolrClient solr = getSolrClient();
                     //search for conversations indexed with an earlier version of the index
                     SolrQuery query = new SolrQuery("*:*");
                     query.addFilterQuery(String.format("!%s:%s",FIELD_INDEX_VERSION,CONVERSATION_INDEX_VERSION));
                     query.setRows(0); //we only need the count
-                    if(solr.query(query).getResults().getNumFound()  > 0){
+                    final boolean outdated = solr.query(query).getResults().getNumFound()  > 0;
+                    if(outdated && isShadowRebuild()){
+                        log.info("conversation index contains documents indexed with an outdated version - shadow re-build required");
+                        indexTask.enqueueShadowRebuild(); //the outdated index is used until the shadow core is swapped
+                    } else if(outdated){
                         log.info("conversation index contains documents indexed with an outdated version - full re-build required");
                         solr.deleteByQuery("*:*");
-                        solr.commit();
-                        solr.optimize(); //required as some schema changes will cause exceptions without this on reindexing
+                        commit(solr);
+                        optimize(solr); //required as some schema changes will cause exceptions without this on reindexing
+                        cloudSync.resetRebuild(REBUILD_CHECKPOINT_ID);
                     } else { //partial update possible. Search for the last sync date ...
                         query = new SolrQuery("*:*");
                         query.addSort(FIELD_SYNC_DATE, ORDER.desc);
@@ -181,9 +331,24 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                 }
             } else {
                 log.info("full re-build on startup required via configuration");
+                if(isShadowRebuild()){
+                    indexTask.enqueueShadowRebuild();
+                }
             }
             indexTask.setLastSync(syncDate);
             indexerPool.execute(indexTask);
+            if(changeStreamService != null){
+                changeStream = changeStreamService.watch(REBUILD_CHECKPOINT_ID, Conversation.class, new ChangeListener() {
+                    @Override
+                    public void onChanges(Collection<ObjectId> ids) {
+                        onConversationChanges(ids);
+                    }
+                    @Override
+                    public void onHistoryLost(Date since) {
+                        onConversationChangesLost(since);
+                    }
+                });
+            }
         } else { //manual initialization (performs a full re-index to be up-to-date)
             Iterators.partition(conversationService.listConversationIDs().iterator(), 100).forEachRemaining(
                     ids -> {
@@ -191,10 +356,12 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                                 .map(conversationService::getConversation)
                                 .forEach(c -> indexConversation(c, false));
                     });
+            flush();
         }
         
         //start the recurring scheduled tasks
         this.taskScheduler.scheduleAtFixedRate(this::syncIndex, config.getSyncDelay());
+        this.taskScheduler.scheduleAtFixedRate(() -> getBatchIndexer().flushIfExpired(), config.getBatch().getMaxAge());
         if(config.getReindexCron() != null){
             log.info("Rebuild Index Cron: ", config.getReindexCron());
             this.taskScheduler.schedule(this::rebuildIndex, config.getReindexCron());
@@ -212,19 +379,54 @@ public class ConversationIndexer implements ConversytionSyncCallback {
     @EventListener
     protected void conversationUpdated(StoreServiceEvent storeEvent){
         log.debug("StoreServiceEvent for {}", storeEvent.getConversationId());
-        if(storeEvent.getOperation() == Operation.SAVE){
+        if(isChangeStreamActive()){
+            log.debug("  - ignored as changes are processed by {}", changeStream);
+        } else if(storeEvent.getOperation() == Operation.SAVE){
             if(storeEvent.getConversationStatus() == Status.Complete){
                 log.debug("  - SAVE operation of a COMPLETED conversation[id: {}]", storeEvent.getConversationId());
-                indexConversation(conversationService.getConversation(storeEvent.getConversationId()), true);
+                //send the documents now. They get visible with the next scheduled soft commit
+                indexConversation(conversationService.getConversation(storeEvent.getConversationId()), false);
+                flush();
             } //else we do not index uncompleted conversations
         } else if(storeEvent.getOperation() == Operation.DELETE){
             log.debug("  - DELETE operation for conversation[id:{}]", storeEvent.getConversationId());
-            removeConversation(storeEvent.getConversationId(), true);
+            removeConversation(storeEvent.getConversationId(), false);
         } else {
             log.debug("  - {} ignored", storeEvent);
         }
     }
     
+    /**
+     * Indexes conversations reported as changed by the {@link #changeStream}
+     */
+    protected void onConversationChanges(Collection<ObjectId> ids) {
+        for(ObjectId id : ids){
+            Conversation conversation = conversationService.getConversation(id, true); //might be changed by an other node
+            if(conversation == null){ //deleted or marked as deleted
+                removeConversation(id, false);
+            } else {
+                index(conversation, conversation.getLastModified());
+            }
+        }
+        //send the documents now. They get visible with the next scheduled soft commit
+        getBatchIndexer().flush();
+    }
+    
+    /**
+     * Called if the {@link #changeStream} can not resume as its position is no longer present in the
+     * oplog. Syncs all conversations updated since the parsed date.
+     */
+    protected void onConversationChangesLost(Date since) {
+        final SyncData sync = indexTask.getCloudSync().sync(this, since, new IndexingStatus());
+        getBatchIndexer().flush();
+        log.info("synced {} updated and {} deleted conversations missed by {}", sync.getUpdatedCount(), 
+                sync.getDeletedCount(), changeStream);
+    }
+    
+    private boolean isChangeStreamActive() {
+        return changeStream != null && changeStream.isActive();
+    }
+    
     public void removeConversation(Conversation conversation, boolean commit) {
         removeConversation(conversation.getId(), commit);
     }
@@ -233,12 +435,19 @@ public class ConversationIndexer implements ConversytionSyncCallback {
         removeConversation(conversationId, false);
     }
     public void removeConversation(ObjectId conversationId, boolean commit) {
-        try (SolrClient solr = solrServer.getSolrClient(conversationCore)){
-            solr.deleteByQuery(getDeleteQuery(conversationId), config.getCommitWithin());
+        try {
+            final SolrClient solr = getSolrClient();
+            indexedMessages.invalidate(conversationId);
+            //flush batched documents first as those might include the removed conversation
+            getBatchIndexer().flush();
+            deleteByQuery(solr, getDeleteQuery(conversationId));
             if(commit){
-                solr.commit();
+                awaitVisible();
             }
         } catch (IOException | SolrServerException e) {
+            if(metrics != null){
+                metrics.failed(1);
+            }
             log.warn("Unable to index Conversation {} ({}: {})",conversationId, e.getClass().getSimpleName(), e.getMessage());
             log.debug("STACKTRACE",e);
         }        
@@ -246,35 +455,354 @@ public class ConversationIndexer implements ConversytionSyncCallback {
     
     @Override
     public void updateConversation(Conversation conversation, Date syncDate) {
-        try (SolrClient solr = solrServer.getSolrClient(conversationCore)){
-            SolrInputDocument doc = toSolrInputDocument(conversation);
-            if(doc != null){
-                doc.setField(FIELD_SYNC_DATE, syncDate);
-                solr.add(doc, config.getCommitWithin());
-            } else { //remove from index
-                solr.deleteByQuery(getDeleteQuery(conversation),config.getCommitWithin());
-            }
-        } catch (IOException | SolrServerException e) {
-            log.warn("Unable to index Conversation {} ({}: {})",conversation.getId(), e.getClass().getSimpleName(), e.getMessage());
-            log.debug("STACKTRACE",e);
-        }        
+        index(conversation, syncDate);
+    }
+    
+    /**
+     * Sends the batched documents and waits until all updates are persisted by a hard commit
+     */
+    @Override
+    public boolean commit() {
+        getBatchIndexer().flush();
+        return commits.awaitDurable();
+    }
+    
+    /**
+     * Partitions of a rebuild use their own batch so that workers do not block each other
+     * while sending documents to Solr
+     */
+    @Override
+    public ConversytionSyncCallback forPartition() {
+        return new PartitionIndexer();
     }
 
+    /**
+     * Indexes the parsed conversation. Documents are sent in batches so if <code>commit</code> is 
+     * <code>false</code> the conversation might only be sent to Solr on a later {@link #flush()}.
+     * @param conversation the conversation
+     * @param commit if the batch should be flushed and the call should wait until the conversation is visible
+     */
     public void indexConversation(Conversation conversation, boolean commit) {
-        try (SolrClient solr = solrServer.getSolrClient(conversationCore)){
-            SolrInputDocument doc = toSolrInputDocument(conversation);
-            if(doc != null){
-                solr.add(doc, config.getCommitWithin());
-            } else { //remove from index
-                solr.deleteByQuery(getDeleteQuery(conversation), config.getCommitWithin());
+        index(conversation, null);
+        if(commit){
+            getBatchIndexer().flush();
+            if(!awaitVisible()){
+                log.warn("Conversation {} not visible after {}ms", conversation.getId(), IndexCommitCoordinator.DEFAULT_AWAIT_TIMEOUT);
             }
-            if(commit){
-                solr.commit();
+        }
+    }
+    
+    /**
+     * Indexes the conversations with the parsed ids (e.g. after a bulk import). Conversations are loaded
+     * in a single request and documents are sent in batches. Use {@link #flush()} to send remaining
+     * documents.
+     * @param conversationIds the ids of the conversations
+     */
+    public void indexConversations(Collection<ObjectId> conversationIds) {
+        conversationService.getConversations(conversationIds).values().forEach(c -> index(c, null));
+    }
+
+    /**
+     * Waits until all updates sent to the index are visible (read-after-write). Prefer the scheduled
+     * soft commits (see {@link ConversationIndexerConfig#getCommitWithin()}) where possible.
+     * Documents still in the batch are not considered (see {@link #flush()}).
+     * @return <code>true</code> if visible or <code>false</code> on a timeout
+     */
+    public boolean awaitVisible() {
+        getSolrClient(); //ensure initialization
+        try {
+            return commits.awaitVisible(IndexCommitCoordinator.DEFAULT_AWAIT_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Adds the documents of the parsed conversation to the batch. In case of incremental updates
+     * only new or changed message documents are sent to the index and message documents no longer
+     * present are deleted. The conversation document itself is always sent as its stored and
+     * indexed fields can not be updated atomically.<p>
+     * Messages archived in buckets are only loaded by rebuilds and for conversations not yet indexed.
+     * Incremental updates keep the documents of archived messages (based on the indexed hashes) and
+     * the conversation document only includes the recent messages.
+     * @param conversation the conversation
+     * @param syncDate the sync date or <code>null</code> if none
+     */
+    private void index(Conversation conversation, Date syncDate) {
+        index(getBatchIndexer(), conversation, syncDate);
+    }
+    
+    private void index(SolrBatchIndexer batch, Conversation conversation, Date syncDate) {
+        final boolean incremental = config.isIncremental() && !rebuildActive;
+        //the indexing lag is not relevant for conversations indexed by a full rebuild
+        final Map<String,String> indexed = incremental ? getIndexedMessages(conversation.getId()) : Collections.emptyMap();
+        final Map<String,String> hashes = index(batch, conversation, syncDate, 
+                rebuildActive ? null : conversation.getLastModified(), indexed, !incremental || indexed.isEmpty());
+        if(config.isIncremental()){
+            indexedMessages.put(conversation.getId(), hashes);
+        }
+    }
+    
+    /**
+     * Adds the documents of the conversation to the parsed batch
+     * @param batch the batch
+     * @param conversation the conversation
+     * @param syncDate the sync date or <code>null</code> if none
+     * @param modified the modification date used to calculate the indexing lag or <code>null</code> to ignore
+     * @param indexed the ids and hashes of the already indexed message documents
+     * @param loadArchived if messages archived in buckets are loaded. If <code>false</code> indexed
+     * documents of archived messages are kept
+     * @return the ids and hashes of the message documents of the conversation
+     */
+    private Map<String,String> index(SolrBatchIndexer batch, Conversation conversation, Date syncDate, Date modified, 
+            Map<String,String> indexed, boolean loadArchived) {
+        if(loadArchived){
+            conversationService.loadArchivedMessages(conversation); //index the whole history
+        }
+        final List<SolrInputDocument> docs = toSolrInputDocuments(conversation);
+        final SolrInputDocument solrConversation = docs.get(0);
+        final List<SolrInputDocument> messages = docs.subList(1, docs.size());
+        final Map<String,String> hashes = new LinkedHashMap<>();
+        for(SolrInputDocument message : messages){
+            String id = String.valueOf(message.getFieldValue(FIELD_ID));
+            hashes.put(id, hash(message));
+        }
+        Collection<String> removed = new HashSet<>(indexed.keySet());
+        removed.removeAll(hashes.keySet());
+        if(!loadArchived && !removed.isEmpty()){ //keep the documents of archived messages
+            final Set<String> archived = getArchivedMessageDocs(conversation.getId(), removed);
+            archived.forEach(id -> hashes.put(id, indexed.get(id)));
+            removed.removeAll(archived);
+        }
+        hashes.forEach((id, hash) -> solrConversation.addField(FIELD_MESSAGE_HASHES, id + ' ' + hash));
+        if(syncDate != null){
+            solrConversation.setField(FIELD_SYNC_DATE, syncDate);
+        }
+        batch.add(solrConversation, modified);
+        for(SolrInputDocument message : messages){
+            String id = String.valueOf(message.getFieldValue(FIELD_ID));
+            if(!Objects.equals(hashes.get(id), indexed.get(id))){
+                if(syncDate != null){
+                    message.setField(FIELD_SYNC_DATE, syncDate);
+                }
+                batch.add(message, modified);
+            } //else unchanged message
+        }
+        if(!removed.isEmpty()){
+            log.trace("remove {} message documents of conversation {}", removed.size(), conversation.getId());
+            batch.deleteById(removed);
+        }
+        return hashes;
+    }
+    
+    /**
+     * Filters the parsed message document ids for documents of archived messages
+     * @param conversationId the id of the conversation
+     * @param docIds the ids of message documents
+     * @return the ids of the documents of archived messages
+     */
+    private Set<String> getArchivedMessageDocs(ObjectId conversationId, Collection<String> docIds) {
+        final String prefix = conversationId.toHexString() + '_';
+        final Map<String,String> messageIds = docIds.stream()
+                .filter(id -> id.startsWith(prefix))
+                .collect(Collectors.toMap(id -> id.substring(prefix.length()), Function.identity()));
+        return conversationService.getArchivedMessageIds(conversationId, messageIds.keySet()).stream()
+                .map(messageIds::get)
+                .collect(Collectors.toSet());
+    }
+    
+    /**
+     * Getter for the message documents (and their hashes) indexed for the parsed conversation.
+     * @param conversationId the id of the conversation
+     * @return the ids and hashes of the indexed message documents. An empty map if the conversation
+     * is not yet indexed or the lookup failed
+     */
+    private Map<String,String> getIndexedMessages(ObjectId conversationId) {
+        Map<String,String> indexed = indexedMessages.getIfPresent(conversationId);
+        if(indexed != null){
+            return indexed;
+        }
+        return readIndexedMessages(getSolrClient(), conversationId);
+    }
+    
+    private Map<String,String> readIndexedMessages(SolrClient solr, ObjectId conversationId) {
+        final Map<String,String> indexed = new HashMap<>();
+        SolrQuery query = new SolrQuery("*:*");
+        query.addFilterQuery(String.format("%s:%s", FIELD_ID, conversationId.toHexString()));
+        query.setFields(FIELD_MESSAGE_HASHES);
+        query.setRows(1);
+        try {
+            SolrDocumentList results = solr.query(query).getResults();
+            if(results != null && !results.isEmpty() && results.get(0).getFieldValues(FIELD_MESSAGE_HASHES) != null){
+                for(Object value : results.get(0).getFieldValues(FIELD_MESSAGE_HASHES)){
+                    String idHash = String.valueOf(value);
+                    int sep = idHash.lastIndexOf(' '); //message ids might contain spaces
+                    if(sep > 0){
+                        indexed.put(idHash.substring(0, sep), idHash.substring(sep + 1));
+                    }
+                }
             }
         } catch (IOException | SolrServerException e) {
-            log.warn("Unable to index Conversation {} ({}: {})",conversation.getId(), e.getClass().getSimpleName(), e.getMessage());
+            log.warn("Unable to lookup indexed messages for Conversation {} ({}: {})",conversationId, e.getClass().getSimpleName(), e.getMessage());
             log.debug("STACKTRACE",e);
-        }        
+        }
+        return indexed;
+    }
+    
+    /**
+     * Calculates the hash over all fields (except the {@link #FIELD_SYNC_DATE}) of the parsed document
+     */
+    private static String hash(SolrInputDocument doc) {
+        final Hasher hasher = MESSAGE_HASH.newHasher();
+        for(String field : new TreeSet<>(doc.getFieldNames())){
+            if(!FIELD_SYNC_DATE.equals(field)){
+                hasher.putString(field, StandardCharsets.UTF_8);
+                for(Object value : doc.getFieldValues(field)){
+                    hasher.putByte((byte)0).putString(String.valueOf(value), StandardCharsets.UTF_8);
+                }
+                hasher.putByte((byte)1);
+            }
+        }
+        return hasher.hash().toString();
+    }
+    
+    /**
+     * Removes message documents not updated by the full rebuild with the parsed
+     * {@link SyncData#getRebuildDate() rebuild date}
+     * @param rebuildDate the date all documents of the rebuild were stamped with. If <code>null</code>
+     * (documents with different sync dates) no documents are removed
+     */
+    private void removeOrphanedMessages(SolrClient solr, Date rebuildDate) {
+        if(rebuildDate == null){
+            log.debug("no uniform sync date for the full rebuild - skip removal of orphaned messages");
+            return;
+        }
+        try {
+            commit(solr);
+            deleteByQuery(solr, String.format("%s:%s AND %s:[* TO \"%s\"}", FIELD_TYPE, TYPE_MESSAGE, 
+                    FIELD_SYNC_DATE, DateTimeFormatter.ISO_INSTANT.format(rebuildDate.toInstant())));
+        } catch (IOException | SolrServerException e) {
+            log.warn("Unable to remove orphaned messages after full rebuild ({}: {})", e.getClass().getSimpleName(), e.getMessage());
+            log.debug("STACKTRACE",e);
+        }
+    }
+
+    private boolean isShadowRebuild() {
+        return config.isShadowRebuild() && shadowCore != null;
+    }
+    
+    /**
+     * Rebuilds the index in the {@link #shadowCore}, replays changes made during the rebuild and
+     * finally swaps the shadow core with the {@link #conversationCore}. The previous index is kept
+     * in the shadow core (until the next shadow rebuild) and can be restored by swapping the
+     * cores again (using the Solr CoreAdmin API).
+     * @param status the indexing status
+     * @return the sync data of the last sync of the conversation core
+     * @throws IllegalStateException if the shadow core could not be swapped with the conversation core
+     */
+    private SyncData rebuildShadow(IndexingStatus status) {
+        try (SolrClient shadowSolr = solrServer.getSolrClient(shadowCore)){
+            if(!cloudSync.isRebuildPending(SHADOW_REBUILD_CHECKPOINT_ID)){
+                log.debug("clear shadow core {} before the rebuild", shadowCore.getCoreName());
+                shadowSolr.deleteByQuery("*:*");
+                shadowSolr.commit();
+                shadowSolr.optimize(); //required as some schema changes will cause exceptions without this on reindexing
+            }
+            final ShadowIndexer shadow = new ShadowIndexer(shadowSolr);
+            final SyncData rebuild = cloudSync.rebuild(SHADOW_REBUILD_CHECKPOINT_ID, shadow, status);
+            shadow.flush();
+            removeOrphanedMessages(shadowSolr, rebuild.getRebuildDate());
+            shadowSolr.commit();
+            log.info("rebuild of shadow core {} completed - {}", shadowCore.getCoreName(), rebuild);
+            //replay changes made during the rebuild
+            shadow.replay = true;
+            final SyncData replay = cloudSync.sync(shadow, rebuild.getSyncDate(), rebuild.getLastIds(), new IndexingStatus());
+            shadow.flush();
+            shadowSolr.commit();
+            log.debug("replayed changes on shadow core {} - {}", shadowCore.getCoreName(), replay);
+            //commit pending updates of the current index and swap the cores
+            flush();
+            commit(getSolrClient());
+            swapCores();
+            indexedMessages.invalidateAll(); //cached hashes refer to the previous index
+            log.info("swapped conversation core {} with shadow core {}", conversationCore.getCoreName(), shadowCore.getCoreName());
+            //finally sync changes made after the replay with the swapped core
+            final SyncData sync = cloudSync.sync(this, replay.getSyncDate(), replay.getLastIds(), status);
+            flush();
+            return sync;
+        } catch (IOException | SolrServerException e) {
+            throw new IllegalStateException("Unable to rebuild the conversation index in shadow core " + shadowCore.getCoreName(), e);
+        }
+    }
+    
+    /**
+     * Commits the parsed client. Commits of the {@link #conversationCore} are performed by the {@link #commits}
+     * coordinator
+     */
+    private void commit(SolrClient solr) throws IOException, SolrServerException {
+        if(solr == solrClient){
+            if(!commits.commit()){
+                throw new IOException("Unable to commit " + conversationCore.getCoreName());
+            }
+        } else {
+            solr.commit();
+        }
+    }
+    
+    /**
+     * Used by the {@link #commits} coordinator to commit the {@link #conversationCore}
+     */
+    private static void commit(SolrClient solr, boolean softCommit, boolean openSearcher) throws IOException, SolrServerException {
+        final UpdateRequest request = new UpdateRequest();
+        request.setAction(ACTION.COMMIT, true, true, softCommit);
+        if(!softCommit && !openSearcher){
+            request.setParam(UpdateParams.OPEN_SEARCHER, Boolean.FALSE.toString());
+        }
+        request.process(solr);
+    }
+    
+    /**
+     * Deletes by query. Deletes in the {@link #conversationCore} are reported to the {@link #commits}
+     * coordinator, others use <code>commitWithin</code>
+     */
+    private void deleteByQuery(SolrClient solr, String query) throws IOException, SolrServerException {
+        if(solr == solrClient){
+            solr.deleteByQuery(query);
+            commits.updated();
+        } else {
+            solr.deleteByQuery(query, config.getCommitWithin());
+        }
+    }
+    
+    /**
+     * Optimizes the parsed client. Optimizes of the {@link #conversationCore} are recorded in the {@link #metrics}
+     */
+    private void optimize(SolrClient solr) throws IOException, SolrServerException {
+        final long start = System.currentTimeMillis();
+        solr.optimize();
+        if(metrics != null && solr == solrClient){
+            metrics.optimized(System.currentTimeMillis() - start);
+        }
+    }
+    
+    /**
+     * Swaps the {@link #conversationCore} with the {@link #shadowCore}. Not supported by SolrCloud
+     */
+    private void swapCores() throws IOException, SolrServerException {
+        final CoreAdminRequest swap = new CoreAdminRequest();
+        swap.setAction(CoreAdminAction.SWAP);
+        swap.setCoreName(conversationCore.getCoreName());
+        swap.setOtherCoreName(shadowCore.getCoreName());
+        final SolrClient solr = getSolrClient();
+        if(solr instanceof HttpSolrClient){ //core admin requests need to be sent to the Solr base URL
+            String baseUrl = StringUtils.substringBeforeLast(((HttpSolrClient)solr).getBaseURL(), "/");
+            try (SolrClient adminClient = new HttpSolrClient.Builder(baseUrl).build()){
+                swap.process(adminClient);
+            }
+        } else { //embedded
+            swap.process(solr);
+        }
     }
 
     private String getDeleteQuery(Conversation conversation) {
@@ -286,10 +814,18 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                 FIELD_CONVERSATION_ID, conversationId.toHexString());
     }
 
-    private SolrInputDocument toSolrInputDocument(Conversation conversation) {
+    /**
+     * Converts the conversation to Solr documents. The first document represents the conversation
+     * followed by the documents for the (merged) messages. Messages are indexed as top level documents
+     * (linked via the {@link #FIELD_CONVERSATION_ID}) so that they can be updated individually.
+     */
+    private List<SolrInputDocument> toSolrInputDocuments(Conversation conversation) {
         final SolrInputDocument solrConversation = new SolrInputDocument();
+        final List<SolrInputDocument> docs = new ArrayList<>(conversation.getMessages().size() + 1);
+        docs.add(solrConversation);
 
         solrConversation.setField(FIELD_ID, conversation.getId().toHexString());
+        solrConversation.setField(FIELD_CONVERSATION_ID, conversation.getId().toHexString());
         //#150 index the current version of the index so that we can detect the need of a
         //full re-index after a software update on startup
         solrConversation.setField(FIELD_INDEX_VERSION, CONVERSATION_INDEX_VERSION);
@@ -309,6 +845,10 @@ public class ConversationIndexer implements ConversytionSyncCallback {
             solrConversation.setField(FIELD_END_TIME, conversation.getMessages().get(conversation.getMessages().size() -1).getTime());
 
             List<SolrInputDocument> messages = new ArrayList<>(conversation.getMessages().size());
+            //message contexts (for context based similarity search) calculated in a single pass
+            final int[][] contexts = ConversationContextUtils.getMessageContexts(conversation.getMessages(), 
+                    MIN_CONTEXT_LENGTH, CONTEXT_LENGTH, MIN_INCL_MSGS, MAX_INCL_MSGS, MIN_INCL_BEFORE, MIN_INCL_AFTER, 
+                    MIN_AGE, MAX_AGE);
             Message prevMessage = null;
             SolrInputDocument prevSolrInputDoc = null;
             for (int i = 0; i < conversation.getMessages().size(); i++) {
@@ -319,11 +859,11 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                             && Objects.equals(m.getOrigin(), prevMessage.getOrigin()) // "same" user
                             && m.getTime().before(DateUtils.addSeconds(prevMessage.getTime(), config.getMessage().getMergeTimeout()))) { // within X seconds
                         // merge messages;
-                        prevSolrInputDoc = mergeSolrUInputDoc(prevSolrInputDoc, toSolrInputDocument(m, i, conversation));
+                        prevSolrInputDoc = mergeSolrUInputDoc(prevSolrInputDoc, toSolrInputDocument(m, i, conversation, contexts[i]));
 
                         messages.remove(messages.size() - 1);
                     } else {
-                        prevSolrInputDoc = toSolrInputDocument(m, i, conversation);
+                        prevSolrInputDoc = toSolrInputDocument(m, i, conversation, contexts[i]);
                     }
                     messages.add(prevSolrInputDoc);
                     prevMessage = m;
@@ -336,15 +876,15 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                 //in addition store the content of the conversation also in the Solr MLT field
                 solrConversation.addField(FIELD_MLT_CONTEXT, m.getFieldValues(FIELD_MESSAGE));
             });
-            solrConversation.addChildDocuments(messages);
+            docs.addAll(messages);
         }
 
-        return solrConversation;
+        return docs;
     }
 
 
     
-    private SolrInputDocument toSolrInputDocument(Message message, int i, Conversation conversation) {
+    private SolrInputDocument toSolrInputDocument(Message message, int i, Conversation conversation, int[] context) {
         final SolrInputDocument solrMsg = new SolrInputDocument();
         String id = new StringBuilder(conversation.getId().toHexString()).append('_')
                 //we prefer to use the messageId but some system might not provide a such so we have a fallback
@@ -373,15 +913,27 @@ public class ConversationIndexer implements ConversytionSyncCallback {
         solrMsg.setField(FIELD_VOTE, message.getVotes());
 
         //message context (for context based similarity search)
-        int[] context = ConversationContextUtils.getMessageContext(conversation.getMessages(), i, 
-                MIN_CONTEXT_LENGTH, CONTEXT_LENGTH, MIN_INCL_MSGS, MAX_INCL_MSGS, MIN_INCL_BEFORE, MIN_INCL_AFTER, 
-                MIN_AGE, MAX_AGE);
         solrMsg.setField(FIELD_MESSAGE_CONTEXT_START, context[0]);
         solrMsg.setField(FIELD_MESSAGE_CONTEXT_END, context[1]);
-        for(Message ctxMsg : conversation.getMessages().subList(context[0], context[1])){
-            if(!ctxMsg.isPrivate()){
-                solrMsg.addField(FIELD_MLT_CONTEXT, ctxMsg.getContent());
-            } //else do not use private messages - not even as context!
+        //the content of the context is only indexed if configured as it can be reconstructed from the
+        //conversation and similarity searches use the MLT context of the conversation
+        final String mltContextField;
+        switch(config.getMessage().getMltContext()){
+            case INDEXED:
+                mltContextField = FIELD_MLT_CONTEXT;
+                break;
+            case TERM_VECTORS:
+                mltContextField = FIELD_MLT_CONTEXT_TV;
+                break;
+            default:
+                mltContextField = null;
+        }
+        if(mltContextField != null){
+            for(Message ctxMsg : conversation.getMessages().subList(context[0], context[1])){
+                if(!ctxMsg.isPrivate()){
+                    solrMsg.addField(mltContextField, ctxMsg.getContent());
+                } //else do not use private messages - not even as context!
+            }
         }
         
         // TODO: Add keywords, links, ...
@@ -437,7 +989,9 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                             indexTask.getError());
                 }
             }
-            if(!indexTask.isActive()) {
+            if(isChangeStreamActive()){
+                log.trace("skip sync of conversation index as {} is active", changeStream);
+            } else if(!indexTask.isActive()) {
                 log.debug("execute sync of conversation index with repository (last completed Sync: {})",
                         indexTask.getLastSync() == null ? "none" : indexTask.getLastSync().toInstant());
                 indexerPool.execute(indexTask);
@@ -452,7 +1006,11 @@ public class ConversationIndexer implements ConversytionSyncCallback {
     public void rebuildIndex() {
         if(indexTask != null){
             log.info("starting scheduled full sync of the conversation index");
-            indexTask.enqueueFullRebuild(); //enqueue a full rebuild
+            if(isShadowRebuild()){
+                indexTask.enqueueShadowRebuild();
+            } else {
+                indexTask.enqueueFullRebuild(); //enqueue a full rebuild
+            }
             if(!indexTask.isActive()){
                 indexerPool.execute(indexTask); //and start it when not running
             } else { //when running the full rebuild will be done on the next run
@@ -466,6 +1024,116 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                                 .map(conversationService::getConversation)
                                 .forEach(c -> indexConversation(c, false));
                     });
+            flush();
+        }
+    }
+    
+    /**
+     * Callback used to index conversations in the {@link ConversationIndexer#shadowCore}
+     */
+    private class ShadowIndexer implements ConversytionSyncCallback {
+        
+        private final SolrClient solr;
+        private final SolrBatchIndexer batch;
+        /**
+         * If <code>true</code> already indexed messages are looked up to remove
+         * messages no longer present in updated conversations
+         */
+        boolean replay = false;
+        
+        ShadowIndexer(SolrClient solr) {
+            this.solr = solr;
+            this.batch = new SolrBatchIndexer(solr, config.getBatch(), config.getCommitWithin());
+        }
+        
+        @Override
+        public void updateConversation(Conversation conversation, Date syncDate) {
+            index(batch, conversation, syncDate, null,
+                    replay ? readIndexedMessages(solr, conversation.getId()) : Collections.emptyMap(), true);
+        }
+        
+        @Override
+        public void removeConversation(ObjectId conversationId, Date syncDate) {
+            try {
+                batch.flush();
+                deleteByQuery(solr, getDeleteQuery(conversationId));
+            } catch (IOException | SolrServerException e) {
+                log.warn("Unable to remove Conversation {} from the shadow core ({}: {})",conversationId, e.getClass().getSimpleName(), e.getMessage());
+                log.debug("STACKTRACE",e);
+            }
+        }
+        
+        void flush() {
+            batch.flush();
+        }
+        
+        @Override
+        public boolean commit() {
+            batch.flush();
+            try {
+                commit(solr, false, false);
+                return true;
+            } catch (IOException | SolrServerException | SolrException e) {
+                log.warn("Unable to commit the shadow core ({}: {})", e.getClass().getSimpleName(), e.getMessage());
+                log.debug("STACKTRACE",e);
+                return false;
+            }
+        }
+        
+        @Override
+        public ConversytionSyncCallback forPartition() {
+            ShadowIndexer partition = new ShadowIndexer(solr);
+            partition.replay = replay;
+            return partition;
+        }
+        
+        @Override
+        public String toString() {
+            return "ShadowIndexer [core=" + shadowCore.getCoreName() + "]";
+        }
+    }
+    
+    /**
+     * Callback used by a single partition of a full rebuild of the {@link ConversationIndexer#conversationCore}.
+     * Uses its own batch but reports updates to the shared {@link ConversationIndexer#commits} coordinator
+     */
+    private class PartitionIndexer implements ConversytionSyncCallback {
+        
+        private final SolrBatchIndexer batch;
+        
+        PartitionIndexer() {
+            this.batch = new SolrBatchIndexer(getSolrClient(), config.getBatch(), commits, metrics);
+        }
+        
+        @Override
+        public void updateConversation(Conversation conversation, Date syncDate) {
+            index(batch, conversation, syncDate);
+        }
+        
+        @Override
+        public void removeConversation(ObjectId conversationId, Date syncDate) {
+            try {
+                indexedMessages.invalidate(conversationId);
+                batch.flush();
+                deleteByQuery(getSolrClient(), getDeleteQuery(conversationId));
+            } catch (IOException | SolrServerException e) {
+                if(metrics != null){
+                    metrics.failed(1);
+                }
+                log.warn("Unable to index Conversation {} ({}: {})",conversationId, e.getClass().getSimpleName(), e.getMessage());
+                log.debug("STACKTRACE",e);
+            }
+        }
+        
+        @Override
+        public boolean commit() {
+            batch.flush();
+            return commits.awaitDurable();
+        }
+        
+        @Override
+        public String toString() {
+            return "PartitionIndexer [core=" + conversationCore.getCoreName() + "]";
         }
     }
     
@@ -479,8 +1147,13 @@ public class ConversationIndexer implements ConversytionSyncCallback {
         IndexingStatus indexingStatus = null;
         
         Date lastSync;
+        /**
+         * The ids of the synced conversations with the {@link #lastSync} date (if known)
+         */
+        Set<ObjectId> lastSyncIds;
         
         boolean fullRebuild = false;
+        boolean shadowRebuild = false;
         private Exception error;
         
         ConversationIndexTask(ConversationCloudSync cloudSync) {
@@ -527,6 +1200,18 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                 lock.unlock();
             }
         }
+        /**
+         * Enqueues a rebuild of the index in the shadow core. Can also be called if the
+         * Indexer is currently active
+         */
+        public void enqueueShadowRebuild(){
+            lock.lock();
+            try {
+                shadowRebuild = true;
+            } finally {
+                lock.unlock();
+            }
+        }
         /**
          * Setter for the lastSync time. Can only be used if not {@link #isActive() active}
          * @param lastSync the time or <code>null</code> to to a full rebuild
@@ -545,6 +1230,7 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                     return false;
                 } else {
                     this.lastSync = lastSync;
+                    this.lastSyncIds = null;
                     return true;
                 }
             } finally {
@@ -560,11 +1246,13 @@ public class ConversationIndexer implements ConversytionSyncCallback {
         public void run() {
             active.set(true);
             try {
-                final Date nextSync;
+                final boolean shadow;
                 lock.lock();
                 try {
                     completed.set(false);
                     error = null;
+                    shadow = shadowRebuild;
+                    shadowRebuild = false;
                     if(fullRebuild){
                         lastSync = null;
                         fullRebuild = false;
@@ -574,18 +1262,29 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                 }
                 SyncData syncData;
                 indexingStatus = new IndexingStatus();
-                if(lastSync == null){
+                if(shadow){
+                    log.debug("start shadow rebuild of Index using {}", cloudSync);
+                    syncData = rebuildShadow(indexingStatus);
+                } else if(lastSync == null){
                     log.debug("start full rebuild of Index using {}", cloudSync);
-                    syncData = cloudSync.syncAll(ConversationIndexer.this, indexingStatus);
-                    try (SolrClient solr = solrServer.getSolrClient(conversationCore)){
+                    rebuildActive = true;
+                    try {
+                        syncData = cloudSync.rebuild(REBUILD_CHECKPOINT_ID, ConversationIndexer.this, indexingStatus);
+                    } finally {
+                        rebuildActive = false;
+                    }
+                    flush(); //send all batched documents
+                    removeOrphanedMessages(getSolrClient(), syncData.getRebuildDate());
+                    try {
                         log.debug("optimize Index after the full rebuild");
-                        solr.optimize(); //optimize after a full rebuild
+                        optimize(getSolrClient()); //optimize after a full rebuild
                     } catch (IOException | SolrServerException e) {/* ignore*/}
                 } else {
                     if(log.isTraceEnabled()){
                         log.trace("update Index with changes after {}", lastSync == null ? null : lastSync.toInstant());
                     }
-                    syncData = cloudSync.sync(ConversationIndexer.this, lastSync, indexingStatus);
+                    syncData = cloudSync.sync(ConversationIndexer.this, lastSync, lastSyncIds, indexingStatus);
+                    flush(); //send all batched documents
                 }
                 if(syncData.getCount() > 0){
                     log.debug("performed {} updates in the Conversation Index - {}", syncData.getCount(), syncData);
@@ -595,6 +1294,7 @@ public class ConversationIndexer implements ConversytionSyncCallback {
                 lock.lock();
                 try {
                     lastSync = syncData.getSyncDate();
+                    lastSyncIds = syncData.getLastIds();
                     completed.set(true);
                     indexingStatus = null;
                 } finally {
@@ -9,19 +9,32 @@ public class ConversationIndexerConfig{
     public static final int DEFAULT_COMMIT_WITHIN = 10*1000; //10sec
     public static final int MIN_COMMIT_WITHIN = 1000; //1sec
     
+    public static final int DEFAULT_HARD_COMMIT_INTERVAL = 60*1000; //60sec
+    public static final int MIN_HARD_COMMIT_INTERVAL = 5*1000; //5sec
+    
     public static final int DEFAULT_MESSAGE_MERGE_TIMEOUT = 30;
 
+    public static final int DEFAULT_BATCH_MAX_DOCS = 500;
+    public static final int DEFAULT_BATCH_MAX_BYTES = 10 * 1024 * 1024; //10MByte
+    public static final int DEFAULT_BATCH_MAX_AGE = 5 * 1000; //5sec
+    public static final int MIN_BATCH_MAX_AGE = 500; //0.5sec
+
     public static final int DEFAULT_SYNC_DELAY = 15 * 1000; //15 sec
     public static final int MIN_SYNC_DELAY = 5 * 1000; //5sec
     
     private int commitWithin = DEFAULT_COMMIT_WITHIN;
+    private int hardCommitInterval = DEFAULT_HARD_COMMIT_INTERVAL;
+    private boolean incremental = true;
+    private boolean shadowRebuild = false;
     private ConversationIndexerConfig.Message message = new Message();
+    private ConversationIndexerConfig.Batch batch = new Batch();
     
     private CronTrigger reindexCron = null;
     private int syncDelay = DEFAULT_SYNC_DELAY;
     
     public static class Message {
         private int mergeTimeout = DEFAULT_MESSAGE_MERGE_TIMEOUT;
+        private MltContext mltContext = MltContext.NONE;
         
         public void setMergeTimeout(int mergeTimeout) {
             this.mergeTimeout = mergeTimeout < 0 ? DEFAULT_MESSAGE_MERGE_TIMEOUT : mergeTimeout;
@@ -30,6 +43,84 @@ public class ConversationIndexerConfig{
         public int getMergeTimeout() {
             return mergeTimeout;
         }
+        
+        /**
+         * How the MLT context of messages is represented in the index
+         */
+        public MltContext getMltContext() {
+            return mltContext;
+        }
+        
+        public void setMltContext(MltContext mltContext) {
+            this.mltContext = mltContext == null ? MltContext.NONE : mltContext;
+        }
+    }
+    
+    /**
+     * Options for the MLT context of message documents. Similarity searches use the MLT context of
+     * conversation documents. For messages the context is always available via the stored
+     * {@link ConversationIndexConfiguration#FIELD_MESSAGE_CONTEXT_START start} and
+     * {@link ConversationIndexConfiguration#FIELD_MESSAGE_CONTEXT_END end} index of the context messages.
+     */
+    public enum MltContext {
+        /**
+         * The content of context messages is not indexed with messages (default)
+         */
+        NONE,
+        /**
+         * The content of context messages is indexed (but not stored) in the
+         * {@link ConversationIndexConfiguration#FIELD_MLT_CONTEXT} field
+         */
+        INDEXED,
+        /**
+         * The content of context messages is indexed (but not stored) with term vectors in the
+         * {@link ConversationIndexConfiguration#FIELD_MLT_CONTEXT_TV} field. Required for MLT requests
+         * for indexed message documents.
+         */
+        TERM_VECTORS
+    }
+    
+    /**
+     * Configuration for batched indexing (see {@link SolrBatchIndexer})
+     */
+    public static class Batch {
+        private int maxDocs = DEFAULT_BATCH_MAX_DOCS;
+        private int maxBytes = DEFAULT_BATCH_MAX_BYTES;
+        private int maxAge = DEFAULT_BATCH_MAX_AGE;
+        
+        /**
+         * The maximum number of documents in a batch
+         */
+        public int getMaxDocs() {
+            return maxDocs;
+        }
+        
+        public void setMaxDocs(int maxDocs) {
+            this.maxDocs = maxDocs <= 0 ? DEFAULT_BATCH_MAX_DOCS : maxDocs;
+        }
+        
+        /**
+         * The maximum (estimated) size of a batch in bytes
+         */
+        public int getMaxBytes() {
+            return maxBytes;
+        }
+        
+        public void setMaxBytes(int maxBytes) {
+            this.maxBytes = maxBytes <= 0 ? DEFAULT_BATCH_MAX_BYTES : maxBytes;
+        }
+        
+        /**
+         * The maximum time (in ms) documents are kept in a batch before it is flushed
+         */
+        public int getMaxAge() {
+            return maxAge;
+        }
+        
+        public void setMaxAge(int maxAge) {
+            this.maxAge = maxAge <= 0 ? DEFAULT_BATCH_MAX_AGE : 
+                maxAge < MIN_BATCH_MAX_AGE ? MIN_BATCH_MAX_AGE : maxAge;
+        }
     }
     
     public void setCommitWithin(int commitWithin) {
@@ -37,10 +128,50 @@ public class ConversationIndexerConfig{
             commitWithin < MIN_COMMIT_WITHIN ? MIN_COMMIT_WITHIN : commitWithin;
     }
     
+    /**
+     * The maximum time (in ms) until updates become visible. Used as interval for the soft commits
+     * of the {@link io.redlink.smarti.cloudsync.IndexCommitCoordinator}
+     */
     public int getCommitWithin() {
         return commitWithin;
     }
     
+    public void setHardCommitInterval(int hardCommitInterval) {
+        this.hardCommitInterval = hardCommitInterval <= 0 ? DEFAULT_HARD_COMMIT_INTERVAL : 
+            hardCommitInterval < MIN_HARD_COMMIT_INTERVAL ? MIN_HARD_COMMIT_INTERVAL : hardCommitInterval;
+    }
+    
+    /**
+     * The interval (in ms) of hard commits (without opening a new searcher) that persist updates
+     */
+    public int getHardCommitInterval() {
+        return hardCommitInterval;
+    }
+    
+    /**
+     * If enabled only new or changed message documents are written on updates of a conversation
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+    
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+    
+    /**
+     * If enabled full rebuilds are indexed into the {@link ConversationIndexConfiguration#CONVERSATION_INDEX_SHADOW shadow core}
+     * that is swapped with the conversation core after completion. The current index is used for searches
+     * until the swap.
+     */
+    public boolean isShadowRebuild() {
+        return shadowRebuild;
+    }
+    
+    public void setShadowRebuild(boolean shadowRebuild) {
+        this.shadowRebuild = shadowRebuild;
+    }
+    
     public void setMessage(ConversationIndexerConfig.Message message) {
         this.message = message;
     }
@@ -49,6 +180,14 @@ public class ConversationIndexerConfig{
         return message;
     }
     
+    public void setBatch(ConversationIndexerConfig.Batch batch) {
+        this.batch = batch;
+    }
+    
+    public ConversationIndexerConfig.Batch getBatch() {
+        return batch;
+    }
+    
     public void setReindexCron(CronTrigger reindexCron) {
         this.reindexCron = reindexCron;
     }
@@ -32,9 +32,11 @@ import io.swagger.annotations.ApiModelProperty;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.Group;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.GroupParams;
@@ -72,6 +74,12 @@ public class ConversationSearchService {
     
     private static final String[] PARAM_EXCLUDES = new String[]{PARAM_FULL_TEXT_QUERY,PARAM_CONTEXT_BEFORE,PARAM_CONTEXT_AFTER};
 
+    /**
+     * The stored fields of message documents used to create the {@link Message}s of results
+     */
+    private static final String[] MESSAGE_FIELDS = new String[]{FIELD_ID,FIELD_CONVERSATION_ID,FIELD_MESSAGE_IDS,
+            FIELD_MESSAGE_IDXS,FIELD_MESSAGE,FIELD_TIME,FIELD_VOTE,FIELD_USER_ID,FIELD_USER_NAME};
+
     
     private final SolrCoreContainer solrServer;
     private final SolrCoreDescriptor conversationCore;
@@ -98,7 +106,8 @@ public class ConversationSearchService {
 
         final ModifiableSolrParams solrParams = new ModifiableSolrParams(toListOfStringArrays(queryParams, PARAM_EXCLUDES));
         solrParams.set(CommonParams.QT, "/query");
-        solrParams.add(CommonParams.FL, FIELD_ID,FIELD_MESSAGE_IDS,FIELD_CONVERSATION_ID,"score");
+        solrParams.add(CommonParams.FL, MESSAGE_FIELDS);
+        solrParams.add(CommonParams.FL, "score");
         if (clients != null) {
             if (clients.isEmpty()) {
               return new SearchResult<>();
@@ -109,7 +118,7 @@ public class ConversationSearchService {
         }
         solrParams.add(CommonParams.FQ, String.format("%s:\"%s\"", FIELD_TYPE, TYPE_MESSAGE));
         solrParams.set(GroupParams.GROUP, "true");
-        solrParams.set(GroupParams.GROUP_FIELD, "_root_");
+        solrParams.set(GroupParams.GROUP_FIELD, FIELD_CONVERSATION_ID);
         solrParams.set(GroupParams.GROUP_TOTAL_COUNT, "true");
         if (queryParams.containsKey(PARAM_FULL_TEXT_QUERY)) {
             List<String> searchTerms = queryParams.get(PARAM_FULL_TEXT_QUERY);
@@ -129,9 +138,16 @@ public class ConversationSearchService {
         try (SolrClient solrClient = solrServer.getSolrClient(conversationCore)) {
 
             final QueryResponse queryResponse = solrClient.query(solrParams);
+            final List<Group> groups = getGroups(queryResponse);
 
+            //messages (matches and context) are read from the index. So conversations are loaded
+            //without messages by a single request
+            final Map<ObjectId, Conversation> conversations = conversationService.getConversationsWithoutMessages(
+                    getConversationIds(groups));
+            final Map<String, List<SolrDocument>> context = loadContext(solrClient, groups, ctxBefore, ctxAfter);
 
-            return fromQueryResponse(queryResponse, (g) -> readConversation(g, ctxBefore, ctxAfter));
+            return fromQueryResponse(queryResponse, (g) -> readConversation(g, conversations, 
+                    context.getOrDefault(g.getGroupValue(), Collections.emptyList()), ctxBefore, ctxAfter));
 
         } catch (SolrServerException e) {
             throw new IllegalStateException("Cannot query non-initialized core", e);
@@ -151,33 +167,88 @@ public class ConversationSearchService {
         }
     }
 
-    private ConversationResult readConversation(Group group, int ctxBefore, int ctxAfter) {
+    private static List<Group> getGroups(QueryResponse solrQueryResponse) {
+        return solrQueryResponse.getGroupResponse().getValues().get(0).getValues();
+    }
+
+    private static Set<ObjectId> getConversationIds(List<Group> groups) {
+        return groups.stream()
+                .map(Group::getGroupValue)
+                .filter(Objects::nonNull)
+                .filter(ObjectId::isValid)
+                .map(ObjectId::new)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Loads the message documents within the context of the matching message documents with a single request.
+     * The context is selected by the indexes of the messages (<code>message_idxs</code>) so that it includes
+     * archived messages but never private ones (as those are not indexed).
+     * @return the message documents by conversation id
+     */
+    private Map<String, List<SolrDocument>> loadContext(SolrClient solrClient, List<Group> groups, int ctxBefore, int ctxAfter) 
+            throws IOException, SolrServerException {
+        if(ctxBefore <= 0 && ctxAfter <= 0){
+            return Collections.emptyMap();
+        }
+        final List<String> ranges = new LinkedList<>();
+        int rows = 0;
+        for(Group group : groups){
+            for(SolrDocument doc : group.getResult()){
+                final int[] idxs = getMessageIdxs(doc);
+                if(idxs != null){
+                    final int start = Math.max(0, idxs[0] - ctxBefore);
+                    final int end = idxs[1] + ctxAfter;
+                    ranges.add(String.format(Locale.ROOT, "(%s:%s AND %s:[%d TO %d])", FIELD_CONVERSATION_ID, 
+                            ClientUtils.escapeQueryChars(group.getGroupValue()), FIELD_MESSAGE_IDXS, start, end));
+                    rows += end - start + 1;
+                }
+            }
+        }
+        if(ranges.isEmpty()){
+            return Collections.emptyMap();
+        }
+        final SolrQuery query = new SolrQuery(String.join(" OR ", ranges));
+        query.addFilterQuery(String.format("%s:\"%s\"", FIELD_TYPE, TYPE_MESSAGE));
+        query.setFields(MESSAGE_FIELDS);
+        query.setRows(rows);
+        return solrClient.query(query).getResults().stream()
+                .collect(Collectors.groupingBy(d -> String.valueOf(d.getFirstValue(FIELD_CONVERSATION_ID))));
+    }
+
+    private ConversationResult readConversation(Group group, Map<ObjectId, Conversation> conversations, 
+            List<SolrDocument> context, int ctxBefore, int ctxAfter) {
         ObjectId convId = new ObjectId(String.valueOf(group.getGroupValue()));
-        Conversation conversation = conversationService.getConversation(convId);
+        Conversation conversation = conversations.get(convId);
         if(conversation == null){
             log.info("ConversationIndex out of Sync with ConversationRepository: Conversation[id:{}] is present in the index but not in the Repository!", convId);
             return null;
         }
         ConversationResult cr = new ConversationResult(conversation);
-        //clean all messages that does not fit
-        Map<String, SolrDocument> matches = new HashMap<>();
+        //the message documents (matches and context) of this conversation by id
+        final Map<Object, SolrDocument> docs = new HashMap<>();
+        final Set<Object> matches = new HashSet<>();
+        context.stream()
+            .filter(d -> getMessageIdxs(d) != null)
+            .forEach(d -> docs.put(d.getFieldValue(FIELD_ID), d));
         group.getResult().stream()
             .filter(d -> Objects.equals(d.getFieldValue(ConversationIndexConfiguration.FIELD_CONVERSATION_ID),conversation.getId().toHexString()))
-            .forEach(d -> d.getFieldValues(ConversationIndexConfiguration.FIELD_MESSAGE_IDS).forEach(mid -> {
-                matches.put(String.valueOf(mid), d);
-            }));
-        
-        //TODO: validate the IDs of Messages to avoid adding the wrong message in case the
-        //      solrIndex is out of Sync with the MongoDB!
+            .filter(d -> getMessageIdxs(d) != null)
+            .forEach(d -> {
+                docs.put(d.getFieldValue(FIELD_ID), d);
+                matches.add(d.getFieldValue(FIELD_ID));
+            });
+        final List<SolrDocument> messages = new ArrayList<>(docs.values());
+        messages.sort(Comparator.comparingInt(d -> getMessageIdxs(d)[0]));
+
         MessageResult current = null;
-        for(int i = 0; i < conversation.getMessages().size(); i++){
-            Message m = conversation.getMessages().get(i);
-            if(current != null && matches.containsKey(m.getId())){ //add a merged message or follow-up result
-                current.getMessages().add(m);
+        for(int i = 0; i < messages.size(); i++){
+            SolrDocument sdoc = messages.get(i);
+            if(current != null && matches.contains(sdoc.getFieldValue(FIELD_ID))){ //add a merged message or follow-up result
+                current.getMessages().add(toMessage(sdoc));
                 current.endIdx = i + 1;
-            } else if(matches.containsKey(m.getId())){
-                current = new MessageResult(i, m);
-                SolrDocument sdoc = matches.get(m.getId());
+            } else if(matches.contains(sdoc.getFieldValue(FIELD_ID))){
+                current = new MessageResult(i, toMessage(sdoc));
                 Number score = (Number)sdoc.getFirstValue("score");
                 if(score != null){
                     current.setScore(score.floatValue());
@@ -188,18 +259,60 @@ public class ConversationSearchService {
             }
             
         }
-        //post process context
+        //post process context (the loaded documents may also include the context of other results)
         cr.getResults().forEach(mr -> {
-            if(ctxBefore > 0 && mr.startIdx > 0){
-                mr.getBefore().addAll(conversation.getMessages().subList(Math.max(0, mr.startIdx - ctxBefore), mr.startIdx));
+            final int minIdx = getMessageIdxs(messages.get(mr.startIdx))[0] - ctxBefore;
+            for(int i = mr.startIdx - 1; i >= 0 && mr.getBefore().size() < ctxBefore && getMessageIdxs(messages.get(i))[1] >= minIdx; i--){
+                mr.getBefore().add(0, toMessage(messages.get(i)));
             }
-            if(ctxAfter > 0 && mr.endIdx < conversation.getMessages().size()){
-                mr.getAfter().addAll(conversation.getMessages().subList(mr.endIdx,Math.min(mr.endIdx + ctxAfter, conversation.getMessages().size())));
+            final int maxIdx = getMessageIdxs(messages.get(mr.endIdx - 1))[1] + ctxAfter;
+            for(int i = mr.endIdx; i < messages.size() && mr.getAfter().size() < ctxAfter && getMessageIdxs(messages.get(i))[0] <= maxIdx; i++){
+                mr.getAfter().add(toMessage(messages.get(i)));
             }
         });
         return cr;
     }
 
+    /**
+     * The range of message indexes of a (merged) message document
+     * @return the <code>[min, max]</code> index or <code>null</code> if not available
+     */
+    private static int[] getMessageIdxs(SolrDocument doc) {
+        final Collection<Object> values = doc.getFieldValues(FIELD_MESSAGE_IDXS);
+        if(values == null || values.isEmpty()){
+            return null;
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for(Object value : values){
+            final int idx = ((Number)value).intValue();
+            min = Math.min(min, idx);
+            max = Math.max(max, idx);
+        }
+        return new int[]{min, max};
+    }
+
+    /**
+     * Creates a message from the stored fields of a (merged) message document. Merged messages use the
+     * id of the first message and the content of all merged messages.
+     */
+    private static Message toMessage(SolrDocument doc) {
+        final Message message = new Message(Objects.toString(doc.getFirstValue(FIELD_MESSAGE_IDS), null));
+        message.setContent((String)doc.getFirstValue(FIELD_MESSAGE));
+        message.setTime((Date)doc.getFirstValue(FIELD_TIME));
+        final Object votes = doc.getFirstValue(FIELD_VOTE);
+        if(votes instanceof Number){
+            message.setVotes(((Number)votes).intValue());
+        }
+        final Object userId = doc.getFirstValue(FIELD_USER_ID);
+        if(userId != null){
+            final User user = new User(userId.toString());
+            user.setDisplayName((String)doc.getFirstValue(FIELD_USER_NAME));
+            message.setUser(user);
+        }
+        return message;
+    }
+
     private static Map<String, String[]> toListOfStringArrays(Map<String, List<String>> in, String... excludes) {
         final Set<String> excludeKeys = new HashSet<>(Arrays.asList(excludes));
         final Map<String, String[]> map = new HashMap<>();
@@ -212,7 +325,7 @@ public class ConversationSearchService {
     }
 
     private <T> SearchResult<T> fromQueryResponse(QueryResponse solrQueryResponse, Function<Group, T> resultMapper) {
-        final List<Group> results = solrQueryResponse.getGroupResponse().getValues().get(0).getValues();
+        final List<Group> results = getGroups(solrQueryResponse);
 
         int numFound = solrQueryResponse.getGroupResponse().getValues().get(0).getNGroups();
         //TODO paging
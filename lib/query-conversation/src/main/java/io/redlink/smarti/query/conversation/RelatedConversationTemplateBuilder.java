@@ -17,14 +17,21 @@
 
 package io.redlink.smarti.query.conversation;
 
+import com.google.common.hash.Hasher;
+
 import io.redlink.smarti.api.TemplateBuilder;
 import io.redlink.smarti.model.*;
 import io.redlink.smarti.model.Token.Type;
+import org.apache.commons.collections4.MapUtils;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
 
 @Component
 public class RelatedConversationTemplateBuilder extends TemplateBuilder {
@@ -46,29 +53,59 @@ public class RelatedConversationTemplateBuilder extends TemplateBuilder {
         //      to keep the code for now
         int startMsgIdx = 0;
         
-        Set<Integer> usedTokenIdxs = template.getSlots().stream()
+        final TokenIndex tokenIndex = analysis.getTokenIndex();
+        //all tokens other than topics extracted from messages >= startMsgIdx ...
+        final BitSet candidates = tokenIndex.getFromMessage(startMsgIdx);
+        candidates.andNot(tokenIndex.getByType(Type.Topic));
+        //... that are not already used by the template
+        template.getSlots().stream()
                 .filter(s -> s.getTokenIndex() >= 0)
-                .map(Slot::getTokenIndex).collect(Collectors.toSet());
+                .forEach(s -> candidates.clear(s.getTokenIndex()));
+        final BitSet keywords = tokenIndex.getByType(Type.Keyword);
         Set<Integer> updatedIdxs = new HashSet<>();
-        for(int i=0;i<analysis.getTokens().size();i++){
-            Token t = analysis.getTokens().get(i);
-            if(t.getMessageIdx() >= startMsgIdx && !usedTokenIdxs.contains(i)){
-                Slot slot = null;
-                if(t.getType() == Type.Keyword){
-                    slot = RELATED_CONV_INTEND_DEF.createSlot(RelatedConversationTemplateDefinition.ROLE_KEYWORD);
-                } else if(t.getType() != Type.Topic){
-                    slot = RELATED_CONV_INTEND_DEF.createSlot(RelatedConversationTemplateDefinition.ROLE_TERM);
-                }
-                if(slot != null){
-                    slot.setTokenIndex(i);
-                    template.getSlots().add(slot);
-                    updatedIdxs.add(i);
-                }
-            }
+        for(int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)){
+            Slot slot = RELATED_CONV_INTEND_DEF.createSlot(keywords.get(i) ? 
+                    RelatedConversationTemplateDefinition.ROLE_KEYWORD : RelatedConversationTemplateDefinition.ROLE_TERM);
+            slot.setTokenIndex(i);
+            template.getSlots().add(slot);
+            updatedIdxs.add(i);
         }
         return updatedIdxs;
     }
 
+    @Override
+    protected boolean isRelevant(Token token) {
+        return token.getType() != Type.Topic;
+    }
+
+    /**
+     * Queries for related conversations do not only use the tokens but also the messages in the
+     * context (as selected by {@link ConversationContextUtils#getContextStart(List, int, int, int, int, long, long)}),
+     * the id and owner of the conversation (filters) and its properties (filters). Messages before
+     * the context are not used, so their number is not part of the fingerprint.
+     */
+    @Override
+    protected void addFingerprintData(Hasher hasher, Conversation conversation, Analysis analysis) {
+        hasher.putString(Objects.toString(conversation.getId(), ""), StandardCharsets.UTF_8).putByte((byte)0);
+        hasher.putString(Objects.toString(conversation.getOwner(), ""), StandardCharsets.UTF_8).putByte((byte)0);
+        final List<Message> messages = conversation.getMessages();
+        final int contextStart = ConversationContextUtils.getContextStart(messages, 
+                ConversationQueryBuilder.MIN_CONTEXT_LENGTH, ConversationQueryBuilder.CONTEXT_LENGTH, 
+                ConversationQueryBuilder.MIN_INCL_MSGS, ConversationQueryBuilder.MAX_INCL_MSGS, 
+                ConversationQueryBuilder.MIN_AGE, ConversationQueryBuilder.MAX_AGE);
+        for(Message message : messages.subList(contextStart, messages.size())){
+            hasher.putString(Objects.toString(message.getId(), ""), StandardCharsets.UTF_8).putByte((byte)0);
+            hasher.putString(Objects.toString(message.getContent(), ""), StandardCharsets.UTF_8).putByte((byte)0);
+            hasher.putLong(message.getTime() == null ? -1 : message.getTime().getTime());
+            hasher.putString(message.getUser() == null ? "" : Objects.toString(message.getUser().getId(), ""), StandardCharsets.UTF_8).putByte((byte)0);
+            hasher.putBoolean(message.isPrivate());
+            hasher.putBoolean(MapUtils.getBooleanValue(message.getMetadata(), Message.Metadata.SKIP_ANALYSIS, false));
+        }
+        if(conversation.getMeta() != null && conversation.getMeta().getProperties() != null){
+            hasher.putString(new TreeMap<>(conversation.getMeta().getProperties()).toString(), StandardCharsets.UTF_8);
+        }
+    }
+
     @Override
     protected void initializeTemplate(Template queryTemplate) {
         //no op
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.query.conversation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.redlink.smarti.cloudsync.IndexCommitCoordinator;
+import io.redlink.smarti.cloudsync.IndexingMetrics;
+import io.redlink.smarti.query.conversation.ConversationIndexerConfig.Batch;
+
+/**
+ * Accumulates {@link SolrInputDocument}s (including their child documents) and deletes by id and sends 
+ * them as bulk {@link UpdateRequest}s to Solr. The buffer is flushed if the {@link Batch#getMaxDocs() number of documents},
+ * the {@link Batch#getMaxBytes() estimated size} or the {@link Batch#getMaxAge() age} of the batch exceeds
+ * the configured limits.<p>
+ * If a batch fails it is split in halves that are retried independently so that a single failing
+ * document does not prevent the others from being indexed.<p>
+ * If {@link IndexingMetrics} are parsed sent batches, failures and the lag of documents
+ * added with a modification date are recorded.<p>
+ * If an {@link IndexCommitCoordinator} is parsed no <code>commitWithin</code> is used. Instead sent
+ * updates are reported to the coordinator.<p>
+ * Instances are thread safe. However batches are sent while holding the lock of the instance. So
+ * concurrent workers (e.g. partitions of a rebuild) should use their own instances.
+ */
+public class SolrBatchIndexer {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    
+    private final SolrClient solrClient;
+    private final Batch config;
+    private final int commitWithin;
+    private final IndexCommitCoordinator commits;
+    private final IndexingMetrics metrics;
+    
+    private final List<SolrInputDocument> buffer = new ArrayList<>();
+    private final Set<String> bufferIds = new HashSet<>();
+    private final Set<String> deletes = new LinkedHashSet<>();
+    private long bufferBytes = 0;
+    private long bufferStart = -1;
+    private long bufferOldest = -1;
+    
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    
+    /**
+     * @param solrClient the client used to send the batches. The caller is responsible to close the client
+     * @param config the batch configuration
+     * @param commitWithin the commitWithin used for update requests
+     */
+    public SolrBatchIndexer(SolrClient solrClient, Batch config, int commitWithin) {
+        this(solrClient, config, commitWithin, null, null);
+    }
+    
+    /**
+     * @param solrClient the client used to send the batches. The caller is responsible to close the client
+     * @param config the batch configuration
+     * @param commits the commit coordinator sent updates are reported to
+     * @param metrics the metrics to record batches and failures or <code>null</code> if none
+     */
+    public SolrBatchIndexer(SolrClient solrClient, Batch config, IndexCommitCoordinator commits, IndexingMetrics metrics) {
+        this(solrClient, config, -1, commits, metrics);
+    }
+    
+    private SolrBatchIndexer(SolrClient solrClient, Batch config, int commitWithin, IndexCommitCoordinator commits, 
+            IndexingMetrics metrics) {
+        this.solrClient = solrClient;
+        this.config = config;
+        this.commitWithin = commitWithin;
+        this.commits = commits;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Adds a document (incl. child documents) to the batch. Flushes the batch if the limits are reached
+     */
+    public void add(SolrInputDocument doc){
+        add(doc, null);
+    }
+    
+    /**
+     * Adds a document (incl. child documents) to the batch. Flushes the batch if the limits are reached
+     * @param doc the document
+     * @param modified the modification date of the indexed entity used to calculate the indexing lag
+     * or <code>null</code> if not known
+     */
+    public synchronized void add(SolrInputDocument doc, Date modified){
+        final String id = getId(doc);
+        if(deletes.contains(id)){
+            flush(); //Solr processes adds before deletes of a request
+        }
+        if(bufferStart < 0){
+            bufferStart = System.currentTimeMillis();
+        }
+        if(modified != null && (bufferOldest < 0 || modified.getTime() < bufferOldest)){
+            bufferOldest = modified.getTime();
+        }
+        buffer.add(doc);
+        bufferIds.add(id);
+        bufferBytes += estimateSize(doc);
+        if(buffer.size() >= config.getMaxDocs() || bufferBytes >= config.getMaxBytes()){
+            flush();
+        }
+    }
+    
+    /**
+     * Adds deletes of the documents with the parsed ids to the batch
+     */
+    public synchronized void deleteById(Collection<String> ids){
+        if(ids == null || ids.isEmpty()){
+            return;
+        }
+        if(ids.stream().anyMatch(bufferIds::contains)){
+            flush(); //Solr processes adds before deletes of a request
+        }
+        if(bufferStart < 0){
+            bufferStart = System.currentTimeMillis();
+        }
+        deletes.addAll(ids);
+        if(deletes.size() >= config.getMaxDocs()){
+            flush();
+        }
+    }
+    
+    /**
+     * Sends the current batch to Solr (if not empty)
+     */
+    public synchronized void flush(){
+        if(buffer.isEmpty() && deletes.isEmpty()){
+            return;
+        }
+        final List<SolrInputDocument> batch = new ArrayList<>(buffer);
+        final long bytes = bufferBytes;
+        final Date oldest = bufferOldest < 0 ? null : new Date(bufferOldest);
+        buffer.clear();
+        bufferIds.clear();
+        bufferBytes = 0;
+        bufferStart = -1;
+        bufferOldest = -1;
+        long start = System.currentTimeMillis();
+        if(!deletes.isEmpty()){
+            sendDeletes(new ArrayList<>(deletes));
+            deletes.clear();
+        }
+        send(batch, oldest);
+        if(log.isDebugEnabled()){
+            log.debug("flushed batch of {} documents (~{}kByte) in {}ms", batch.size(), bytes/1024, 
+                    System.currentTimeMillis() - start);
+        }
+    }
+    
+    /**
+     * Flushes the batch if it is older as the configured {@link Batch#getMaxAge() max age}
+     */
+    public synchronized void flushIfExpired(){
+        if(bufferStart >= 0 && System.currentTimeMillis() - bufferStart >= config.getMaxAge()){
+            flush();
+        }
+    }
+    
+    private void sendDeletes(List<String> ids){
+        try {
+            requests.incrementAndGet();
+            UpdateRequest request = new UpdateRequest();
+            request.deleteById(ids);
+            request.setCommitWithin(commitWithin);
+            request.process(solrClient);
+            if(commits != null){
+                commits.updated();
+            }
+            if(metrics != null){
+                metrics.deleted(ids.size());
+            }
+        } catch (IOException | SolrServerException | SolrException e) {
+            if(metrics != null){
+                metrics.failed(ids.size());
+            }
+            log.warn("Unable to delete {} documents ({}: {})", ids.size(), e.getClass().getSimpleName(), e.getMessage());
+            log.debug("STACKTRACE",e);
+        }
+    }
+    
+    private void send(List<SolrInputDocument> batch, Date oldest){
+        if(batch.isEmpty()){
+            return;
+        }
+        try {
+            requests.incrementAndGet();
+            UpdateRequest request = new UpdateRequest();
+            request.add(batch);
+            request.setCommitWithin(commitWithin);
+            request.process(solrClient);
+            indexed.addAndGet(batch.size());
+            if(commits != null){
+                commits.updated();
+            }
+            if(metrics != null){
+                metrics.batchIndexed(batch.size(), oldest, commits != null ? (int)commits.getMaxLatency() : commitWithin);
+            }
+        } catch (IOException | SolrServerException | SolrException e) {
+            if(batch.size() > 1){
+                log.debug("failed to index batch of {} documents - retry by splitting ({} - {})", batch.size(), 
+                        e.getClass().getSimpleName(), e.getMessage());
+                int split = batch.size() / 2;
+                send(batch.subList(0, split), oldest);
+                send(batch.subList(split, batch.size()), oldest);
+            } else {
+                failed.incrementAndGet();
+                if(metrics != null){
+                    metrics.failed(1);
+                }
+                log.warn("Unable to index document {} ({}: {})", getId(batch.get(0)),
+                        e.getClass().getSimpleName(), e.getMessage());
+                log.debug("STACKTRACE",e);
+            }
+        }
+    }
+    
+    /**
+     * The number of documents currently in the batch
+     */
+    public synchronized int getPending() {
+        return buffer.size();
+    }
+    /**
+     * The modification time of the oldest document in the batch or <code>-1</code> if none
+     */
+    public synchronized long getOldestPending() {
+        return bufferOldest;
+    }
+    /**
+     * The number of (parent) documents successfully indexed
+     */
+    public long getIndexed() {
+        return indexed.get();
+    }
+    /**
+     * The number of (parent) documents that could not be indexed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+    /**
+     * The number of update requests sent to Solr (including retries)
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    private static String getId(SolrInputDocument doc){
+        Object id = doc.getFieldValue(ConversationIndexConfiguration.FIELD_ID);
+        return id == null ? null : id.toString();
+    }
+    
+    /**
+     * Rough estimation of the size of the parsed document (incl. child documents) in bytes
+     */
+    static long estimateSize(SolrInputDocument doc){
+        long size = 0;
+        for(SolrInputField field : doc){
+            size += field.getName().length();
+            Collection<Object> values = field.getValues();
+            if(values != null){
+                for(Object value : values){
+                    size += value == null ? 0 : String.valueOf(value).length();
+                }
+            }
+        }
+        if(doc.hasChildDocuments()){
+            for(SolrInputDocument child : doc.getChildDocuments()){
+                size += estimateSize(child);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.redlink.smarti.query.conversation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.redlink.smarti.model.Message;
+
+/**
+ * Compares the context windows calculated by {@link ConversationContextUtils} with the implementation
+ * used before contexts were calculated on arrays ({@link #legacyMessageContext(List, int, int, int, int, int, int, int, long, long)})
+ */
+public class ConversationContextUtilsTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The parameters as used by the {@link ConversationIndexer}
+     */
+    private static final Params DEFAULT = new Params(100, 300, 2, 10, 1, 1, 3 * MINUTE, TimeUnit.DAYS.toMillis(1));
+
+    private static final List<Params> PARAMS = Arrays.asList(DEFAULT,
+            new Params(0, 0, 0, 0, 0, 0, 0, 0), //no context at all
+            new Params(100, 300, 1, 1, 0, 0, 3 * MINUTE, TimeUnit.DAYS.toMillis(1)), //max. a single message
+            new Params(100, 300, 5, 5, 1, 1, 3 * MINUTE, TimeUnit.DAYS.toMillis(1)), //min == max messages
+            new Params(0, 10000, 2, 100, 0, 0, 0, Long.MAX_VALUE), //no age limit
+            new Params(10000, 10000, 2, 10, 3, 3, 3 * MINUTE, TimeUnit.DAYS.toMillis(1)), //large min context
+            new Params(100, 300, 2, 10, 5, 5, MINUTE, 10 * MINUTE)); //large min before/after
+
+    @Test
+    public void testEmptyConversation() {
+        final List<Message> messages = Collections.emptyList();
+        for(Params p : PARAMS){
+            Assert.assertEquals(0, getMessageContexts(messages, p).length);
+            Assert.assertArrayEquals(legacyMessageContext(messages, 0, p), getMessageContext(messages, 0, p));
+        }
+    }
+
+    @Test
+    public void testShortConversation() {
+        //conversations with less as minInclMsgs messages
+        for(int size = 1; size <= 3; size++){
+            final List<Message> messages = createMessages(new Random(size), size);
+            for(Params p : PARAMS){
+                assertContexts(messages, p);
+            }
+        }
+    }
+
+    @Test
+    public void testFirstAndLastMessage() {
+        final List<Message> messages = createMessages(new Random(42), 20);
+        for(Params p : PARAMS){
+            final int[][] contexts = getMessageContexts(messages, p);
+            Assert.assertArrayEquals(legacyMessageContext(messages, 0, p), contexts[0]);
+            Assert.assertEquals(0, contexts[0][0]);
+            Assert.assertArrayEquals(legacyMessageContext(messages, 19, p), contexts[19]);
+            Assert.assertEquals(20, contexts[19][1]); //the context of the last message ends with the conversation
+        }
+    }
+
+    @Test
+    public void testWindowLimits() {
+        //messages within a minute: all are within minAge
+        final List<Message> burst = new ArrayList<>();
+        final long start = System.currentTimeMillis();
+        for(int i = 0; i < 30; i++){
+            burst.add(createMessage(i, start + i * 1000, 20));
+        }
+        //messages with a gap of 2 days: none is within maxAge
+        final List<Message> sparse = new ArrayList<>();
+        for(int i = 0; i < 30; i++){
+            sparse.add(createMessage(i, start + i * TimeUnit.DAYS.toMillis(2), 20));
+        }
+        for(Params p : PARAMS){
+            assertContexts(burst, p);
+            assertContexts(sparse, p);
+        }
+    }
+
+    @Test
+    public void testRandomConversations() {
+        final Random random = new Random(1234);
+        for(int run = 0; run < 200; run++){
+            final List<Message> messages = createMessages(random, 1 + random.nextInt(60));
+            for(Params p : PARAMS){
+                assertContexts(messages, p);
+            }
+        }
+    }
+
+    private static void assertContexts(List<Message> messages, Params p) {
+        final int[][] contexts = getMessageContexts(messages, p);
+        Assert.assertEquals(messages.size(), contexts.length);
+        for(int i = 0; i < messages.size(); i++){
+            final int[] expected = legacyMessageContext(messages, i, p);
+            Assert.assertArrayEquals("context of message " + i + " (" + p + ")", expected, contexts[i]);
+            Assert.assertArrayEquals("context of message " + i + " (" + p + ")", expected, getMessageContext(messages, i, p));
+        }
+    }
+
+    private static List<Message> createMessages(Random random, int size) {
+        final List<Message> messages = new ArrayList<>(size);
+        long time = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30);
+        for(int i = 0; i < size; i++){
+            switch(random.nextInt(4)){ //mix of bursts, pauses and long gaps
+                case 0:
+                    time += random.nextInt(10) * 1000;
+                    break;
+                case 1:
+                    time += random.nextInt(5) * MINUTE;
+                    break;
+                case 2:
+                    time += random.nextInt(120) * MINUTE;
+                    break;
+                default:
+                    time += random.nextInt(3) * TimeUnit.DAYS.toMillis(1);
+            }
+            messages.add(createMessage(i, time, random.nextInt(200)));
+        }
+        return messages;
+    }
+
+    private static Message createMessage(int idx, long time, int length) {
+        final Message message = new Message("msg-" + idx);
+        message.setTime(new Date(time));
+        message.setContent(StringUtils.repeat('a', length));
+        return message;
+    }
+
+    private static int[][] getMessageContexts(List<Message> messages, Params p) {
+        return ConversationContextUtils.getMessageContexts(messages, p.minContextLength, p.contextLength,
+                p.minInclMsgs, p.maxInclMsgs, p.minInclBefore, p.minInclAfter, p.minAge, p.maxAge);
+    }
+
+    private static int[] getMessageContext(List<Message> messages, int idx, Params p) {
+        return ConversationContextUtils.getMessageContext(messages, idx, p.minContextLength, p.contextLength,
+                p.minInclMsgs, p.maxInclMsgs, p.minInclBefore, p.minInclAfter, p.minAge, p.maxAge);
+    }
+
+    private static int[] legacyMessageContext(List<Message> messages, int idx, Params p) {
+        return legacyMessageContext(messages, idx, p.minContextLength, p.contextLength,
+                p.minInclMsgs, p.maxInclMsgs, p.minInclBefore, p.minInclAfter, p.minAge, p.maxAge);
+    }
+
+    /**
+     * The implementation of {@link ConversationContextUtils#getMessageContext(List, int, int, int, int, int, int, int, long, long)}
+     * before contexts were calculated on arrays (using {@link ListIterator}s and a {@link TreeSet} of included indexes)
+     */
+    private static int[] legacyMessageContext(List<Message> messages, int contextIdx, int minContextLength, int contextLength,
+            int minInclMsgs, int maxInclMsgs, int minInclBefore, int minInclAfter, long minAge, long maxAge){
+        if(messages == null){
+            return null;
+        }
+        //special case - very short message list
+        if(messages.size() <= minInclMsgs){
+            return new int[]{0,messages.size()};
+        }
+        //special case - contextIdx is the last message (or out of bounds)
+        if(contextIdx >= messages.size() -1){
+            return new int[]{ConversationContextUtils.getContextStart(messages, minContextLength, contextLength, minInclMsgs, maxInclMsgs, minAge, maxAge), messages.size()};
+        }
+        //general case
+        Message context = messages.get(contextIdx);
+        Date contextDate = context.getTime();
+        int contextSize = 0;
+        ListIterator<Message> pIt = messages.listIterator(contextIdx);
+        ListIterator<Message> fIt = messages.listIterator(contextIdx);
+        Message following = null;
+        Message previouse = null;
+        NavigableSet<Integer> inclIdxs = new TreeSet<>();
+        while(pIt.hasPrevious() || fIt.hasNext()){
+            if(following == null){
+                following = fIt.hasNext() ? fIt.next() : null;
+            }
+            if(previouse == null){
+                previouse = pIt.hasPrevious() ? pIt.previous() : null;
+            }
+            long fAge = following == null ? Long.MAX_VALUE : following.getTime().getTime() - contextDate.getTime();
+            long pAge = previouse == null ? Long.MAX_VALUE : contextDate.getTime() - previouse.getTime().getTime();
+            boolean forward = fAge <= pAge;
+            long delta = Math.min(fAge, pAge);
+            int idx;
+            Message msg = null;
+            if(forward){
+                msg = following;
+                following = null;
+                idx = fIt.nextIndex() - 1;
+            } else {
+                msg = previouse;
+                previouse = null;
+                idx = pIt.previousIndex() + 1;
+            }
+            if(contextSize < minContextLength || //force inclusion
+                    inclIdxs.size() < minInclMsgs ||
+                    delta <= minAge){
+                contextSize = contextSize + msg.getContent().length();
+                inclIdxs.add(idx);
+            } else if(contextSize < contextLength && //allow include if more context is allowed
+                    inclIdxs.size() < maxInclMsgs &&
+                    delta <= maxAge){
+                inclIdxs.add(idx);
+            } else { //we are done!
+                break;
+            }
+        }
+        return new int[]{
+                Math.min(inclIdxs.first(), Math.max(0, contextIdx - minInclBefore)),
+                Math.max(inclIdxs.last(), Math.min(messages.size() - 1, contextIdx + minInclAfter))};
+    }
+
+    private static class Params {
+        final int minContextLength;
+        final int contextLength;
+        final int minInclMsgs;
+        final int maxInclMsgs;
+        final int minInclBefore;
+        final int minInclAfter;
+        final long minAge;
+        final long maxAge;
+
+        Params(int minContextLength, int contextLength, int minInclMsgs, int maxInclMsgs,
+                int minInclBefore, int minInclAfter, long minAge, long maxAge) {
+            this.minContextLength = minContextLength;
+            this.contextLength = contextLength;
+            this.minInclMsgs = minInclMsgs;
+            this.maxInclMsgs = maxInclMsgs;
+            this.minInclBefore = minInclBefore;
+            this.minInclAfter = minInclAfter;
+            this.minAge = minAge;
+            this.maxAge = maxAge;
+        }
+
+        @Override
+        public String toString() {
+            return "Params [minContextLength=" + minContextLength + ", contextLength=" + contextLength + ", minInclMsgs="
+                    + minInclMsgs + ", maxInclMsgs=" + maxInclMsgs + ", minInclBefore=" + minInclBefore
+                    + ", minInclAfter=" + minInclAfter + ", minAge=" + minAge + ", maxAge=" + maxAge + "]";
+        }
+    }
+}
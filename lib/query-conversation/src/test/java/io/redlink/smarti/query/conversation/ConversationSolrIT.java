@@ -20,6 +20,7 @@ package io.redlink.smarti.query.conversation;
 import io.redlink.smarti.model.*;
 import io.redlink.smarti.model.config.SchedulerConfiguration;
 import io.redlink.smarti.repositories.ConversationRepository;
+import io.redlink.smarti.services.ConversationCache;
 import io.redlink.smarti.services.ConversationService;
 import io.redlink.solrlib.SolrCoreContainer;
 import io.redlink.solrlib.SolrCoreDescriptor;
@@ -71,7 +72,7 @@ import static org.junit.Assert.assertThat;
 @EnableAutoConfiguration
 @ContextConfiguration(classes = {
         ConversationSolrIT.EmbeddedSolrConfiguration.class, SolrLibEmbeddedAutoconfiguration.class,
-        ConversationService.class, ConversationIndexer.class, ConversationSearchService.class,
+        ConversationService.class, ConversationCache.class, ConversationIndexer.class, ConversationSearchService.class,
         SchedulerConfiguration.class})
 @EnableMongoRepositories(basePackageClasses={ConversationRepository.class})
 public class ConversationSolrIT {
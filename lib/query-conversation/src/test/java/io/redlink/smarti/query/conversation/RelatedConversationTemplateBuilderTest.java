@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package io.redlink.smarti.query.conversation;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.redlink.smarti.model.Analysis;
+import io.redlink.smarti.model.Conversation;
+import io.redlink.smarti.model.Message;
+import io.redlink.smarti.model.Token;
+
+/**
+ * Tests that the fingerprint of the {@link RelatedConversationTemplateBuilder} only changes with
+ * information used to build related conversation queries
+ */
+public class RelatedConversationTemplateBuilderTest {
+
+    private final RelatedConversationTemplateBuilder builder = new RelatedConversationTemplateBuilder();
+
+    private Conversation conversation;
+
+    @Before
+    public void init() {
+        conversation = new Conversation();
+        conversation.setId(new ObjectId());
+        conversation.setOwner(new ObjectId());
+        final long start = System.currentTimeMillis() - 60 * 60 * 1000;
+        for(int i = 0; i < 5; i++){
+            final Message message = new Message("msg-" + i);
+            message.setTime(new Date(start + i * 60 * 1000));
+            message.setContent("This is the content of message " + i);
+            conversation.getMessages().add(message);
+        }
+    }
+
+    @Test
+    public void testUnchanged() {
+        final String fingerprint = builder.getFingerprint(conversation, createAnalysis("keyword"));
+        Assert.assertNotNull(fingerprint);
+        Assert.assertEquals(fingerprint, builder.getFingerprint(conversation, createAnalysis("keyword")));
+
+        //topics are not used for queries
+        final Analysis analysis = createAnalysis("keyword");
+        analysis.getTokens().add(createToken(Token.Type.Topic, "topic"));
+        Assert.assertEquals(fingerprint, builder.getFingerprint(conversation, analysis));
+
+        //votes are not used for queries
+        conversation.getMessages().get(4).setVotes(3);
+        Assert.assertEquals(fingerprint, builder.getFingerprint(conversation, createAnalysis("keyword")));
+    }
+
+    @Test
+    public void testChanged() {
+        final String fingerprint = builder.getFingerprint(conversation, createAnalysis("keyword"));
+
+        //changed tokens
+        Assert.assertNotEquals(fingerprint, builder.getFingerprint(conversation, createAnalysis("other")));
+
+        //changed content of a message in the context
+        conversation.getMessages().get(4).setContent("Edited content");
+        final String edited = builder.getFingerprint(conversation, createAnalysis("keyword"));
+        Assert.assertNotEquals(fingerprint, edited);
+
+        //changed properties (used as filters)
+        conversation.getMeta().setProperty("channel", "test");
+        Assert.assertNotEquals(edited, builder.getFingerprint(conversation, createAnalysis("keyword")));
+    }
+
+    private Analysis createAnalysis(String keyword) {
+        final Analysis analysis = new Analysis(conversation.getOwner(), conversation.getId(), new Date());
+        analysis.getTokens().add(createToken(Token.Type.Keyword, keyword));
+        return analysis;
+    }
+
+    private static Token createToken(Token.Type type, String value) {
+        final Token token = new Token();
+        token.setType(type);
+        token.setValue(value);
+        return token;
+    }
+}
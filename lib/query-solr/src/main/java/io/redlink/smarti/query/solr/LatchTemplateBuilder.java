@@ -26,7 +26,6 @@ import org.springframework.stereotype.Component;
 import static io.redlink.smarti.intend.IrLatchTemplate.*;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 @Component
 public class LatchTemplateBuilder extends TemplateBuilder {
@@ -35,6 +34,12 @@ public class LatchTemplateBuilder extends TemplateBuilder {
     
     private static final Set<Type> ENTITY_TYPES = EnumSet.of(Type.Entity, Type.Place, Type.Person, Type.Organization,Type.Product);
     
+    /**
+     * The types of tokens used to fill slots of {@link #LATCH} templates
+     */
+    private static final Set<Type> SLOT_TYPES = EnumSet.of(Type.Place, Type.Date, Type.Topic, Type.Entity, Type.Other,
+            Type.Person, Type.Product, Type.Organization, Type.Keyword);
+    
     @Override
     protected TemplateDefinition getDefinition() {
         return LATCH;
@@ -56,46 +61,43 @@ public class LatchTemplateBuilder extends TemplateBuilder {
             .forEach(s -> addSlot(roleNameSlots, analysis, s));
         
         
-        Set<Integer> usedTokenIdxs = template.getSlots().stream()
+        final TokenIndex tokenIndex = analysis.getTokenIndex();
+        //candidates are tokens with a slot type extracted from messages >= startMsgIdx ...
+        final BitSet candidates = tokenIndex.getByType(SLOT_TYPES);
+        candidates.and(tokenIndex.getFromMessage(startMsgIdx));
+        //... that are not already used by the template
+        template.getSlots().stream()
                 .filter(s -> s.getTokenIndex() >= 0)
-                .map(Slot::getTokenIndex).collect(Collectors.toSet());
+                .forEach(s -> candidates.clear(s.getTokenIndex()));
         
         Set<Integer> updatedIdxs = new HashSet<>();
         
-        for(int i=0;i<analysis.getTokens().size();i++){
-            Token t = analysis.getTokens().get(i);
-            if(t.getMessageIdx() >= startMsgIdx && !usedTokenIdxs.contains(i)){
-                final Slot slot;
-                if(t.getType() == Token.Type.Place){
-                    slot = LATCH.createSlot(ROLE_LOCATION);
-                } else if(t.getType() == Token.Type.Date){
-                    slot = LATCH.createSlot(ROLE_TIME);
-                } else if(t.getType() == Token.Type.Topic){
-                    slot = LATCH.createSlot(ROLE_CATEGORY);
-                } else if(t.getType() == Token.Type.Entity ||
-                        t.getType() == Token.Type.Other ||
-                        t.getType() == Token.Type.Person ||
-                        t.getType() == Token.Type.Product ||
-                        t.getType() == Token.Type.Organization ||
-                        t.getType() == Token.Type.Keyword){
-                    slot = LATCH.createSlot(ROLE_ALPHABET);
-                //} else if( //TODO: how to identify hierarchy terms
-                //    slot = LATCH.createSlot(ROLE_HIERARCHY);
-                } else {
-                    slot = null;
-                }
-                if(slot != null){
-                    slot.setTokenIndex(i);
-                    if(addSlot(roleNameSlots, analysis, slot)){
-                        template.getSlots().add(slot);
-                        updatedIdxs.add(i);
-                    }
-                }
+        for(int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)){
+            Token t = tokenIndex.getToken(i);
+            final Slot slot;
+            if(t.getType() == Token.Type.Place){
+                slot = LATCH.createSlot(ROLE_LOCATION);
+            } else if(t.getType() == Token.Type.Date){
+                slot = LATCH.createSlot(ROLE_TIME);
+            } else if(t.getType() == Token.Type.Topic){
+                slot = LATCH.createSlot(ROLE_CATEGORY);
+            } else { //Entity, Other, Person, Product, Organization and Keyword
+                slot = LATCH.createSlot(ROLE_ALPHABET);
+            }
+            slot.setTokenIndex(i);
+            if(addSlot(roleNameSlots, analysis, slot)){
+                template.getSlots().add(slot);
+                updatedIdxs.add(i);
             }
         }
         return updatedIdxs;
     }
 
+    @Override
+    protected boolean isRelevant(Token token) {
+        return SLOT_TYPES.contains(token.getType());
+    }
+
     private boolean addSlot(Map<String, Map<String, Slot>> roleNameSlots, Analysis analysis, Slot slot) {
         Map<String, Slot> roleSlots = roleNameSlots.get(slot.getRole());
         Token t = analysis.getTokens().get(slot.getTokenIndex());
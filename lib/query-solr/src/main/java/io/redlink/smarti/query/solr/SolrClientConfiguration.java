@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.query.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Configuration of the {@link SolrEndpointClientPool} used for the server side execution of
+ * {@link SolrSearchQuery Solr search queries}
+ */
+@ConfigurationProperties(prefix = "smarti.query.solr.client")
+public class SolrClientConfiguration {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 128;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 5 * 1000; //5sec
+    public static final int DEFAULT_SOCKET_TIMEOUT = 10 * 1000; //10sec
+    public static final int DEFAULT_CACHE_SIZE = 1000;
+    public static final int DEFAULT_CACHE_EXPIRE = 60; //1min
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private int cacheExpire = DEFAULT_CACHE_EXPIRE;
+    private List<String> allowedEndpoints = new ArrayList<>();
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections <= 0 ? DEFAULT_MAX_CONNECTIONS : maxConnections;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost <= 0 ? DEFAULT_MAX_CONNECTIONS_PER_HOST : maxConnectionsPerHost;
+    }
+
+    /**
+     * The connection timeout in ms
+     */
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout <= 0 ? DEFAULT_CONNECTION_TIMEOUT : connectionTimeout;
+    }
+
+    /**
+     * The socket (read) timeout in ms
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout <= 0 ? DEFAULT_SOCKET_TIMEOUT : socketTimeout;
+    }
+
+    /**
+     * The maximum number of cached search results. Values <code>&lt;= 0</code> deactivate the cache
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * The time (in seconds) search results are cached
+     */
+    public int getCacheExpire() {
+        return cacheExpire;
+    }
+
+    public void setCacheExpire(int cacheExpire) {
+        this.cacheExpire = cacheExpire <= 0 ? DEFAULT_CACHE_EXPIRE : cacheExpire;
+    }
+
+    /**
+     * The Solr endpoints queries may be executed against. Supported are base URLs (e.g.
+     * <code>http://solr.example.org:8983/solr/</code>) and hosts (optionally with port, e.g.
+     * <code>solr.example.org:8983</code>). Solr endpoints are part of the client configuration
+     * so server side execution is restricted to endpoints allowed by the administrator. If empty
+     * no query is executed server side.
+     */
+    public List<String> getAllowedEndpoints() {
+        return allowedEndpoints;
+    }
+
+    public void setAllowedEndpoints(List<String> allowedEndpoints) {
+        this.allowedEndpoints = allowedEndpoints == null ? new ArrayList<>() : allowedEndpoints;
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.query.solr;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Manages {@link SolrClient}s for the Solr endpoints configured for the {@link SolrSearchQueryBuilder}.
+ * All clients share a single pooled {@link CloseableHttpClient}. A single {@link HttpSolrClient} is
+ * created (and reused) for every Solr core.<p>
+ * Clients are only created for Solr cores matching one of the
+ * {@link SolrClientConfiguration#getAllowedEndpoints() allowed endpoints}.
+ */
+@Component
+@EnableConfigurationProperties(SolrClientConfiguration.class)
+public class SolrEndpointClientPool {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final SolrClientConfiguration config;
+
+    /**
+     * we use a single HttpClient for all Solr endpoints
+     */
+    private final CloseableHttpClient httpClient;
+
+    private final Map<String, SolrClient> clients = new ConcurrentHashMap<>();
+
+    private final List<URI> allowedEndpoints;
+
+    @Autowired
+    public SolrEndpointClientPool(SolrClientConfiguration config) {
+        this.config = config;
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, config.getMaxConnections());
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, config.getMaxConnectionsPerHost());
+        params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, config.getConnectionTimeout());
+        params.set(HttpClientUtil.PROP_SO_TIMEOUT, config.getSocketTimeout());
+        params.set(HttpClientUtil.PROP_FOLLOW_REDIRECTS, false);
+        this.httpClient = HttpClientUtil.createClient(params);
+        final List<URI> allowed = new ArrayList<>();
+        for(String endpoint : config.getAllowedEndpoints()){
+            if(StringUtils.isBlank(endpoint)){
+                continue;
+            }
+            try {
+                //host entries are parsed as URI without scheme
+                allowed.add(new URI(endpoint.contains("://") ? endpoint.trim() : "//" + endpoint.trim()).normalize());
+            } catch (URISyntaxException e) {
+                log.warn("Ignore invalid allowed Solr endpoint '{}' ({})", endpoint, e.getMessage());
+            }
+        }
+        this.allowedEndpoints = Collections.unmodifiableList(allowed);
+        if(allowedEndpoints.isEmpty()){
+            log.info("No allowed Solr endpoints configured: Solr search queries are not executed server side");
+        } else {
+            log.info("Allowed Solr endpoints for server side execution: {}", allowedEndpoints);
+        }
+    }
+
+    public SolrClientConfiguration getConfig() {
+        return config;
+    }
+
+    /**
+     * Checks if the parsed URL matches one of the {@link SolrClientConfiguration#getAllowedEndpoints() allowed endpoints}
+     * @param url the URL
+     * @return <code>true</code> if server side requests to the parsed URL are allowed
+     */
+    public boolean isAllowed(String url) {
+        if(StringUtils.isBlank(url) || allowedEndpoints.isEmpty()){
+            return false;
+        }
+        final URI uri;
+        try {
+            uri = new URI(url).normalize();
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        if(!("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme())) 
+                || uri.getHost() == null || uri.getUserInfo() != null){
+            return false;
+        }
+        return allowedEndpoints.stream().anyMatch(allowed -> matches(allowed, uri));
+    }
+
+    private static boolean matches(URI allowed, URI uri) {
+        if(allowed.getScheme() != null && !allowed.getScheme().equalsIgnoreCase(uri.getScheme())){
+            return false;
+        }
+        if(!uri.getHost().equalsIgnoreCase(allowed.getHost())){
+            return false;
+        }
+        //host entries without a port allow any port
+        if((allowed.getScheme() != null || allowed.getPort() >= 0) && 
+                !Objects.equals(getPort(allowed.getScheme() == null ? uri.getScheme() : allowed.getScheme(), allowed.getPort()),
+                        getPort(uri.getScheme(), uri.getPort()))){
+            return false;
+        }
+        final String allowedPath = StringUtils.appendIfMissing(StringUtils.defaultIfEmpty(allowed.getPath(), "/"), "/");
+        final String path = StringUtils.appendIfMissing(StringUtils.defaultIfEmpty(uri.getPath(), "/"), "/");
+        return path.startsWith(allowedPath);
+    }
+
+    private static int getPort(String scheme, int port) {
+        if(port >= 0){
+            return port;
+        } else {
+            return "https".equalsIgnoreCase(scheme) ? 443 : 80;
+        }
+    }
+
+    /**
+     * Getter for the {@link SolrClient} for the parsed Solr core URL
+     * @param coreUrl the URL of the Solr core (without the request handler)
+     * @return the (shared) client. Callers MUST NOT close the returned client
+     * @throws IllegalArgumentException if the parsed URL is not {@link #isAllowed(String) allowed}
+     */
+    public SolrClient getSolrClient(String coreUrl) {
+        if(!isAllowed(coreUrl)){
+            throw new IllegalArgumentException("Solr endpoint '" + coreUrl + "' is not allowed (see 'smarti.query.solr.client.allowedEndpoints')");
+        }
+        return clients.computeIfAbsent(coreUrl, url -> {
+            log.debug("create SolrClient for {}", url);
+            HttpSolrClient client = new HttpSolrClient.Builder(url)
+                    .withHttpClient(httpClient)
+                    .build();
+            client.setConnectionTimeout(config.getConnectionTimeout());
+            client.setSoTimeout(config.getSocketTimeout());
+            return client;
+        });
+    }
+
+    @PreDestroy
+    protected void close() {
+        log.debug("in close(..) - @PreDestroy");
+        clients.values().forEach(client -> {
+            try {
+                client.close();
+            } catch (IOException e) { /*ignore*/ }
+        });
+        clients.clear();
+        try {
+            httpClient.close();
+        } catch (IOException e) { /*ignore*/ }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Redlink GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package io.redlink.smarti.query.solr;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import io.redlink.smarti.model.result.Result;
+import io.redlink.smarti.query.solr.SolrEndpointConfiguration.ResultConfig.Mappings;
+
+/**
+ * A search result of a {@link SolrSearchQuery} executed on the server. The fields of the
+ * Solr document are mapped as configured by the {@link Mappings}.
+ */
+@JsonInclude(Include.NON_NULL)
+public class SolrResult extends Result {
+
+    private String source;
+    private String title;
+    private String description;
+    private String type;
+    private String doctype;
+    private String link;
+    private Object date;
+    private String thumb;
+    private Float score;
+
+    public SolrResult(String creator) {
+        super(creator);
+    }
+
+    /**
+     * Creates a copy of the parsed result
+     * @param other the result to copy
+     */
+    public SolrResult(SolrResult other) {
+        super(other.getCreator());
+        setReplySuggestion(other.getReplySuggestion());
+        this.source = other.source;
+        this.title = other.title;
+        this.description = other.description;
+        this.type = other.type;
+        this.doctype = other.doctype;
+        this.link = other.link;
+        //Solr returns date values as java.util.Date (mutable)
+        this.date = other.date instanceof Date ? ((Date)other.date).clone() : other.date;
+        this.thumb = other.thumb;
+        this.score = other.score;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getDoctype() {
+        return doctype;
+    }
+
+    public void setDoctype(String doctype) {
+        this.doctype = doctype;
+    }
+
+    public String getLink() {
+        return link;
+    }
+
+    public void setLink(String link) {
+        this.link = link;
+    }
+
+    public Object getDate() {
+        return date;
+    }
+
+    public void setDate(Object date) {
+        this.date = date;
+    }
+
+    public String getThumb() {
+        return thumb;
+    }
+
+    public void setThumb(String thumb) {
+        this.thumb = thumb;
+    }
+
+    public Float getScore() {
+        return score;
+    }
+
+    public void setScore(Float score) {
+        this.score = score;
+    }
+
+    @Override
+    public String toString() {
+        return "SolrResult [title=" + title + ", link=" + link + ", score=" + score + "]";
+    }
+}
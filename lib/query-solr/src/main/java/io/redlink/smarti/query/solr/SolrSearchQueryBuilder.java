@@ -22,14 +22,25 @@ import io.redlink.smarti.intend.IrLatchTemplate;
 import io.redlink.smarti.model.*;
 import io.redlink.smarti.model.Token.Type;
 import io.redlink.smarti.model.result.Result;
+import io.redlink.smarti.query.solr.SolrEndpointConfiguration.ResultConfig;
+import io.redlink.smarti.query.solr.SolrEndpointConfiguration.ResultConfig.Mappings;
 import io.redlink.smarti.query.solr.SolrEndpointConfiguration.SingleFieldConfig;
 import io.redlink.smarti.query.solr.SolrEndpointConfiguration.SpatialConfig;
 import io.redlink.smarti.services.TemplateRegistry;
 import org.apache.commons.collections4.MapUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.stereotype.Component;
@@ -39,9 +50,13 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import static io.redlink.smarti.intend.IrLatchTemplate.IR_LATCH;
 
 /**
@@ -56,18 +71,36 @@ public final class SolrSearchQueryBuilder extends QueryBuilder<SolrEndpointConfi
 
     private final SolrEndpointConfiguration defaultConfig;
     
+    private final SolrEndpointClientPool clientPool;
+    /**
+     * Caches results of executed queries. The key is the endpoint + query string. <code>null</code> if caching
+     * is deactivated. As {@link SearchResult}s are mutable the cache holds copies and
+     * cached results are copied before they are returned (see {@link #copyOf(SearchResult)})
+     */
+    private final Cache<String, SearchResult<SolrResult>> resultCache;
+    
     @Autowired
-    public SolrSearchQueryBuilder(SolrEndpointConfiguration searchConfig, TemplateRegistry registry) {
-        this(searchConfig, registry, null);
+    public SolrSearchQueryBuilder(SolrEndpointConfiguration searchConfig, TemplateRegistry registry, SolrEndpointClientPool clientPool) {
+        this(searchConfig, registry, clientPool, null);
     }
     
-    protected SolrSearchQueryBuilder(SolrEndpointConfiguration searchConfig, TemplateRegistry registry, String nameSuffix) {
+    protected SolrSearchQueryBuilder(SolrEndpointConfiguration searchConfig, TemplateRegistry registry, SolrEndpointClientPool clientPool, String nameSuffix) {
         super(SolrEndpointConfiguration.class, registry);
         //sub-classes MUST classes some name suffix!
         if(!getClass().equals(SolrSearchQueryBuilder.class) && StringUtils.isBlank(nameSuffix)){
             throw new IllegalArgumentException("the parsed nameSuffix MUST NOT be NULL nor empty");
         }
         this.defaultConfig = searchConfig;
+        this.clientPool = clientPool;
+        SolrClientConfiguration clientConfig = clientPool == null ? null : clientPool.getConfig();
+        if(clientConfig != null && clientConfig.getCacheSize() > 0){
+            this.resultCache = CacheBuilder.newBuilder()
+                    .maximumSize(clientConfig.getCacheSize())
+                    .expireAfterWrite(clientConfig.getCacheExpire(), TimeUnit.SECONDS)
+                    .build();
+        } else {
+            this.resultCache = null;
+        }
     }
 
     protected String getQueryTitle(){
@@ -95,12 +128,187 @@ public final class SolrSearchQueryBuilder extends QueryBuilder<SolrEndpointConfi
 
     @Override
     public final boolean isResultSupported() {
-        return false;
+        return clientPool != null;
     }
 
     @Override
     public final SearchResult<? extends Result> execute(SolrEndpointConfiguration conf, Template template, Conversation conversation, Analysis analysis, MultiValueMap<String, String> params) throws IOException {
-        throw new UnsupportedOperationException("This QueryBuilder does not support inline results");
+        if(!isResultSupported()){
+            throw new UnsupportedOperationException("This QueryBuilder does not support inline results");
+        }
+        final ResultConfig resultConfig = conf.getResult();
+        //the page size: 1. 'rows' request param, 2. 'rows' default, 3. configured numOfRows
+        int pageSize = resultConfig.getNumOfRows();
+        if(conf.getDefaults() != null && conf.getDefaults().get(CommonParams.ROWS) != null){
+            pageSize = NumberUtils.toInt(String.valueOf(conf.getDefaults().get(CommonParams.ROWS)), pageSize);
+        }
+        if(params != null){
+            pageSize = NumberUtils.toInt(params.getFirst(CommonParams.ROWS), pageSize);
+        }
+        int offset = params == null ? 0 : Math.max(0, NumberUtils.toInt(params.getFirst(CommonParams.START), 0));
+        //validate the endpoint before building the query
+        final Pair<String, String> endpoint = parseEndpoint(conf);
+        final String coreUrl = endpoint.getLeft();
+        if(!clientPool.isAllowed(coreUrl)){
+            throw new IOException("Solr endpoint '" + conf.getSolrEndpoint() + "' configured for " 
+                    + getCreatorName(conf) + " is not allowed for server side execution");
+        }
+        
+        final SolrSearchQuery query = buildQuery(conf, template, conversation, analysis);
+        if(query == null || query.getQueryParams() == null || query.getQueryParams().isEmpty()){
+            return new SearchResult<SolrResult>(pageSize);
+        }
+        final SolrQuery solrQuery = new SolrQuery();
+        addDefaultParams(solrQuery, conf);
+        solrQuery.setRequestHandler(endpoint.getRight());
+        solrQuery.setQuery(StringUtils.join(query.getQueryParams(), " OR "));
+        if(query.getFilterQueries() != null){
+            query.getFilterQueries().stream()
+                .filter(StringUtils::isNoneBlank)
+                .forEach(solrQuery::addFilterQuery);
+        }
+        solrQuery.setStart(offset);
+        solrQuery.setRows(pageSize);
+        //only request the fields we need to map the results
+        solrQuery.setFields(getResultFields(resultConfig.getMappings()));
+        
+        final String cacheKey = getCacheKey(coreUrl, solrQuery);
+        if(resultCache != null){
+            SearchResult<SolrResult> cached = resultCache.getIfPresent(cacheKey);
+            if(cached != null){
+                log.trace("return cached result for {}", cacheKey);
+                return copyOf(cached);
+            }
+        }
+        log.debug("execute {} on {}", solrQuery, coreUrl);
+        final SolrClient solrClient = clientPool.getSolrClient(coreUrl);
+        try {
+            final QueryResponse solrResponse = new QueryRequest(solrQuery).process(solrClient);
+            final SolrDocumentList solrResults = solrResponse.getResults();
+            final List<SolrResult> results = new ArrayList<>(solrResults.size());
+            for (SolrDocument solrDocument : solrResults) {
+                results.add(toSolrResult(conf, resultConfig.getMappings(), solrDocument));
+            }
+            SearchResult<SolrResult> result = new SearchResult<>(solrResults.getNumFound(), solrResults.getStart(), pageSize, results);
+            if(solrResults.getMaxScore() != null){
+                result.setMaxScore(solrResults.getMaxScore());
+            }
+            if(resultCache != null){
+                resultCache.put(cacheKey, copyOf(result));
+            }
+            return result;
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * Splits the configured Solr endpoint in the URL of the Solr core and the request handler
+     * @return the core URL (left) and the request handler (right)
+     * @throws IOException if the configured endpoint is not a valid URL or does not include a request handler
+     */
+    private Pair<String, String> parseEndpoint(SolrEndpointConfiguration conf) throws IOException {
+        final URL endpoint;
+        try {
+            endpoint = new URL(conf.getSolrEndpoint());
+        } catch (MalformedURLException e) {
+            throw new IOException("Invalid Solr endpoint '" + conf.getSolrEndpoint() + "' configured for " 
+                    + getCreatorName(conf), e);
+        }
+        //the last path element of the endpoint is the request handler
+        final String path = StringUtils.removeEnd(endpoint.getPath(), "/");
+        final int handlerIdx = path.lastIndexOf('/');
+        if(handlerIdx <= 0){
+            throw new IOException("Solr endpoint '" + conf.getSolrEndpoint() + "' configured for " 
+                    + getCreatorName(conf) + " does not include a request handler");
+        }
+        return new ImmutablePair<>(new URL(endpoint, path.substring(0, handlerIdx)).toString(), path.substring(handlerIdx));
+    }
+    
+    /**
+     * If queries for the parsed configuration can be executed server side
+     */
+    private boolean isResultSupported(SolrEndpointConfiguration conf){
+        if(!isResultSupported()){
+            return false;
+        }
+        try {
+            return clientPool.isAllowed(parseEndpoint(conf).getLeft());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * The key for cached results. Includes the Solr core as the same query might be
+     * executed against different endpoints
+     */
+    static String getCacheKey(String coreUrl, SolrQuery solrQuery){
+        return coreUrl + solrQuery.toQueryString();
+    }
+    
+    /**
+     * Creates a copy of the parsed result so that callers can not modify results
+     * held by the {@link #resultCache}
+     */
+    static SearchResult<SolrResult> copyOf(SearchResult<SolrResult> result){
+        final List<SolrResult> docs = new ArrayList<>(result.getDocs().size());
+        for(SolrResult doc : result.getDocs()){
+            docs.add(new SolrResult(doc));
+        }
+        final SearchResult<SolrResult> copy = new SearchResult<>(result.getNumFound(), result.getStart(), result.getPageSize(), docs);
+        if(result.getMaxScore() != null){
+            copy.setMaxScore(result.getMaxScore());
+        }
+        return copy;
+    }
+    
+    /**
+     * The fields required to map the results (field projection). If no mappings are
+     * configured all fields are requested.
+     */
+    static String[] getResultFields(Mappings mappings){
+        Set<String> fields = new LinkedHashSet<>();
+        if(mappings != null){
+            fields.addAll(Arrays.asList(mappings.getSource(), mappings.getTitle(), mappings.getDescription(),
+                    mappings.getType(), mappings.getDoctype(), mappings.getLink(), mappings.getDate(), 
+                    mappings.getThumb()));
+        }
+        fields.removeIf(StringUtils::isBlank);
+        if(fields.isEmpty()){
+            fields.add("*");
+        }
+        fields.add("score");
+        return fields.toArray(new String[fields.size()]);
+    }
+    
+    private SolrResult toSolrResult(SolrEndpointConfiguration conf, Mappings mappings, SolrDocument doc){
+        final SolrResult result = new SolrResult(getCreatorName(conf));
+        if(mappings != null){
+            result.setSource(getFieldValue(doc, mappings.getSource()));
+            result.setTitle(getFieldValue(doc, mappings.getTitle()));
+            result.setDescription(getFieldValue(doc, mappings.getDescription()));
+            result.setType(getFieldValue(doc, mappings.getType()));
+            result.setDoctype(getFieldValue(doc, mappings.getDoctype()));
+            result.setLink(getFieldValue(doc, mappings.getLink()));
+            result.setThumb(getFieldValue(doc, mappings.getThumb()));
+            if(StringUtils.isNoneBlank(mappings.getDate())){
+                result.setDate(doc.getFirstValue(mappings.getDate()));
+            }
+        }
+        Object score = doc.getFirstValue("score");
+        if(score instanceof Number){
+            result.setScore(((Number)score).floatValue());
+        }
+        return result;
+    }
+    
+    private static String getFieldValue(SolrDocument doc, String field){
+        if(StringUtils.isBlank(field)){
+            return null;
+        }
+        Object value = doc.getFirstValue(field);
+        return value == null ? null : value.toString();
     }
     
     protected final SolrSearchQuery buildQuery(SolrEndpointConfiguration config, Template template, Conversation conversation, Analysis analysis){
@@ -161,7 +369,7 @@ public final class SolrSearchQueryBuilder extends QueryBuilder<SolrEndpointConfi
         query.setUrl(config.getSolrEndpoint() + solrQuery.toQueryString());
         query.setDisplayTitle(config.getDisplayName());
         query.setConfidence(0.8f);
-        query.setInlineResultSupport(false); //not yet implemented
+        query.setInlineResultSupport(isResultSupported(config));
         
         return query;
     }
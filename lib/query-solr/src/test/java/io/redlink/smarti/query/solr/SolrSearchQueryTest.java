@@ -1,7 +1,12 @@
 package io.redlink.smarti.query.solr;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 
+import org.apache.solr.client.solrj.SolrQuery;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,6 +14,8 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.redlink.smarti.model.Query;
+import io.redlink.smarti.model.SearchResult;
+import io.redlink.smarti.query.solr.SolrEndpointConfiguration.ResultConfig.Mappings;
 import org.junit.Assert;
 
 public class SolrSearchQueryTest {
@@ -26,5 +33,129 @@ public class SolrSearchQueryTest {
         Assert.assertTrue(query instanceof SolrSearchQuery);
     }
     
+    @Test
+    public void testAllowedEndpoints() throws Exception {
+        SolrClientConfiguration config = new SolrClientConfiguration();
+        config.setAllowedEndpoints(Arrays.asList("http://localhost:8983/solr/", "solr.example.org"));
+        SolrEndpointClientPool pool = new SolrEndpointClientPool(config);
+        try {
+            Assert.assertTrue(pool.isAllowed("http://localhost:8983/solr/core1"));
+            Assert.assertTrue(pool.isAllowed("https://solr.example.org/solr/core1"));
+            Assert.assertTrue(pool.isAllowed("http://solr.example.org:8080/core1"));
+            Assert.assertFalse(pool.isAllowed("http://169.254.169.254/latest/meta-data"));
+            Assert.assertFalse(pool.isAllowed("http://localhost:8080/solr/core1")); //other port
+            Assert.assertFalse(pool.isAllowed("https://localhost:8983/solr/core1")); //other scheme
+            Assert.assertFalse(pool.isAllowed("http://localhost:8983/solrcore")); //no path prefix
+            Assert.assertFalse(pool.isAllowed("http://localhost:8983/solr/../admin")); //normalized path
+            Assert.assertFalse(pool.isAllowed("http://user@solr.example.org/solr/core1"));
+            Assert.assertFalse(pool.isAllowed("file:///etc/passwd"));
+            try {
+                pool.getSolrClient("http://169.254.169.254/latest");
+                Assert.fail("IllegalArgumentException expected for a not allowed endpoint");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        } finally {
+            pool.close();
+        }
+        //no allowed endpoints configured
+        SolrEndpointClientPool emptyPool = new SolrEndpointClientPool(new SolrClientConfiguration());
+        try {
+            Assert.assertFalse(emptyPool.isAllowed("http://localhost:8983/solr/core1"));
+        } finally {
+            emptyPool.close();
+        }
+    }
+    
+    @Test
+    public void testRejectedEndpoint() throws Exception {
+        SolrClientConfiguration config = new SolrClientConfiguration();
+        config.setAllowedEndpoints(Arrays.asList("http://localhost:8983/solr/"));
+        SolrEndpointClientPool pool = new SolrEndpointClientPool(config);
+        try {
+            SolrSearchQueryBuilder builder = new SolrSearchQueryBuilder(new SolrEndpointConfiguration(), null, pool);
+            SolrEndpointConfiguration conf = new SolrEndpointConfiguration();
+            conf.setSolrEndpoint("http://169.254.169.254/latest/select");
+            try {
+                builder.execute(conf, null, null, null, null);
+                Assert.fail("IOException expected for a not allowed endpoint");
+            } catch (IOException e) {
+                log.debug("expected: {}", e.getMessage());
+            }
+        } finally {
+            pool.close();
+        }
+    }
+    
+    @Test
+    public void testCacheKey() throws Exception {
+        SolrQuery query = new SolrQuery("title:\"test\"");
+        query.setRequestHandler("/select");
+        query.setStart(0);
+        query.setRows(10);
+        SolrQuery other = query.getCopy();
+        Assert.assertEquals(SolrSearchQueryBuilder.getCacheKey("http://localhost:8983/solr/core1", query),
+                SolrSearchQueryBuilder.getCacheKey("http://localhost:8983/solr/core1", other));
+        //the same query on an other core
+        Assert.assertNotEquals(SolrSearchQueryBuilder.getCacheKey("http://localhost:8983/solr/core1", query),
+                SolrSearchQueryBuilder.getCacheKey("http://localhost:8983/solr/core2", query));
+        //an other page
+        other.setStart(10);
+        Assert.assertNotEquals(SolrSearchQueryBuilder.getCacheKey("http://localhost:8983/solr/core1", query),
+                SolrSearchQueryBuilder.getCacheKey("http://localhost:8983/solr/core1", other));
+        //an other field projection
+        other = query.getCopy();
+        other.setFields("title", "score");
+        Assert.assertNotEquals(SolrSearchQueryBuilder.getCacheKey("http://localhost:8983/solr/core1", query),
+                SolrSearchQueryBuilder.getCacheKey("http://localhost:8983/solr/core1", other));
+    }
+    
+    @Test
+    public void testCopyOfResult() throws Exception {
+        SolrResult doc = new SolrResult("solrsearch:test");
+        doc.setTitle("title");
+        doc.setLink("http://www.example.org/doc1");
+        doc.setDate(new Date(1000));
+        doc.setScore(1.5f);
+        SearchResult<SolrResult> result = new SearchResult<>(10, 0, 5, new ArrayList<>(Arrays.asList(doc)));
+        result.setMaxScore(1.5f);
+        
+        SearchResult<SolrResult> copy = SolrSearchQueryBuilder.copyOf(result);
+        Assert.assertNotSame(result, copy);
+        Assert.assertEquals(10, copy.getNumFound());
+        Assert.assertEquals(0, copy.getStart());
+        Assert.assertEquals(5, copy.getPageSize());
+        Assert.assertEquals(Float.valueOf(1.5f), copy.getMaxScore());
+        Assert.assertEquals(1, copy.getDocs().size());
+        SolrResult docCopy = copy.getDocs().get(0);
+        Assert.assertNotSame(doc, docCopy);
+        Assert.assertEquals("solrsearch:test", docCopy.getCreator());
+        Assert.assertEquals("title", docCopy.getTitle());
+        Assert.assertEquals("http://www.example.org/doc1", docCopy.getLink());
+        Assert.assertEquals(new Date(1000), docCopy.getDate());
+        Assert.assertEquals(Float.valueOf(1.5f), docCopy.getScore());
+        
+        //modifications of the copy MUST NOT affect the original
+        docCopy.setTitle("modified");
+        ((Date)docCopy.getDate()).setTime(2000);
+        copy.getDocs().clear();
+        copy.setNumFound(0);
+        Assert.assertEquals("title", doc.getTitle());
+        Assert.assertEquals(new Date(1000), doc.getDate());
+        Assert.assertEquals(1, result.getDocs().size());
+        Assert.assertEquals(10, result.getNumFound());
+    }
+
+    @Test
+    public void testFieldProjection() throws Exception {
+        Assert.assertArrayEquals(new String[]{"*", "score"}, SolrSearchQueryBuilder.getResultFields(null));
+        Assert.assertArrayEquals(new String[]{"*", "score"}, SolrSearchQueryBuilder.getResultFields(new Mappings()));
+        Mappings mappings = new Mappings();
+        mappings.setTitle("title");
+        mappings.setDescription("");
+        mappings.setLink("url");
+        mappings.setThumb("title"); //duplicates are only requested once
+        Assert.assertArrayEquals(new String[]{"title", "url", "score"}, SolrSearchQueryBuilder.getResultFields(mappings));
+    }
     
 }